@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Some objects of a folder could not be deleted: S3 has refused to delete
+ * them (access denied...), while the other objects have been deleted.
+ * Only the first failures are kept, getCount() returns the total.
+ *
+ * @author pcarion
+ */
+public class S3DeleteException extends IOException {
+    private final static int MAX_FAILURES = 1000;
+
+    private final List _names = new ArrayList();
+
+    private final List _codes = new ArrayList();
+
+    private int _count = 0;
+
+    public S3DeleteException(String message) {
+        super(message);
+    }
+
+    /**
+     * @param name the object which could not be deleted
+     * @param code the error code returned by S3
+     */
+    public synchronized void addFailure(S3UrlName name, String code) {
+        _count++;
+        if (_names.size() < MAX_FAILURES) {
+            _names.add(name);
+            _codes.add(code);
+        }
+    }
+
+    /**
+     * @return the number of objects which could not be deleted
+     */
+    public synchronized int getCount() {
+        return _count;
+    }
+
+    /**
+     * @return the names (S3UrlName) of the first objects which could not
+     *         be deleted
+     */
+    public synchronized List getNames() {
+        return new ArrayList(_names);
+    }
+
+    /**
+     * @return the error code of the i-th name returned by getNames()
+     */
+    public synchronized String getCode(int i) {
+        return (String) _codes.get(i);
+    }
+
+    public String getMessage() {
+        return super.getMessage() + " (" + getCount()
+                + " objects not deleted)";
+    }
+}
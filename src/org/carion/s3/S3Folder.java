@@ -24,4 +24,24 @@ public interface S3Folder extends S3Object {
     S3Resource createResource(String name) throws IOException;
 
     S3UrlName[] getChildrenUris() throws IOException;
+
+    /**
+     * Returns the children of this folder, with their properties
+     * (length, last modified date) already populated from the listing
+     * of the folder.
+     * Each element is either a S3Folder or a S3Resource.
+     */
+    S3Object[] getChildren() throws IOException;
+
+    /**
+     * Calls the processing for each child of this folder, as the listing of
+     * the folder is read from S3: the children are not all kept in memory,
+     * which is what we want for large folders.
+     * Each child is either a S3Folder or a S3Resource.
+     */
+    void processChildren(ChildProcessing processing) throws IOException;
+
+    interface ChildProcessing {
+        void process(S3Object child) throws IOException;
+    }
 }
@@ -34,11 +34,30 @@ public interface S3Repository {
 
     S3Folder createFolder(S3UrlName resource) throws IOException;
 
+    /**
+     * Creates a new resource. The object is only written to S3 when its
+     * content is set (see S3Resource.setResourceContent).
+     */
     S3Resource createResource(S3UrlName resource) throws IOException;
 
     S3Folder getFolder(S3UrlName resource) throws IOException;
 
     S3Resource getResource(S3UrlName resource) throws IOException;
 
+    /**
+     * Gets an object with a single GET request: its metadata (length, date,
+     * ETag, content type, directory flag) come from the response itself.
+     * 
+     * @return null if the object doesn't exist, a S3Folder for a directory,
+     *         otherwise a S3Resource whose content has already been opened
+     *         (its first call to getContent returns the pending response)
+     */
+    S3Object openObject(S3UrlName resource) throws IOException;
+
     void copy(S3UrlName source, S3UrlName destination) throws IOException;
+
+    /**
+     * Moves a file, or a folder and all its content
+     */
+    void move(S3UrlName source, S3UrlName destination) throws IOException;
 }
\ No newline at end of file
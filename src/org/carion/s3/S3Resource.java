@@ -26,7 +26,23 @@ public interface S3Resource extends S3Object {
 
     InputStream getContent() throws IOException;
 
-    void setResourceContent(InputStream content, String contentType, long length)
-            throws IOException;
+    /**
+     * Returns a range of the content
+     * @param start the first byte of the range
+     * @param end the last byte of the range (included)
+     */
+    InputStream getContent(long start, long end) throws IOException;
+
+    /**
+     * @return the entity tag of the content (the quoted MD5 of the
+     *  content), null if unknown
+     */
+    String getETag() throws IOException;
+
+    /**
+     * @param client the address of the client sending the content
+     */
+    void setResourceContent(InputStream content, String contentType,
+            long length, String client) throws IOException;
 
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3;
+
+import java.io.IOException;
+
+/**
+ * S3 can't be reached: the request has got no answer, or it has not been
+ * sent because too many requests have failed recently (see
+ * S3CircuitBreaker).
+ *
+ * @author pcarion
+ */
+public class S3UnavailableException extends IOException {
+    private final long _retryAfter;
+
+    /**
+     * @param retryAfter when S3 will be tried again, in seconds (0 if
+     *            unknown)
+     */
+    public S3UnavailableException(String message, long retryAfter) {
+        super(message);
+        _retryAfter = retryAfter;
+    }
+
+    /**
+     * @return when S3 will be tried again, in seconds (0 if unknown)
+     */
+    public long getRetryAfter() {
+        return _retryAfter;
+    }
+}
@@ -21,15 +21,28 @@ import java.io.InputStream;
 import java.util.List;
 
 public interface S3UploadManager {
+    /**
+     * @param client the address of the client sending the content: the
+     *        background uploads of the different clients are run in turn
+     */
     void upload(S3UrlName name, InputStream content, String contentType,
-            long length) throws IOException;
+            long length, String client) throws IOException;
 
     List getCurrentUploads();
 
     void shutdown();
     
+    /**
+     * @return the files (S3Resource) being uploaded in the directory: their
+     *         content is read from the local copy of the file
+     */
     List getUploadsInDirectory(S3UrlName name);
 
+    /**
+     * Resumes the uploads interrupted by the last shutdown
+     */
+    void recover();
+
     /**
      * Describe an upload
      */
@@ -55,6 +55,7 @@ public class AdminPage {
         _pages.add(new AccountPage("account"));
         _pages.add(new BucketsPage("buckets"));
         _pages.add(new UploadsPage("uploads"));
+        _pages.add(new StatisticsPage("statistics"));
         _pages.add(new SupportPage("support"));
         _pages.add(new LogsPage("logs"));
         _pages.add(new RawListingPage("rawlisting"));
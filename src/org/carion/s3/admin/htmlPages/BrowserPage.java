@@ -22,7 +22,6 @@ import org.carion.s3.S3Folder;
 import org.carion.s3.S3Object;
 import org.carion.s3.S3Repository;
 import org.carion.s3.S3Resource;
-import org.carion.s3.S3UrlName;
 import org.carion.s3.http.HttpRequest;
 import org.carion.s3.util.Util;
 import org.carion.s3dav.Version;
@@ -66,17 +65,16 @@ public class BrowserPage {
         _w.th("type");
         _w.out("</tr>");
 
-        S3UrlName[] files = folder.getChildrenUris();
+        S3Object[] files = folder.getChildren();
 
         int lineno = 0;
         String className;
 
         // pass #1: the directories
         for (int i = 0; i < files.length; i++) {
-            S3UrlName uri = files[i];
-            if (repository.isFolder(uri)) {
+            if (files[i] instanceof S3Folder) {
                 className = ((lineno % 2) == 0) ? "cell_0" : "cell_1";
-                S3Folder res = repository.getFolder(uri);
+                S3Folder res = (S3Folder) files[i];
                 _w.out("<tr>");
                 _w.out("<td class=\"" + className + "\"><a href=\""
                         + mkUrl(res, request) + "\">"
@@ -89,10 +87,9 @@ public class BrowserPage {
             }
         }
         for (int i = 0; i < files.length; i++) {
-            S3UrlName uri = files[i];
-            if (repository.isResource(uri)) {
+            if (files[i] instanceof S3Resource) {
                 className = ((lineno % 2) == 0) ? "cell_0" : "cell_1";
-                S3Resource res = repository.getResource(uri);
+                S3Resource res = (S3Resource) files[i];
                 _w.out("<tr><td class=\"" + className + "\"><a href=\""
                         + mkUrl(res, request) + "\">"
                         + Util.urlDecode(res.getName())
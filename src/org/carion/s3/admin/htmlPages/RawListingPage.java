@@ -20,6 +20,7 @@ import java.util.Iterator;
 import java.util.List;
 
 import org.carion.s3.impl.Object;
+import org.carion.s3.operations.BucketGET;
 import org.carion.s3.util.Util;
 
 public class RawListingPage extends Page {
@@ -37,11 +38,18 @@ public class RawListingPage extends Page {
 
     void page() {
         String bucket = getParam("bucket");
-        _w.article("Raw listing for bucket:" + bucket);
+        String prefix = getParam("prefix");
+        if (prefix == null) {
+            prefix = "";
+        }
+        _w.article("Raw listing for bucket:" + bucket + " prefix:(" + prefix
+                + ")");
         _w.out("<br/>");
         try {
-            List objects = _repository.getRawListing(bucket);
-            if (objects.size() == 0) {
+            BucketGET listing = _repository.getRawListing(bucket, prefix);
+            List objects = listing.getObjects();
+            List prefixes = listing.getCommonPrefixes();
+            if ((objects.size() == 0) && (prefixes.size() == 0)) {
                 _w.p("there is no objects stored in this bucket");
             } else {
                 _w.out("<table>");
@@ -53,6 +61,20 @@ public class RawListingPage extends Page {
                 _w.out("</tr>");
                 int lineno = 0;
                 String className;
+                for (Iterator iter = prefixes.iterator(); iter.hasNext();) {
+                    String commonPrefix = (String) iter.next();
+                    className = ((lineno % 2) == 0) ? "cell_0" : "cell_1";
+                    _w.out("<tr>");
+                    _w.td(className, null, commonPrefix,
+                            "index.html?page=rawlisting&bucket="
+                                    + Util.urlEncode(bucket) + "&prefix="
+                                    + Util.urlEncode(commonPrefix));
+                    _w.td(className, "&nbsp;");
+                    _w.td(className, "&nbsp;");
+                    _w.td(className, "&nbsp;");
+                    _w.out("</tr>");
+                    lineno++;
+                }
                 for (Iterator iter = objects.iterator(); iter.hasNext();) {
                     Object obj = (Object) iter.next();
                     className = ((lineno % 2) == 0) ? "cell_0" : "cell_1";
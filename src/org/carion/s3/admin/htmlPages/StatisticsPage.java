@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.admin.htmlPages;
+
+import java.util.Date;
+
+import org.carion.s3.impl.Cache;
+import org.carion.s3.impl.ContentCache;
+import org.carion.s3.impl.FolderFilters;
+import org.carion.s3.impl.NamespaceIndex;
+import org.carion.s3.operations.S3CircuitBreaker;
+import org.carion.s3.operations.S3ConnectionPool;
+import org.carion.s3.operations.S3RequestPolicy;
+import org.carion.s3.util.SingleFlight;
+
+class StatisticsPage extends Page {
+    StatisticsPage(String pageName) {
+        super("Statistics Page", pageName);
+    }
+
+    boolean needsRepository() {
+        return true;
+    }
+
+    void page() {
+        Cache cache = _repository.getS3Cache();
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        long lookups = hits + misses;
+        FolderFilters filters = _repository.getFolderFilters();
+
+        S3CircuitBreaker breaker = S3CircuitBreaker.getInstance();
+        int errorRate = breaker.getErrorRate();
+        _w.article("S3 status");
+        if (!breaker.isEnabled()) {
+            _w.p("The requests are always sent to S3 (s3dav.s3.breaker is "
+                    + "false).");
+        } else if (breaker.getState() == S3CircuitBreaker.CLOSED) {
+            _w.p("S3 is available. The requests stop being sent when "
+                    + breaker.getThreshold() + "% of them fail: s3DAV then "
+                    + "answers from what it has cached.");
+        } else {
+            _w.p("S3 is unavailable since "
+                    + new Date(breaker.getSince())
+                    + ": the files and folders are served from what s3DAV "
+                    + "has cached. S3 will be tried again in "
+                    + breaker.getRetryAfter() + " seconds.");
+        }
+        _w.out("<p><table cellpadding=\"10\">");
+        row("status", (breaker.getState() == S3CircuitBreaker.CLOSED)
+                ? "available"
+                : ((breaker.getState() == S3CircuitBreaker.OPEN)
+                        ? "unavailable" : "unavailable (probing)"));
+        row("failed requests (last 5 minutes)", (errorRate < 0) ? "(none sent)"
+                : errorRate + "%");
+        row("times S3 became unavailable", String.valueOf(breaker
+                .getOpenings()));
+        row("requests not sent", String.valueOf(breaker.getRejected()));
+        row("metadata used while S3 was unreachable", String.valueOf(cache
+                .getOfflineHits()));
+        row("folders browsed while S3 was unreachable", String
+                .valueOf(_repository.getNamespaceIndex().getOfflineListings()));
+        row("files read while S3 was unreachable", String
+                .valueOf(_repository.getOfflineReads()));
+        _w.out("</table></p>");
+        _w.article_end();
+
+        _w.article("Metadata cache");
+        _w.p("The metadata cache keeps the result of the HEAD requests "
+                + "sent to S3 for " + (cache.getTtl() / 1000) + " seconds ("
+                + (cache.getNegativeTtl() / 1000)
+                + " seconds for the missing objects). An expired entry is "
+                + "still used for " + (cache.getStaleTtl() / 1000)
+                + " seconds while it is refreshed in the background, and for "
+                + (cache.getOfflineTtl() / 1000) + " seconds when S3 can't "
+                + "be reached. The objects missing "
+                + "from the last listing of their folder are not looked "
+                + "up in S3.");
+        _w.out("<p><table cellpadding=\"10\">");
+        row("entries", cache.getSize() + " / " + cache.getMaxEntries());
+        row("size (bytes)", cache.getBytes() + " / " + cache.getMaxBytes());
+        row("hits", String.valueOf(hits));
+        row("misses", String.valueOf(misses));
+        row("hit ratio", ((lookups == 0) ? 0 : (hits * 100) / lookups) + "%");
+        row("evictions", String.valueOf(cache.getEvictions()));
+        row("stale entries used (refreshed in the background)", String
+                .valueOf(cache.getStaleHits()));
+        row("listed folders", filters.getSize() + " / "
+                + filters.getMaxFolders() + " (" + filters.getBytes()
+                + " bytes)");
+        row("missing objects answered from the listings", String
+                .valueOf(filters.getAbsent()));
+        row("false positives", String.valueOf(filters.getFalsePositives()));
+        _w.out("</table></p>");
+        _w.article_end();
+
+        NamespaceIndex index = _repository.getNamespaceIndex();
+        _w.article("Namespace index");
+        if (index.isEnabled()) {
+            _w.p("The folders of the buckets " + index.getBuckets()
+                    + " are indexed in memory: a folder listed less than "
+                    + (index.getTtl() / 1000) + " seconds ago is browsed "
+                    + "without any request to S3 (an expired listing is "
+                    + "used while its folder is listed again in the "
+                    + "background)."
+                    + (index.isPersistent() ? " The index is saved on disk: "
+                            + "after a restart, the saved listings are used "
+                            + "while their folders are listed again." : ""));
+        } else {
+            _w.p("The namespace index is disabled (see s3dav.index).");
+        }
+        _w.out("<p><table cellpadding=\"10\">");
+        row("indexed folders", String.valueOf(index.getFolders()));
+        row("entries", index.getEntries() + " / " + index.getMaxEntries());
+        row("lookups answered by the index", String.valueOf(index
+                .getLookups()));
+        row("folders listed from the index", String.valueOf(index
+                .getListings()));
+        row("expired listings used", String.valueOf(index
+                .getStaleListings()));
+        row("folders listed again in the background", String.valueOf(index
+                .getRevalidated()));
+        if (index.isPersistent()) {
+            row("saved in", index.getFile() + " (" + index.getFileBytes()
+                    + " bytes)");
+            row("saved folders not read yet", String.valueOf(index
+                    .getRestorable()));
+            row("folders read from the disk", String.valueOf(index
+                    .getRestored()));
+        }
+        _w.out("</table></p>");
+        _w.article_end();
+
+        ContentCache contentCache = _repository.getContentCache();
+        long served = contentCache.getHits();
+        long downloads = contentCache.getMisses();
+        long reads = served + downloads;
+
+        _w.article("Content cache");
+        if (contentCache.isEnabled()) {
+            _w.p("The content of the files read from S3 is kept on disk (up to "
+                    + (contentCache.getMaxObjectSize() / (1024 * 1024))
+                    + "MB per file), and read again from the disk as long as "
+                    + "the file has not changed in S3.");
+        } else {
+            _w.p("The content cache is disabled.");
+        }
+        _w.out("<p><table cellpadding=\"10\">");
+        row("files", String.valueOf(contentCache.getSize()));
+        row("size (bytes)", contentCache.getBytes() + " / "
+                + contentCache.getMaxBytes());
+        row("reads from the cache", String.valueOf(served));
+        row("reads checked with S3 (not modified)", String
+                .valueOf(contentCache.getRevalidations()));
+        row("reads from S3", String.valueOf(downloads));
+        row("hit ratio", ((reads == 0) ? 0 : (served * 100) / reads) + "%");
+        row("bytes read from the cache", String.valueOf(contentCache
+                .getBytesServed()));
+        row("evictions", String.valueOf(contentCache.getEvictions()));
+        _w.out("</table></p>");
+        _w.article_end();
+
+        S3ConnectionPool pool = S3ConnectionPool.getInstance();
+        long connects = pool.getConnects();
+        long reuses = pool.getReuses();
+        long requests = connects + reuses;
+
+        _w.article("S3 connections");
+        _w.p("The connections to S3 are kept alive and reused: an idle "
+                + "connection is closed after "
+                + (pool.getIdleTimeout() / 1000) + " seconds.");
+        _w.out("<p><table cellpadding=\"10\">");
+        row("connections in use", pool.getLeasedConnections() + " / "
+                + pool.getMaxConnectionsPerHost());
+        row("idle connections", String.valueOf(pool.getIdleConnections()));
+        row("connections opened", String.valueOf(connects));
+        row("connections reused (TCP connects saved)", String
+                .valueOf(reuses));
+        row("reuse ratio", ((requests == 0) ? 0 : (reuses * 100) / requests)
+                + "%");
+        row("stale connections", String.valueOf(pool
+                .getStaleConnections()));
+        row("idle connections closed", String.valueOf(pool
+                .getIdleEvictions()));
+        row("waits for a free connection", String.valueOf(pool.getWaits()));
+        _w.out("</table></p>");
+        _w.article_end();
+
+        S3RequestPolicy policy = S3RequestPolicy.getInstance();
+        long sent = policy.getRequests();
+        long hedges = policy.getHedges();
+
+        _w.article("S3 requests");
+        _w.p("The requests which time out or get a 500 or 503 response are "
+                + "retried. " + (policy.isHedgeEnabled()
+                        ? "The HEAD, GET and listing requests slower than "
+                                + policy.getHedgePercentile()
+                                + "% of the previous ones are sent a second "
+                                + "time, and the first response is used."
+                        : "The slow requests are not hedged."));
+        _w.out("<p><table cellpadding=\"10\">");
+        row("requests", String.valueOf(sent));
+        row("retries", String.valueOf(policy.getRetries()));
+        row("retry ratio", ((sent == 0) ? 0 : (policy.getRetries() * 100)
+                / sent)
+                + "%");
+        row("timeouts", String.valueOf(policy.getTimeouts()));
+        row("failed after retries", String.valueOf(policy.getFailures()));
+        row("hedged requests", String.valueOf(hedges));
+        row("hedge ratio", ((sent == 0) ? 0 : (hedges * 100) / sent) + "%");
+        row("hedged requests answered first", String.valueOf(policy
+                .getHedgeWins()));
+        row("HEAD hedge delay (ms)", toDelay(policy.getHeadLatency()));
+        row("GET hedge delay (ms)", toDelay(policy.getGetLatency()));
+        row("listing hedge delay (ms)", toDelay(policy.getListLatency()));
+        _w.out("</table></p>");
+        _w.article_end();
+
+        SingleFlight heads = _repository.getSharedHeads();
+        SingleFlight listings = _repository.getSharedListings();
+        SingleFlight gets = _repository.getSharedGets();
+        _w.article("Shared requests");
+        _w.p(heads.isEnabled() ? "The concurrent identical HEAD, listing and "
+                + "GET (small objects) requests share the same call to S3."
+                : "The concurrent identical requests are not shared.");
+        _w.out("<p><table cellpadding=\"10\">");
+        row("HEAD requests shared / sent", heads.getCollapsed() + " / "
+                + heads.getCalls());
+        row("listing pages shared / sent", listings.getCollapsed() + " / "
+                + listings.getCalls());
+        row("GET requests shared / sent", gets.getCollapsed() + " / "
+                + gets.getCalls());
+        _w.out("</table></p>");
+        _w.article_end();
+    }
+
+    private String toDelay(long latency) {
+        return (latency < 0) ? "(not enough requests)" : String
+                .valueOf(latency);
+    }
+
+    private void row(String name, String value) {
+        _w.out("<tr>");
+        _w.th(name);
+        _w.td(value);
+        _w.out("</tr>");
+    }
+}
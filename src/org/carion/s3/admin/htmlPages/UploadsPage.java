@@ -17,8 +17,12 @@ package org.carion.s3.admin.htmlPages;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.carion.s3.S3UploadManager;
+import org.carion.s3.impl.S3TreeOperation;
+import org.carion.s3.impl.S3TreeOperations;
+import org.carion.s3.impl.S3UploadScheduler;
 
 class UploadsPage extends Page {
     UploadsPage(String pageName) {
@@ -29,6 +33,13 @@ class UploadsPage extends Page {
         return true;
     }
 
+    void action() {
+        String discard = getParam("discard");
+        if (discard != null) {
+            _repository.getTreeOperations().discard(discard);
+        }
+    }
+
     void page() {
         _w.article("Pending Uploads");
         List uploads = _uploadManager.getCurrentUploads();
@@ -56,8 +67,164 @@ class UploadsPage extends Page {
                 _w.td(String.valueOf(upload.getSize()));
                 _w.td(upload.getPercentage() + "%");
                 _w.td(String.valueOf(upload.getUploaded()));
-                _w.td(upload.getStorageFile().getAbsolutePath());
-                _w.td(String.valueOf(upload.getState()));
+                if (upload.getStorageFile() == null) {
+                    _w.td("(streamed)");
+                } else {
+                    _w.td(upload.getStorageFile().getAbsolutePath());
+                }
+                _w.td(getStateName(upload.getState()));
+                _w.out("</tr>");
+            }
+            _w.out("</tbody>");
+            _w.out("</table></p>");
+        }
+        _w.article_end();
+
+        queue();
+        folders();
+    }
+
+    private String getStateName(int state) {
+        switch (state) {
+        case S3UploadManager.Upload.STATE_NOT_STARTED:
+            return "waiting";
+        case S3UploadManager.Upload.STATE_STARTED:
+            return "running";
+        case S3UploadManager.Upload.STATE_FINISHED:
+            return "done";
+        default:
+            return "error";
+        }
+    }
+
+    /**
+     * The uploads waiting for a thread, by priority, bucket and client
+     */
+    private void queue() {
+        S3UploadScheduler scheduler = _repository.getUploadScheduler();
+        int[] priorities = scheduler.getQueuedByPriority();
+
+        _w.article("Upload queue");
+        _w.p("At most " + scheduler.getMaxThreads()
+                + " files are sent at the same time (" + scheduler
+                .getMaxBucketThreads() + " per bucket).");
+        _w.out("<p><table cellpadding=\"10\">");
+        row("running", String.valueOf(scheduler.getRunning()));
+        row("waiting", String.valueOf(scheduler.getQueued()));
+        row("waiting (small files)", String
+                .valueOf(priorities[S3UploadScheduler.PRIORITY_HIGH]));
+        row("waiting (other files)", String
+                .valueOf(priorities[S3UploadScheduler.PRIORITY_NORMAL]));
+        row("waiting (resumed or retried)", String
+                .valueOf(priorities[S3UploadScheduler.PRIORITY_LOW]));
+        row("uploads done", String.valueOf(scheduler.getCompleted()));
+        row("average wait (ms)", String.valueOf(scheduler.getAverageWait()));
+        row("threads", String.valueOf(scheduler.getThreads()));
+        _w.out("</table></p>");
+
+        Map buckets = scheduler.getBuckets();
+        if (buckets.size() > 0) {
+            _w.out("<p><table cellpadding=\"10\">");
+            _w.out("<thead><tr>");
+            _w.th("bucket");
+            _w.th("waiting");
+            _w.th("running");
+            _w.out("</tr></thead>");
+            _w.out("<tbody>");
+            for (Iterator iter = buckets.entrySet().iterator(); iter
+                    .hasNext();) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                int[] counts = (int[]) entry.getValue();
+                _w.out("<tr>");
+                _w.td((String) entry.getKey());
+                _w.td(String.valueOf(counts[0]));
+                _w.td(String.valueOf(counts[1]));
+                _w.out("</tr>");
+            }
+            _w.out("</tbody>");
+            _w.out("</table></p>");
+        }
+
+        Map clients = scheduler.getClients();
+        if (clients.size() > 0) {
+            _w.out("<p><table cellpadding=\"10\">");
+            _w.out("<thead><tr>");
+            _w.th("client (next served first)");
+            _w.th("waiting");
+            _w.out("</tr></thead>");
+            _w.out("<tbody>");
+            for (Iterator iter = clients.entrySet().iterator(); iter
+                    .hasNext();) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                _w.out("<tr>");
+                _w.td((String) entry.getKey());
+                _w.td(String.valueOf(entry.getValue()));
+                _w.out("</tr>");
+            }
+            _w.out("</tbody>");
+            _w.out("</table></p>");
+        }
+        _w.article_end();
+    }
+
+    private void row(String name, String value) {
+        _w.out("<tr>");
+        _w.th(name);
+        _w.td(value);
+        _w.out("</tr>");
+    }
+
+    /**
+     * The copies, moves and deletes of folders
+     */
+    private void folders() {
+        _w.article("Folder operations");
+        S3TreeOperations treeOperations = _repository.getTreeOperations();
+        List operations = treeOperations.getOperations();
+
+        if (operations.size() == 0) {
+            _w.p("No folder is being copied, moved or deleted");
+        } else {
+            _w.out("<p><table cellpadding=\"10\">");
+            _w.out("<thead>");
+            _w.out("<tr>");
+            _w.th("operation");
+            _w.th("folder");
+            _w.th("destination");
+            _w.th("objects done");
+            _w.th("bytes copied");
+            _w.th("in progress");
+            _w.th("state");
+            _w.out("</tr>");
+            _w.out("</thead>");
+            _w.out("<tbody>");
+            for (Iterator iter = operations.iterator(); iter.hasNext();) {
+                S3TreeOperation operation = (S3TreeOperation) iter.next();
+                _w.out("<tr>");
+                switch (operation.getType()) {
+                case S3TreeOperation.TYPE_COPY:
+                    _w.td("copy");
+                    break;
+                case S3TreeOperation.TYPE_MOVE:
+                    _w.td("move");
+                    break;
+                default:
+                    _w.td("delete");
+                }
+                _w.td(operation.getSource().getUri());
+                _w.td((operation.getDestination() == null) ? "" : operation
+                        .getDestination().getUri());
+                _w.td(String.valueOf(operation.getProcessed()));
+                _w.td(String.valueOf(operation.getBytes()));
+                _w.td(String.valueOf(operation.getPendingCount()));
+                if (operation.getState() == S3TreeOperation.STATE_ERROR) {
+                    _w.td(null, null, "error: " + operation.getError()
+                            + " (resumed at the next start, click to discard)",
+                            "index.html?page=uploads&discard="
+                                    + operation.getId());
+                } else {
+                    _w.td("running");
+                }
                 _w.out("</tr>");
             }
             _w.out("</tbody>");
@@ -44,6 +44,8 @@ class WelcomePage extends Page {
                 + "This page allows you to create a new bucket</li>");
         _w.out("<li><b>Uploads Page</b>: "
                 + "This page lists your current uploads</li>");
+        _w.out("<li><b>Statistics Page</b>: "
+                + "This page shows how the caches of s3DAV are doing.</li>");
         _w.out("<li><b>Support Page</b>: " + "Nothing works for you ? "
                 + "you're lost ? this is the page you should read.</li>");
         _w.out("<li><b>Logs Page</b>: "
@@ -94,10 +94,17 @@ public class HttpRequest {
 
     boolean getKeepAlive() {
         String keepAliveHeader = getHttpHeader("Connection");
-        if (keepAliveHeader.indexOf("Keep-Alive") >= 0) {
+        if (keepAliveHeader == null) {
+            // persistent connections are the default with HTTP/1.1
+            return "HTTP/1.1".equals(_protocol);
+        }
+        keepAliveHeader = keepAliveHeader.toLowerCase();
+        if (keepAliveHeader.indexOf("keep-alive") >= 0) {
             return true;
-        } else {
+        } else if (keepAliveHeader.indexOf("close") >= 0) {
             return false;
+        } else {
+            return "HTTP/1.1".equals(_protocol);
         }
     }
 
@@ -153,12 +160,12 @@ public class HttpRequest {
         _httpHeaders.put(key, value);
     }
 
-    public int getContentLength() {
+    public long getContentLength() {
         String cl = getHttpHeader("Content-Length");
         if (cl == null) {
             return -1;
         } else {
-            return Integer.parseInt(cl);
+            return Long.parseLong(cl.trim());
         }
     }
 
@@ -1,7 +1,10 @@
 package org.carion.s3.http;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -20,14 +23,20 @@ public class HttpResponse {
 
     private InputStream _content = null;
 
+    private ContentProducer _producer = null;
+
     public final static int SC_OK = 200;
 
     public final static int SC_CREATED = 201;
 
     public final static int SC_NO_CONTENT = 204;
 
+    public final static int SC_PARTIAL_CONTENT = 206;
+
     public final static int SC_MULTI_STATUS = 207;
 
+    public final static int SC_NOT_MODIFIED = 304;
+
     public final static int SC_BAD_REQUEST = 400;
 
     public final static int SC_FORBIDDEN = 403;
@@ -42,10 +51,14 @@ public class HttpResponse {
 
     public final static int SC_UNSUPPORTED_MEDIA_TYPE = 415;
 
+    public final static int SC_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
     public final static int SC_INTERNAL_ERROR = 500;
 
     public final static int SC_NOT_IMPLEMENTED = 501;
 
+    public final static int SC_SERVICE_UNAVAILABLE = 503;
+
     /**
      * This map associated the status code and the status message which will be
      * sent in the webdav response
@@ -60,6 +73,12 @@ public class HttpResponse {
         _statusMessages.put(new Integer(SC_BAD_REQUEST), "Bad Request");
         _statusMessages.put(new Integer(SC_OK), "OK");
         _statusMessages.put(new Integer(SC_NO_CONTENT), "No Content");
+        _statusMessages.put(Integer.valueOf(SC_PARTIAL_CONTENT),
+                "Partial Content");
+        _statusMessages.put(Integer.valueOf(SC_NOT_MODIFIED), "Not Modified");
+        _statusMessages.put(Integer
+                .valueOf(SC_REQUESTED_RANGE_NOT_SATISFIABLE),
+                "Requested Range Not Satisfiable");
         _statusMessages.put(new Integer(SC_MULTI_STATUS), "Multi-Status");
         _statusMessages.put(new Integer(SC_CREATED), "Created");
         _statusMessages.put(new Integer(SC_INTERNAL_ERROR),
@@ -70,6 +89,8 @@ public class HttpResponse {
                 "Unsupported Media Type");
         _statusMessages.put(new Integer(SC_CONFLICT), "Conflict");
         _statusMessages.put(new Integer(SC_NOT_IMPLEMENTED), "Not implemented");
+        _statusMessages.put(Integer.valueOf(SC_SERVICE_UNAVAILABLE),
+                "Service Unavailable");
     }
 
     HttpResponse() {
@@ -79,6 +100,26 @@ public class HttpResponse {
         return (_content != null);
     }
 
+    /**
+     * The content of the response is written by a producer when its length
+     * can't be known before the content is generated (for example, the
+     * PROPFIND response of a large folder).
+     * Such a content is sent using the chunked transfer encoding.
+     */
+    public interface ContentProducer {
+        void produce(OutputStream out) throws IOException;
+    }
+
+    public void setContentProducer(ContentProducer producer,
+            String contentType) {
+        _producer = producer;
+        setContentType(contentType);
+    }
+
+    public ContentProducer getContentProducer() {
+        return _producer;
+    }
+
     public void setResponseHeader(String name, String value) {
         _headers.put(name, value);
     }
@@ -109,21 +150,26 @@ public class HttpResponse {
         _responseStatus = code;
     }
 
-    void finish() {
+    void finish() throws UnsupportedEncodingException {
+        if (_producer != null) {
+            // the server will take care of the length of the content
+            return;
+        }
         if (_xmlWriter != null) {
-            setContentType("text/xml;charser=utf-8");
+            setContentType("text/xml;charset=utf-8");
             _xmlWriter.finish();
-            String data = _xmlWriter.getData();
+            byte[] data = _xmlWriter.getData().getBytes("UTF-8");
 
-            setResponseHeader("Content-Length", String.valueOf(data.length()));
-            _content = new ByteArrayInputStream(data.getBytes());
+            setResponseHeader("Content-Length", String.valueOf(data.length));
+            _content = new ByteArrayInputStream(data);
         } else if (_responseBody != null) {
             setResponseHeader("Content-Length", String.valueOf(_responseBody
                     .length()));
             _content = new ByteArrayInputStream(_responseBody.getBytes());
         }
 
-        if (_content == null) {
+        if ((_content == null) && (getHeader("Content-Length") == null)) {
+            // a HEAD response has the length of the resource
             setResponseHeader("Content-Length", "0");
         }
     }
@@ -1,26 +1,90 @@
 package org.carion.s3.http;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 
 import org.carion.s3.S3Log;
 import org.carion.s3.S3Repository;
+import org.carion.s3.S3UnavailableException;
+import org.carion.s3.util.ChunkedInputStream;
+import org.carion.s3.util.ChunkedOutputStream;
+import org.carion.s3.util.FileRangeInputStream;
 import org.carion.s3.util.Util;
+import org.carion.s3.util.WorkerPool;
 import org.carion.s3dav.Version;
 import org.carion.s3dav.webdav.InternetInputStream;
 
+/**
+ * The HTTP server used by the webDAV server and the admin server.
+ *
+ * The way the connections are processed is set by the system property
+ * s3dav.http.mode:
+ * <ul>
+ * <li>nio (default): a selector waits for the requests on the idle
+ * keep-alive connections, which don't use any thread: the threads of a
+ * bounded pool (s3dav.http.workers, default: 50) are only used to process
+ * the requests. When all the threads are busy, no more connection is
+ * accepted.</li>
+ * <li>pool: each connection is processed by a thread of the pool until it
+ * is closed. Up to s3dav.http.queue connections (default: 100) can wait for
+ * a thread, the following connections are rejected with a 503 response.
+ * </li>
+ * <li>virtual: a virtual thread per connection (requires java 21, otherwise
+ * the nio mode is used).</li>
+ * <li>thread: a thread per connection (the historical mode).</li>
+ * </ul>
+ * In all modes, a keep-alive connection is closed when no request is
+ * received for s3dav.http.idleTimeout seconds (default: 60).
+ */
 public abstract class HttpServer extends Thread {
     private final static String BIND_ADDRESS = "127.0.0.1";
 
+    private final static int CHUNK_SIZE = 8 * 1024;
+
+    private final static String CRLF = "\r\n";
+
+    /**
+     * how long the rest of a request is read before closing the connection
+     * after an error response
+     */
+    private final static int LINGER_TIMEOUT = 2000;
+
+    public final static String MODE_POOL = "pool";
+
+    public final static String MODE_NIO = "nio";
+
+    public final static String MODE_VIRTUAL = "virtual";
+
+    public final static String MODE_THREAD = "thread";
+
+    private final static int WORKERS = Integer.getInteger(
+            "s3dav.http.workers", 50).intValue();
+
+    private final static int QUEUE = Integer.getInteger("s3dav.http.queue",
+            100).intValue();
+
+    private final static int IDLE_TIMEOUT = Integer.getInteger(
+            "s3dav.http.idleTimeout", 60).intValue() * 1000;
+
     private final int _port;
 
     protected final S3Repository _repository;
@@ -29,6 +93,10 @@ public abstract class HttpServer extends Thread {
 
     protected boolean _repositoryAvailable;
 
+    private String _mode = System.getProperty("s3dav.http.mode", MODE_NIO);
+
+    private WorkerPool _workers = null;
+
     public HttpServer(int port, S3Repository repository, S3Log log) {
         _log = log;
         _port = port;
@@ -41,181 +109,522 @@ public abstract class HttpServer extends Thread {
 
     public void run() {
         init(_repository);
-        ServerSocket serversocket = null;
+        ServerSocketChannel server = null;
 
         try {
             _log.log("Listening on port:" + _port);
-            // serversocket = new ServerSocket(_port);
-            serversocket = new ServerSocket();
-            SocketAddress sa = new InetSocketAddress(BIND_ADDRESS, _port);
-            serversocket.bind(sa);
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(BIND_ADDRESS, _port));
         } catch (Exception e) {
             _log.log("Can't listen on socket", e);
             return;
         }
 
+        if (MODE_VIRTUAL.equals(_mode) && (getVirtualThreadStarter() == null)) {
+            _log.log("Virtual threads are not available, using mode:"
+                    + MODE_NIO);
+            _mode = MODE_NIO;
+        } else if (!MODE_POOL.equals(_mode) && !MODE_VIRTUAL.equals(_mode)
+                && !MODE_THREAD.equals(_mode)) {
+            _mode = MODE_NIO;
+        }
+        _log.log("HTTP server mode:" + _mode);
+        if (MODE_POOL.equals(_mode) || MODE_NIO.equals(_mode)) {
+            _workers = new WorkerPool("http-" + _port, WORKERS, QUEUE);
+        }
+
+        if (MODE_NIO.equals(_mode)) {
+            try {
+                new ConnectionSelector(server).run();
+            } catch (IOException ex) {
+                _log.log("Can't accept connections", ex);
+            }
+            return;
+        }
+
         while (true) {
             try {
-                Socket socket = serversocket.accept();
-                // check if the repository availability has changed
-                if (_repositoryAvailable ^ _repository.isAvailable()) {
-                    init(_repository);
-                }
-                InetAddress client = socket.getInetAddress();
-                InputStream input = socket.getInputStream();
-                OutputStream output = socket.getOutputStream();
-                HttpHandler handler = new HttpHandler(client, input, output);
-                handler.start();
+                SocketChannel channel = server.accept();
+                checkRepository();
+                HttpConnection connection = new HttpConnection(channel, null);
+                if (MODE_THREAD.equals(_mode)) {
+                    new Thread(connection).start();
+                } else if (MODE_VIRTUAL.equals(_mode)) {
+                    getVirtualThreadStarter().invoke(null,
+                            new Object[] { connection });
+                } else if (!_workers.execute(connection, _log)) {
+                    connection.reject();
+                }
             } catch (Exception e) {
                 _log.log("Can't accept connections", e);
             }
         }
     }
 
-    private class HttpHandler extends Thread {
-        private final InetAddress _client;
+    private void checkRepository() {
+        // check if the repository availability has changed
+        if (_repositoryAvailable ^ _repository.isAvailable()) {
+            init(_repository);
+        }
+    }
 
-        private final InputStream _input;
+    /**
+     * @return Thread.startVirtualThread(Runnable) or null if the jvm doesn't
+     * support virtual threads
+     */
+    private static Method getVirtualThreadStarter() {
+        try {
+            return Thread.class.getMethod("startVirtualThread",
+                    new Class[] { Runnable.class });
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
 
-        private final OutputStream _output;
+    /**
+     * In the nio mode, a selector waits for the new connections and for the
+     * requests on the idle connections. A connection is given to a thread of
+     * the pool when a request comes in, and comes back to the selector once
+     * the response has been sent.
+     */
+    private class ConnectionSelector {
+        private final ServerSocketChannel _server;
+
+        private final Selector _selector;
+
+        /** connections to give back to the selector */
+        private final List _idleConnections = new LinkedList();
+
+        ConnectionSelector(ServerSocketChannel server) throws IOException {
+            _server = server;
+            _selector = Selector.open();
+        }
+
+        void run() throws IOException {
+            _server.configureBlocking(false);
+            _server.register(_selector, SelectionKey.OP_ACCEPT);
+
+            while (true) {
+                _selector.select(1000);
+                registerIdleConnections();
+
+                List ready = new ArrayList();
+                for (Iterator iter = _selector.selectedKeys().iterator(); iter
+                        .hasNext();) {
+                    SelectionKey key = (SelectionKey) iter.next();
+                    iter.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        key.cancel();
+                        ready.add(key.attachment());
+                    }
+                }
+                closeIdleConnections();
+
+                if (ready.size() > 0) {
+                    // the channels must be deregistered before being
+                    // put back in blocking mode
+                    _selector.selectNow();
+                    for (Iterator iter = ready.iterator(); iter.hasNext();) {
+                        HttpConnection connection = (HttpConnection) iter
+                                .next();
+                        try {
+                            // when all the workers are busy, we wait: the
+                            // new connections wait in the accept backlog
+                            _workers.executeAndWait(connection, _log);
+                        } catch (InterruptedException ex) {
+                            connection.close();
+                        }
+                    }
+                }
+            }
+        }
+
+        private void accept() {
+            try {
+                SocketChannel channel = _server.accept();
+                if (channel == null) {
+                    return;
+                }
+                checkRepository();
+                HttpConnection connection = new HttpConnection(channel, this);
+                channel.configureBlocking(false);
+                channel.register(_selector, SelectionKey.OP_READ, connection);
+            } catch (IOException ex) {
+                _log.log("Can't accept connection", ex);
+            }
+        }
+
+        /**
+         * Called by a worker once a request has been processed
+         */
+        void idle(HttpConnection connection) {
+            synchronized (_idleConnections) {
+                _idleConnections.add(connection);
+            }
+            _selector.wakeup();
+        }
+
+        private void registerIdleConnections() {
+            synchronized (_idleConnections) {
+                for (Iterator iter = _idleConnections.iterator(); iter
+                        .hasNext();) {
+                    HttpConnection connection = (HttpConnection) iter.next();
+                    try {
+                        connection._channel.configureBlocking(false);
+                        connection._channel.register(_selector,
+                                SelectionKey.OP_READ, connection);
+                    } catch (IOException ex) {
+                        connection.close();
+                    }
+                }
+                _idleConnections.clear();
+            }
+        }
+
+        private void closeIdleConnections() {
+            long limit = System.currentTimeMillis() - IDLE_TIMEOUT;
+            for (Iterator iter = _selector.keys().iterator(); iter.hasNext();) {
+                SelectionKey key = (SelectionKey) iter.next();
+                HttpConnection connection = (HttpConnection) key.attachment();
+                if (key.isValid() && (connection != null)
+                        && (connection._lastActivity < limit)) {
+                    key.cancel();
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection with a HTTP client: the requests of the connection are
+     * processed until the client closes the connection or the connection
+     * has been idle for too long.
+     */
+    private class HttpConnection implements Runnable {
+        private final SocketChannel _channel;
+
+        private final Socket _socket;
+
+        private final ConnectionSelector _selector;
+
+        private InetAddress _client;
+
+        private InputStream _input;
+
+        private OutputStream _output;
 
         private InternetInputStream _stream;
 
-        public HttpHandler(InetAddress client, InputStream input,
-                OutputStream output) {
-            _client = client;
-            _input = input;
-            _output = output;
+        private long _lastActivity;
+
+        HttpConnection(SocketChannel channel, ConnectionSelector selector) {
+            _channel = channel;
+            _socket = channel.socket();
+            _selector = selector;
+            _lastActivity = System.currentTimeMillis();
         }
 
         public void run() {
-            HttpRequest request = null;
             try {
-                _stream = new InternetInputStream(_input);
-                boolean keepAlive = true;
+                if (_stream == null) {
+                    _channel.configureBlocking(true);
+                    _socket.setSoTimeout(IDLE_TIMEOUT);
+                    _client = _socket.getInetAddress();
+                    _input = new BufferedInputStream(_socket.getInputStream());
+                    _output = new BufferedOutputStream(_socket
+                            .getOutputStream());
+                    _stream = new InternetInputStream(_input);
+                } else {
+                    _channel.configureBlocking(true);
+                }
+            } catch (IOException ex) {
+                _log.log("Can't initialize connection", ex);
+                close();
+                return;
+            }
 
+            boolean keepAlive = true;
+            try {
                 while (keepAlive) {
-                    // 1) Read start line
-                    String startLine = null;
-                    do {
-                        startLine = _stream.readline();
-                        if (startLine == null) {
-                            throw new EOFException();
-                        }
-                    } while (startLine.trim().length() == 0);
+                    keepAlive = processRequest();
+                    _lastActivity = System.currentTimeMillis();
+                    if (keepAlive && (_selector != null)
+                            && (_stream.available() == 0)) {
+                        // no need to keep a thread to wait for the next
+                        // request
+                        _selector.idle(this);
+                        return;
+                    }
+                }
+            } catch (IOException ex) {
+                keepAlive = false;
+            } finally {
+                if (!keepAlive) {
+                    close();
+                }
+            }
+        }
 
-                    _log.log(_log.ts() + "- Request:" + startLine);
+        /**
+         * @return true if the connection can be used for another request
+         */
+        private boolean processRequest() {
+            HttpRequest request = null;
+            try {
+                // 1) Read start line
+                String startLine = null;
+                do {
+                    startLine = _stream.readline();
+                    if (startLine == null) {
+                        throw new EOFException();
+                    }
+                } while (startLine.trim().length() == 0);
 
-                    request = new HttpRequest(startLine, _client, _log);
+                _log.log(_log.ts() + "- Request:" + startLine);
 
-                    // 2) read HTTP headers
-                    String currentKey = null;
-                    while (true) {
-                        String line = _stream.readline();
-                        if ((line == null) || (line.length() == 0)) {
-                            break;
-                        }
+                request = new HttpRequest(startLine, _client, _log);
 
-                        if (!Character.isSpaceChar(line.charAt(0))) {
-                            int index = line.indexOf(':');
-                            if (index >= 0) {
-                                currentKey = line.substring(0, index).trim();
-                                String value = line.substring(index + 1).trim();
-                                request.setHttpHeader(currentKey, value);
-                            }
-                        } else if (currentKey != null) {
-                            String value = request.getHttpHeader(currentKey);
-                            request.setHttpHeader(currentKey, value + "\n\t"
-                                    + line.trim());
+                // 2) read HTTP headers
+                String currentKey = null;
+                while (true) {
+                    String line = _stream.readline();
+                    if ((line == null) || (line.length() == 0)) {
+                        break;
+                    }
+
+                    if (!Character.isSpaceChar(line.charAt(0))) {
+                        int index = line.indexOf(':');
+                        if (index >= 0) {
+                            currentKey = line.substring(0, index).trim();
+                            String value = line.substring(index + 1).trim();
+                            request.setHttpHeader(currentKey, value);
                         }
+                    } else if (currentKey != null) {
+                        String value = request.getHttpHeader(currentKey);
+                        request.setHttpHeader(currentKey, value + "\n\t"
+                                + line.trim());
                     }
-                    keepAlive = request.getKeepAlive();
-                    int contentLength = request.getContentLength();
-
-                    // let's find a handler to process this request
-                    HttpProcessing processing = getProcessing(request);
-
-                    _log.log("@@ content-length is:"
-                            + request.getContentLength() + ","
-                            + request.getHttpHeader("Content-Length") + ","
-                            + "Keep-Alive:" + keepAlive);
-
-                    InputStream wrappedInputStream = Util.wrap(_stream,
-                            keepAlive, contentLength);
-                    // IMPORTANT:
-                    // we don't want to rely on the handlers
-                    // do read the content because we have to be
-                    // absolutely sure that the content has been
-                    // read in order to be able to read subsequent
-                    // request using the same socket. (Keep-Alive)
-                    // the problem is that the content-length is not always
-                    // set and we don't know if we must read the body or not
-                    request.setInputStream(wrappedInputStream);
-
-                    // prepare response
-                    HttpResponse response = new HttpResponse();
-
-                    // check if we have a handler to process this request
-                    if (processing == null) {
-                        response.setResponseStatus(HttpResponse.SC_BAD_REQUEST);
-                    } else {
-                        // process the response now ...
-                        processing.process(request, response);
+                }
+                boolean keepAlive = request.getKeepAlive();
+                long contentLength = request.getContentLength();
+
+                // let's find a handler to process this request
+                HttpProcessing processing = getProcessing(request);
+
+                _log.log("@@ content-length is:" + request.getContentLength()
+                        + "," + request.getHttpHeader("Content-Length") + ","
+                        + "Keep-Alive:" + keepAlive);
+
+                ChunkedInputStream chunked = null;
+                InputStream wrappedInputStream;
+                if ("chunked".equalsIgnoreCase(request
+                        .getHttpHeader("Transfer-Encoding"))) {
+                    // the length of the content is not known (large
+                    // uploads)
+                    chunked = new ChunkedInputStream(_stream);
+                    wrappedInputStream = chunked;
+                } else {
+                    if ((contentLength < 0) && keepAlive) {
+                        // neither a length nor chunks: there is no content
+                        contentLength = 0;
                     }
+                    wrappedInputStream = Util.wrap(_stream, keepAlive,
+                            contentLength);
+                }
+                // IMPORTANT:
+                // we don't want to rely on the handlers
+                // do read the content because we have to be
+                // absolutely sure that the content has been
+                // read in order to be able to read subsequent
+                // request using the same socket. (Keep-Alive)
+                // the problem is that the content-length is not always
+                // set and we don't know if we must read the body or not
+                request.setInputStream(wrappedInputStream);
+
+                // prepare response
+                HttpResponse response = new HttpResponse();
 
-                    // finalize the response
-                    response.finish();
-                    // send response back to client
-                    sendResponse(response, request);
-
-                    // this input stream won't be actually closed
-                    // if the keep-alive set to true
-                    wrappedInputStream.close();
+                // check if we have a handler to process this request
+                if (processing == null) {
+                    response.setResponseStatus(HttpResponse.SC_BAD_REQUEST);
+                } else {
+                    // process the response now ...
+                    processing.process(request, response);
+                }
 
-                    // check if the socket connection
-                    // should be closed or not
-                    // TODO: timeout to free this connection if no
-                    // request comes in
-                    keepAlive = request.getKeepAlive();
+                // finalize the response
+                response.finish();
+                // send response back to client
+                boolean sent = sendResponse(response, request);
+
+                // this input stream won't be actually closed
+                // if the keep-alive set to true
+                wrappedInputStream.close();
+
+                // check if the socket connection
+                // should be closed or not: the chunks not read by the
+                // handler are still in the connection
+                return sent && request.getKeepAlive()
+                        && ((chunked == null) || chunked.isEof());
+            } catch (EOFException ex) {
+                // the client has closed the connection
+                return false;
+            } catch (SocketTimeoutException ex) {
+                if (request == null) {
+                    _log.log("Closing idle connection");
+                } else {
+                    _log.log("Timeout reading request", ex);
                 }
+                return false;
+            } catch (S3UnavailableException ex) {
+                // S3 can't be reached, and nothing is cached: the client is
+                // told to come back later instead of waiting
+                _log.log("S3 unavailable: " + ex.getMessage());
+                HttpResponse response = new HttpResponse();
+                response.setResponseStatus(HttpResponse.SC_SERVICE_UNAVAILABLE);
+                response.setResponseHeader("Connection", "close");
+                response.setResponseHeader("Retry-After", String.valueOf(Math
+                        .max(1, ex.getRetryAfter())));
+                response.setResponseHeader("Content-Length", "0");
+                sendResponse(response, request);
+                // the content of the request may not have been read
+                drain();
+                return false;
             } catch (Exception ex) {
                 _log.log("Error processign request", ex);
                 HttpResponse response = new HttpResponse();
                 response.setResponseStatus(HttpResponse.SC_INTERNAL_ERROR);
                 sendResponse(response, request);
-            } finally {
-                try {
-                    _output.flush();
-                } catch (Exception ex) {
-                }
-                try {
-                    _output.close();
-                } catch (Exception ex) {
+                return false;
+            }
+        }
+
+        /**
+         * Sends a 503 response: the server is too busy to process this
+         * connection
+         */
+        void reject() {
+            try {
+                _log.log("Server busy, rejecting connection");
+                _output = _socket.getOutputStream();
+                HttpResponse response = new HttpResponse();
+                response.setResponseStatus(HttpResponse.SC_SERVICE_UNAVAILABLE);
+                response.setResponseHeader("Connection", "close");
+                response.setResponseHeader("Retry-After", "1");
+                response.setResponseHeader("Content-Length", "0");
+                sendResponse(response, null);
+            } catch (IOException ex) {
+            }
+            close();
+        }
+
+        /**
+         * Reads (for a while) what the client is still sending before the
+         * connection is closed: closing a connection with unread data resets
+         * it, and the client may then lose the response.
+         */
+        private void drain() {
+            try {
+                _output.flush();
+                _socket.shutdownOutput();
+                _socket.setSoTimeout(LINGER_TIMEOUT);
+                long limit = System.currentTimeMillis() + LINGER_TIMEOUT;
+                byte[] buffer = new byte[CHUNK_SIZE];
+                while ((System.currentTimeMillis() < limit)
+                        && (_stream.read(buffer) >= 0)) {
+                    // skipped
                 }
-                try {
-                    _input.close();
-                } catch (Exception ex) {
+            } catch (IOException ex) {
+                // the connection is closed anyway
+            }
+        }
+
+        void close() {
+            try {
+                if (_output != null) {
+                    _output.flush();
                 }
+            } catch (Exception ex) {
+            }
+            try {
+                _channel.close();
+            } catch (Exception ex) {
             }
         }
 
-        public void sendResponse(HttpResponse response, HttpRequest request) {
-            PrintWriter pw = new PrintWriter(_output);
-            pw.println("HTTP/1.1 " + response.getResponseStatus() + " "
-                    + response.getStatusMessage());
-            pw.println("Server: " + Version.USER_AGENT);
+        /**
+         * @return false if the response could not be completely sent: the
+         * connection can't be used for another request
+         */
+        public boolean sendResponse(HttpResponse response, HttpRequest request) {
+            HttpResponse.ContentProducer producer = response
+                    .getContentProducer();
+            boolean chunked = false;
+            if (producer != null) {
+                if ((request != null)
+                        && "HTTP/1.1".equals(request.getProtocol())) {
+                    chunked = true;
+                    response.setResponseHeader("Transfer-Encoding", "chunked");
+                } else if (!bufferContent(response, producer)) {
+                    // a HTTP/1.0 client needs the length of the content
+                    response = new HttpResponse();
+                    response.setResponseStatus(HttpResponse.SC_INTERNAL_ERROR);
+                    response.setResponseHeader("Content-Length", "0");
+                }
+            }
+
+            StringBuffer sb = new StringBuffer();
+            sb.append("HTTP/1.1 " + response.getResponseStatus() + " "
+                    + response.getStatusMessage() + CRLF);
+            sb.append("Server: " + Version.USER_AGENT + CRLF);
             for (Iterator iter = response.getHeaders(); iter.hasNext();) {
                 String key = (String) iter.next();
-                pw.println(key + ": " + response.getHeader(key));
+                sb.append(key + ": " + response.getHeader(key) + CRLF);
+            }
+            sb.append("Date: " + Util.getHttpDate() + CRLF);
+            sb.append(CRLF);
+            try {
+                // the headers are buffered: they are sent with the
+                // beginning of the content
+                _output.write(sb.toString().getBytes("ISO-8859-1"));
+            } catch (IOException ex) {
+                _log.log("Can't send response", ex);
+                return false;
             }
-            pw.println("Date: " + Util.getHttpDate());
-            pw.println();
-            pw.flush();
 
-            if (response.hasContent()) {
+            boolean sent = true;
+            if (chunked) {
+                try {
+                    OutputStream out = new BufferedOutputStream(
+                            new ChunkedOutputStream(_output), CHUNK_SIZE);
+                    producer.produce(out);
+                    // writes the last chunk, but keeps the socket open
+                    out.close();
+                } catch (IOException ex) {
+                    // the status line is gone: the only way to tell the
+                    // client that the response is incomplete is to close
+                    // the connection without sending the last chunk
+                    _log.log("Can't produce content", ex);
+                    sent = false;
+                }
+            } else if (response.hasContent()) {
                 InputStream in = response.getContentInputStream();
                 try {
-                    if (in != null) {
+                    if (in instanceof FileRangeInputStream) {
+                        try {
+                            // zero copy: the file is sent by the system
+                            _output.flush();
+                            ((FileRangeInputStream) in).transferTo(_channel);
+                        } finally {
+                            in.close();
+                        }
+                    } else if (in != null) {
                         try {
                             int read = -1;
                             byte[] copyBuffer = new byte[1024 * 5];
@@ -238,13 +647,37 @@ public abstract class HttpServer extends Thread {
                     // for now ... let's just print the exception
                     // TODO: proper error management required here
                     _log.log("Unexpected error", ex);
+                    sent = false;
                 }
             }
 
+            try {
+                _output.flush();
+            } catch (IOException ex) {
+                sent = false;
+            }
+
             // Log the response
             _log.log(_log.ts() + ": {" + response.getResponseStatus() + ","
                     + response.getHeader("Content-Length") + "} for "
-                    + request.getStartLine());
+                    + ((request == null) ? "?" : request.getStartLine()));
+            return sent;
+        }
+
+        private boolean bufferContent(HttpResponse response,
+                HttpResponse.ContentProducer producer) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                producer.produce(out);
+            } catch (IOException ex) {
+                _log.log("Can't produce content", ex);
+                return false;
+            }
+            byte[] data = out.toByteArray();
+            response.setResponseHeader("Content-Length", String
+                    .valueOf(data.length));
+            response.setContentStream(new ByteArrayInputStream(data));
+            return true;
         }
     }
 }
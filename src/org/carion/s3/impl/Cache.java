@@ -15,43 +15,260 @@
  */
 package org.carion.s3.impl;
 
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
-
-import org.carion.s3.operations.ObjectHEAD;
 
 /**
- * A LRU cache using a LinkedHashMap see:
+ * A LRU cache of the metadata of the S3 objects (outcome of the HEAD
+ * requests). Entries expire after a time to live and the cache is bounded both
+ * in number of entries and in (estimated) bytes. The entries of the objects
+ * which don't exist have their own (shorter) time to live.
+ *
+ * An expired entry is kept a bit longer: it can still be used (stale) while
+ * it is refreshed, and (offline) when S3 can't be reached.
+ *
+ * The LRU is a LinkedHashMap in access order, see:
  * http://www.source-code.biz/snippets/java/6.htm or
  * http://javaalmanac.com/egs/java.util/coll_Cache.html
  */
 public class Cache {
-    private final int _size;
+    private final int _maxEntries;
+
+    private final long _maxBytes;
+
+    private final long _ttl;
+
+    private final long _negativeTtl;
+
+    private final long _staleTtl;
+
+    private final long _offlineTtl;
 
     private final LinkedHashMap _map;
 
-    Cache(int size) {
-        _size = size;
+    private long _bytes = 0;
+
+    private long _hits = 0;
+
+    private long _misses = 0;
+
+    private long _evictions = 0;
+
+    private long _staleHits = 0;
+
+    private long _offlineHits = 0;
+
+    /**
+     * @param maxEntries
+     *            maximum number of entries in the cache
+     * @param maxBytes
+     *            maximum (estimated) size of the cache
+     * @param ttl
+     *            time to live of an entry, in milliseconds
+     * @param negativeTtl
+     *            time to live of the entry of an object which doesn't exist,
+     *            in milliseconds
+     * @param staleTtl
+     *            how long an expired entry is used while it is refreshed, in
+     *            milliseconds
+     * @param offlineTtl
+     *            how long an expired entry is used when S3 can't be reached,
+     *            in milliseconds
+     */
+    Cache(int maxEntries, long maxBytes, long ttl, long negativeTtl,
+            long staleTtl, long offlineTtl) {
+        _maxEntries = maxEntries;
+        _maxBytes = maxBytes;
+        _ttl = ttl;
+        _negativeTtl = negativeTtl;
+        _staleTtl = staleTtl;
+        _offlineTtl = offlineTtl;
         float hashTableLoadFactor = 0.75f;
-        int hashTableCapacity = (int) Math.ceil(_size / hashTableLoadFactor) + 1;
+        int hashTableCapacity = (int) Math.ceil(Math.min(_maxEntries, 1024)
+                / hashTableLoadFactor) + 1;
+
+        _map = new LinkedHashMap(hashTableCapacity, hashTableLoadFactor, true);
+    }
 
-        _map = new LinkedHashMap(hashTableCapacity, hashTableLoadFactor, true) {
-            // This method is called just after a new entry has been added
-            public boolean removeEldestEntry(Map.Entry eldest) {
-                return size() > _size;
+    /**
+     * @return the cached metadata, or null if the key is not in the cache or
+     *         if the entry has expired
+     */
+    synchronized ObjectMetadata get(String key) {
+        Entry entry = (Entry) _map.get(key);
+        if (entry != null) {
+            long age = System.currentTimeMillis() - entry._timestamp;
+            long ttl = entry._metadata.exists() ? _ttl : _negativeTtl;
+            if (age < ttl) {
+                _hits++;
+                return entry._metadata;
             }
-        };
+            if (age >= (ttl + Math.max(_staleTtl, _offlineTtl))) {
+                remove(key);
+            }
+        }
+        _misses++;
+        return null;
+    }
+
+    /**
+     * @return the metadata of an existing object, whose entry has expired
+     *         less than staleTtl ago (to be refreshed), or null. The entries of
+     *         the missing objects are not used once expired: the new objects
+     *         must show up soon.
+     */
+    synchronized ObjectMetadata getStale(String key) {
+        ObjectMetadata result = getExpired(key, _staleTtl);
+        if ((result != null) && !result.exists()) {
+            result = null;
+        }
+        if (result != null) {
+            _staleHits++;
+        }
+        return result;
+    }
+
+    /**
+     * @return the metadata of an entry which has expired less than
+     *         offlineTtl ago (S3 can't be reached), or null
+     */
+    synchronized ObjectMetadata getOffline(String key) {
+        ObjectMetadata result = getExpired(key, _offlineTtl);
+        if (result != null) {
+            _offlineHits++;
+        }
+        return result;
     }
 
-    synchronized ObjectHEAD get(String uri) {
-        return (ObjectHEAD) _map.get(uri);
+    private ObjectMetadata getExpired(String key, long delay) {
+        Entry entry = (Entry) _map.get(key);
+        if (entry != null) {
+            long ttl = entry._metadata.exists() ? _ttl : _negativeTtl;
+            if ((System.currentTimeMillis() - entry._timestamp) < (ttl + delay)) {
+                return entry._metadata;
+            }
+        }
+        return null;
     }
 
-    synchronized void put(String uri, ObjectHEAD head) {
-        _map.put(uri, head);
+    /**
+     * Same as get, without counting a hit or a miss
+     */
+    synchronized ObjectMetadata peek(String key) {
+        Entry entry = (Entry) _map.get(key);
+        if (entry != null) {
+            long ttl = entry._metadata.exists() ? _ttl : _negativeTtl;
+            if ((System.currentTimeMillis() - entry._timestamp) < ttl) {
+                return entry._metadata;
+            }
+        }
+        return null;
     }
 
-    synchronized void delete(String uri) {
-        _map.remove(uri);
+    /**
+     * Stores an entry, evicting the least recently used entries to make room
+     * for it. An entry bigger than the cache is not stored.
+     */
+    synchronized void put(String key, ObjectMetadata metadata) {
+        remove(key);
+        Entry entry = new Entry(metadata, key.length() * 2
+                + metadata.getWeight());
+        if ((_maxEntries <= 0) || (entry._weight > _maxBytes)) {
+            return;
+        }
+
+        // evict the least recently used entries
+        for (Iterator iter = _map.values().iterator(); iter.hasNext()
+                && ((_map.size() >= _maxEntries)
+                        || ((_bytes + entry._weight) > _maxBytes));) {
+            Entry eldest = (Entry) iter.next();
+            iter.remove();
+            _bytes -= eldest._weight;
+            _evictions++;
+        }
+        _map.put(key, entry);
+        _bytes += entry._weight;
+    }
+
+    synchronized void delete(String key) {
+        remove(key);
+    }
+
+    private void remove(String key) {
+        Entry entry = (Entry) _map.remove(key);
+        if (entry != null) {
+            _bytes -= entry._weight;
+        }
+    }
+
+    public synchronized void clear() {
+        _map.clear();
+        _bytes = 0;
+    }
+
+    public synchronized int getSize() {
+        return _map.size();
+    }
+
+    public synchronized long getBytes() {
+        return _bytes;
+    }
+
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    public synchronized long getEvictions() {
+        return _evictions;
+    }
+
+    public synchronized long getStaleHits() {
+        return _staleHits;
+    }
+
+    public synchronized long getOfflineHits() {
+        return _offlineHits;
+    }
+
+    public int getMaxEntries() {
+        return _maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return _maxBytes;
+    }
+
+    public long getTtl() {
+        return _ttl;
+    }
+
+    public long getNegativeTtl() {
+        return _negativeTtl;
+    }
+
+    public long getStaleTtl() {
+        return _staleTtl;
+    }
+
+    public long getOfflineTtl() {
+        return _offlineTtl;
+    }
+
+    private static class Entry {
+        private final ObjectMetadata _metadata;
+
+        private final long _timestamp;
+
+        private final int _weight;
+
+        Entry(ObjectMetadata metadata, int weight) {
+            _metadata = metadata;
+            _weight = weight;
+            _timestamp = System.currentTimeMillis();
+        }
     }
 }
@@ -0,0 +1,461 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+
+import org.carion.s3.S3Log;
+import org.carion.s3.util.FileRangeInputStream;
+import org.carion.s3.util.Util;
+
+/**
+ * A persistent cache of the content of the objects, stored in the 'cache'
+ * directory of s3DAV: each object is a file named after the MD5 of its key,
+ * with a properties file keeping its metadata (ETag, length, date...).
+ *
+ * The content is written in the cache while it is sent to the client, and
+ * the entry is added once the whole content has been read. A cached content
+ * is only served when its ETag is the current ETag of the object: either
+ * known from the metadata cache, or checked with a conditional GET
+ * (If-None-Match) which doesn't transfer the content when it has not
+ * changed.
+ *
+ * The cache is bounded in bytes: the least recently used entries are
+ * evicted (a LinkedHashMap in access order, like the metadata cache). The
+ * order survives a restart as the date of a file is updated when it is
+ * read.
+ *
+ * @author pcarion
+ */
+public class ContentCache {
+    private final static String PROPERTIES_SUFFIX = ".properties";
+
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    private final File _directory;
+
+    private final long _maxBytes;
+
+    private final long _maxObjectSize;
+
+    private final S3Log _log;
+
+    /** key -&gt; Entry */
+    private final LinkedHashMap _map = new LinkedHashMap(16, 0.75f, true);
+
+    private long _bytes = 0;
+
+    private long _hits = 0;
+
+    private long _revalidations = 0;
+
+    private long _misses = 0;
+
+    private long _evictions = 0;
+
+    private long _bytesServed = 0;
+
+    /**
+     * @param maxBytes the size of the cache, 0 to disable the cache
+     * @param maxObjectSize larger objects are not cached
+     */
+    ContentCache(File directory, long maxBytes, long maxObjectSize, S3Log log) {
+        _directory = directory;
+        _maxBytes = maxBytes;
+        _maxObjectSize = Math.min(maxObjectSize, maxBytes);
+        _log = log;
+        if (isEnabled()) {
+            load();
+        }
+    }
+
+    public boolean isEnabled() {
+        return _maxBytes > 0;
+    }
+
+    /**
+     * @return the metadata of the cached content, null if the object
+     *         is not in the cache
+     */
+    synchronized ObjectMetadata getMetadata(String key) {
+        Entry entry = (Entry) _map.get(key);
+        return (entry == null) ? null : entry._metadata;
+    }
+
+    /**
+     * @return the whole cached content, null if the content is not
+     *         in the cache or if it is not the content with this ETag
+     */
+    InputStream open(String key, String etag) {
+        return open(key, etag, 0, -1);
+    }
+
+    /**
+     * @param start the first byte to read
+     * @param end the last byte to read (included), -1 for the end of the
+     *            content
+     * @return the cached content, null if the content is not in the cache
+     *         or if it is not the content with this ETag
+     */
+    InputStream open(String key, String etag, long start, long end) {
+        File file;
+        synchronized (this) {
+            Entry entry = (Entry) _map.get(key);
+            if ((entry == null) || (etag == null)
+                    || !etag.equals(entry._metadata.getETag())) {
+                return null;
+            }
+            if (end < 0) {
+                end = entry._metadata.getLength() - 1;
+            }
+            _hits++;
+            _bytesServed += end - start + 1;
+            file = entry._file;
+        }
+        try {
+            InputStream in = new FileRangeInputStream(file, start, end);
+            // the LRU order is kept for the next start of s3DAV
+            file.setLastModified(System.currentTimeMillis());
+            return in;
+        } catch (IOException ex) {
+            _log.log("Can't read cached content:" + file, ex);
+            delete(key);
+            return null;
+        }
+    }
+
+    /**
+     * The cached content has been checked with S3: it has not changed
+     */
+    synchronized void revalidated() {
+        _revalidations++;
+    }
+
+    /**
+     * @param content the content of the object, as it is read from S3
+     * @return a stream copying the content in the cache while it is read,
+     *         or the content itself if the object can't be cached
+     */
+    InputStream store(String key, ObjectMetadata metadata, InputStream content) {
+        synchronized (this) {
+            _misses++;
+        }
+        if (!isEnabled() || (metadata.getETag() == null)
+                || (metadata.getLength() > _maxObjectSize)) {
+            return content;
+        }
+        try {
+            if (!_directory.isDirectory() && !_directory.mkdirs()) {
+                throw new IOException("Can't create directory:" + _directory);
+            }
+            File temp = File.createTempFile("s3dav", TEMP_SUFFIX, _directory);
+            return new Filler(key, metadata, content, temp);
+        } catch (IOException ex) {
+            _log.log("Can't cache content of:" + key, ex);
+            return content;
+        }
+    }
+
+    synchronized void delete(String key) {
+        Entry entry = (Entry) _map.remove(key);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    private void remove(Entry entry) {
+        _bytes -= entry._metadata.getLength();
+        getPropertiesFile(entry._file).delete();
+        entry._file.delete();
+    }
+
+    private synchronized void add(String key, ObjectMetadata metadata,
+            File temp) {
+        delete(key);
+        File file = getFile(key);
+        Properties properties = new Properties();
+        properties.setProperty("key", key);
+        properties.setProperty("etag", metadata.getETag());
+        properties.setProperty("length", String.valueOf(metadata.getLength()));
+        if (metadata.getLastModified() != null) {
+            properties.setProperty("lastModified", String.valueOf(metadata
+                    .getLastModified().getTime()));
+        }
+        if (metadata.getContentType() != null) {
+            properties.setProperty("contentType", metadata.getContentType());
+        }
+        file.delete();
+        try {
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't rename:" + temp + " to:" + file);
+            }
+            Util.storeProperties(properties, getPropertiesFile(file),
+                    "s3DAV cached content");
+        } catch (IOException ex) {
+            _log.log("Can't cache content of:" + key, ex);
+            temp.delete();
+            file.delete();
+            return;
+        }
+        put(key, new Entry(key, metadata, file));
+    }
+
+    private void put(String key, Entry entry) {
+        _map.put(key, entry);
+        _bytes += entry._metadata.getLength();
+
+        // evict the least recently used entries
+        for (Iterator iter = _map.values().iterator(); iter.hasNext()
+                && (_bytes > _maxBytes);) {
+            Entry eldest = (Entry) iter.next();
+            iter.remove();
+            remove(eldest);
+            _evictions++;
+        }
+    }
+
+    /**
+     * Loads the entries stored in the directory, the least recently
+     * used first
+     */
+    private synchronized void load() {
+        File[] files = _directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List entries = new ArrayList();
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // the content of an interrupted GET
+                file.delete();
+            } else if (name.endsWith(PROPERTIES_SUFFIX)) {
+                File data = new File(_directory, name.substring(0, name
+                        .length()
+                        - PROPERTIES_SUFFIX.length()));
+                try {
+                    Properties properties = Util.loadProperties(file);
+                    long length = Long.parseLong(properties
+                            .getProperty("length"));
+                    if (data.length() != length) {
+                        throw new IOException("Invalid length");
+                    }
+                    String lastModified = properties
+                            .getProperty("lastModified");
+                    ObjectMetadata metadata = new ObjectMetadata(true, false,
+                            length, (lastModified == null) ? null : new Date(
+                                    Long.parseLong(lastModified)), properties
+                                    .getProperty("contentType"), properties
+                                    .getProperty("etag"));
+                    entries.add(new Entry(properties.getProperty("key"),
+                            metadata, data));
+                } catch (Exception ex) {
+                    _log.log("Invalid cached content:" + data, ex);
+                    file.delete();
+                    data.delete();
+                }
+            }
+        }
+        Collections.sort(entries, new Comparator() {
+            public int compare(java.lang.Object o1, java.lang.Object o2) {
+                long d1 = ((Entry) o1)._file.lastModified();
+                long d2 = ((Entry) o2)._file.lastModified();
+                return (d1 < d2) ? -1 : ((d1 == d2) ? 0 : 1);
+            }
+        });
+        for (Iterator iter = entries.iterator(); iter.hasNext();) {
+            Entry entry = (Entry) iter.next();
+            put(entry._key, entry);
+        }
+        _log.log("Content cache: " + _map.size() + " objects, " + _bytes
+                + " bytes");
+    }
+
+    private File getFile(String key) {
+        byte[] bytes;
+        try {
+            bytes = key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            bytes = key.getBytes();
+        }
+        return new File(_directory, Util.toHex(Util.mkMd5Digest().digest(
+                bytes)));
+    }
+
+    private static File getPropertiesFile(File file) {
+        return new File(file.getPath() + PROPERTIES_SUFFIX);
+    }
+
+    public synchronized int getSize() {
+        return _map.size();
+    }
+
+    public synchronized long getBytes() {
+        return _bytes;
+    }
+
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    public synchronized long getRevalidations() {
+        return _revalidations;
+    }
+
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    public synchronized long getEvictions() {
+        return _evictions;
+    }
+
+    public synchronized long getBytesServed() {
+        return _bytesServed;
+    }
+
+    public long getMaxBytes() {
+        return _maxBytes;
+    }
+
+    public long getMaxObjectSize() {
+        return _maxObjectSize;
+    }
+
+    private static class Entry {
+        private final String _key;
+
+        private final ObjectMetadata _metadata;
+
+        private final File _file;
+
+        Entry(String key, ObjectMetadata metadata, File file) {
+            _key = key;
+            _metadata = metadata;
+            _file = file;
+        }
+    }
+
+    /**
+     * Copies the content in a temporary file while it is read. The content
+     * is added to the cache once it has been completely read.
+     */
+    private class Filler extends FilterInputStream {
+        private final String _key;
+
+        private final ObjectMetadata _metadata;
+
+        private final File _temp;
+
+        private OutputStream _out;
+
+        private long _count = 0;
+
+        Filler(String key, ObjectMetadata metadata, InputStream content,
+                File temp) throws IOException {
+            super(content);
+            _key = key;
+            _metadata = metadata;
+            _temp = temp;
+            _out = new FileOutputStream(temp);
+            if (metadata.getLength() == 0) {
+                complete();
+            }
+        }
+
+        public int read() throws IOException {
+            int c = super.read();
+            if (c >= 0) {
+                write(new byte[] { (byte) c }, 0, 1);
+            }
+            return c;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                write(b, off, count);
+            }
+            return count;
+        }
+
+        public long skip(long n) throws IOException {
+            // the skipped bytes would be missing in the cache
+            discard();
+            return super.skip(n);
+        }
+
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                discard();
+            }
+        }
+
+        private void write(byte[] b, int off, int len) {
+            if (_out == null) {
+                return;
+            }
+            try {
+                _out.write(b, off, len);
+                _count += len;
+                if (_count >= _metadata.getLength()) {
+                    complete();
+                }
+            } catch (IOException ex) {
+                _log.log("Can't cache content of:" + _key, ex);
+                discard();
+            }
+        }
+
+        private void complete() throws IOException {
+            _out.close();
+            _out = null;
+            if (_count == _metadata.getLength()) {
+                add(_key, _metadata, _temp);
+            } else {
+                _temp.delete();
+            }
+        }
+
+        private void discard() {
+            if (_out != null) {
+                try {
+                    _out.close();
+                } catch (IOException ex) {
+                }
+                _out = null;
+                _temp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.carion.s3.S3UrlName;
+import org.carion.s3.util.BloomFilter;
+
+/**
+ * What the last listing of a folder tells about the objects which don't
+ * exist: the keys of the children of a listed folder are kept in a Bloom
+ * filter, so that a HEAD request for a key which was not in the listing
+ * (desktop.ini, Thumbs.db, .DS_Store...) is answered without asking S3.
+ *
+ * A filter is used for s3dav.cache.listingTtl seconds (the time to live of
+ * the metadata cache) after the start of the listing, and only if the
+ * listing went to its end. The keys written by s3DAV are added to the filter
+ * of their folder. The cache is a LRU limited to s3dav.cache.folders (1000)
+ * folders and s3dav.cache.folderBytes (4MB).
+ *
+ * The folder of a resource key /bucket/a/b//name is /bucket/a/b.
+ */
+public class FolderFilters {
+    private final static double FALSE_POSITIVE_RATE = 0.01;
+
+    private final int _maxFolders;
+
+    private final long _maxBytes;
+
+    private final long _ttl;
+
+    /** folder -> Filter, in access order */
+    private final LinkedHashMap _filters = new LinkedHashMap(16, 0.75f, true);
+
+    /** the listings in progress */
+    private final List _builders = new ArrayList();
+
+    private long _bytes = 0;
+
+    private long _absent = 0;
+
+    private long _falsePositives = 0;
+
+    FolderFilters(int maxFolders, long maxBytes, long ttl) {
+        _maxFolders = maxFolders;
+        _maxBytes = maxBytes;
+        _ttl = ttl;
+    }
+
+    static String getFolder(String resourceKey) {
+        int index = resourceKey.lastIndexOf("//");
+        return (index < 0) ? null : resourceKey.substring(0, index);
+    }
+
+    /**
+     * @return the folder of the keys of the children of a folder
+     */
+    static String getFolder(S3UrlName folder) {
+        return getFolder(folder.getChild("_").getResourceKey());
+    }
+
+    /**
+     * @return true if the last listing of the folder of the object tells
+     *         that the object doesn't exist
+     */
+    synchronized boolean isAbsent(String resourceKey) {
+        if (_maxFolders <= 0) {
+            return false;
+        }
+        String folder = getFolder(resourceKey);
+        Filter filter = (folder == null) ? null : (Filter) _filters
+                .get(folder);
+        if (filter == null) {
+            return false;
+        }
+        if ((System.currentTimeMillis() - filter._timestamp) >= _ttl) {
+            remove(folder);
+            return false;
+        }
+        if (filter._bloom.mightContain(resourceKey)) {
+            return false;
+        }
+        _absent++;
+        return true;
+    }
+
+    /**
+     * A HEAD request tells that the object doesn't exist: if the filter of
+     * its folder let the request through, that's a false positive
+     */
+    synchronized void falsePositive(String resourceKey) {
+        String folder = getFolder(resourceKey);
+        if ((folder != null) && _filters.containsKey(folder)) {
+            _falsePositives++;
+        }
+    }
+
+    /**
+     * An object is going to be written: it is added to the filter of its
+     * folder (and to the listings of the folder in progress)
+     */
+    synchronized void added(String resourceKey) {
+        String folder = getFolder(resourceKey);
+        if (folder == null) {
+            return;
+        }
+        Filter filter = (Filter) _filters.get(folder);
+        if (filter != null) {
+            filter._bloom.add(resourceKey);
+        }
+        for (Iterator iter = _builders.iterator(); iter.hasNext();) {
+            Builder builder = (Builder) iter.next();
+            if (builder._folder.equals(folder)) {
+                builder.add(resourceKey);
+            }
+        }
+    }
+
+    /**
+     * @return the builder of the filter of a listing of the folder which
+     *         starts
+     */
+    synchronized Builder startListing(S3UrlName folder) {
+        Builder builder = new Builder(getFolder(folder));
+        if (_maxFolders > 0) {
+            _builders.add(builder);
+        }
+        return builder;
+    }
+
+    private synchronized void listingDone(Builder builder, boolean complete) {
+        if (!_builders.remove(builder) || !complete) {
+            return;
+        }
+        Filter filter = new Filter(builder.mkBloomFilter(),
+                builder._timestamp);
+        remove(builder._folder);
+        _filters.put(builder._folder, filter);
+        _bytes += filter._bloom.getBytes();
+        for (Iterator iter = _filters.values().iterator(); iter.hasNext()
+                && ((_filters.size() > _maxFolders) || (_bytes > _maxBytes));) {
+            Filter eldest = (Filter) iter.next();
+            iter.remove();
+            _bytes -= eldest._bloom.getBytes();
+        }
+    }
+
+    private void remove(String folder) {
+        Filter filter = (Filter) _filters.remove(folder);
+        if (filter != null) {
+            _bytes -= filter._bloom.getBytes();
+        }
+    }
+
+    public synchronized void clear() {
+        _filters.clear();
+        _bytes = 0;
+    }
+
+    public synchronized int getSize() {
+        return _filters.size();
+    }
+
+    public synchronized long getBytes() {
+        return _bytes;
+    }
+
+    /**
+     * @return the number of lookups answered by a filter
+     */
+    public synchronized long getAbsent() {
+        return _absent;
+    }
+
+    public synchronized long getFalsePositives() {
+        return _falsePositives;
+    }
+
+    public int getMaxFolders() {
+        return _maxFolders;
+    }
+
+    private static class Filter {
+        private final BloomFilter _bloom;
+
+        /** when the listing started */
+        private final long _timestamp;
+
+        Filter(BloomFilter bloom, long timestamp) {
+            _bloom = bloom;
+            _timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Collects the keys of a listing until its end, when the size of the
+     * filter is known.
+     */
+    class Builder {
+        private final String _folder;
+
+        private final long _timestamp = System.currentTimeMillis();
+
+        private final List _keys = new ArrayList();
+
+        Builder(String folder) {
+            _folder = folder;
+        }
+
+        void add(String resourceKey) {
+            synchronized (FolderFilters.this) {
+                _keys.add(resourceKey);
+            }
+        }
+
+        /**
+         * Must be called when the listing is over
+         * @param complete true if the whole folder has been listed
+         */
+        void done(boolean complete) {
+            listingDone(this, complete);
+        }
+
+        private BloomFilter mkBloomFilter() {
+            BloomFilter bloom = new BloomFilter(_keys.size(),
+                    FALSE_POSITIVE_RATE);
+            for (Iterator iter = _keys.iterator(); iter.hasNext();) {
+                bloom.add((String) iter.next());
+            }
+            return bloom;
+        }
+    }
+}
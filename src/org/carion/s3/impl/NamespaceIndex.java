@@ -0,0 +1,1117 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.WeakHashMap;
+
+import org.carion.s3.S3Log;
+import org.carion.s3.S3UrlName;
+import org.carion.s3.operations.S3CircuitBreaker;
+import org.carion.s3.util.WorkerPool;
+
+/**
+ * An in memory index of the shape of the buckets: a trie of the folders
+ * (one node per path segment), where each listed folder keeps the names,
+ * sizes, dates, ETags and types of its children in arrays sorted by name.
+ * With the index, browsing a folder listed less than s3dav.index.ttl seconds
+ * ago (300 by default) and looking up its children doesn't send any request
+ * to S3.
+ *
+ * The index is optional: s3dav.index gives the indexed buckets (a comma
+ * separated list, or * for all the buckets). It is limited to
+ * s3dav.index.entries children (200000 by default): the least recently used
+ * folders are forgotten first.
+ *
+ * The index is fed by the listings of the folders, and by the HEAD
+ * requests (an empty object may be a folder or an empty file: the listing
+ * doesn't tell). An object written or deleted by s3DAV is marked as stale
+ * until the next HEAD request tells what it has become.
+ *
+ * The index can be saved on disk (see NamespaceStore): after a restart, a
+ * saved listing is browsed as soon as its folder is needed, and the folder
+ * is listed again in the background. Until then, the lookups (before a
+ * write, for instance) don't trust the saved listing.
+ *
+ * A listing older than the time to live is still used for
+ * s3dav.cache.staleTtl seconds, while the folder is listed again in the
+ * background. When S3 can't be reached, the listings are used for
+ * s3dav.cache.offlineTtl seconds (see S3CircuitBreaker).
+ *
+ * The keys of the index are the resource keys (/bucket/a/b//name), the
+ * segments are url encoded. Segments are shared between the folders.
+ */
+public class NamespaceIndex {
+    /** an empty object, which can be a folder or an empty file */
+    private final static byte TYPE_UNKNOWN = 0;
+
+    private final static byte TYPE_FILE = 1;
+
+    private final static byte TYPE_FOLDER = 2;
+
+    /** written or deleted by s3DAV since the listing */
+    private final static byte TYPE_STALE = 3;
+
+    private final boolean _allBuckets;
+
+    private final Set _buckets = new HashSet();
+
+    private final int _maxEntries;
+
+    private final long _ttl;
+
+    private final long _staleTtl;
+
+    private final long _offlineTtl;
+
+    /** bucket -> Node */
+    private final Map _roots = new HashMap();
+
+    /** the listed folders (Node -> Node), in access order */
+    private final LinkedHashMap _listed = new LinkedHashMap(16, 0.75f, true);
+
+    /** the listings in progress */
+    private final List _builders = new ArrayList();
+
+    /** segment -> WeakReference(segment) */
+    private final WeakHashMap _segments = new WeakHashMap();
+
+    private int _entries = 0;
+
+    private long _lookups = 0;
+
+    private long _listings = 0;
+
+    /** the listings used after their time to live */
+    private long _staleListings = 0;
+
+    /** the listings used because S3 could not be reached */
+    private long _offlineListings = 0;
+
+    /** the index saved on disk (null if the index is not saved) */
+    private NamespaceStore _store = null;
+
+    /**
+     * folder -> the record to save at the next checkpoint (null to save the
+     * current listing of the folder)
+     */
+    private final Map _dirty = new HashMap();
+
+    private Lister _lister = null;
+
+    private final WorkerPool _revalidations = new WorkerPool("s3-index", 2,
+            1000);
+
+    private S3Log _log = null;
+
+    private long _restored = 0;
+
+    private long _revalidated = 0;
+
+    /**
+     * Lists a folder again, when its listing comes from the disk or has
+     * expired
+     */
+    interface Lister {
+        /**
+         * @param folder /bucket/a/b
+         */
+        void list(String folder) throws IOException;
+    }
+
+    /**
+     * @param buckets the indexed buckets (comma separated, * for all the
+     *            buckets)
+     * @param maxEntries the maximum number of children in the index
+     * @param ttl how long a listing can be used, in milliseconds
+     * @param staleTtl how long an expired listing is used while its folder
+     *            is listed again, in milliseconds
+     * @param offlineTtl how long an expired listing is used when S3 can't be
+     *            reached, in milliseconds
+     */
+    NamespaceIndex(String buckets, int maxEntries, long ttl, long staleTtl,
+            long offlineTtl) {
+        boolean all = false;
+        for (StringTokenizer st = new StringTokenizer(buckets, ", "); st
+                .hasMoreTokens();) {
+            String bucket = st.nextToken();
+            if (bucket.equals("*")) {
+                all = true;
+            } else {
+                _buckets.add(bucket);
+            }
+        }
+        _allBuckets = all;
+        _maxEntries = maxEntries;
+        _ttl = ttl;
+        _staleTtl = staleTtl;
+        _offlineTtl = offlineTtl;
+    }
+
+    /**
+     * @param lister lists again the folders restored from the disk or
+     *            expired
+     */
+    synchronized void setLister(Lister lister, S3Log log) {
+        _lister = lister;
+        _log = log;
+    }
+
+    /**
+     * Save the index on disk
+     * @param directory where the index is saved
+     * @param maxAge the maximum age of the saved listings, in milliseconds
+     * @param checkpoint the delay between two checkpoints, in milliseconds
+     */
+    void persist(File directory, long maxAge, long checkpoint, S3Log log) {
+        NamespaceStore store = new NamespaceStore(directory, maxAge, log);
+        store.open();
+        synchronized (this) {
+            _store = store;
+        }
+        new Timer(true).schedule(new TimerTask() {
+            public void run() {
+                checkpoint();
+            }
+        }, checkpoint, checkpoint);
+        Runtime.getRuntime().addShutdownHook(new Thread("s3-index") {
+            public void run() {
+                checkpoint();
+            }
+        });
+    }
+
+    /**
+     * Save the listings which have changed since the last checkpoint
+     */
+    void checkpoint() {
+        Map records = new LinkedHashMap();
+        NamespaceStore store;
+        synchronized (this) {
+            store = _store;
+            if (store == null) {
+                return;
+            }
+            for (Iterator iter = _dirty.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                String folder = (String) entry.getKey();
+                byte[] record = (byte[]) entry.getValue();
+                if (record == null) {
+                    Node node = getNode(folder, false);
+                    if ((node == null) || (node._listed == 0)) {
+                        continue;
+                    }
+                    record = mkRecord(node, folder);
+                }
+                records.put(folder, record);
+            }
+            _dirty.clear();
+        }
+        store.append(records);
+    }
+
+    public boolean isEnabled() {
+        return _allBuckets || !_buckets.isEmpty();
+    }
+
+    private boolean isIndexed(String bucket) {
+        return _allBuckets || _buckets.contains(bucket);
+    }
+
+    /**
+     * @param resourceKey the resource key of an object
+     * @param restored true if a listing read from the disk, and not listed
+     *            again yet, can be used
+     * @return the metadata of the object, or null if the index doesn't know
+     *         the object (the content type is unknown)
+     */
+    synchronized ObjectMetadata lookup(String resourceKey, boolean restored) {
+        return lookup(resourceKey, restored, _ttl + _staleTtl);
+    }
+
+    /**
+     * @return the metadata of the object according to the last listing of
+     *         its folder, even if it is old: S3 can't be reached
+     */
+    synchronized ObjectMetadata lookupOffline(String resourceKey) {
+        return lookup(resourceKey, true, _ttl + _offlineTtl);
+    }
+
+    /**
+     * @param maxAge the maximum age of the listing, in milliseconds
+     */
+    private ObjectMetadata lookup(String resourceKey, boolean restored,
+            long maxAge) {
+        String folder = FolderFilters.getFolder(resourceKey);
+        Node node = (folder == null) ? null : getListedNode(folder, maxAge);
+        if ((node == null) || (node._restored && !restored)) {
+            return null;
+        }
+        int index = node.search(getName(resourceKey));
+        ObjectMetadata result;
+        if (index < 0) {
+            result = ObjectMetadata.NOT_FOUND;
+        } else if (node._types[index] == TYPE_FILE) {
+            result = node.mkMetadata(index, false);
+        } else if (node._types[index] == TYPE_FOLDER) {
+            result = node.mkMetadata(index, true);
+        } else {
+            result = null;
+        }
+        if (result != null) {
+            _lookups++;
+        }
+        return result;
+    }
+
+    /**
+     * @return the (url encoded) names of the children of the folder, or
+     *         null if the folder has not been listed recently
+     */
+    synchronized List getChildren(S3UrlName folder) {
+        return getChildren(folder, _ttl + _staleTtl);
+    }
+
+    /**
+     * @return the (url encoded) names of the children of the folder
+     *         according to its last listing, even if it is old (S3 can't be
+     *         reached), or null
+     */
+    synchronized List getOfflineChildren(S3UrlName folder) {
+        List result = getChildren(folder, _ttl + _offlineTtl);
+        if (result != null) {
+            _offlineListings++;
+        }
+        return result;
+    }
+
+    private List getChildren(S3UrlName folder, long maxAge) {
+        if (folder.isRoot()) {
+            return null;
+        }
+        Node node = getListedNode(FolderFilters.getFolder(folder), maxAge);
+        if (node == null) {
+            return null;
+        }
+        List result = new ArrayList(node._count);
+        for (int i = 0; i < node._count; i++) {
+            result.add(node._names[i]);
+        }
+        _listings++;
+        return result;
+    }
+
+    /**
+     * What a HEAD request tells about an object
+     */
+    synchronized void update(String resourceKey, ObjectMetadata metadata) {
+        String folder = FolderFilters.getFolder(resourceKey);
+        if (folder == null) {
+            return;
+        }
+        String name = getName(resourceKey);
+        for (Iterator iter = _builders.iterator(); iter.hasNext();) {
+            Builder builder = (Builder) iter.next();
+            if (folder.equals(builder._folder)) {
+                builder.update(name, metadata);
+            }
+        }
+        Node node = getListedNode(folder, _ttl + _offlineTtl);
+        if (node == null) {
+            return;
+        }
+        int index = node.search(name);
+        if (metadata.exists()) {
+            if (index < 0) {
+                index = node.insert(-index - 1, intern(name));
+                _entries++;
+            }
+            node._sizes[index] = metadata.getLength();
+            node._dates[index] = (metadata.getLastModified() == null) ? 0
+                    : metadata.getLastModified().getTime();
+            node._etags[index] = metadata.getETag();
+            node._types[index] = metadata.isDirectory() ? TYPE_FOLDER
+                    : TYPE_FILE;
+        } else {
+            if (index >= 0) {
+                node.remove(index);
+                _entries--;
+            }
+            drop(node, name);
+        }
+        changed(folder);
+    }
+
+    /**
+     * The object is going to be written or deleted: the index doesn't know
+     * anymore what it is
+     */
+    synchronized void invalidate(String resourceKey) {
+        String folder = FolderFilters.getFolder(resourceKey);
+        if (folder == null) {
+            return;
+        }
+        String name = getName(resourceKey);
+        for (Iterator iter = _builders.iterator(); iter.hasNext();) {
+            Builder builder = (Builder) iter.next();
+            if (folder.equals(builder._folder)) {
+                builder.invalidate(name);
+            }
+        }
+        Node node = getNode(folder, false);
+        if ((node == null) || (node._listed == 0)) {
+            return;
+        }
+        int index = node.search(name);
+        if (index < 0) {
+            index = node.insert(-index - 1, intern(name));
+            _entries++;
+        }
+        node._types[index] = TYPE_STALE;
+        // the content of a folder which is replaced
+        drop(node, name);
+        changed(folder);
+    }
+
+    /**
+     * @return the builder of the index of a listing of the folder which
+     *         starts
+     */
+    synchronized Builder startListing(S3UrlName folder) {
+        Builder builder;
+        if (isIndexed(folder.getBucket())) {
+            builder = new Builder(FolderFilters.getFolder(folder));
+            _builders.add(builder);
+        } else {
+            builder = new Builder(null);
+        }
+        return builder;
+    }
+
+    private synchronized void listingDone(Builder builder, boolean complete) {
+        if (!_builders.remove(builder) || !complete) {
+            return;
+        }
+        Node node = getNode(builder._folder, true);
+        if (node == null) {
+            return;
+        }
+        List names = new ArrayList(builder._entries.keySet());
+        Collections.sort(names);
+        int count = names.size();
+        String[] oldNames = node._names;
+        byte[] oldTypes = node._types;
+        long[] oldDates = node._dates;
+        int oldCount = node._count;
+        clear(node);
+
+        node.allocate(count);
+        for (int i = 0; i < count; i++) {
+            String name = (String) names.get(i);
+            Entry entry = (Entry) builder._entries.get(name);
+            node._names[i] = intern(name);
+            node._sizes[i] = entry._size;
+            node._dates[i] = entry._date;
+            node._etags[i] = entry._etag;
+            node._types[i] = entry._type;
+            if ((entry._type == TYPE_UNKNOWN) && (oldNames != null)) {
+                // an empty object which has not changed since the
+                // previous listing keeps its type
+                int old = search(oldNames, oldCount, name);
+                if ((old >= 0) && (oldDates[old] == entry._date)
+                        && ((oldTypes[old] == TYPE_FILE)
+                                || (oldTypes[old] == TYPE_FOLDER))) {
+                    node._types[i] = oldTypes[old];
+                }
+            }
+        }
+        node._count = count;
+        node._listed = builder._timestamp;
+        node._listingDate = builder._timestamp;
+        _entries += count;
+        _listed.put(node, node);
+        if (_store != null) {
+            _store.discard(builder._folder);
+        }
+        changed(builder._folder);
+        evict();
+    }
+
+    /**
+     * The least recently used folders are forgotten
+     */
+    private void evict() {
+        while ((_entries > _maxEntries) && (_listed.size() > 1)) {
+            Node eldest = (Node) _listed.keySet().iterator().next();
+            clear(eldest);
+            prune(eldest);
+        }
+    }
+
+    /**
+     * @return the listing of the folder saved on disk, or null
+     */
+    private Node restore(String folder) {
+        if (_store == null) {
+            return null;
+        }
+        NamespaceStore.Listing listing = _store.restore(folder);
+        Node node = (listing == null) ? null : getNode(folder, true);
+        if (node == null) {
+            return null;
+        }
+        for (int i = 0; i < listing._count; i++) {
+            listing._names[i] = intern(listing._names[i]);
+        }
+        node._names = listing._names;
+        node._sizes = listing._sizes;
+        node._dates = listing._dates;
+        node._etags = listing._etags;
+        node._types = listing._types;
+        node._count = listing._count;
+        node._listed = System.currentTimeMillis();
+        node._listingDate = listing._listed;
+        node._restored = true;
+        _entries += node._count;
+        _listed.put(node, node);
+        _restored++;
+        evict();
+        return node;
+    }
+
+    /**
+     * List again a folder restored from the disk, in the background
+     */
+    private void revalidate(final String folder) {
+        if (_lister == null) {
+            return;
+        }
+        boolean queued = _revalidations.execute(new Runnable() {
+            public void run() {
+                try {
+                    _lister.list(folder);
+                    synchronized (NamespaceIndex.this) {
+                        _revalidated++;
+                    }
+                } catch (IOException ex) {
+                    _log.log("Can't list again " + folder, ex);
+                    synchronized (NamespaceIndex.this) {
+                        // the next use of the folder will try again
+                        Node node = getNode(folder, false);
+                        if (node != null) {
+                            node._revalidating = false;
+                        }
+                    }
+                }
+            }
+        }, _log);
+        if (!queued) {
+            Node node = getNode(folder, false);
+            if (node != null) {
+                node._revalidating = false;
+            }
+        }
+    }
+
+    /**
+     * @return the node of a folder listed recently, null if there is none
+     */
+    private Node getListedNode(String folder) {
+        return getListedNode(folder, _ttl + _staleTtl);
+    }
+
+    /**
+     * @param maxAge the maximum age of the listing, in milliseconds
+     * @return the node of a folder listed less than maxAge ago, null if there
+     *         is none
+     */
+    private Node getListedNode(String folder, long maxAge) {
+        Node node = getNode(folder, false);
+        if ((node == null) || (node._listed == 0)) {
+            node = restore(folder);
+            if (node == null) {
+                return null;
+            }
+        }
+        long age = System.currentTimeMillis() - node._listed;
+        if (age >= (_ttl + Math.max(_staleTtl, _offlineTtl))) {
+            clear(node);
+            prune(node);
+            return null;
+        }
+        if (age >= maxAge) {
+            return null;
+        }
+        // most recently used
+        _listed.get(node);
+        if (age >= _ttl) {
+            _staleListings++;
+        }
+        if ((node._restored || (age >= _ttl)) && !node._revalidating
+                && S3CircuitBreaker.getInstance().isAvailable()) {
+            // the saved (or expired) listing is used while the folder is
+            // listed again
+            node._revalidating = true;
+            revalidate(folder);
+        }
+        return node;
+    }
+
+    /**
+     * @param folder /bucket/a/b
+     * @param create true to create the missing nodes
+     * @return the node of the folder, or null
+     */
+    private Node getNode(String folder, boolean create) {
+        StringTokenizer st = new StringTokenizer(folder, "/");
+        if (!st.hasMoreTokens()) {
+            return null;
+        }
+        String bucket = st.nextToken();
+        if (!isIndexed(bucket)) {
+            return null;
+        }
+        Node node = (Node) _roots.get(bucket);
+        if (node == null) {
+            if (!create) {
+                return null;
+            }
+            node = new Node(null, bucket);
+            _roots.put(bucket, node);
+        }
+        while (st.hasMoreTokens()) {
+            String segment = st.nextToken();
+            Node child = node.getNode(segment);
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+                child = new Node(node, intern(segment));
+                node.addNode(child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Forget the listing of a folder
+     */
+    private void clear(Node node) {
+        if (node._listed != 0) {
+            if (_store != null) {
+                String folder = getFolder(node);
+                if (_dirty.containsKey(folder) && (_dirty.get(folder) == null)) {
+                    // the changes are saved at the next checkpoint
+                    _dirty.put(folder, mkRecord(node, folder));
+                }
+            }
+            _listed.remove(node);
+            _entries -= node._count;
+            node._listed = 0;
+            node._count = 0;
+            node._names = null;
+            node._sizes = null;
+            node._dates = null;
+            node._etags = null;
+            node._types = null;
+            node._restored = false;
+            node._revalidating = false;
+        }
+    }
+
+    /**
+     * Remove the nodes which are of no use anymore
+     */
+    private void prune(Node node) {
+        while ((node._listed == 0) && (node._nodeCount == 0)) {
+            if (node._parent == null) {
+                _roots.remove(node._segment);
+                return;
+            }
+            node._parent.removeNode(node);
+            node = node._parent;
+        }
+    }
+
+    /**
+     * Forget a sub folder and all its descendants
+     */
+    private void drop(Node parent, String segment) {
+        Node node = parent.getNode(segment);
+        if (node != null) {
+            dropAll(node);
+            parent.removeNode(node);
+        }
+        if (_store != null) {
+            // the listings saved on disk are deleted too
+            List folders = _store.discardTree(getFolder(parent) + "/" + segment);
+            for (Iterator iter = folders.iterator(); iter.hasNext();) {
+                deleted((String) iter.next());
+            }
+        }
+    }
+
+    private void dropAll(Node node) {
+        if ((_store != null) && (node._listed != 0)) {
+            clear(node);
+            deleted(getFolder(node));
+        } else {
+            clear(node);
+        }
+        for (int i = 0; i < node._nodeCount; i++) {
+            dropAll(node._nodes[i]);
+        }
+    }
+
+    /**
+     * The listing of the folder has changed: it is saved at the next
+     * checkpoint
+     */
+    private void changed(String folder) {
+        if (_store != null) {
+            _dirty.put(folder, null);
+        }
+    }
+
+    /**
+     * The folder doesn't exist anymore: it is deleted from the disk at the
+     * next checkpoint
+     */
+    private void deleted(String folder) {
+        _dirty.put(folder, mkRecord(null, folder));
+    }
+
+    /**
+     * @param node the listed folder, null for a deleted folder
+     */
+    private static byte[] mkRecord(Node node, String folder) {
+        try {
+            if (node == null) {
+                return NamespaceStore.mkRecord(folder, 0, 0, null, null,
+                        null, null, null);
+            }
+            return NamespaceStore.mkRecord(folder, node._listingDate,
+                    node._count, node._names, node._sizes, node._dates,
+                    node._etags, node._types);
+        } catch (IOException ex) {
+            // can't happen, the record is written in memory
+            throw new RuntimeException(ex.toString());
+        }
+    }
+
+    /**
+     * @return the folder of a node (/bucket/a/b)
+     */
+    private static String getFolder(Node node) {
+        if (node._parent == null) {
+            return "/" + node._segment;
+        }
+        return getFolder(node._parent) + "/" + node._segment;
+    }
+
+    private String intern(String segment) {
+        WeakReference ref = (WeakReference) _segments.get(segment);
+        String result = (ref == null) ? null : (String) ref.get();
+        if (result == null) {
+            // the segment may share the characters of a longer string
+            result = new String(segment);
+            _segments.put(result, new WeakReference(result));
+        }
+        return result;
+    }
+
+    private static String getName(String resourceKey) {
+        return resourceKey.substring(resourceKey.lastIndexOf("//") + 2);
+    }
+
+    /**
+     * @return the index of the name, or (-(insertion point) - 1)
+     */
+    private static int search(String[] names, int count, String name) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = names[middle].compareTo(name);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    public synchronized void clear() {
+        _roots.clear();
+        _listed.clear();
+        _entries = 0;
+    }
+
+    public String getBuckets() {
+        return _allBuckets ? "*" : _buckets.toString();
+    }
+
+    public synchronized int getFolders() {
+        return _listed.size();
+    }
+
+    public synchronized int getEntries() {
+        return _entries;
+    }
+
+    public int getMaxEntries() {
+        return _maxEntries;
+    }
+
+    public long getTtl() {
+        return _ttl;
+    }
+
+    /**
+     * @return the number of times an expired listing has been used
+     */
+    public synchronized long getStaleListings() {
+        return _staleListings;
+    }
+
+    /**
+     * @return the number of folders browsed from an old listing because S3
+     *         could not be reached
+     */
+    public synchronized long getOfflineListings() {
+        return _offlineListings;
+    }
+
+    /**
+     * @return the number of lookups answered by the index
+     */
+    public synchronized long getLookups() {
+        return _lookups;
+    }
+
+    /**
+     * @return the number of folders listed from the index
+     */
+    public synchronized long getListings() {
+        return _listings;
+    }
+
+    public synchronized boolean isPersistent() {
+        return _store != null;
+    }
+
+    /**
+     * @return the number of listings read from the disk
+     */
+    public synchronized long getRestored() {
+        return _restored;
+    }
+
+    /**
+     * @return the number of folders listed again in the background (read
+     *         from the disk or expired)
+     */
+    public synchronized long getRevalidated() {
+        return _revalidated;
+    }
+
+    /**
+     * @return the number of listings on disk which have not been read
+     */
+    public synchronized int getRestorable() {
+        return (_store == null) ? 0 : _store.getRestorable();
+    }
+
+    public synchronized long getFileBytes() {
+        return (_store == null) ? 0 : _store.getFileBytes();
+    }
+
+    public synchronized File getFile() {
+        return (_store == null) ? null : _store.getFile();
+    }
+
+    /**
+     * A folder of the trie
+     */
+    private static class Node {
+        private final static Node[] NO_NODES = new Node[0];
+
+        private final Node _parent;
+
+        private final String _segment;
+
+        /** the sub folders known by the trie, sorted by segment */
+        private Node[] _nodes = NO_NODES;
+
+        private int _nodeCount = 0;
+
+        /**
+         * when the last listing started, or when the listing was read from
+         * the disk (0 if the folder is not listed)
+         */
+        private long _listed = 0;
+
+        /** when the last listing started */
+        private long _listingDate = 0;
+
+        /**
+         * the listing comes from the disk and the folder has not been listed
+         * again: the listing can be browsed, but the objects are checked with
+         * S3 before being written
+         */
+        private boolean _restored = false;
+
+        private boolean _revalidating = false;
+
+        /** the children of the listed folder, sorted by name */
+        private String[] _names;
+
+        private long[] _sizes;
+
+        private long[] _dates;
+
+        private String[] _etags;
+
+        private byte[] _types;
+
+        private int _count = 0;
+
+        Node(Node parent, String segment) {
+            _parent = parent;
+            _segment = segment;
+        }
+
+        void allocate(int capacity) {
+            capacity = Math.max(capacity, 4);
+            _names = new String[capacity];
+            _sizes = new long[capacity];
+            _dates = new long[capacity];
+            _etags = new String[capacity];
+            _types = new byte[capacity];
+        }
+
+        int search(String name) {
+            return NamespaceIndex.search(_names, _count, name);
+        }
+
+        /**
+         * Insert a child (its type is unknown)
+         */
+        int insert(int index, String name) {
+            if (_count == _names.length) {
+                int capacity = _count * 3 / 2 + 1;
+                _names = (String[]) grow(_names, new String[capacity]);
+                _sizes = (long[]) grow(_sizes, new long[capacity]);
+                _dates = (long[]) grow(_dates, new long[capacity]);
+                _etags = (String[]) grow(_etags, new String[capacity]);
+                _types = (byte[]) grow(_types, new byte[capacity]);
+            }
+            int moved = _count - index;
+            System.arraycopy(_names, index, _names, index + 1, moved);
+            System.arraycopy(_sizes, index, _sizes, index + 1, moved);
+            System.arraycopy(_dates, index, _dates, index + 1, moved);
+            System.arraycopy(_etags, index, _etags, index + 1, moved);
+            System.arraycopy(_types, index, _types, index + 1, moved);
+            _names[index] = name;
+            _sizes[index] = 0;
+            _dates[index] = 0;
+            _etags[index] = null;
+            _types[index] = TYPE_UNKNOWN;
+            _count++;
+            return index;
+        }
+
+        private java.lang.Object grow(java.lang.Object from,
+                java.lang.Object to) {
+            System.arraycopy(from, 0, to, 0, _count);
+            return to;
+        }
+
+        void remove(int index) {
+            int moved = _count - index - 1;
+            System.arraycopy(_names, index + 1, _names, index, moved);
+            System.arraycopy(_sizes, index + 1, _sizes, index, moved);
+            System.arraycopy(_dates, index + 1, _dates, index, moved);
+            System.arraycopy(_etags, index + 1, _etags, index, moved);
+            System.arraycopy(_types, index + 1, _types, index, moved);
+            _count--;
+            _names[_count] = null;
+            _etags[_count] = null;
+        }
+
+        ObjectMetadata mkMetadata(int index, boolean isDirectory) {
+            return new ObjectMetadata(true, isDirectory, _sizes[index],
+                    (_dates[index] == 0) ? null : new Date(_dates[index]),
+                    null, _etags[index]);
+        }
+
+        private int searchNode(String segment) {
+            int low = 0;
+            int high = _nodeCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int cmp = _nodes[middle]._segment.compareTo(segment);
+                if (cmp < 0) {
+                    low = middle + 1;
+                } else if (cmp > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+
+        Node getNode(String segment) {
+            int index = searchNode(segment);
+            return (index < 0) ? null : _nodes[index];
+        }
+
+        void addNode(Node node) {
+            int index = -searchNode(node._segment) - 1;
+            if (_nodeCount == _nodes.length) {
+                Node[] nodes = new Node[_nodeCount * 3 / 2 + 1];
+                System.arraycopy(_nodes, 0, nodes, 0, _nodeCount);
+                _nodes = nodes;
+            }
+            System.arraycopy(_nodes, index, _nodes, index + 1, _nodeCount
+                    - index);
+            _nodes[index] = node;
+            _nodeCount++;
+        }
+
+        void removeNode(Node node) {
+            int index = searchNode(node._segment);
+            if ((index >= 0) && (_nodes[index] == node)) {
+                System.arraycopy(_nodes, index + 1, _nodes, index,
+                        _nodeCount - index - 1);
+                _nodeCount--;
+                _nodes[_nodeCount] = null;
+            }
+        }
+    }
+
+    private static class Entry {
+        private long _size;
+
+        private long _date;
+
+        private String _etag;
+
+        private byte _type;
+    }
+
+    /**
+     * Collects the children of a listing, and what the HEAD requests tell
+     * about them during the listing
+     */
+    class Builder {
+        /** null if the folder is not indexed */
+        private final String _folder;
+
+        private final long _timestamp = System.currentTimeMillis();
+
+        /** name -> Entry */
+        private final Map _entries = new HashMap();
+
+        Builder(String folder) {
+            _folder = folder;
+        }
+
+        void add(String resourceKey, Object obj) {
+            if (_folder == null) {
+                return;
+            }
+            Entry entry = new Entry();
+            entry._size = obj.getSize();
+            entry._date = (obj.getLastModified() == null) ? 0 : obj
+                    .getLastModified().getTime();
+            entry._etag = obj.getETag();
+            entry._type = (entry._size > 0) ? TYPE_FILE : TYPE_UNKNOWN;
+            synchronized (NamespaceIndex.this) {
+                String name = getName(resourceKey);
+                Entry known = (Entry) _entries.get(name);
+                if ((known == null) || (known._type == TYPE_UNKNOWN)) {
+                    _entries.put(name, entry);
+                } else if (known._type != TYPE_STALE) {
+                    // the HEAD request came first
+                    entry._type = known._type;
+                    _entries.put(name, entry);
+                }
+            }
+        }
+
+        /**
+         * Must be called when the listing is over
+         * @param complete true if the whole folder has been listed
+         */
+        void done(boolean complete) {
+            if (_folder != null) {
+                listingDone(this, complete);
+            }
+        }
+
+        private void update(String name, ObjectMetadata metadata) {
+            Entry entry = (Entry) _entries.get(name);
+            if (entry == null) {
+                // not listed yet
+                if (!metadata.exists()) {
+                    return;
+                }
+                entry = new Entry();
+                _entries.put(name, entry);
+            }
+            if (metadata.exists()) {
+                entry._size = metadata.getLength();
+                entry._date = (metadata.getLastModified() == null) ? 0
+                        : metadata.getLastModified().getTime();
+                entry._etag = metadata.getETag();
+                entry._type = metadata.isDirectory() ? TYPE_FOLDER
+                        : TYPE_FILE;
+            } else {
+                _entries.remove(name);
+            }
+        }
+
+        private void invalidate(String name) {
+            Entry entry = (Entry) _entries.get(name);
+            if (entry == null) {
+                entry = new Entry();
+                _entries.put(name, entry);
+            }
+            entry._type = TYPE_STALE;
+        }
+    }
+}
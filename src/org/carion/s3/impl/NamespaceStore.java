@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.carion.s3.S3Log;
+
+/**
+ * The namespace index saved on disk, so that a restarted s3DAV doesn't start
+ * with an empty index.
+ *
+ * The file (index/namespace-N.idx in the s3DAV directory) starts with a
+ * magic number and a version, followed by one record per saved folder
+ * listing: the checkpoints append the records of the folders which have
+ * changed, the last record of a folder wins (a record without listing date
+ * is a deleted folder). When the file gets too big, the live records are
+ * copied to a new generation of the file (N+1).
+ *
+ * At startup the file is memory mapped and scanned, but the listings are
+ * only read when their folders are used. The listings older than
+ * s3dav.index.maxAge seconds (one day) are ignored.
+ *
+ * A record is: its length (int), the folder (UTF), the listing date (long),
+ * the number of children (int), and for each child: name (UTF), size (long),
+ * date (long), ETag (UTF, empty if unknown), type (byte).
+ */
+class NamespaceStore {
+    private final static int MAGIC = 0x73334e53;
+
+    private final static int VERSION = 1;
+
+    private final static int HEADER_SIZE = 8;
+
+    private final static String PREFIX = "namespace-";
+
+    private final static String SUFFIX = ".idx";
+
+    /** no compaction for smaller files */
+    private final static long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private final File _directory;
+
+    private final long _maxAge;
+
+    private final S3Log _log;
+
+    private int _generation = 0;
+
+    private File _file;
+
+    /** the file, as it was when mapped */
+    private ByteBuffer _mapped;
+
+    /**
+     * folder -> int[] {offset, length} of its last record in _mapped, sorted
+     * by folder
+     */
+    private final TreeMap _records = new TreeMap();
+
+    /** the folders of _records which have not been restored yet */
+    private final Set _restorable = new HashSet();
+
+    /** folder -> Integer, the size of the last record of the folder */
+    private final Map _sizes = new HashMap();
+
+    private long _liveBytes = 0;
+
+    private long _fileBytes = 0;
+
+    /**
+     * A listing read from the file
+     */
+    static class Listing {
+        long _listed;
+
+        int _count;
+
+        String[] _names;
+
+        long[] _sizes;
+
+        long[] _dates;
+
+        String[] _etags;
+
+        byte[] _types;
+    }
+
+    NamespaceStore(File directory, long maxAge, S3Log log) {
+        _directory = directory;
+        _maxAge = maxAge;
+        _log = log;
+    }
+
+    /**
+     * Map the last generation of the file
+     */
+    synchronized void open() {
+        try {
+            if (!_directory.isDirectory() && !_directory.mkdirs()) {
+                throw new IOException("Can't create directory:" + _directory);
+            }
+            File[] files = _directory.listFiles();
+            for (int i = 0; i < files.length; i++) {
+                int generation = getGeneration(files[i]);
+                if (generation > _generation) {
+                    _generation = generation;
+                }
+            }
+            _file = mkFile(_generation);
+            if (_file.exists()) {
+                map();
+                boolean complete = scan();
+                _restorable.addAll(_records.keySet());
+                _log.log("Namespace index: " + _records.size()
+                        + " folders in " + _file);
+                if (!complete || ((_fileBytes > MIN_COMPACTION_SIZE)
+                        && (_fileBytes > 2 * _liveBytes))) {
+                    compact();
+                }
+            } else {
+                compact();
+            }
+            // the previous generations
+            for (int i = 0; i < files.length; i++) {
+                int generation = getGeneration(files[i]);
+                if ((generation >= 0) && (generation < _generation)) {
+                    files[i].delete();
+                }
+            }
+        } catch (IOException ex) {
+            _log.log("Can't open the namespace index", ex);
+            _file = null;
+        }
+    }
+
+    /**
+     * @return the listing of the folder saved in the file (it can't be read
+     *         again), or null
+     */
+    synchronized Listing restore(String folder) {
+        if (!_restorable.remove(folder)) {
+            return null;
+        }
+        int[] record = (int[]) _records.get(folder);
+        try {
+            DataInputStream in = read(record[0], record[1]);
+            in.readInt();
+            in.readUTF();
+            Listing result = new Listing();
+            result._listed = in.readLong();
+            result._count = in.readInt();
+            int capacity = Math.max(result._count, 4);
+            result._names = new String[capacity];
+            result._sizes = new long[capacity];
+            result._dates = new long[capacity];
+            result._etags = new String[capacity];
+            result._types = new byte[capacity];
+            for (int i = 0; i < result._count; i++) {
+                result._names[i] = in.readUTF();
+                result._sizes[i] = in.readLong();
+                result._dates[i] = in.readLong();
+                String etag = in.readUTF();
+                result._etags[i] = (etag.length() == 0) ? null : etag;
+                result._types[i] = in.readByte();
+            }
+            return result;
+        } catch (IOException ex) {
+            _log.log("Can't read the namespace index of " + folder, ex);
+            return null;
+        }
+    }
+
+    /**
+     * The folder has been listed again: the saved listing is obsolete
+     */
+    synchronized void discard(String folder) {
+        _restorable.remove(folder);
+    }
+
+    /**
+     * The folder and its descendants have been deleted
+     * @return the folders which have a listing in the file
+     */
+    synchronized List discardTree(String folder) {
+        List result = new ArrayList();
+        if (_records.containsKey(folder)) {
+            result.add(folder);
+        }
+        // the descendants are between folder/ and folder0
+        result.addAll(_records.subMap(folder + "/", folder + "0").keySet());
+        _restorable.removeAll(result);
+        return result;
+    }
+
+    /**
+     * Append records to the file
+     * @param records folder -> byte[] (see mkRecord)
+     */
+    synchronized void append(Map records) {
+        if ((_file == null) || records.isEmpty()) {
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(_file, true);
+            for (Iterator iter = records.entrySet().iterator(); iter
+                    .hasNext();) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                byte[] record = (byte[]) entry.getValue();
+                out.write(record);
+                _fileBytes += record.length;
+                if (isDeleted(record)) {
+                    setSize((String) entry.getKey(), 0);
+                    _records.remove(entry.getKey());
+                } else {
+                    setSize((String) entry.getKey(), record.length);
+                }
+                _restorable.remove(entry.getKey());
+            }
+            out.close();
+            out = null;
+            if ((_fileBytes > MIN_COMPACTION_SIZE)
+                    && (_fileBytes > 4 * _liveBytes)) {
+                map();
+                scan();
+                compact();
+            }
+        } catch (IOException ex) {
+            _log.log("Can't save the namespace index", ex);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the live records to the next generation of the file, and map it
+     */
+    private void compact() throws IOException {
+        File file = mkFile(_generation + 1);
+        FileOutputStream out = new FileOutputStream(file);
+        Map records = new TreeMap();
+        long offset = HEADER_SIZE;
+        try {
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            byte[] data = new byte[0];
+            for (Iterator iter = _records.entrySet().iterator(); iter
+                    .hasNext();) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                int[] record = (int[]) entry.getValue();
+                if (data.length < record[1]) {
+                    data = new byte[record[1]];
+                }
+                _mapped.position(record[0]);
+                _mapped.get(data, 0, record[1]);
+                out.write(data, 0, record[1]);
+                records.put(entry.getKey(), new int[] { (int) offset,
+                        record[1] });
+                offset += record[1];
+            }
+            out.close();
+            out = null;
+        } finally {
+            if (out != null) {
+                out.close();
+                file.delete();
+            }
+        }
+        File previous = _file;
+        _generation++;
+        _file = file;
+        map();
+        _records.clear();
+        _records.putAll(records);
+        _restorable.retainAll(_records.keySet());
+        _fileBytes = offset;
+        if ((previous != null) && !previous.equals(_file)) {
+            // can't be deleted while mapped on some systems: it will be at
+            // the next start
+            previous.delete();
+        }
+        _log.log("Namespace index compacted: " + _records.size()
+                + " folders in " + _file);
+    }
+
+    private void map() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(_file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            _mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+                    .size());
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Find the last record of each folder in the mapped file
+     * @return false if the end of the file is damaged
+     */
+    private boolean scan() throws IOException {
+        _records.clear();
+        _sizes.clear();
+        _liveBytes = 0;
+        _fileBytes = _mapped.limit();
+        if ((_fileBytes < HEADER_SIZE) || (_mapped.getInt(0) != MAGIC)
+                || (_mapped.getInt(4) != VERSION)) {
+            _log.log("Namespace index ignored (unknown format):" + _file);
+            return false;
+        }
+        long oldest = System.currentTimeMillis() - _maxAge;
+        int offset = HEADER_SIZE;
+        while (offset < _fileBytes) {
+            if (offset + 4 > _fileBytes) {
+                return false;
+            }
+            int length = _mapped.getInt(offset);
+            if ((length < 4) || (offset + length > _fileBytes)) {
+                return false;
+            }
+            int utf = _mapped.getShort(offset + 4) & 0xffff;
+            if (6 + utf + 8 > length) {
+                return false;
+            }
+            String folder = read(offset + 4, 2 + utf).readUTF();
+            long listed = _mapped.getLong(offset + 6 + utf);
+            _records.remove(folder);
+            if (listed >= oldest) {
+                _records.put(folder, new int[] { offset, length });
+                setSize(folder, length);
+            } else {
+                setSize(folder, 0);
+            }
+            offset += length;
+        }
+        return true;
+    }
+
+    private DataInputStream read(int offset, int length) {
+        byte[] data = new byte[length];
+        _mapped.position(offset);
+        _mapped.get(data);
+        return new DataInputStream(new ByteArrayInputStream(data));
+    }
+
+    private void setSize(String folder, int size) {
+        Integer previous = (Integer) _sizes.remove(folder);
+        if (previous != null) {
+            _liveBytes -= previous.intValue();
+        }
+        if (size > 0) {
+            _sizes.put(folder, Integer.valueOf(size));
+            _liveBytes += size;
+        }
+    }
+
+    private File mkFile(int generation) {
+        return new File(_directory, PREFIX + generation + SUFFIX);
+    }
+
+    private static int getGeneration(File file) {
+        String name = file.getName();
+        if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+            try {
+                return Integer.parseInt(name.substring(PREFIX.length(), name
+                        .length()
+                        - SUFFIX.length()));
+            } catch (NumberFormatException ex) {
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isDeleted(byte[] record) {
+        // the listing date follows the length and the folder
+        int utf = ((record[4] & 0xff) << 8) | (record[5] & 0xff);
+        long listed = 0;
+        for (int i = 0; i < 8; i++) {
+            listed = (listed << 8) | (record[6 + utf + i] & 0xff);
+        }
+        return listed == 0;
+    }
+
+    /**
+     * @param listed the date of the listing, 0 for a deleted folder
+     * @return the record of the listing of a folder
+     */
+    static byte[] mkRecord(String folder, long listed, int count,
+            String[] names, long[] sizes, long[] dates, String[] etags,
+            byte[] types) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32 + count * 48);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(0);
+        out.writeUTF(folder);
+        out.writeLong(listed);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeUTF(names[i]);
+            out.writeLong(sizes[i]);
+            out.writeLong(dates[i]);
+            out.writeUTF((etags[i] == null) ? "" : etags[i]);
+            out.writeByte(types[i]);
+        }
+        out.flush();
+        byte[] record = bos.toByteArray();
+        int length = record.length;
+        record[0] = (byte) (length >>> 24);
+        record[1] = (byte) (length >>> 16);
+        record[2] = (byte) (length >>> 8);
+        record[3] = (byte) length;
+        return record;
+    }
+
+    synchronized long getFileBytes() {
+        return _fileBytes;
+    }
+
+    synchronized int getRestorable() {
+        return _restorable.size();
+    }
+
+    synchronized File getFile() {
+        return _file;
+    }
+}
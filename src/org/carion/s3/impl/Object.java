@@ -22,12 +22,15 @@ public class Object {
 
     private final Date _lastModified;
 
-    private final int _size;
+    private final long _size;
 
-    public Object(String key, Date lastModified, int size) {
+    private final String _etag;
+
+    public Object(String key, Date lastModified, long size, String etag) {
         _key = key;
         _lastModified = lastModified;
         _size = size;
+        _etag = etag;
     }
 
     public String getKey() {
@@ -47,7 +50,11 @@ public class Object {
         return _lastModified;
     }
 
-    public int getSize() {
+    public long getSize() {
         return _size;
     }
+
+    public String getETag() {
+        return _etag;
+    }
 }
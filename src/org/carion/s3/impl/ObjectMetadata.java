@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.util.Date;
+
+import org.carion.s3.operations.BaseS3Operation;
+
+/**
+ * The outcome of a HEAD request on an object: this is what
+ * we keep in the metadata cache instead of the operation itself.
+ *
+ * @author pcarion
+ */
+public class ObjectMetadata {
+    public final static ObjectMetadata NOT_FOUND = new ObjectMetadata(false,
+            false, 0, null, null, null);
+
+    private final boolean _exists;
+
+    private final boolean _isDirectory;
+
+    private final long _length;
+
+    private final Date _lastModified;
+
+    private final String _contentType;
+
+    private final String _etag;
+
+    public ObjectMetadata(boolean exists, boolean isDirectory, long length,
+            Date lastModified, String contentType, String etag) {
+        _exists = exists;
+        _isDirectory = isDirectory;
+        _length = length;
+        _lastModified = lastModified;
+        _contentType = contentType;
+        _etag = etag;
+    }
+
+    /**
+     * Build the metadata from a successful HEAD (or GET) operation
+     */
+    static ObjectMetadata mk(BaseS3Operation ope) {
+        return new ObjectMetadata(true, ope.getMeta("dir") != null, ope
+                .getContentLength(), ope.getLastModifiedDate(), ope
+                .getHeader("Content-Type"), ope.getHeader("ETag"));
+    }
+
+    public boolean exists() {
+        return _exists;
+    }
+
+    public boolean isDirectory() {
+        return _isDirectory;
+    }
+
+    public long getLength() {
+        return _length;
+    }
+
+    public Date getLastModified() {
+        return _lastModified;
+    }
+
+    public String getContentType() {
+        return _contentType;
+    }
+
+    public String getETag() {
+        return _etag;
+    }
+
+    /**
+     * rough estimate of the memory used by this entry, used
+     * to enforce the byte limit of the cache
+     */
+    int getWeight() {
+        int weight = 64;
+        if (_contentType != null) {
+            weight += _contentType.length() * 2;
+        }
+        if (_etag != null) {
+            weight += _etag.length() * 2;
+        }
+        return weight;
+    }
+}
@@ -16,22 +16,32 @@
 package org.carion.s3.impl;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
 import org.carion.s3.Credential;
 import org.carion.s3.S3Folder;
+import org.carion.s3.S3Object;
 import org.carion.s3.S3Resource;
+import org.carion.s3.S3UnavailableException;
 import org.carion.s3.S3UrlName;
-import org.carion.s3.operations.BucketGET;
+import org.carion.s3.operations.BucketListing;
 import org.carion.s3.operations.ObjectDELETE;
 
 public class S3FolderImpl extends S3ObjectImpl implements S3Folder {
+    private final static int LISTING_PAGE_SIZE = 1000;
+
     S3FolderImpl(S3UrlName uri, Credential credential,
             S3RepositoryImpl repository) {
         super(uri, credential, repository);
     }
 
+    S3FolderImpl(S3UrlName uri, Credential credential,
+            S3RepositoryImpl repository, ObjectMetadata metadata) {
+        super(uri, credential, repository, metadata);
+    }
+
     public S3Folder createFolder(String name) throws IOException {
         return _repository.createFolder(_name.getChild(name));
     }
@@ -55,45 +65,173 @@ public class S3FolderImpl extends S3ObjectImpl implements S3Folder {
             }
         } else {
             // we want the resources inside a directory
-            String bucket = _name.getBucket();
-            String prefix = _name.getPrefixKey();
-            BucketGET ope = new BucketGET(bucket, _credential, _repository
-                    .getLog());
-
-            List objects = ope.execute(prefix);
-            result = new S3UrlName[objects.size()];
-            
-            int count = 0;
-            for (Iterator iter = objects.iterator(); iter.hasNext();) {
-                Object obj = (Object) iter.next();
-                result[count++] = _name.getChild(obj.getName());
-            }
+            final List uris = new ArrayList();
+            processListing(new ListingProcessing() {
+                public void process(S3UrlName uri, Object obj) {
+                    uris.add(uri);
+                }
+            }, true);
+            result = (S3UrlName[]) uris.toArray(new S3UrlName[uris.size()]);
         }
         return result;
     }
 
-    public void remove() throws IOException {
-        deleteFolder(this);
+    public S3Object[] getChildren() throws IOException {
+        final List children = new ArrayList();
+        processChildren(new ChildProcessing() {
+            public void process(S3Object child) {
+                children.add(child);
+            }
+        });
+        return (S3Object[]) children.toArray(new S3Object[children.size()]);
     }
 
-    private void deleteFolder(S3Folder folder) throws IOException {
-        deleteFolderContent(folder);
-        ((S3FolderImpl) folder).doRemove();
+    public void processChildren(ChildProcessing processing)
+            throws IOException {
+        if (_name.isRoot()) {
+            List buckets = _repository.getBuckets();
+            for (Iterator iter = buckets.iterator(); iter.hasNext();) {
+                Bucket bucket = (Bucket) iter.next();
+                processing.process(new S3FolderImpl(new S3UrlNameImpl("/"
+                        + bucket.getName(), false), _credential, _repository));
+            }
+        } else {
+            final ChildProcessing childProcessing = processing;
+            processListing(new ListingProcessing() {
+                public void process(S3UrlName uri, Object obj)
+                        throws IOException {
+                    childProcessing.process(mkChild(uri, obj));
+                }
+            }, true);
+        }
     }
 
-    private void deleteFolderContent(S3Folder folder) throws IOException {
-        S3UrlName[] files = folder.getChildrenUris();
+    private interface ListingProcessing {
+        /**
+         * @param obj the listing entry of the child, null if the child comes
+         *            from the namespace index
+         */
+        void process(S3UrlName uri, Object obj) throws IOException;
+    }
 
-        for (int i = 0; i < files.length; i++) {
-            S3UrlName uri = files[i];
+    /**
+     * List the folder, to refresh the folder filters and the namespace index
+     */
+    void revalidate() throws IOException {
+        processListing(new ListingProcessing() {
+            public void process(S3UrlName uri, Object obj) {
+            }
+        }, false);
+    }
 
-            if (_repository.isFolder(uri)) {
-                deleteFolder(_repository.getFolder(uri));
-            } else {
-                S3Resource res = _repository.getResource(uri);
-                res.remove();
+    /**
+     * Process the children of this folder: the namespace index gives them
+     * if it knows the folder, otherwise the folder is listed, and the
+     * listing feeds the folder filters and the namespace index. When S3
+     * can't be reached, the last listing known by the index is used.
+     * @param useIndex false to list the folder even if the index knows it
+     */
+    private void processListing(ListingProcessing processing,
+            boolean useIndex) throws IOException {
+        NamespaceIndex index = _repository.getNamespaceIndex();
+        List names = useIndex ? index.getChildren(_name) : null;
+        if (names != null) {
+            for (Iterator iter = names.iterator(); iter.hasNext();) {
+                String name = S3UrlNameImpl.decode((String) iter.next());
+                processing.process(_name.getChild(name), null);
+            }
+            return;
+        }
+        FolderFilters.Builder filter = _repository.getFolderFilters()
+                .startListing(_name);
+        NamespaceIndex.Builder tree = index.startListing(_name);
+        boolean complete = false;
+        boolean started = false;
+        try {
+            for (BucketListing listing = list(); listing.hasNext();) {
+                started = true;
+                Object obj = listing.next();
+                S3UrlName uri = _name.getChild(obj.getName());
+                String key = uri.getResourceKey();
+                filter.add(key);
+                tree.add(key, obj);
+                processing.process(uri, obj);
+            }
+            complete = true;
+        } catch (S3UnavailableException ex) {
+            names = (useIndex && !started) ? index.getOfflineChildren(_name)
+                    : null;
+            if (names == null) {
+                throw ex;
+            }
+            // the last listing of the folder, however old
+            _repository.getLog().log(
+                    "S3 unreachable, using the last listing of:" + _name);
+            for (Iterator iter = names.iterator(); iter.hasNext();) {
+                String name = S3UrlNameImpl.decode((String) iter.next());
+                processing.process(_name.getChild(name), null);
             }
+        } finally {
+            filter.done(complete);
+            tree.done(complete);
+        }
+    }
+
+    /**
+     * List the direct children of this folder.
+     * With the s3DAV naming convention, the keys of the children of
+     * a/b are a/b//x, while the keys of its descendants are a/b/c//y: the
+     * delimiter makes sure S3 does not enumerate the whole subtree, even if
+     * some keys were not created by s3DAV. The common prefixes are ignored
+     * as they don't match any s3DAV object.
+     * The listing is read one page at a time, and the pages are shared with
+     * the listings of the folder running at the same time.
+     */
+    private BucketListing list() {
+        return new BucketListing(_name.getBucket(), _name.getPrefixKey(), "/",
+                LISTING_PAGE_SIZE, null, _repository.getSharedListings(),
+                _credential, _repository.getLog());
+    }
+
+    /**
+     * Build a child from its listing entry.
+     * The listing gives us the length and the last modified date of
+     * the object, but not its meta data: as the folders are stored as empty
+     * objects, we only need to check the 'dir' meta data of
+     * the empty objects.
+     * Without a listing entry, the metadata come from the namespace index
+     * (or from S3).
+     */
+    private S3Object mkChild(S3UrlName uri, Object obj) throws IOException {
+        ObjectMetadata metadata;
+        if ((obj != null) && (obj.getSize() > 0)) {
+            metadata = new ObjectMetadata(true, false, obj.getSize(), obj
+                    .getLastModified(), null, obj.getETag());
+            _repository.cacheMetadata(uri.getResourceKey(), metadata);
+        } else if (obj == null) {
+            metadata = _repository.getListedMetadata(uri.getResourceKey());
+        } else {
+            metadata = _repository.getMetadata(uri.getResourceKey());
+            // the index learns whether the empty object is a folder, even
+            // when the metadata come from the cache
+            _repository.getNamespaceIndex().update(uri.getResourceKey(),
+                    metadata);
+        }
+
+        if (metadata.isDirectory()) {
+            return new S3FolderImpl(uri, _credential, _repository, metadata);
+        } else {
+            return new S3ResourceImpl(uri, _credential, _repository, metadata);
+        }
+    }
+
+    public void remove() throws IOException {
+        if (_name.isRoot()) {
+            throw new IOException("Can't delete /");
         }
+        // the content of the folder is deleted, and then the folder itself
+        _repository.getTreeOperations().execute(S3TreeOperation.TYPE_DELETE,
+                _name, null);
     }
 
     void doRemove() throws IOException {
@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+import org.carion.s3.S3Log;
+import org.carion.s3.operations.UploadNotification;
+import org.carion.s3.util.Util;
+import org.carion.s3.util.WorkerPool;
+
+/**
+ * Uploads a spooled file to S3 with a multipart upload: the file is split in
+ * parts which are uploaded in parallel by a pool of threads shared by all the
+ * uploads. A part whose upload fails is retried on its own.
+ * The parts are uploaded as soon as they are in the spooled file: there is no
+ * need to wait for the end of the transfer from the client.
+ *
+ * The state of the upload (its id and the ETags of the parts already
+ * uploaded) is saved in a properties file next to the spooled file, so that
+ * an upload interrupted by a restart of s3DAV resumes where it stopped.
+ *
+ * The following system properties can be used:
+ * s3dav.upload.multipart (true), s3dav.upload.multipartThreshold (in MB, 16),
+ * s3dav.upload.partSize (in MB, 8, at least 5), s3dav.upload.partThreads (4)
+ * and s3dav.upload.partRetries (3).
+ *
+ * @author pcarion
+ */
+class S3MultipartUpload {
+    private final static long MB = 1024 * 1024;
+
+    final static boolean ENABLED = !"false".equals(System
+            .getProperty("s3dav.upload.multipart"));
+
+    /** the files at least that big are sent with a multipart upload */
+    final static long THRESHOLD = Integer.getInteger(
+            "s3dav.upload.multipartThreshold", 16).intValue()
+            * MB;
+
+    // S3 refuses parts smaller than 5MB (but the last one)
+    final static long PART_SIZE = Math.max(5, Integer.getInteger(
+            "s3dav.upload.partSize", 8).intValue())
+            * MB;
+
+    final static int RETRIES = Integer.getInteger(
+            "s3dav.upload.partRetries", 3).intValue();
+
+    private final static int THREADS = Integer.getInteger(
+            "s3dav.upload.partThreads", 4).intValue();
+
+    /** the suffix of the state files */
+    final static String STATE_SUFFIX = ".parts";
+
+    private final static WorkerPool _parts = new WorkerPool("s3-part",
+            THREADS, THREADS);
+
+    private final S3RepositoryImpl _repository;
+
+    private final S3UploadImpl _upload;
+
+    private final UploadNotification _notify;
+
+    private final S3Log _log;
+
+    private final String _key;
+
+    private final File _stateFile;
+
+    private final Properties _state = new Properties();
+
+    private final long _partSize;
+
+    private String _uploadId;
+
+    private int _pending = 0;
+
+    private IOException _error = null;
+
+    /**
+     * @param upload the upload whose storage file is sent. If a state file
+     *  exists for this storage file, the upload is resumed.
+     * @param notify notified of the bytes sent (a negative count is sent
+     *  when a part has to be sent again)
+     */
+    S3MultipartUpload(S3RepositoryImpl repository, S3UploadImpl upload,
+            String contentType, UploadNotification notify, S3Log log)
+            throws IOException {
+        _repository = repository;
+        _upload = upload;
+        _notify = notify;
+        _log = log;
+        _key = upload.getName().getResourceKey();
+        _stateFile = getStateFile(upload.getStorageFile());
+        if (_stateFile.isFile()) {
+            _state.putAll(loadState(_stateFile));
+            _uploadId = _state.getProperty("uploadId");
+            _partSize = Long.parseLong(_state.getProperty("partSize"));
+        } else {
+            // the ETag of the file has been computed with this part size
+            _partSize = upload.getPartSize();
+            _state.setProperty("uri", upload.getName().getUri());
+            _state.setProperty("file", upload.getStorageFile().getName());
+            _state.setProperty("partSize", String.valueOf(_partSize));
+            if (contentType != null) {
+                _state.setProperty("contentType", contentType);
+            }
+        }
+    }
+
+    static File getStateFile(File storageFile) {
+        return new File(storageFile.getPath() + STATE_SUFFIX);
+    }
+
+    static Properties loadState(File stateFile) throws IOException {
+        return Util.loadProperties(stateFile);
+    }
+
+    /**
+     * Uploads the parts not uploaded yet and completes the upload.
+     * @throws IOException if the upload has failed: the state is kept and
+     *  the upload can be resumed later
+     */
+    void upload() throws IOException {
+        if (_uploadId == null) {
+            _uploadId = _repository.mkObjectUploadsPOST(_key).execute(
+                    _state.getProperty("contentType"));
+            _state.setProperty("uploadId", _uploadId);
+            saveState();
+        }
+
+        int partCount = 0;
+        long offset = 0;
+        boolean last = false;
+        try {
+            while (!last && (getError() == null)) {
+                long available = _upload.waitForContent(offset + _partSize);
+                long length = Math.min(available - offset, _partSize);
+                if (_upload.isSpooled()
+                        && ((offset + length) >= _upload.getSize())) {
+                    last = true;
+                    if (_state.getProperty("size") == null) {
+                        // a restart can now resume the upload
+                        _state.setProperty("size", String.valueOf(_upload
+                                .getSize()));
+                        saveState();
+                    }
+                    if ((length == 0) && (partCount > 0)) {
+                        break;
+                    }
+                }
+                partCount++;
+                if (getETag(partCount) != null) {
+                    // uploaded before a restart
+                    _notify.ntfUploaded((int) length);
+                } else {
+                    submit(new Part(partCount, offset, length));
+                }
+                offset += length;
+            }
+        } catch (IOException ex) {
+            // the spooling has failed: no need to send the other parts
+            fail(ex);
+        }
+        waitForParts();
+
+        String[] etags = new String[partCount];
+        for (int i = 0; i < partCount; i++) {
+            etags[i] = getETag(i + 1);
+        }
+        _repository.mkObjectUploadPOST(_key).execute(_uploadId, etags);
+        deleteState();
+    }
+
+    /**
+     * Aborts the upload: the parts already uploaded are deleted
+     */
+    void abort() {
+        fail(new IOException("Upload aborted:" + _key));
+        if (_uploadId != null) {
+            abortUpload(_repository, _key, _uploadId, _log);
+        }
+        deleteState();
+    }
+
+    static void abortUpload(S3RepositoryImpl repository, String key,
+            String uploadId, S3Log log) {
+        try {
+            repository.mkObjectUploadDELETE(key).execute(uploadId);
+        } catch (IOException ex) {
+            log.log("Can't abort upload:" + key, ex);
+        }
+    }
+
+    private void submit(Part part) throws IOException {
+        synchronized (this) {
+            _pending++;
+        }
+        try {
+            _parts.executeAndWait(part, _log);
+        } catch (InterruptedException ex) {
+            partFailed(new IOException("Interrupted"));
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private synchronized void waitForParts() throws IOException {
+        while (_pending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted");
+            }
+        }
+        if (_error != null) {
+            throw _error;
+        }
+    }
+
+    private synchronized IOException getError() {
+        return _error;
+    }
+
+    private synchronized String getETag(int partNumber) {
+        return _state.getProperty("part." + partNumber);
+    }
+
+    private synchronized void partDone(int partNumber, String etag) {
+        _state.setProperty("part." + partNumber, etag);
+        try {
+            saveState();
+        } catch (IOException ex) {
+            // the part will be uploaded again if the upload is resumed
+            _log.log("Can't save state:" + _stateFile, ex);
+        }
+        _pending--;
+        notifyAll();
+    }
+
+    private synchronized void partFailed(IOException ex) {
+        fail(ex);
+        _pending--;
+    }
+
+    private synchronized void fail(IOException ex) {
+        if (_error == null) {
+            _error = ex;
+        }
+        notifyAll();
+    }
+
+    private synchronized void saveState() throws IOException {
+        Util.storeProperties(_state, _stateFile, "s3DAV multipart upload");
+    }
+
+    private synchronized void deleteState() {
+        _stateFile.delete();
+    }
+
+    /**
+     * The upload of one part, retried if it fails
+     */
+    private class Part implements Runnable, UploadNotification {
+        private final int _partNumber;
+
+        private final long _offset;
+
+        private final long _length;
+
+        private int _sent;
+
+        Part(int partNumber, long offset, long length) {
+            _partNumber = partNumber;
+            _offset = offset;
+            _length = length;
+        }
+
+        public void run() {
+            IOException error = null;
+            for (int attempt = 0; attempt <= RETRIES; attempt++) {
+                if (getError() != null) {
+                    // no need to go on if the upload has failed
+                    error = getError();
+                    break;
+                }
+                if (attempt > 0) {
+                    _log.log("Retrying part " + _partNumber + " of:" + _key);
+                    try {
+                        Thread.sleep(attempt * 1000L);
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                }
+                try {
+                    partDone(_partNumber, send());
+                    return;
+                } catch (IOException ex) {
+                    _log.log("Can't upload part " + _partNumber + " of:"
+                            + _key, ex);
+                    _notify.ntfUploaded(-_sent);
+                    error = ex;
+                }
+            }
+            partFailed((error != null) ? error : new IOException(
+                    "Can't upload part " + _partNumber + " of:" + _key));
+        }
+
+        private String send() throws IOException {
+            _sent = 0;
+            MessageDigest digest = Util.mkMd5Digest();
+            InputStream in = new DigestInputStream(new PartInputStream(_upload
+                    .getStorageFile(), _offset, _length), digest);
+            try {
+                String etag = _repository.mkObjectPartPUT(_key).execute(
+                        _uploadId, _partNumber, in, _length, this);
+                String md5 = Util.toHex(digest.digest());
+                if (!etag.replaceAll("\"", "").equalsIgnoreCase(md5)) {
+                    throw new IOException("Part corrupted, MD5:" + md5
+                            + ", ETag:" + etag);
+                }
+                return etag;
+            } finally {
+                in.close();
+            }
+        }
+
+        public boolean ntfUploaded(int count) {
+            _sent += count;
+            return _notify.ntfUploaded(count);
+        }
+    }
+
+    /**
+     * Reads a range of a file
+     */
+    private static class PartInputStream extends InputStream {
+        private final RandomAccessFile _file;
+
+        private long _remaining;
+
+        PartInputStream(File file, long offset, long length)
+                throws IOException {
+            _file = new RandomAccessFile(file, "r");
+            _file.seek(offset);
+            _remaining = length;
+        }
+
+        public int read() throws IOException {
+            if (_remaining <= 0) {
+                return -1;
+            }
+            int b = _file.read();
+            if (b >= 0) {
+                _remaining--;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (_remaining <= 0) {
+                return -1;
+            }
+            int count = _file.read(b, off, (int) Math.min(len, _remaining));
+            if (count > 0) {
+                _remaining -= count;
+            }
+            return count;
+        }
+
+        public void close() throws IOException {
+            _file.close();
+        }
+    }
+
+    /**
+     * Computes the ETag S3 gives to a file sent with a multipart upload: the
+     * MD5 of the MD5 of its parts, followed by the number of parts.
+     */
+    static class ETagDigest {
+        private final long _partSize;
+
+        private final MessageDigest _part = Util.mkMd5Digest();
+
+        /** the MD5 of the parts already digested */
+        private final ByteArrayOutputStream _parts = new ByteArrayOutputStream();
+
+        /** the length digested in the current part */
+        private long _length = 0;
+
+        private int _count = 0;
+
+        ETagDigest(long partSize) {
+            _partSize = partSize;
+        }
+
+        void update(byte[] data, int offset, int length) {
+            while (length > 0) {
+                int count = (int) Math.min(length, _partSize - _length);
+                _part.update(data, offset, count);
+                _length += count;
+                offset += count;
+                length -= count;
+                if (_length == _partSize) {
+                    partDone();
+                }
+            }
+        }
+
+        private void partDone() {
+            byte[] md5 = _part.digest();
+            _parts.write(md5, 0, md5.length);
+            _length = 0;
+            _count++;
+        }
+
+        String getETag() {
+            // the last part
+            if ((_length > 0) || (_count == 0)) {
+                partDone();
+            }
+            return "\"" + Util.toHex(Util.mkMd5Digest().digest(
+                    _parts.toByteArray())) + "-" + _count + "\"";
+        }
+    }
+}
@@ -21,7 +21,6 @@ import java.util.Date;
 import org.carion.s3.Credential;
 import org.carion.s3.S3Object;
 import org.carion.s3.S3UrlName;
-import org.carion.s3.operations.ObjectHEAD;
 
 public abstract class S3ObjectImpl implements S3Object {
     protected final S3UrlName _name;
@@ -32,6 +31,8 @@ public abstract class S3ObjectImpl implements S3Object {
 
     protected final S3RepositoryImpl _repository;
 
+    private ObjectMetadata _metadata = null;
+
     //    WebdavObjectImpl(String uri, Credential credential,
     //            WebdavRepositoryImpl repository) {
     //        this(new S3ResourceName(uri), credential, repository);
@@ -39,6 +40,12 @@ public abstract class S3ObjectImpl implements S3Object {
 
     S3ObjectImpl(S3UrlName name, Credential credential,
             S3RepositoryImpl repository) {
+        this(name, credential, repository, null);
+    }
+
+    S3ObjectImpl(S3UrlName name, Credential credential,
+            S3RepositoryImpl repository, ObjectMetadata metadata) {
+        _metadata = metadata;
         _name = name;
         _credential = credential;
         _repository = repository;
@@ -68,14 +75,33 @@ public abstract class S3ObjectImpl implements S3Object {
             // TODO
             return new Date();
         } else {
-            ObjectHEAD ope = _repository.mkObjectHEAD(_s3Key);
-            if (!ope.execute()) {
+            ObjectMetadata metadata = getMetadata();
+            if (!metadata.exists()) {
                 throw new IOException("Can't get info for:" + _s3Key);
             }
-            return ope.getLastModifiedDate();
+            return metadata.getLastModified();
         }
     }
 
+    /**
+     * The metadata are retrieved once per object: this avoids
+     * going back to the cache (or to S3) for each property
+     */
+    protected ObjectMetadata getMetadata() throws IOException {
+        if (_metadata == null) {
+            _metadata = _repository.getMetadata(_s3Key);
+        }
+        return _metadata;
+    }
+
+    /**
+     * @return the metadata if they have already been retrieved, null
+     *         otherwise (no request is sent)
+     */
+    protected ObjectMetadata getKnownMetadata() {
+        return _metadata;
+    }
+
     public String getName() {
         return _name.getName();
     }
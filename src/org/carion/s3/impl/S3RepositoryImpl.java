@@ -15,28 +15,48 @@
  */
 package org.carion.s3.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 import org.carion.s3.Credential;
 import org.carion.s3.S3Folder;
 import org.carion.s3.S3Log;
+import org.carion.s3.S3Object;
 import org.carion.s3.S3Repository;
 import org.carion.s3.S3Resource;
+import org.carion.s3.S3UnavailableException;
 import org.carion.s3.S3UploadManager;
 import org.carion.s3.S3UrlName;
 import org.carion.s3.operations.BucketDELETE;
 import org.carion.s3.operations.BucketGET;
 import org.carion.s3.operations.BucketPUT;
+import org.carion.s3.operations.ObjectCOPY;
 import org.carion.s3.operations.ObjectDELETE;
 import org.carion.s3.operations.ObjectGET;
 import org.carion.s3.operations.ObjectHEAD;
 import org.carion.s3.operations.ObjectPUT;
+import org.carion.s3.operations.ObjectPartCOPY;
+import org.carion.s3.operations.ObjectPartPUT;
+import org.carion.s3.operations.ObjectUploadDELETE;
+import org.carion.s3.operations.ObjectUploadPOST;
+import org.carion.s3.operations.ObjectUploadsPOST;
+import org.carion.s3.operations.ObjectsDELETE;
+import org.carion.s3.operations.S3CircuitBreaker;
 import org.carion.s3.operations.ServiceGET;
+import org.carion.s3.operations.UploadNotification;
+import org.carion.s3.util.SingleFlight;
 import org.carion.s3.util.Util;
+import org.carion.s3.util.WorkerPool;
 
 /*
  * 
@@ -59,9 +79,42 @@ public class S3RepositoryImpl implements S3Repository {
 
     private final S3Log _log;
 
-    private final Cache _s3ObjectCache;
+    private final Cache _metadataCache;
 
-    private final S3UploadManager _uploadManager;
+    private final ContentCache _contentCache;
+
+    private final FolderFilters _folderFilters;
+
+    private final NamespaceIndex _namespaceIndex;
+
+    /** the HEAD requests in progress, shared by the concurrent lookups */
+    private final SingleFlight _sharedHeads;
+
+    /** the pages of the folder listings in progress */
+    private final SingleFlight _sharedListings;
+
+    /** the GET requests of small objects in progress */
+    private final SingleFlight _sharedGets;
+
+    /** the maximum size of a shared GET response */
+    private final long _sharedGetSize;
+
+    /** refreshes the stale entries of the metadata cache */
+    private final WorkerPool _refreshes = new WorkerPool("s3-refresh", 2,
+            1000);
+
+    /** the keys being refreshed */
+    private final Set _refreshing = new HashSet();
+
+    /** the number of changes of objects (see forget), and its lock */
+    private final long[] _changes = new long[1];
+
+    /** the files read from the content cache because S3 could not be reached */
+    private long _offlineReads = 0;
+
+    private final S3UploadManagerImpl _uploadManager;
+
+    private final S3TreeOperations _treeOperations;
 
     private List _buckets = null;
 
@@ -70,9 +123,62 @@ public class S3RepositoryImpl implements S3Repository {
         _s3DavDirectory = s3DavDirectory;
         _credential = credential;
         _log = log;
-        _s3ObjectCache = new Cache(32);
+        // the metadata cache can be tuned using system properties
+        long ttl = Long.getLong("s3dav.cache.ttl", 30).longValue();
+        // the expired entries are still used while they are refreshed, and
+        // when S3 can't be reached
+        long staleTtl = Long.getLong("s3dav.cache.staleTtl", 60).longValue() * 1000;
+        long offlineTtl = Long.getLong("s3dav.cache.offlineTtl", 24 * 3600)
+                .longValue() * 1000;
+        _metadataCache = new Cache(Integer.getInteger("s3dav.cache.entries",
+                10000).intValue(), Long.getLong("s3dav.cache.bytes",
+                4 * 1024 * 1024).longValue(), ttl * 1000, Long.getLong(
+                "s3dav.cache.negativeTtl", Math.min(ttl, 10)).longValue() * 1000,
+                staleTtl, offlineTtl);
+        // as well as what the listings tell about the missing objects
+        _folderFilters = new FolderFilters(Integer.getInteger(
+                "s3dav.cache.folders", 1000).intValue(), Long.getLong(
+                "s3dav.cache.folderBytes", 4 * 1024 * 1024).longValue(),
+                Long.getLong("s3dav.cache.listingTtl", ttl).longValue() * 1000);
+        // and the (optional) index of the folders
+        _namespaceIndex = new NamespaceIndex(System.getProperty("s3dav.index",
+                ""), Integer.getInteger("s3dav.index.entries", 200000)
+                .intValue(), Long.getLong("s3dav.index.ttl", 300).longValue() * 1000,
+                staleTtl, offlineTtl);
+        _namespaceIndex.setLister(new NamespaceIndex.Lister() {
+            public void list(String folder) throws IOException {
+                new S3FolderImpl(new S3UrlNameImpl(folder, true), _credential,
+                        S3RepositoryImpl.this).revalidate();
+            }
+        }, log);
+        if (_namespaceIndex.isEnabled()
+                && !"false".equals(System.getProperty("s3dav.index.persist"))) {
+            _namespaceIndex.persist(new File(s3DavDirectory, "index"), Long
+                    .getLong("s3dav.index.maxAge", 24 * 3600).longValue() * 1000,
+                    Long.getLong("s3dav.index.checkpoint", 30).longValue() * 1000,
+                    log);
+        }
+        // so does the content cache (sizes in MB)
+        long contentCacheSize = Long.getLong("s3dav.contentCache.size", 1024)
+                .longValue();
+        long maxObjectSize = Long.getLong("s3dav.contentCache.maxObjectSize",
+                contentCacheSize / 4).longValue();
+        _contentCache = new ContentCache(new File(s3DavDirectory, "cache"),
+                contentCacheSize * 1024 * 1024, maxObjectSize * 1024 * 1024,
+                log);
+
+        // the concurrent identical requests share the same call to S3
+        boolean coalesce = !"false".equals(System
+                .getProperty("s3dav.s3.coalesce"));
+        _sharedHeads = new SingleFlight(coalesce);
+        _sharedListings = new SingleFlight(coalesce);
+        _sharedGets = new SingleFlight(coalesce);
+        _sharedGetSize = Long.getLong("s3dav.s3.coalesceSize", 256)
+                .longValue() * 1024;
 
         _uploadManager = new S3UploadManagerImpl(this, uploadDirectory);
+        _treeOperations = new S3TreeOperations(this, new File(s3DavDirectory,
+                "journal"), log);
     }
 
     public S3Log getLog() {
@@ -88,7 +194,51 @@ public class S3RepositoryImpl implements S3Repository {
     }
 
     public Cache getS3Cache() {
-        return _s3ObjectCache;
+        return _metadataCache;
+    }
+
+    public ContentCache getContentCache() {
+        return _contentCache;
+    }
+
+    public FolderFilters getFolderFilters() {
+        return _folderFilters;
+    }
+
+    public NamespaceIndex getNamespaceIndex() {
+        return _namespaceIndex;
+    }
+
+    public SingleFlight getSharedHeads() {
+        return _sharedHeads;
+    }
+
+    public SingleFlight getSharedListings() {
+        return _sharedListings;
+    }
+
+    public SingleFlight getSharedGets() {
+        return _sharedGets;
+    }
+
+    /**
+     * @return the number of files read from the content cache because S3
+     *         could not be reached
+     */
+    public synchronized long getOfflineReads() {
+        return _offlineReads;
+    }
+
+    public S3TreeOperations getTreeOperations() {
+        return _treeOperations;
+    }
+
+    public S3UploadScheduler getUploadScheduler() {
+        return _uploadManager.getScheduler();
+    }
+
+    Credential getCredential() {
+        return _credential;
     }
 
     /**
@@ -130,9 +280,7 @@ public class S3RepositoryImpl implements S3Repository {
             result = isBucketName(resource.getName());
         } else {
             // that's a regular resource
-            ObjectHEAD ope = mkObjectHEAD(resource.getResourceKey());
-
-            result = ope.execute();
+            result = getMetadata(resource.getResourceKey()).exists();
         }
         return result;
     }
@@ -144,13 +292,8 @@ public class S3RepositoryImpl implements S3Repository {
         } else if (resource.isBucket()) {
             result = isBucketName(resource.getName());
         } else {
-            ObjectHEAD ope = mkObjectHEAD(resource.getResourceKey());
-            boolean res = ope.execute();
-            if (res) {
-                result = ope.getMeta("dir") != null;
-            } else {
-                result = false;
-            }
+            ObjectMetadata metadata = getMetadata(resource.getResourceKey());
+            result = metadata.exists() && metadata.isDirectory();
         }
         return result;
     }
@@ -162,13 +305,8 @@ public class S3RepositoryImpl implements S3Repository {
         } else if (uri.isBucket()) {
             result = false;
         } else {
-            ObjectHEAD ope = mkObjectHEAD(uri.getResourceKey());
-            boolean res = ope.execute();
-            if (res) {
-                result = ope.getMeta("dir") == null;
-            } else {
-                result = false;
-            }
+            ObjectMetadata metadata = getMetadata(uri.getResourceKey());
+            result = metadata.exists() && !metadata.isDirectory();
         }
         return result;
     }
@@ -190,6 +328,8 @@ public class S3RepositoryImpl implements S3Repository {
             if (!ope.execute()) {
                 throw new IOException("can't create:" + uri.getUri());
             }
+            _namespaceIndex.update(uri.getResourceKey(), new ObjectMetadata(
+                    true, true, 0, new Date(), null, ope.getHeader("ETag")));
             result = new S3FolderImpl(uri, _credential, this);
         }
         return result;
@@ -207,10 +347,8 @@ public class S3RepositoryImpl implements S3Repository {
             throw new IOException("can't create file in /:" + uri.getUri());
         }
 
-        ObjectPUT ope = mkObjectPUT(uri.getResourceKey());
-        if (!ope.execute()) {
-            throw new IOException("can't create:" + uri.getUri());
-        }
+        // nothing is sent to S3 yet: the object is written once, with
+        // its content, by setResourceContent
         result = new S3ResourceImpl(uri, _credential, this);
 
         return result;
@@ -224,6 +362,165 @@ public class S3RepositoryImpl implements S3Repository {
         return new S3ResourceImpl(uri, _credential, this);
     }
 
+    public S3Object openObject(S3UrlName uri) throws IOException {
+        if (uri.isRoot() || uri.isBucket()) {
+            return isFolder(uri) ? getFolder(uri) : null;
+        }
+        String key = uri.getResourceKey();
+        S3UploadImpl upload = getPendingUpload(key);
+        if (upload != null) {
+            // the file has just been written: S3 may not have it yet
+            InputStream content = upload.openContent(0, -1);
+            if (content != null) {
+                return new S3ResourceImpl(uri, _credential, this, upload
+                        .getMetadata(), content);
+            }
+        }
+        ObjectMetadata cached = _contentCache.getMetadata(key);
+        if (cached != null) {
+            // no request at all if the metadata cache knows that the
+            // cached content is the current one
+            ObjectMetadata known = _metadataCache.get(key);
+            boolean stale = false;
+            if (known == null) {
+                // refreshed in the background
+                known = _metadataCache.getStale(key);
+                stale = true;
+            }
+            if ((known != null) && cached.getETag().equals(known.getETag())) {
+                InputStream content = _contentCache.open(key, cached
+                        .getETag());
+                if (content != null) {
+                    if (stale) {
+                        refresh(key);
+                    }
+                    return new S3ResourceImpl(uri, _credential, this, known,
+                            content);
+                }
+            }
+        }
+        final String etag = (cached == null) ? null : cached.getETag();
+        ObjectMetadata current = _metadataCache.peek(key);
+        Download download;
+        if ((current != null) && current.exists() && !current.isDirectory()
+                && (current.getLength() <= _sharedGetSize)) {
+            // a small object: the concurrent requests share the response
+            final String sharedKey = key;
+            download = (Download) _sharedGets.execute(key + "?" + etag,
+                    new SingleFlight.Call() {
+                        public java.lang.Object call() throws IOException {
+                            return download(sharedKey, etag, true);
+                        }
+                    });
+        } else {
+            download = download(key, etag, false);
+        }
+        if (!download._ok) {
+            if (download._code == 404) {
+                cache(key, ObjectMetadata.NOT_FOUND, download._changes);
+                return null;
+            }
+            if (download._code == 304) {
+                // the cached content is still the current one
+                _contentCache.revalidated();
+                cache(key, cached, download._changes);
+                InputStream content = _contentCache.open(key, cached
+                        .getETag());
+                if (content != null) {
+                    return new S3ResourceImpl(uri, _credential, this, cached,
+                            content);
+                }
+                // evicted in the meantime
+                return openObject(uri);
+            }
+            if ((cached != null) && isUnreachable(download._code)) {
+                // S3 can't be reached: the cached content is the best we
+                // have
+                InputStream content = _contentCache.open(key, cached
+                        .getETag());
+                if (content != null) {
+                    _log.log("S3 unreachable, reading the cached content of:"
+                            + key);
+                    synchronized (this) {
+                        _offlineReads++;
+                    }
+                    return new S3ResourceImpl(uri, _credential, this, cached,
+                            content);
+                }
+            }
+            checkAvailable();
+            throw new IOException("Can't GET:" + key);
+        }
+        // the response of the GET is as good as the response of a HEAD
+        ObjectMetadata metadata = download._metadata;
+        cache(key, metadata, download._changes);
+        if (metadata.isDirectory()) {
+            return new S3FolderImpl(uri, _credential, this, metadata);
+        }
+        return new S3ResourceImpl(uri, _credential, this, metadata, download
+                .getContent());
+    }
+
+    /**
+     * The outcome of a GET request
+     */
+    private static class Download {
+        private boolean _ok;
+
+        private int _code;
+
+        /** the number of changes when the request was sent */
+        private long _changes;
+
+        private ObjectMetadata _metadata;
+
+        /** the content, if it has not been read */
+        private InputStream _content;
+
+        /** the content, if it has been read (the response is shared) */
+        private byte[] _bytes;
+
+        InputStream getContent() {
+            return (_bytes != null) ? new ByteArrayInputStream(_bytes)
+                    : _content;
+        }
+    }
+
+    /**
+     * @param etag the ETag of the cached content (null if none)
+     * @param read true to read the content (and store it in the content
+     *            cache) before returning
+     */
+    private Download download(String key, String etag, boolean read)
+            throws IOException {
+        ObjectGET ope = mkObjectGET(key);
+        Download result = new Download();
+        result._changes = getChanges();
+        result._ok = (etag == null) ? ope.execute() : ope.execute(etag);
+        result._code = ope.getResponseCode();
+        if (result._ok) {
+            result._metadata = ObjectMetadata.mk(ope);
+            if (result._metadata.isDirectory()) {
+                ope.getInputStream().close();
+            } else {
+                InputStream content = _contentCache.store(key,
+                        result._metadata, ope.getInputStream());
+                if (read) {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    try {
+                        Util.copyStream(content, bos);
+                    } finally {
+                        content.close();
+                    }
+                    result._bytes = bos.toByteArray();
+                } else {
+                    result._content = content;
+                }
+            }
+        }
+        return result;
+    }
+
     private boolean isBucketName(String name) throws IOException {
         List buckets = getBuckets();
 
@@ -266,37 +563,355 @@ public class S3RepositoryImpl implements S3Repository {
         }
     }
 
-    public ObjectDELETE mkObjectDELETE(String uri) {
-        _s3ObjectCache.delete(uri);
-        return new ObjectDELETE(uri, _credential, _log);
+    public ObjectDELETE mkObjectDELETE(final String uri) {
+        forget(uri);
+        return new ObjectDELETE(uri, _credential, _log) {
+            public boolean execute() throws IOException {
+                try {
+                    return super.execute();
+                } finally {
+                    forget(uri);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param resourceKeys the resource keys of the objects which are going
+     *            to be deleted
+     */
+    public ObjectsDELETE mkObjectsDELETE(String bucket,
+            final List resourceKeys) {
+        for (Iterator iter = resourceKeys.iterator(); iter.hasNext();) {
+            forget((String) iter.next());
+        }
+        return new ObjectsDELETE(bucket, _credential, _log) {
+            public Map execute(List keys) throws IOException {
+                try {
+                    return super.execute(keys);
+                } finally {
+                    for (Iterator iter = resourceKeys.iterator(); iter
+                            .hasNext();) {
+                        forget((String) iter.next());
+                    }
+                }
+            }
+        };
     }
 
     public ObjectGET mkObjectGET(String uri) {
-        _s3ObjectCache.delete(uri);
+        // reading an object doesn't change its metadata: the cached
+        // ETag and date can still answer the conditional requests
         return new ObjectGET(uri, _credential, _log);
     }
 
-    public ObjectHEAD mkObjectHEAD(String uri) {
-        ObjectHEAD result = _s3ObjectCache.get(uri);
+    public ObjectPUT mkObjectPUT(final String uri) {
+        forget(uri);
+        return new ObjectPUT(uri, _credential, _log) {
+            public boolean execute(InputStream content, String contentType,
+                    String contentMd5, long contentLength,
+                    UploadNotification notify) throws IOException {
+                try {
+                    return super.execute(content, contentType, contentMd5,
+                            contentLength, notify);
+                } finally {
+                    forget(uri);
+                }
+            }
+        };
+    }
+
+    public ObjectCOPY mkObjectCOPY(final String uri) {
+        forget(uri);
+        return new ObjectCOPY(uri, _credential, _log) {
+            public String execute(String sourceUri) throws IOException {
+                try {
+                    return super.execute(sourceUri);
+                } finally {
+                    forget(uri);
+                }
+            }
+        };
+    }
+
+    public ObjectPartCOPY mkObjectPartCOPY(String uri) {
+        return new ObjectPartCOPY(uri, _credential, _log);
+    }
+
+    public ObjectUploadsPOST mkObjectUploadsPOST(String uri) {
+        return new ObjectUploadsPOST(uri, _credential, _log);
+    }
+
+    public ObjectPartPUT mkObjectPartPUT(String uri) {
+        return new ObjectPartPUT(uri, _credential, _log);
+    }
+
+    public ObjectUploadPOST mkObjectUploadPOST(final String uri) {
+        forget(uri);
+        return new ObjectUploadPOST(uri, _credential, _log) {
+            public void execute(String uploadId, String[] etags)
+                    throws IOException {
+                try {
+                    super.execute(uploadId, etags);
+                } finally {
+                    forget(uri);
+                }
+            }
+        };
+    }
+
+    public ObjectUploadDELETE mkObjectUploadDELETE(String uri) {
+        return new ObjectUploadDELETE(uri, _credential, _log);
+    }
+
+    /**
+     * @param uri the resource key of an object
+     * @return the upload of the object, if the object is being uploaded
+     *         and its content can be read from the local copy of the file
+     */
+    S3UploadImpl getPendingUpload(String uri) {
+        return _uploadManager.getPendingUpload(uri);
+    }
+
+    void abortUploads(S3UrlName name) {
+        _uploadManager.abortUploads(name);
+    }
+
+    /**
+     * The object is going to change (or to disappear): what the caches
+     * know about it is forgotten, and it can't be reported as missing by the
+     * listing of its folder anymore.
+     * This is done when the request changing the object is built, and
+     * again once S3 has answered it: the lookups answered meanwhile may
+     * describe the previous state of the object. The HEAD requests answered
+     * after that are not cached either (see head()).
+     */
+    private void forget(String uri) {
+        synchronized (_changes) {
+            _changes[0]++;
+        }
+        _metadataCache.delete(uri);
+        _contentCache.delete(uri);
+        _folderFilters.added(uri);
+        _namespaceIndex.invalidate(uri);
+        // the requests in progress can't be shared with the next callers
+        _sharedHeads.forget(uri);
+        _sharedGets.forget(uri);
+        int index = uri.lastIndexOf("//");
+        if (index >= 0) {
+            _sharedListings.forget(uri.substring(0, index + 2));
+        }
+    }
+
+    /**
+     * Returns the metadata of an object, using the metadata cache when
+     * possible. Only the successful HEAD requests and the 404 responses are
+     * cached: any other error is reported as a non existing object but is not
+     * cached. When S3 can't be reached, the last known metadata are used
+     * instead (an S3UnavailableException is thrown if there are none and S3
+     * is considered as unavailable). A stale entry of the cache is returned at
+     * once, and refreshed in the background. The concurrent lookups of an
+     * object share the same HEAD request.
+     * An object missing from the last listing of its folder doesn't
+     * exist: there is no need to ask S3. Neither is there for an object
+     * known by the namespace index.
+     * 
+     * @param uri
+     *            the resource key of the object
+     * @return the metadata of the object (never null)
+     * @throws IOException
+     */
+    public ObjectMetadata getMetadata(String uri) throws IOException {
+        S3UploadImpl upload = getPendingUpload(uri);
+        if (upload != null) {
+            // what the object will be once uploaded
+            return upload.getMetadata();
+        }
+        ObjectMetadata result = _metadataCache.get(uri);
         if (result == null) {
-            result = new ObjectHEAD(uri, _credential, _log);
-            _s3ObjectCache.put(uri, result);
+            result = _namespaceIndex.lookup(uri, false);
+            if (result != null) {
+                return result;
+            }
+            result = _metadataCache.getStale(uri);
+            if (result != null) {
+                // used as is, while a HEAD request refreshes it
+                refresh(uri);
+                return result;
+            }
+            if (_folderFilters.isAbsent(uri)) {
+                _log.log("Not in the listing:" + uri);
+                return ObjectMetadata.NOT_FOUND;
+            }
+            final String key = uri;
+            result = (ObjectMetadata) _sharedHeads.execute(uri,
+                    new SingleFlight.Call() {
+                        public java.lang.Object call() throws IOException {
+                            return head(key);
+                        }
+                    });
         } else {
             _log.log("Cache hit for:" + uri);
         }
         return result;
     }
 
-    public ObjectPUT mkObjectPUT(String uri) {
-        _s3ObjectCache.delete(uri);
-        return new ObjectPUT(uri, _credential, _log);
+    /**
+     * Send a HEAD request, and store its outcome in the caches
+     */
+    private ObjectMetadata head(String uri) throws IOException {
+        ObjectMetadata result;
+        long changes = getChanges();
+        ObjectHEAD ope = new ObjectHEAD(uri, _credential, _log);
+        if (ope.execute()) {
+            result = ObjectMetadata.mk(ope);
+            cache(uri, result, changes);
+        } else if (ope.getResponseCode() == 404) {
+            result = ObjectMetadata.NOT_FOUND;
+            cache(uri, result, changes);
+        } else if (isUnreachable(ope.getResponseCode())) {
+            // what we knew about the object, however old
+            result = _metadataCache.getOffline(uri);
+            if (result == null) {
+                result = _namespaceIndex.lookupOffline(uri);
+            }
+            if (result == null) {
+                checkAvailable();
+                result = ObjectMetadata.NOT_FOUND;
+            } else {
+                _log.log("S3 unreachable, using the cached metadata of:" + uri);
+            }
+        } else {
+            result = ObjectMetadata.NOT_FOUND;
+        }
+        return result;
     }
 
-    public List getRawListing(String bucket) throws IOException {
-        BucketGET ope = new BucketGET(bucket, _credential, _log);
+    private long getChanges() {
+        synchronized (_changes) {
+            return _changes[0];
+        }
+    }
+
+    /**
+     * Stores the outcome of a HEAD or GET request in the caches, unless an
+     * object has changed while the request was sent: the response may then
+     * describe the previous state of the object.
+     * @param changes the number of changes when the request was sent
+     */
+    private void cache(String uri, ObjectMetadata metadata, long changes) {
+        synchronized (_changes) {
+            if (changes != _changes[0]) {
+                _log.log("Changed during the request:" + uri);
+                return;
+            }
+            _metadataCache.put(uri, metadata);
+            _namespaceIndex.update(uri, metadata);
+            if (!metadata.exists()) {
+                _folderFilters.falsePositive(uri);
+            }
+        }
+    }
+
+    /**
+     * Send a HEAD request in the background, to refresh a stale entry of the
+     * metadata cache
+     */
+    private void refresh(final String uri) {
+        if (!S3CircuitBreaker.getInstance().isAvailable()) {
+            // the stale entry is kept until S3 is back
+            return;
+        }
+        synchronized (_refreshing) {
+            if (!_refreshing.add(uri)) {
+                return;
+            }
+        }
+        boolean queued = _refreshes.execute(new Runnable() {
+            public void run() {
+                try {
+                    _sharedHeads.execute(uri, new SingleFlight.Call() {
+                        public java.lang.Object call() throws IOException {
+                            return head(uri);
+                        }
+                    });
+                } catch (IOException ex) {
+                    _log.log("Can't refresh:" + uri, ex);
+                } finally {
+                    synchronized (_refreshing) {
+                        _refreshing.remove(uri);
+                    }
+                }
+            }
+        }, _log);
+        if (!queued) {
+            synchronized (_refreshing) {
+                _refreshing.remove(uri);
+            }
+        }
+    }
+
+    /**
+     * @return true if the response code tells that S3 has not answered the
+     *         request (no response, or a server error)
+     */
+    static boolean isUnreachable(int responseCode) {
+        return (responseCode < 0) || (responseCode >= 500);
+    }
 
-        List objects = ope.execute("");
-        return objects;
+    /**
+     * @throws S3UnavailableException if the requests to S3 are not sent
+     *             anymore (see S3CircuitBreaker)
+     */
+    static void checkAvailable() throws S3UnavailableException {
+        S3CircuitBreaker breaker = S3CircuitBreaker.getInstance();
+        if (!breaker.isAvailable()) {
+            throw new S3UnavailableException("S3 is unavailable", breaker
+                    .getRetryAfter());
+        }
+    }
+
+    /**
+     * Returns the metadata of a child of a folder browsed from the namespace
+     * index: unlike getMetadata, the listings read from the disk are used
+     * even before their folder is listed again.
+     */
+    ObjectMetadata getListedMetadata(String uri) throws IOException {
+        if (getPendingUpload(uri) == null) {
+            ObjectMetadata result = _namespaceIndex.lookup(uri, true);
+            if (result != null) {
+                return result;
+            }
+        }
+        return getMetadata(uri);
+    }
+
+    /**
+     * Store in the metadata cache what we have learnt about an object
+     * without sending a HEAD request (for instance from a listing)
+     */
+    void cacheMetadata(String uri, ObjectMetadata metadata) {
+        _metadataCache.put(uri, metadata);
+    }
+
+    /**
+     * List the raw content of a bucket, one 'directory' level at a time: the
+     * keys containing a '/' after the prefix are returned as common prefixes
+     * of the returned operation.
+     * 
+     * @param bucket
+     * @param prefix
+     *            the (not encoded) prefix
+     * @return the executed listing operation
+     * @throws IOException
+     */
+    public BucketGET getRawListing(String bucket, String prefix)
+            throws IOException {
+        BucketGET ope = new BucketGET(bucket, _credential, _log);
+        ope.setDelimiter("/");
+        ope.setMaxKeys(1000);
+        ope.execute(Util.urlEncode(prefix));
+        return ope;
     }
 
     public void deleteObject(String bucket, String key) throws IOException {
@@ -332,9 +947,9 @@ public class S3RepositoryImpl implements S3Repository {
     public void copy(S3UrlName source, S3UrlName destination)
             throws IOException {
         if (isFolder(source)) {
-            S3Folder src = getFolder(source);
-            S3Folder dest = createFolder(destination);
-            copyDirectory(src, dest);
+            checkTreeDestination(source, destination);
+            _treeOperations.execute(S3TreeOperation.TYPE_COPY, source,
+                    destination);
         } else {
             S3Resource src = getResource(source);
             S3Resource dest = createResource(destination);
@@ -342,23 +957,26 @@ public class S3RepositoryImpl implements S3Repository {
         }
     }
 
-    private void copyDirectory(S3Folder src, S3Folder dest) throws IOException {
-        S3UrlName[] children = src.getChildrenUris();
-
-        _log.log("Copy directory from: (" + src.getUrl().getUri() + ") to ("
-                + dest.getUrl().getUri() + ")");
+    public void move(S3UrlName source, S3UrlName destination)
+            throws IOException {
+        if (isFolder(source)) {
+            checkTreeDestination(source, destination);
+            _treeOperations.execute(S3TreeOperation.TYPE_MOVE, source,
+                    destination);
+        } else {
+            S3Resource src = getResource(source);
+            S3Resource dest = createResource(destination);
+            copyResource(src, dest);
+            src.remove();
+        }
+    }
 
-        for (int i = 0; i < children.length; i++) {
-            S3UrlName uri = children[i];
-            if (isFolder(uri)) {
-                S3Folder s = getFolder(uri);
-                S3Folder d = dest.createFolder(s.getName());
-                copyDirectory(s, d);
-            } else {
-                S3Resource s = getResource(uri);
-                S3Resource d = dest.createResource(s.getName());
-                copyResource(s, d);
-            }
+    private void checkTreeDestination(S3UrlName source, S3UrlName destination)
+            throws IOException {
+        if (source.isRoot() || destination.isRoot()
+                || destination.getUri().startsWith(source.getUri() + "/")) {
+            throw new IOException("Can't copy:" + source.getUri() + " to:"
+                    + destination.getUri());
         }
     }
 
@@ -366,8 +984,25 @@ public class S3RepositoryImpl implements S3Repository {
             throws IOException {
         _log.log("Copy resource from: (" + src.getUrl().getUri() + ") to ("
                 + dest.getUrl().getUri() + ")");
-        dest.setResourceContent(src.getContent(), src.getContentType(), src
-                .getLength());
+        S3UploadImpl upload = getPendingUpload(src.getUrl().getResourceKey());
+        if (upload != null) {
+            // S3 doesn't have the content yet (or has an older one): the
+            // destination is uploaded from the temporary file of the source
+            InputStream content = upload.openContent(0, -1);
+            if (content != null) {
+                try {
+                    dest.setResourceContent(content, upload.getContentType(),
+                            upload.getSize(), null);
+                } finally {
+                    content.close();
+                }
+                return;
+            }
+        }
+        // the content is copied by S3: it doesn't go through s3DAV
+        new S3ServerCopy(this, src.getUrl().getResourceKey(), dest.getUrl()
+                .getResourceKey(), _log).copy(src.getLength(), src
+                .getContentType());
     }
 
 }
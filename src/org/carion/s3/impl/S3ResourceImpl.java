@@ -19,53 +19,101 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import org.carion.s3.Credential;
+import org.carion.s3.S3Object;
 import org.carion.s3.S3Resource;
 import org.carion.s3.S3UploadManager;
 import org.carion.s3.S3UrlName;
 import org.carion.s3.operations.ObjectDELETE;
 import org.carion.s3.operations.ObjectGET;
-import org.carion.s3.operations.ObjectHEAD;
 import org.carion.s3.util.MimeTypes;
 
 public class S3ResourceImpl extends S3ObjectImpl implements S3Resource {
+    /** content already opened by the GET request of the metadata */
+    private InputStream _content = null;
 
     S3ResourceImpl(S3UrlName name, Credential credential,
             S3RepositoryImpl repository) {
         super(name, credential, repository);
     }
 
+    S3ResourceImpl(S3UrlName name, Credential credential,
+            S3RepositoryImpl repository, ObjectMetadata metadata) {
+        super(name, credential, repository, metadata);
+    }
+
+    S3ResourceImpl(S3UrlName name, Credential credential,
+            S3RepositoryImpl repository, ObjectMetadata metadata,
+            InputStream content) {
+        super(name, credential, repository, metadata);
+        _content = content;
+    }
+
     public InputStream getContent() throws IOException {
+        if (_content != null) {
+            InputStream content = _content;
+            _content = null;
+            return content;
+        }
+        // served by the content cache when possible
+        S3Object object = _repository.openObject(_name);
+        if (!(object instanceof S3ResourceImpl)) {
+            throw new IOException("Can't GET:" + _name.getResourceKey());
+        }
+        return ((S3ResourceImpl) object).getContent();
+    }
+
+    public InputStream getContent(long start, long end) throws IOException {
         String key = _name.getResourceKey();
-        ObjectGET ope;
-        ope = _repository.mkObjectGET(key);
+        S3UploadImpl upload = _repository.getPendingUpload(key);
+        if (upload != null) {
+            InputStream content = upload.openContent(start, end);
+            if (content != null) {
+                return content;
+            }
+        }
+        // the metadata are usually known when a range is read
+        InputStream cached = _repository.getContentCache().open(key,
+                getETag(), start, end);
+        if (cached != null) {
+            return cached;
+        }
+        ObjectGET ope = _repository.mkObjectGET(key);
 
-        if (!ope.execute()) {
-            throw new IOException("Can't GET:" + key);
+        if (!ope.execute(start, end)) {
+            throw new IOException("Can't GET:" + key + " (" + start + "-"
+                    + end + ")");
         }
         return ope.getInputStream();
     }
 
+    public String getETag() throws IOException {
+        return getMetadata().getETag();
+    }
+
     public String getContentType() {
-        return MimeTypes.ext2mimeType(_name.getExt());
+        ObjectMetadata metadata = getKnownMetadata();
+        return MimeTypes.ext2mimeType(_name.getExt(), (metadata == null) ? null
+                : metadata.getContentType());
     }
 
     public long getLength() throws IOException {
-        String key = _name.getResourceKey();
-        ObjectHEAD ope = _repository.mkObjectHEAD(key);
-        if (!ope.execute()) {
-            throw new IOException("Can't HEAD:" + key);
+        ObjectMetadata metadata = getMetadata();
+        if (!metadata.exists()) {
+            throw new IOException("Can't HEAD:" + _name.getResourceKey());
         }
-        return ope.getContentLength();
+        return metadata.getLength();
     }
 
     public void setResourceContent(InputStream content, String contentType,
-            long length) throws IOException {
+            long length, String client) throws IOException {
         S3UploadManager uploadManager = _repository.getUploadManager();
 
-        uploadManager.upload(_name, content, contentType, length);
+        uploadManager.upload(_name, content, contentType, length, client);
     }
 
     public void remove() throws IOException {
+        // an upload in progress would create the object again
+        _repository.abortUploads(_name);
         String key = _name.getResourceKey();
         ObjectDELETE ope;
         ope = _repository.mkObjectDELETE(key);
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.io.IOException;
+
+import org.carion.s3.S3Log;
+import org.carion.s3.util.WorkerPool;
+
+/**
+ * Copies an object to another key without its content going through s3DAV:
+ * the copy is done by S3 itself (x-amz-copy-source).
+ * S3 can't copy more than 5GB in a single request: the large objects are
+ * copied with a multipart upload whose parts are ranges of the source object,
+ * copied in parallel by a pool of threads shared by all the copies.
+ *
+ * The following system properties can be used:
+ * s3dav.copy.multipartThreshold (in MB, 1024, at most 5120),
+ * s3dav.copy.partSize (in MB, 256, at least 5) and s3dav.copy.partThreads (4).
+ * A failing part is retried s3dav.upload.partRetries times.
+ *
+ * @author pcarion
+ */
+class S3ServerCopy {
+    private final static long MB = 1024 * 1024;
+
+    /** the objects at least that big are copied with a multipart upload */
+    private final static long THRESHOLD = Math.min(5 * 1024, Integer
+            .getInteger("s3dav.copy.multipartThreshold", 1024).intValue())
+            * MB;
+
+    private final static long PART_SIZE = Math.max(5, Integer.getInteger(
+            "s3dav.copy.partSize", 256).intValue())
+            * MB;
+
+    private final static int THREADS = Integer.getInteger(
+            "s3dav.copy.partThreads", 4).intValue();
+
+    private final static WorkerPool _parts = new WorkerPool("s3-copy",
+            THREADS, THREADS);
+
+    private final S3RepositoryImpl _repository;
+
+    private final String _source;
+
+    private final String _destination;
+
+    private final S3Log _log;
+
+    private String[] _etags;
+
+    private int _pending = 0;
+
+    private IOException _error = null;
+
+    /**
+     * @param source the resource key of the object to copy
+     * @param destination the resource key of the copy
+     */
+    S3ServerCopy(S3RepositoryImpl repository, String source,
+            String destination, S3Log log) {
+        _repository = repository;
+        _source = source;
+        _destination = destination;
+        _log = log;
+    }
+
+    /**
+     * @param length the length of the object to copy
+     * @param contentType the content type of the copy, when it is copied
+     *  with a multipart upload (a single copy keeps the content type of
+     *  the source)
+     * @throws IOException if the object has not been copied
+     */
+    void copy(long length, String contentType) throws IOException {
+        if (length < THRESHOLD) {
+            _repository.mkObjectCOPY(_destination).execute(_source);
+            return;
+        }
+
+        int count = (int) ((length + PART_SIZE - 1) / PART_SIZE);
+        _etags = new String[count];
+        String uploadId = _repository.mkObjectUploadsPOST(_destination)
+                .execute(contentType);
+        try {
+            for (int i = 0; (i < count) && (getError() == null); i++) {
+                long start = i * PART_SIZE;
+                submit(new Part(uploadId, i + 1, start, Math.min(start
+                        + PART_SIZE, length) - 1));
+            }
+            waitForParts();
+            _repository.mkObjectUploadPOST(_destination).execute(uploadId,
+                    _etags);
+        } catch (IOException ex) {
+            S3MultipartUpload.abortUpload(_repository, _destination, uploadId,
+                    _log);
+            throw ex;
+        }
+    }
+
+    private void submit(Part part) throws IOException {
+        synchronized (this) {
+            _pending++;
+        }
+        try {
+            _parts.executeAndWait(part, _log);
+        } catch (InterruptedException ex) {
+            partDone(part._partNumber, null, new IOException("Interrupted"));
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private synchronized void waitForParts() throws IOException {
+        while (_pending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted");
+            }
+        }
+        if (_error != null) {
+            throw _error;
+        }
+    }
+
+    private synchronized IOException getError() {
+        return _error;
+    }
+
+    private synchronized void partDone(int partNumber, String etag,
+            IOException error) {
+        if (error == null) {
+            _etags[partNumber - 1] = etag;
+        } else if (_error == null) {
+            _error = error;
+        }
+        _pending--;
+        notifyAll();
+    }
+
+    /**
+     * The copy of one part, retried if it fails
+     */
+    private class Part implements Runnable {
+        private final String _uploadId;
+
+        private final int _partNumber;
+
+        private final long _start;
+
+        private final long _end;
+
+        Part(String uploadId, int partNumber, long start, long end) {
+            _uploadId = uploadId;
+            _partNumber = partNumber;
+            _start = start;
+            _end = end;
+        }
+
+        public void run() {
+            IOException error = null;
+            for (int attempt = 0; attempt <= S3MultipartUpload.RETRIES; attempt++) {
+                if (getError() != null) {
+                    // no need to go on if the copy has failed
+                    error = getError();
+                    break;
+                }
+                if (attempt > 0) {
+                    _log.log("Retrying part " + _partNumber + " of:"
+                            + _destination);
+                    try {
+                        Thread.sleep(attempt * 1000L);
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                }
+                try {
+                    String etag = _repository.mkObjectPartCOPY(_destination)
+                            .execute(_uploadId, _partNumber, _source, _start,
+                                    _end);
+                    partDone(_partNumber, etag, null);
+                    return;
+                } catch (IOException ex) {
+                    _log.log("Can't copy part " + _partNumber + " of:"
+                            + _destination, ex);
+                    error = ex;
+                }
+            }
+            partDone(_partNumber, null, (error != null) ? error
+                    : new IOException("Can't copy part " + _partNumber
+                            + " of:" + _destination));
+        }
+    }
+}
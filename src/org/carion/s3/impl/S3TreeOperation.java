@@ -0,0 +1,639 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+
+import org.carion.s3.S3DeleteException;
+import org.carion.s3.S3Log;
+import org.carion.s3.S3UrlName;
+import org.carion.s3.operations.BucketListing;
+import org.carion.s3.operations.ObjectsDELETE;
+import org.carion.s3.util.MimeTypes;
+import org.carion.s3.util.Util;
+import org.carion.s3.util.WorkerPool;
+
+/**
+ * Copies, moves or deletes a folder and all its content.
+ * With the s3DAV naming convention, all the objects below the folder a/b
+ * have a key starting with a/b/: the whole tree is enumerated with a single
+ * listing (no delimiter), and no HEAD request is needed to tell the files
+ * from the folders. The objects are processed in parallel, as they are
+ * listed, by a pool of threads shared by all the tree operations: the
+ * objects are copied one by one, and deleted by batches of 1000 objects
+ * (multi-object delete).
+ * The objects that S3 refuses to delete don't stop the operation: they are
+ * reported, once all the other objects have been processed, by a
+ * S3DeleteException.
+ *
+ * The progress is saved in a journal: the key up to which all the objects
+ * have been processed. An operation interrupted by a restart of s3DAV resumes
+ * after this key (copying or deleting an object twice is harmless).
+ *
+ * @author pcarion
+ */
+public class S3TreeOperation {
+    public final static int TYPE_COPY = 1;
+
+    public final static int TYPE_MOVE = 2;
+
+    public final static int TYPE_DELETE = 3;
+
+    public final static int STATE_STARTED = 1;
+
+    public final static int STATE_FINISHED = 2;
+
+    public final static int STATE_ERROR = -1;
+
+    private final static int LISTING_PAGE_SIZE = 1000;
+
+    /** the journal is saved at most every second */
+    private final static long SAVE_DELAY = 1000;
+
+    private final S3RepositoryImpl _repository;
+
+    private final WorkerPool _pool;
+
+    private final File _journal;
+
+    private final Properties _state;
+
+    private final int _type;
+
+    private final S3UrlName _source;
+
+    private final S3UrlName _destination;
+
+    private final S3Log _log;
+
+    /** key of the pending objects -&gt; key of the object listed before */
+    private final TreeMap _pending = new TreeMap();
+
+    private String _lastListed;
+
+    private long _processed;
+
+    private long _bytes;
+
+    private int _status = STATE_STARTED;
+
+    private IOException _error = null;
+
+    private long _lastSave = 0;
+
+    /** the objects waiting to be deleted */
+    private List _toDelete = new ArrayList();
+
+    /** the number of objects being copied (move) */
+    private int _copying = 0;
+
+    /** true when the whole tree has been listed */
+    private boolean _listed = false;
+
+    /** the number of objects S3 has refused to delete */
+    private int _failed = 0;
+
+    private S3DeleteException _deleteError = null;
+
+    /**
+     * A new operation
+     */
+    S3TreeOperation(S3RepositoryImpl repository, WorkerPool pool,
+            File journal, int type, S3UrlName source, S3UrlName destination,
+            S3Log log) {
+        _repository = repository;
+        _pool = pool;
+        _journal = journal;
+        _type = type;
+        _source = source;
+        _destination = destination;
+        _log = log;
+        _state = new Properties();
+        _state.setProperty("type", String.valueOf(type));
+        _state.setProperty("source", source.getUri());
+        if (destination != null) {
+            _state.setProperty("destination", destination.getUri());
+        }
+    }
+
+    /**
+     * An operation to resume, from its journal
+     */
+    S3TreeOperation(S3RepositoryImpl repository, WorkerPool pool,
+            File journal, S3Log log) throws IOException {
+        _repository = repository;
+        _pool = pool;
+        _journal = journal;
+        _log = log;
+        _state = Util.loadProperties(journal);
+        _type = Integer.parseInt(_state.getProperty("type"));
+        _source = new S3UrlNameImpl(_state.getProperty("source"), false);
+        String destination = _state.getProperty("destination");
+        _destination = (destination == null) ? null : new S3UrlNameImpl(
+                destination, false);
+        _lastListed = _state.getProperty("marker");
+        _processed = Long.parseLong(_state.getProperty("processed", "0"));
+        _bytes = Long.parseLong(_state.getProperty("bytes", "0"));
+    }
+
+    public String getId() {
+        return _journal.getName();
+    }
+
+    public int getType() {
+        return _type;
+    }
+
+    public S3UrlName getSource() {
+        return _source;
+    }
+
+    /**
+     * @return the destination, null for a delete
+     */
+    public S3UrlName getDestination() {
+        return _destination;
+    }
+
+    public synchronized long getProcessed() {
+        return _processed;
+    }
+
+    public synchronized long getBytes() {
+        return _bytes;
+    }
+
+    public synchronized int getPendingCount() {
+        return _pending.size();
+    }
+
+    public synchronized int getState() {
+        return _status;
+    }
+
+    public synchronized String getError() {
+        return (_error == null) ? null : _error.getMessage();
+    }
+
+    /**
+     * Processes the objects of the tree, and then the folder itself.
+     * @throws IOException if an object could not be processed: the journal
+     *  is kept and the operation will be resumed by the next start of s3DAV
+     */
+    void execute() throws IOException {
+        try {
+            if (_state.getProperty("marker") == null) {
+                saveJournal(true);
+                if (_destination != null) {
+                    _repository.createFolder(_destination);
+                }
+            }
+            int depth = getDepth(_source);
+            BucketListing listing = new BucketListing(_source.getBucket(),
+                    getTreePrefix(_source), null, LISTING_PAGE_SIZE,
+                    _lastListed, _repository.getCredential(), _log);
+            while (listing.hasNext() && (getFailure() == null)) {
+                Object obj = listing.next();
+                List relative = getRelativePath(obj.getKey(), depth);
+                if (relative == null) {
+                    // not an object created by s3DAV
+                    listed(obj.getKey(), null);
+                } else {
+                    Entry entry = new Entry(obj, relative);
+                    listed(obj.getKey(), entry);
+                    if (_type == TYPE_DELETE) {
+                        deleteLater(entry);
+                    } else {
+                        try {
+                            _pool.executeAndWait(entry, _log);
+                        } catch (InterruptedException ex) {
+                            entryDone(entry, 0, new IOException("Interrupted"));
+                        }
+                    }
+                }
+            }
+            synchronized (this) {
+                _listed = true;
+            }
+            deleteBatches();
+            waitForEntries();
+            S3DeleteException deleteError = getDeleteError();
+            if (deleteError != null) {
+                restoreFolders(deleteError);
+                throw deleteError;
+            }
+
+            if (_type != TYPE_COPY) {
+                S3FolderImpl folder = (S3FolderImpl) _repository
+                        .getFolder(_source);
+                folder.doRemove();
+            }
+            synchronized (this) {
+                _status = STATE_FINISHED;
+            }
+            _journal.delete();
+        } catch (IOException ex) {
+            synchronized (this) {
+                _status = STATE_ERROR;
+                if (_error == null) {
+                    _error = ex;
+                }
+            }
+            saveJournal(true);
+            throw ex;
+        }
+    }
+
+    private synchronized void listed(String key, Entry entry) {
+        if (entry != null) {
+            _pending.put(key, _lastListed);
+            if (_type == TYPE_MOVE) {
+                _copying++;
+            }
+        }
+        _lastListed = key;
+    }
+
+    /**
+     * The object will be deleted with the next batch
+     */
+    private void deleteLater(Entry entry) {
+        synchronized (this) {
+            _toDelete.add(entry);
+        }
+        deleteBatches();
+    }
+
+    private synchronized void copyDone(Entry entry, boolean copied) {
+        _copying--;
+        if (copied) {
+            _toDelete.add(entry);
+        }
+    }
+
+    /**
+     * @return the next objects to delete with a single request, null if
+     *         there are not yet enough objects waiting to be deleted
+     */
+    private synchronized List takeBatch() {
+        int size = _toDelete.size();
+        if ((size == 0) || (_error != null)) {
+            return null;
+        }
+        if ((size < ObjectsDELETE.MAX_KEYS) && !(_listed && (_copying == 0))) {
+            return null;
+        }
+        List entries = _toDelete.subList(0, Math.min(size,
+                ObjectsDELETE.MAX_KEYS));
+        List batch = new ArrayList(entries);
+        entries.clear();
+        return batch;
+    }
+
+    private void deleteBatches() {
+        List batch;
+        while ((batch = takeBatch()) != null) {
+            DeleteBatch task = new DeleteBatch(batch);
+            if (!_pool.execute(task, _log)) {
+                // all the threads are busy: that will slow down
+                // the listing, or the copies
+                task.run();
+            }
+        }
+    }
+
+    private synchronized void entryDone(Entry entry, long bytes,
+            IOException error) {
+        if (error == null) {
+            _pending.remove(entry._key);
+            _processed++;
+            _bytes += bytes;
+        } else if (_error == null) {
+            // the entry stays pending: the journal won't go past it
+            _error = error;
+        }
+        notifyAll();
+        long now = System.currentTimeMillis();
+        if (now - _lastSave >= SAVE_DELAY) {
+            saveJournal(false);
+        }
+    }
+
+    /**
+     * S3 has refused to delete the object: the operation goes on with the
+     * other objects, but the entry stays pending (the journal won't go
+     * past it)
+     */
+    private synchronized void entryFailed(Entry entry, String code) {
+        if (_deleteError == null) {
+            _deleteError = new S3DeleteException("Can't delete:"
+                    + _source.getUri());
+        }
+        _deleteError.addFailure(resolve(_source, entry._relative), code);
+        _failed++;
+        notifyAll();
+    }
+
+    private synchronized IOException getFailure() {
+        return _error;
+    }
+
+    private synchronized void waitForEntries() throws IOException {
+        while ((_pending.size() > _failed) && (_error == null)) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted");
+            }
+        }
+        if (_error != null) {
+            throw _error;
+        }
+    }
+
+    private synchronized S3DeleteException getDeleteError() {
+        return _deleteError;
+    }
+
+    /**
+     * The sub folders have been deleted, but some of the objects they
+     * contain are still there: the folders are created again to give
+     * access to those objects
+     */
+    private void restoreFolders(S3DeleteException deleteError)
+            throws IOException {
+        TreeMap folders = new TreeMap();
+        for (Iterator iter = deleteError.getNames().iterator(); iter
+                .hasNext();) {
+            S3UrlName name = (S3UrlName) iter.next();
+            for (S3UrlName parent = name.getParent(); !parent
+                    .isSameUri(_source); parent = parent.getParent()) {
+                folders.put(parent.getUri(), parent);
+            }
+        }
+        for (Iterator iter = folders.values().iterator(); iter.hasNext();) {
+            S3UrlName folder = (S3UrlName) iter.next();
+            if (!_repository.objectExists(folder)) {
+                _repository.createFolder(folder);
+            }
+        }
+    }
+
+    /**
+     * Saves the key up to which all the objects have been processed
+     */
+    private synchronized void saveJournal(boolean force) {
+        String marker;
+        if (_pending.isEmpty()) {
+            marker = _lastListed;
+        } else {
+            marker = (String) _pending.get(_pending.firstKey());
+        }
+        if (marker != null) {
+            _state.setProperty("marker", marker);
+        } else if (!force) {
+            return;
+        }
+        _state.setProperty("processed", String.valueOf(_processed));
+        _state.setProperty("bytes", String.valueOf(_bytes));
+        try {
+            Util.storeProperties(_state, _journal, "s3DAV tree operation");
+        } catch (IOException ex) {
+            _log.log("Can't save journal:" + _journal, ex);
+        }
+        _lastSave = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the number of folders between the bucket and the name
+     */
+    private static int getDepth(S3UrlName name) {
+        int depth = 0;
+        for (S3UrlName n = name; !n.isBucket(); n = n.getParent()) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * @return the (url encoded) prefix of the keys of all the objects
+     *         below the folder
+     */
+    private static String getTreePrefix(S3UrlName folder) {
+        if (folder.isBucket()) {
+            return "";
+        }
+        // a/b// -> a/b/
+        String prefix = folder.getPrefixKey();
+        return prefix.substring(0, prefix.length() - 1);
+    }
+
+    /**
+     * The key of a/b/c (c being a file or a folder) is a/b//c
+     * 
+     * @param depth the depth of the folder being processed
+     * @return the names leading from the folder being processed to the
+     *         object, null if the key was not created by s3DAV
+     */
+    private static List getRelativePath(String key, int depth) {
+        String path = "/" + key;
+        int index = path.indexOf("//");
+        if (index < 0) {
+            return null;
+        }
+        String name = path.substring(index + 2);
+        if ((name.length() == 0) || (name.indexOf('/') >= 0)) {
+            return null;
+        }
+        List parts = new ArrayList();
+        StringTokenizer st = new StringTokenizer(path.substring(0, index), "/");
+        for (int i = 0; st.hasMoreTokens(); i++) {
+            String part = st.nextToken();
+            if (i >= depth) {
+                parts.add(part);
+            }
+        }
+        parts.add(name);
+        return parts;
+    }
+
+    private static S3UrlName resolve(S3UrlName folder, List path) {
+        S3UrlName result = folder;
+        for (Iterator iter = path.iterator(); iter.hasNext();) {
+            result = result.getChild((String) iter.next());
+        }
+        return result;
+    }
+
+    /**
+     * The copy of one object of the tree, retried if it fails. Once copied,
+     * the object of a move is deleted with the next batch.
+     */
+    private class Entry implements Runnable {
+        private final String _key;
+
+        private final long _size;
+
+        private final List _relative;
+
+        Entry(Object obj, List relative) {
+            _key = obj.getKey();
+            _size = obj.getSize();
+            _relative = relative;
+        }
+
+        public void run() {
+            IOException error = null;
+            for (int attempt = 0; attempt <= S3MultipartUpload.RETRIES; attempt++) {
+                if (getFailure() != null) {
+                    error = getFailure();
+                    break;
+                }
+                if (attempt > 0) {
+                    _log.log("Retrying:" + _key);
+                    try {
+                        Thread.sleep(attempt * 1000L);
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                }
+                try {
+                    copy();
+                    if (_type == TYPE_MOVE) {
+                        copyDone(this, true);
+                        deleteBatches();
+                    } else {
+                        entryDone(this, _size, null);
+                    }
+                    return;
+                } catch (IOException ex) {
+                    _log.log("Can't copy:" + _key, ex);
+                    error = ex;
+                }
+            }
+            if (_type == TYPE_MOVE) {
+                copyDone(this, false);
+            }
+            entryDone(this, 0, (error != null) ? error : new IOException(
+                    "Can't copy:" + _key));
+        }
+
+        private void copy() throws IOException {
+            S3UrlName source = resolve(_source, _relative);
+            S3UrlName destination = resolve(_destination, _relative);
+            new S3ServerCopy(_repository, source.getResourceKey(), destination
+                    .getResourceKey(), _log).copy(_size, MimeTypes
+                    .ext2mimeType(source.getExt()));
+        }
+    }
+
+    /**
+     * The deletion of up to 1000 objects with a single request. The objects
+     * that S3 fails to delete because of a transient error are retried.
+     */
+    private class DeleteBatch implements Runnable {
+        private final List _entries;
+
+        DeleteBatch(List entries) {
+            _entries = entries;
+        }
+
+        public void run() {
+            // key -> entry, for the objects not yet deleted
+            Map remaining = new LinkedHashMap();
+            for (Iterator iter = _entries.iterator(); iter.hasNext();) {
+                Entry entry = (Entry) iter.next();
+                remaining.put(entry._key, entry);
+            }
+            Map errors = null;
+            IOException error = null;
+            for (int attempt = 0; attempt <= S3MultipartUpload.RETRIES; attempt++) {
+                if (getFailure() != null) {
+                    return;
+                }
+                if (attempt > 0) {
+                    _log.log("Retrying deletion of " + remaining.size()
+                            + " objects");
+                    try {
+                        Thread.sleep(attempt * 1000L);
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                }
+                try {
+                    errors = delete(remaining);
+                    error = null;
+                } catch (IOException ex) {
+                    _log.log("Can't delete objects of:" + _source.getUri(), ex);
+                    error = ex;
+                    continue;
+                }
+                for (Iterator iter = remaining.values().iterator(); iter
+                        .hasNext();) {
+                    Entry entry = (Entry) iter.next();
+                    String code = (String) errors.get(entry._key);
+                    if (code == null) {
+                        iter.remove();
+                        entryDone(entry, (_type == TYPE_MOVE) ? entry._size
+                                : 0, null);
+                    } else if (!isTransient(code)) {
+                        iter.remove();
+                        entryFailed(entry, code);
+                    }
+                }
+                if (remaining.isEmpty()) {
+                    return;
+                }
+            }
+            for (Iterator iter = remaining.values().iterator(); iter.hasNext();) {
+                Entry entry = (Entry) iter.next();
+                if (error != null) {
+                    entryDone(entry, 0, error);
+                } else {
+                    entryFailed(entry, (errors == null) ? "Interrupted"
+                            : (String) errors.get(entry._key));
+                }
+            }
+        }
+
+        private Map delete(Map entries) throws IOException {
+            List keys = new ArrayList();
+            List resourceKeys = new ArrayList();
+            for (Iterator iter = entries.values().iterator(); iter.hasNext();) {
+                Entry entry = (Entry) iter.next();
+                keys.add(entry._key);
+                resourceKeys.add(resolve(_source, entry._relative)
+                        .getResourceKey());
+            }
+            return _repository.mkObjectsDELETE(_source.getBucket(),
+                    resourceKeys).execute(keys);
+        }
+
+        private boolean isTransient(String code) {
+            return "InternalError".equals(code) || "SlowDown".equals(code)
+                    || "ServiceUnavailable".equals(code);
+        }
+    }
+}
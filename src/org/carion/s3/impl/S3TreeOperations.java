@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.carion.s3.S3Log;
+import org.carion.s3.S3UrlName;
+import org.carion.s3.util.WorkerPool;
+
+/**
+ * Runs the copies, moves and deletes of folders (see S3TreeOperation) and
+ * keeps track of them for the admin server.
+ * The journals of the operations are in the 'journal' directory of s3DAV.
+ *
+ * The number of objects processed in parallel is set by the system property
+ * s3dav.tree.threads (8).
+ *
+ * @author pcarion
+ */
+public class S3TreeOperations {
+    private final static int THREADS = Integer.getInteger("s3dav.tree.threads",
+            8).intValue();
+
+    private final static String JOURNAL_SUFFIX = ".tree";
+
+    private final WorkerPool _pool = new WorkerPool("s3-tree", THREADS,
+            THREADS);
+
+    private final S3RepositoryImpl _repository;
+
+    private final File _journalDirectory;
+
+    private final S3Log _log;
+
+    /** the operations in progress, or which have failed */
+    private final List _operations = new ArrayList();
+
+    private long _lastId = 0;
+
+    S3TreeOperations(S3RepositoryImpl repository, File journalDirectory,
+            S3Log log) {
+        _repository = repository;
+        _journalDirectory = journalDirectory;
+        _log = log;
+    }
+
+    /**
+     * Processes a folder and all its content, in the calling thread
+     * @param type S3TreeOperation.TYPE_COPY, TYPE_MOVE or TYPE_DELETE
+     * @param destination the destination folder (null for a delete)
+     */
+    void execute(int type, S3UrlName source, S3UrlName destination)
+            throws IOException {
+        if (!_journalDirectory.isDirectory() && !_journalDirectory.mkdirs()) {
+            throw new IOException("Can't create directory:"
+                    + _journalDirectory);
+        }
+        S3TreeOperation operation = new S3TreeOperation(_repository, _pool,
+                new File(_journalDirectory, nextId() + JOURNAL_SUFFIX), type,
+                source, destination, _log);
+        run(operation);
+    }
+
+    /**
+     * Resumes, in the background, the operations interrupted by the last
+     * shutdown of s3DAV
+     */
+    public void recover() {
+        File[] files = _journalDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (int i = 0; i < files.length; i++) {
+            if (!files[i].getName().endsWith(JOURNAL_SUFFIX)) {
+                continue;
+            }
+            try {
+                final S3TreeOperation operation = new S3TreeOperation(
+                        _repository, _pool, files[i], _log);
+                _log.log("Resuming:" + operation.getSource().getUri());
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            S3TreeOperations.this.run(operation);
+                        } catch (IOException ex) {
+                            // already logged
+                        }
+                    }
+                });
+                t.start();
+            } catch (Exception ex) {
+                _log.log("Can't resume:" + files[i], ex);
+            }
+        }
+    }
+
+    private void run(S3TreeOperation operation) throws IOException {
+        synchronized (_operations) {
+            _operations.add(operation);
+        }
+        try {
+            operation.execute();
+        } catch (IOException ex) {
+            _log.log("Can't process folder:" + operation.getSource().getUri(),
+                    ex);
+            throw ex;
+        }
+        synchronized (_operations) {
+            _operations.remove(operation);
+        }
+    }
+
+    /**
+     * @return the operations in progress, and the ones which have
+     *  failed (S3TreeOperation)
+     */
+    public List getOperations() {
+        synchronized (_operations) {
+            return new ArrayList(_operations);
+        }
+    }
+
+    /**
+     * Forgets a failed operation: it won't be resumed
+     */
+    public void discard(String id) {
+        synchronized (_operations) {
+            for (int i = 0; i < _operations.size(); i++) {
+                S3TreeOperation operation = (S3TreeOperation) _operations
+                        .get(i);
+                if (operation.getId().equals(id)
+                        && (operation.getState() == S3TreeOperation.STATE_ERROR)) {
+                    _operations.remove(i);
+                    new File(_journalDirectory, id).delete();
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized long nextId() {
+        long id = System.currentTimeMillis();
+        if (id <= _lastId) {
+            id = _lastId + 1;
+        }
+        _lastId = id;
+        return id;
+    }
+}
@@ -20,19 +20,53 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.Properties;
 
 import org.carion.s3.S3Log;
 import org.carion.s3.S3UploadManager;
 import org.carion.s3.S3UrlName;
-import org.carion.s3.operations.Md5;
 import org.carion.s3.operations.ObjectPUT;
 import org.carion.s3.operations.UploadNotification;
 import org.carion.s3.util.Base64;
-
+import org.carion.s3.util.FileRangeInputStream;
+import org.carion.s3.util.MimeTypes;
+import org.carion.s3.util.Util;
+
+/**
+ * An upload of a file to S3.
+ * When the length of the content is known, the content is streamed to S3 as
+ * it is received: the MD5 of the content is computed on the fly and checked
+ * against the ETag returned by S3.
+ * Otherwise, the content is first copied in a temporary file (computing
+ * its MD5 at the same time) and then sent, in the background, to S3 with
+ * its Content-MD5.
+ * Large files are sent with a multipart upload (see S3MultipartUpload).
+ * When their length is known, the parts are sent while the temporary file
+ * is still being written.
+ * Once the whole content is in the temporary file, the reads of the file
+ * are served from the temporary file until S3 has confirmed the upload.
+ *
+ * Before the upload is acknowledged to the client, the temporary file and a
+ * journal (the key, content type, MD5 and state of the upload) are forced on
+ * the disk, so that the upload survives a restart or a crash of s3DAV (set
+ * the system property s3dav.upload.sync to false not to force them). A
+ * failed upload keeps its temporary file and journal, to be retried.
+ */
 public class S3UploadImpl implements S3UploadManager.Upload {
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    /** the suffix of the journal of the upload, next to the temporary file */
+    final static String JOURNAL_SUFFIX = ".upload";
+
+    private final static boolean SYNC = !"false".equals(System
+            .getProperty("s3dav.upload.sync"));
+
     private final S3UrlName _name;
 
-    private final File _file;
+    private File _file = null;
 
     private final S3UploadManagerImpl _manager;
 
@@ -40,12 +74,43 @@ public class S3UploadImpl implements S3UploadManager.Upload {
 
     private long _size;
 
+    private String _contentMd5;
+
+    /**
+     * the ETag S3 will return: the MD5 of the content, or the ETag of a
+     * multipart upload for the large files
+     */
+    private String _etag;
+
+    /** the size of the parts, when sent with a multipart upload */
+    private long _partSize = S3MultipartUpload.PART_SIZE;
+
+    private String _contentType;
+
+    private Date _lastModified = new Date();
+
+    /** true once the temporary file has been deleted */
+    private boolean _closed = false;
+
+    /** true once the journal of the upload has been written */
+    private boolean _journaled = false;
+
+    /** the number of failed attempts to send the file */
+    private int _attempts = 0;
+
+    private String _error = null;
+
     private UploadTask _task;
 
-    S3UploadImpl(S3UrlName name, File baseDirectory, Cache cache,
-            S3UploadManagerImpl manager) throws IOException {
+    /** number of bytes written in the temporary file */
+    private long _spooledLength = 0;
+
+    private boolean _spooled = false;
+
+    private IOException _spoolError = null;
+
+    S3UploadImpl(S3UrlName name, Cache cache, S3UploadManagerImpl manager) {
         _name = name;
-        _file = File.createTempFile("s3dav", ".mem", baseDirectory);
         _manager = manager;
         _cache = cache;
     }
@@ -54,7 +119,7 @@ public class S3UploadImpl implements S3UploadManager.Upload {
         return _name;
     }
 
-    public long getSize() {
+    public synchronized long getSize() {
         return _size;
     }
 
@@ -67,15 +132,23 @@ public class S3UploadImpl implements S3UploadManager.Upload {
     }
 
     public int getPercentage() {
+        if (_size <= 0) {
+            return 0;
+        }
         return (int) ((getUploaded() * 100) / _size);
     }
 
+    /**
+     * @return the temporary file, or null if the content is streamed
+     */
     public File getStorageFile() {
         return _file;
     }
 
     public void abort() {
         if (_task != null) {
+            // an upload waiting for a thread never starts
+            _manager.getScheduler().cancel(this);
             _task.abort();
             _task = null;
         }
@@ -93,48 +166,157 @@ public class S3UploadImpl implements S3UploadManager.Upload {
     // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4715154
     // 
     public void close() {
-        System.out.println("@@@ close:" + _file);
-        if (!_file.delete()) {
+        synchronized (this) {
+            _closed = true;
+            if (_journaled) {
+                getJournalFile(_file).delete();
+                _journaled = false;
+            }
+        }
+        if ((_file != null) && !_file.delete()) {
             System.out.println("@@@ can't close:" + _file);
         }
     }
 
+    static File getJournalFile(File storageFile) {
+        return new File(storageFile.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Writes the journal of an upload whose whole content is in the
+     * temporary file
+     */
+    private synchronized void writeJournal() throws IOException {
+        if (_closed) {
+            // aborted meanwhile
+            return;
+        }
+        Properties journal = new Properties();
+        journal.setProperty("uri", _name.getUri());
+        journal.setProperty("file", _file.getName());
+        journal.setProperty("size", String.valueOf(_size));
+        if (_contentType != null) {
+            journal.setProperty("contentType", _contentType);
+        }
+        journal.setProperty("md5", _contentMd5);
+        journal.setProperty("etag", _etag);
+        journal.setProperty("partSize", String.valueOf(_partSize));
+        journal.setProperty("state", (_error == null) ? "spooled" : "failed");
+        journal.setProperty("attempts", String.valueOf(_attempts));
+        if (_error != null) {
+            journal.setProperty("error", _error);
+        }
+        Util.storeProperties(journal, getJournalFile(_file), "s3DAV upload",
+                SYNC);
+        _journaled = true;
+    }
+
+    synchronized boolean isJournaled() {
+        return _journaled;
+    }
+
+    /**
+     * Records a failed attempt to send the file, which will be retried
+     * @return the number of failed attempts
+     */
+    synchronized int failed(String error) {
+        _attempts++;
+        _error = error;
+        try {
+            writeJournal();
+        } catch (IOException ex) {
+            // the previous journal still describes the upload
+        }
+        return _attempts;
+    }
+
+    synchronized String getError() {
+        return _error;
+    }
+
+    long getPartSize() {
+        return _partSize;
+    }
+
     /**
      * Copy the file in a temporary file in order to later transfer this file to
-     * S3
+     * S3. The MD5 of the content is computed during the copy.
      * 
      * @param in
      *            the stream containing the data to transfer
      * @param contentLength
+     * @param baseDirectory
+     *            where to create the temporary file
      * @return the actual length of the file to upload
      * @throws IOException
      */
-    long loadContent(InputStream in, long contentLength) throws IOException {
+    long loadContent(InputStream in, long contentLength, File baseDirectory)
+            throws IOException {
         FileOutputStream fos = null;
-        System.out.println("@@ upload file in temporary file:" + _file);
+        MessageDigest digest = Util.mkMd5Digest();
+        // a large file is sent with a multipart upload
+        S3MultipartUpload.ETagDigest parts = null;
+        if (S3MultipartUpload.ENABLED
+                && ((contentLength <= 0)
+                        || (contentLength >= S3MultipartUpload.THRESHOLD))) {
+            parts = new S3MultipartUpload.ETagDigest(_partSize);
+        }
         try {
+            if (contentLength > 0) {
+                _size = contentLength;
+            }
+            _file = File.createTempFile("s3dav", ".mem", baseDirectory);
             fos = new FileOutputStream(_file);
-            byte[] data = new byte[1024];
+            byte[] data = new byte[BUFFER_SIZE];
             if (contentLength > 0) {
                 long tobeRead = contentLength;
 
                 while (tobeRead > 0) {
-                    int len = in.read(data, 0, Math.min((int) tobeRead,
+                    int len = in.read(data, 0, (int) Math.min(tobeRead,
                             data.length));
+                    if (len < 0) {
+                        throw new IOException("Unexpected end of content");
+                    }
                     fos.write(data, 0, len);
+                    digest.update(data, 0, len);
+                    if (parts != null) {
+                        parts.update(data, 0, len);
+                    }
+                    contentSpooled(len);
                     tobeRead -= len;
                 }
             } else {
                 int len = 0;
                 while ((len = in.read(data)) >= 0) {
                     fos.write(data, 0, len);
+                    digest.update(data, 0, len);
+                    if (parts != null) {
+                        parts.update(data, 0, len);
+                    }
+                    contentSpooled(len);
                 }
             }
             fos.flush();
+            if (SYNC) {
+                fos.getFD().sync();
+            }
             fos.close();
             fos = null;
+            byte[] md5 = digest.digest();
+            _contentMd5 = Base64.encodeBytes(md5);
             _size = _file.length();
+            if ((parts != null) && (_size >= S3MultipartUpload.THRESHOLD)) {
+                _etag = parts.getETag();
+            } else {
+                _etag = "\"" + Util.toHex(md5) + "\"";
+            }
+            // the upload can't complete before its journal is written
+            writeJournal();
+            spoolDone(_size, null);
             return _size;
+        } catch (IOException ex) {
+            spoolDone(_spooledLength, ex);
+            throw ex;
         } finally {
             if (fos != null) {
                 try {
@@ -145,10 +327,170 @@ public class S3UploadImpl implements S3UploadManager.Upload {
         }
     }
 
-    public void asynchronousUpload(ObjectPUT ope, String contentType, S3Log log) {
-        _task = new UploadTask(this, ope, contentType, log);
-        Thread t = new Thread(_task);
-        t.start();
+    /**
+     * Resumes an upload interrupted by a restart, whose content has
+     * been fully copied in the temporary file.
+     */
+    void recover(File file, long size) {
+        _file = file;
+        spoolDone(size, null);
+    }
+
+    /**
+     * Resumes an upload described by its journal
+     */
+    void recover(File file, Properties journal) {
+        _file = file;
+        _contentType = journal.getProperty("contentType");
+        _contentMd5 = journal.getProperty("md5");
+        _etag = journal.getProperty("etag");
+        _partSize = Long.parseLong(journal.getProperty("partSize", String
+                .valueOf(_partSize)));
+        _attempts = Integer.parseInt(journal.getProperty("attempts", "0"));
+        _error = journal.getProperty("error");
+        _journaled = true;
+        spoolDone(Long.parseLong(journal.getProperty("size")), null);
+        _lastModified = new Date(file.lastModified());
+    }
+
+    private synchronized void contentSpooled(int count) {
+        _spooledLength += count;
+        notifyAll();
+    }
+
+    private synchronized void spoolDone(long size, IOException error) {
+        _lastModified = new Date();
+        _size = size;
+        _spooledLength = size;
+        _spooled = (error == null);
+        _spoolError = error;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the temporary file to contain some content
+     * @param length the length we are interested in
+     * @return the length of the temporary file, which is at least the
+     *  given length unless the whole content has been written
+     * @throws IOException if the content could not be written
+     */
+    synchronized long waitForContent(long length) throws IOException {
+        while (!_spooled && (_spoolError == null)
+                && (_spooledLength < length)) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted");
+            }
+        }
+        if (_spoolError != null) {
+            throw _spoolError;
+        }
+        return _spooledLength;
+    }
+
+    /**
+     * @return true if the whole content is in the temporary file
+     */
+    synchronized boolean isSpooled() {
+        return _spooled;
+    }
+
+    /**
+     * @return true if the reads of the file can be served from the
+     *         temporary file
+     */
+    synchronized boolean isReadable() {
+        // a failed upload keeps its temporary file until it is retried
+        return _spooled && (_file != null) && !_closed;
+    }
+
+    /**
+     * @return the length of the content received so far
+     */
+    synchronized long getSpooledLength() {
+        return _spooledLength;
+    }
+
+    synchronized Date getLastModified() {
+        return _lastModified;
+    }
+
+    String getContentType() {
+        return (_contentType != null) ? _contentType : MimeTypes
+                .ext2mimeType(_name.getExt());
+    }
+
+    /**
+     * @return the ETag the object will have, null if unknown
+     */
+    synchronized String getETag() {
+        return _spooled ? _etag : null;
+    }
+
+    /**
+     * @return what the metadata of the object will be once uploaded
+     */
+    ObjectMetadata getMetadata() {
+        return new ObjectMetadata(true, false, getSize(), getLastModified(),
+                getContentType(), getETag());
+    }
+
+    /**
+     * Reads the content from the temporary file
+     * @param start the first byte to read
+     * @param end the last byte to read (included), -1 for the end
+     * @return the content, null if the temporary file can't be read
+     */
+    InputStream openContent(long start, long end) {
+        File file;
+        synchronized (this) {
+            if (!isReadable()) {
+                return null;
+            }
+            file = _file;
+            if (end < 0) {
+                end = _size - 1;
+            }
+        }
+        try {
+            return new FileRangeInputStream(file, start, end);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Prepares the upload of the content of the temporary file. The upload
+     * may start before the whole content is in the file.
+     * @return the task sending the file, to be run by the upload scheduler
+     */
+    Runnable asynchronousUpload(ObjectPUT ope, String contentType, S3Log log) {
+        _contentType = contentType;
+        _task = new UploadTask(this, ope, contentType, null, log);
+        return _task;
+    }
+
+    /**
+     * Prepares a new attempt to send the temporary file
+     */
+    Runnable retryUpload(ObjectPUT ope, S3Log log) {
+        return asynchronousUpload(ope, _contentType, log);
+    }
+
+    /**
+     * Streams the content to S3, in the calling thread.
+     * @throws IOException if the upload has failed
+     */
+    void streamingUpload(ObjectPUT ope, InputStream content,
+            String contentType, long contentLength, S3Log log)
+            throws IOException {
+        _size = contentLength;
+        _task = new UploadTask(this, ope, contentType, content, log);
+        _task.run();
+        if (_task.getUploadState() != STATE_FINISHED) {
+            throw new IOException("Can't PUT:" + _name.getResourceKey());
+        }
     }
 
     private class UploadTask extends Thread implements UploadNotification {
@@ -158,6 +500,9 @@ public class S3UploadImpl implements S3UploadManager.Upload {
 
         private final String _contentType;
 
+        /** the content to stream, null if the content is in the file */
+        private final InputStream _content;
+
         private final S3Log _log;
 
         private int _state = 0;
@@ -166,51 +511,140 @@ public class S3UploadImpl implements S3UploadManager.Upload {
 
         private boolean _abort = false;
 
+        private S3MultipartUpload _multipart = null;
+
+        /** true to keep the temporary file for a later resume */
+        private boolean _keepFile = false;
+
+        /** why the upload has failed, when it is kept to be retried */
+        private String _failure = null;
+
         UploadTask(S3UploadImpl upload, ObjectPUT ope, String contentType,
-                S3Log log) {
+                InputStream content, S3Log log) {
             _upload = upload;
             _ope = ope;
             _contentType = contentType;
+            _content = content;
             _log = log;
         }
 
         public void run() {
+            // false when the upload ends with an unexpected error
+            boolean handled = false;
             try {
                 _state = STATE_STARTED;
 
-                Md5 X = new Md5(_file);
-                String contentMd5 = Base64.encodeBytes(X.getDigest());
-                FileInputStream in = new FileInputStream(_file);
-
-                if (!_ope
-                        .execute(in, _contentType, contentMd5, getSize(), this)) {
-                    throw new IOException("Can't PUT:" + _name.getResourceKey());
+                if (_content == null) {
+                    long threshold = S3MultipartUpload.ENABLED
+                            ? S3MultipartUpload.THRESHOLD
+                            : Long.MAX_VALUE;
+                    waitForContent(threshold);
+                    if (isSpooled() && (getSize() < threshold)
+                            && !S3MultipartUpload.getStateFile(_file).isFile()) {
+                        FileInputStream in = new FileInputStream(_file);
+                        if (!_ope.execute(in, _contentType, _contentMd5,
+                                getSize(), this)) {
+                            throw new IOException("Can't PUT:"
+                                    + _name.getResourceKey());
+                        }
+                    } else {
+                        multipartUpload();
+                    }
+                } else {
+                    // the Content-MD5 header can't be sent before the
+                    // content: we check the ETag (the MD5 of the object)
+                    // returned by S3 instead
+                    MessageDigest digest = Util.mkMd5Digest();
+                    InputStream in = new DigestInputStream(_content, digest);
+                    if (!_ope.execute(in, _contentType, null, getSize(), this)) {
+                        throw new IOException("Can't PUT:"
+                                + _name.getResourceKey());
+                    }
+                    String md5 = Util.toHex(digest.digest());
+                    String etag = _ope.getHeader("ETag");
+                    if ((etag == null)
+                            || !etag.replaceAll("\"", "").equalsIgnoreCase(md5)) {
+                        _manager.deleteCorruptedObject(_name);
+                        throw new IOException("Content corrupted, MD5:" + md5
+                                + ", ETag:" + etag);
+                    }
                 }
                 _state = STATE_FINISHED;
+                handled = true;
             } catch (IOException ex) {
                 _log.log("Can't upload content for:" + _name.getUri(), ex);
                 _state = STATE_ERROR;
+                synchronized (this) {
+                    // the journal keeps the upload to retry it
+                    if (!_abort && isJournaled()) {
+                        _keepFile = true;
+                        _failure = ex.getMessage();
+                    }
+                }
+                handled = true;
             } finally {
-                _upload.close();
-                _manager.uploadDone(_upload, _state);
+                // a HEAD request may have been done during the upload
+                _cache.delete(_name.getResourceKey());
+                // the temporary file answers the reads of the file as
+                // long as the upload is listed
+                if (!handled) {
+                    // the thread running the upload reports the failure
+                    _state = STATE_ERROR;
+                } else if (_keepFile) {
+                    _manager.uploadFailed(_upload, _failure);
+                } else {
+                    _manager.uploadDone(_upload, _state);
+                    _upload.close();
+                }
+            }
+        }
+
+        private void multipartUpload() throws IOException {
+            S3MultipartUpload multipart = new S3MultipartUpload(_manager
+                    .getRepository(), _upload, _contentType, this, _log);
+            synchronized (this) {
+                _multipart = multipart;
+                if (_abort) {
+                    multipart.abort();
+                    throw new IOException("Upload aborted:" + _name.getUri());
+                }
+            }
+            try {
+                multipart.upload();
+            } catch (IOException ex) {
+                synchronized (this) {
+                    // when the upload is retried, the parts already sent
+                    // are not sent again
+                    if (!isSpooled() && !_abort) {
+                        multipart.abort();
+                    }
+                }
+                throw ex;
             }
         }
 
-        public boolean ntfUploaded(int count) {
+        public synchronized boolean ntfUploaded(int count) {
             _uploaded += count;
             _cache.delete(_name.getResourceKey());
             return !_abort;
         }
 
         public void abort() {
-            _abort = true;
+            S3MultipartUpload multipart;
+            synchronized (this) {
+                _abort = true;
+                multipart = _multipart;
+            }
+            if (multipart != null) {
+                multipart.abort();
+            }
         }
 
         int getUploadState() {
             return _state;
         }
 
-        long getUploaded() {
+        synchronized long getUploaded() {
             return _uploaded;
         }
     }
@@ -19,12 +19,18 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import org.carion.s3.S3UploadManager;
 import org.carion.s3.S3UrlName;
 import org.carion.s3.operations.ObjectPUT;
+import org.carion.s3.util.Util;
 
 public class S3UploadManagerImpl implements S3UploadManager {
     private final S3RepositoryImpl _repository;
@@ -33,25 +39,182 @@ public class S3UploadManagerImpl implements S3UploadManager {
 
     private final List _uploads = new ArrayList();
 
+    private final S3UploadScheduler _scheduler;
+
+    /**
+     * Set the system property s3dav.upload.streaming to false to always
+     * copy the content in a temporary file before sending it to S3.
+     */
+    private final static boolean STREAMING = !"false".equals(System
+            .getProperty("s3dav.upload.streaming"));
+
+    /**
+     * A failed upload is retried s3dav.upload.retries times (5), after
+     * s3dav.upload.retryDelay seconds (30), doubled at each attempt. It is
+     * then retried at the next start of s3DAV.
+     */
+    private final static int RETRIES = Integer.getInteger(
+            "s3dav.upload.retries", 5).intValue();
+
+    private final static long RETRY_DELAY = Integer.getInteger(
+            "s3dav.upload.retryDelay", 30).intValue() * 1000L;
+
+    private final static long MAX_RETRY_DELAY = 60 * 60 * 1000;
+
+    private final Timer _retries = new Timer(true);
+
     public S3UploadManagerImpl(S3RepositoryImpl repository, File baseDirectory) {
         _repository = repository;
         _baseDirectory = baseDirectory;
+        _scheduler = new S3UploadScheduler(this, repository.getLog());
     }
 
     public void upload(S3UrlName name, InputStream content, String contentType,
-            long length) throws IOException {
+            long length, String client) throws IOException {
         ObjectPUT ope = _repository.mkObjectPUT(name.getResourceKey());
+        // a previous upload of the file must not overwrite this one
+        abortUploads(name);
 
-        S3UploadImpl upload = new S3UploadImpl(name, _baseDirectory,
-                _repository.getS3Cache(), this);
+        S3UploadImpl upload = new S3UploadImpl(name, _repository.getS3Cache(),
+                this);
 
-        length = upload.loadContent(content, length);
-        System.out.println("@@@ upload size:" + length);
+        if (STREAMING && (length > 0)
+                && (!S3MultipartUpload.ENABLED
+                        || (length < S3MultipartUpload.THRESHOLD))) {
+            // the length is known: the content goes directly to S3
+            synchronized (_uploads) {
+                _uploads.add(upload);
+            }
+            try {
+                upload.streamingUpload(ope, content, contentType, length,
+                        _repository.getLog());
+            } finally {
+                synchronized (_uploads) {
+                    _uploads.remove(upload);
+                }
+            }
+            return;
+        }
 
         synchronized (_uploads) {
             _uploads.add(upload);
         }
-        upload.asynchronousUpload(ope, contentType, _repository.getLog());
+        Runnable task = upload.asynchronousUpload(ope, contentType,
+                _repository.getLog());
+        // the parts of a large file are sent as soon as they are received:
+        // the upload goes at the pace of the client, in its own thread
+        // rather than holding a thread of the scheduler
+        boolean receiving = S3MultipartUpload.ENABLED
+                && (length >= S3MultipartUpload.THRESHOLD);
+        if (receiving) {
+            _scheduler.start(upload, task);
+        }
+        try {
+            upload.loadContent(content, length, _baseDirectory);
+        } catch (IOException ex) {
+            synchronized (_uploads) {
+                _uploads.remove(upload);
+            }
+            throw ex;
+        }
+        if (!receiving) {
+            // the whole content is in the temporary file
+            _scheduler.schedule(upload, task, client, false);
+        }
+    }
+
+    /**
+     * Resumes the uploads interrupted by the last shutdown (or crash), and
+     * retries the ones which had failed: they are described by their
+     * journal. The uploads whose content was not fully received (no
+     * journal) are aborted.
+     */
+    public void recover() {
+        File[] files = _baseDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // when a file has been uploaded twice, the last upload wins
+        Arrays.sort(files, new Comparator() {
+            public int compare(java.lang.Object o1, java.lang.Object o2) {
+                long t1 = ((File) o1).lastModified();
+                long t2 = ((File) o2).lastModified();
+                return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length; i++) {
+            String fileName = files[i].getName();
+            try {
+                if (fileName.endsWith(S3UploadImpl.JOURNAL_SUFFIX)) {
+                    recover(files[i]);
+                } else if (fileName.endsWith(S3MultipartUpload.STATE_SUFFIX)) {
+                    abortIncompleteUpload(files[i]);
+                }
+            } catch (Exception ex) {
+                _repository.getLog().log("Can't resume upload:" + files[i],
+                        ex);
+            }
+        }
+        // the temporary files left by the uploads not fully received
+        files = _baseDirectory.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].getName().endsWith(".mem")
+                    && !S3UploadImpl.getJournalFile(files[i]).isFile()) {
+                files[i].delete();
+            }
+        }
+    }
+
+    private void recover(File journalFile) throws IOException {
+        Properties journal = Util.loadProperties(journalFile);
+        S3UrlName name = new S3UrlNameImpl(journal.getProperty("uri"), false);
+        File file = new File(_baseDirectory, journal.getProperty("file"));
+        if (file.length() != Long.parseLong(journal.getProperty("size"))) {
+            _repository.getLog().log("Lost upload:" + name.getUri());
+            journalFile.delete();
+            return;
+        }
+
+        _repository.getLog().log("Resuming upload:" + name.getUri());
+        abortUploads(name);
+        S3UploadImpl upload = new S3UploadImpl(name, _repository.getS3Cache(),
+                this);
+        upload.recover(file, journal);
+        synchronized (_uploads) {
+            _uploads.add(upload);
+        }
+        _scheduler.schedule(upload, upload.retryUpload(_repository
+                .mkObjectPUT(name.getResourceKey()), _repository.getLog()),
+                null, true);
+    }
+
+    /**
+     * Aborts a multipart upload whose content was not fully received
+     */
+    private void abortIncompleteUpload(File stateFile) throws IOException {
+        Properties state = S3MultipartUpload.loadState(stateFile);
+        File file = new File(_baseDirectory, state.getProperty("file"));
+        if (S3UploadImpl.getJournalFile(file).isFile()) {
+            // resumed with its journal
+            return;
+        }
+        String uri = state.getProperty("uri");
+        String uploadId = state.getProperty("uploadId");
+        _repository.getLog().log("Aborting upload:" + uri);
+        if (uploadId != null) {
+            S3MultipartUpload.abortUpload(_repository, new S3UrlNameImpl(uri,
+                    false).getResourceKey(), uploadId, _repository.getLog());
+        }
+        stateFile.delete();
+        file.delete();
+    }
+
+    S3RepositoryImpl getRepository() {
+        return _repository;
+    }
+
+    public S3UploadScheduler getScheduler() {
+        return _scheduler;
     }
 
     public List getCurrentUploads() {
@@ -66,7 +229,7 @@ public class S3UploadManagerImpl implements S3UploadManager {
                 S3UrlName parent = upload.getName().getParent();
                 if (parent != null) {
                     if (parent.getUri().equals(directory.getUri())) {
-                        result.add(upload.getName());
+                        result.add(new UploadResource(upload));
                     }
                 }
             }
@@ -74,10 +237,64 @@ public class S3UploadManagerImpl implements S3UploadManager {
         return result;
     }
 
+    /**
+     * @param key the resource key of an object
+     * @return the last upload of the object if its content can be read
+     *         from its temporary file, null otherwise
+     */
+    S3UploadImpl getPendingUpload(String key) {
+        synchronized (_uploads) {
+            for (int i = _uploads.size() - 1; i >= 0; i--) {
+                S3UploadImpl upload = (S3UploadImpl) _uploads.get(i);
+                if (upload.getName().getResourceKey().equals(key)) {
+                    return upload.isReadable() ? upload : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Aborts the uploads of an object which is deleted, or uploaded again
+     */
+    void abortUploads(S3UrlName name) {
+        List aborted = new ArrayList();
+        synchronized (_uploads) {
+            for (Iterator iter = _uploads.iterator(); iter.hasNext();) {
+                S3UploadImpl upload = (S3UploadImpl) iter.next();
+                if (upload.getName().isSameUri(name)) {
+                    iter.remove();
+                    aborted.add(upload);
+                }
+            }
+        }
+        for (Iterator iter = aborted.iterator(); iter.hasNext();) {
+            S3UploadImpl upload = (S3UploadImpl) iter.next();
+            _repository.getLog().log("Aborting upload:" + name.getUri());
+            upload.abort();
+        }
+    }
+
     public void shutdown() {
+        _retries.cancel();
         for (Iterator iter = _uploads.iterator(); iter.hasNext();) {
             S3UploadImpl upload = (S3UploadImpl) iter.next();
-            upload.abort();
+            // the uploads with a journal are resumed at the next start
+            if (!upload.isJournaled()) {
+                upload.abort();
+            }
+        }
+    }
+
+    /**
+     * Removes an object whose content doesn't match what we have sent
+     */
+    void deleteCorruptedObject(S3UrlName name) {
+        try {
+            _repository.mkObjectDELETE(name.getResourceKey()).execute();
+        } catch (IOException ex) {
+            _repository.getLog().log(
+                    "Can't delete corrupted object:" + name.getUri(), ex);
         }
     }
 
@@ -86,4 +303,42 @@ public class S3UploadManagerImpl implements S3UploadManager {
             _uploads.remove(upload);
         }
     }
+
+    /**
+     * An upload has failed: its temporary file and journal are kept, and
+     * it is retried later
+     */
+    void uploadFailed(final S3UploadImpl upload, String error) {
+        int attempts = upload.failed(error);
+        if (attempts > RETRIES) {
+            _repository.getLog().log(
+                    "Upload failed, retried at the next start:"
+                            + upload.getName().getUri());
+            return;
+        }
+        long delay = Math.min(RETRY_DELAY << Math.min(attempts - 1, 20),
+                MAX_RETRY_DELAY);
+        try {
+            _retries.schedule(new TimerTask() {
+                public void run() {
+                    retry(upload);
+                }
+            }, delay);
+        } catch (IllegalStateException ex) {
+            // shutdown
+        }
+    }
+
+    private void retry(S3UploadImpl upload) {
+        synchronized (_uploads) {
+            // aborted (deleted or uploaded again) meanwhile
+            if (!_uploads.contains(upload) || !upload.isReadable()) {
+                return;
+            }
+        }
+        _repository.getLog().log("Retrying upload:" + upload.getName().getUri());
+        _scheduler.schedule(upload, upload.retryUpload(_repository
+                .mkObjectPUT(upload.getName().getResourceKey()), _repository
+                .getLog()), null, true);
+    }
 }
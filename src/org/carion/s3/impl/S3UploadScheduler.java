@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.carion.s3.S3Log;
+
+/**
+ * Runs the uploads whose content has been copied in a temporary file,
+ * instead of starting a thread per upload: a slow client doesn't hold a
+ * thread while its file is received.
+ * At most s3dav.upload.threads (8) uploads run at the same time, and at most
+ * s3dav.upload.bucketThreads (half of them) for the same bucket, so that a
+ * large copy into a bucket doesn't hold the uploads to the other buckets.
+ *
+ * The uploads waiting for a thread are queued by client, and the clients are
+ * served in turn: a client copying thousands of files doesn't delay the
+ * files saved by another client by more than one upload. Within this order,
+ * the small files (less than s3dav.upload.smallFile KB, 1024) whose content
+ * has been received go first, and the uploads resumed after a restart (or
+ * retried after a failure) go last.
+ *
+ * An upload failing with an unexpected error is logged and retried, like an
+ * upload failing to reach S3.
+ *
+ * @author pcarion
+ */
+public class S3UploadScheduler {
+    /** small files whose whole content has been received */
+    public final static int PRIORITY_HIGH = 0;
+
+    public final static int PRIORITY_NORMAL = 1;
+
+    /** uploads resumed after a restart of s3DAV, or retried */
+    public final static int PRIORITY_LOW = 2;
+
+    private final static long IDLE_TIMEOUT = 60 * 1000;
+
+    private final static int THREADS = Math.max(1, Integer.getInteger(
+            "s3dav.upload.threads", 8).intValue());
+
+    private final static int BUCKET_THREADS = Math.max(1, Integer.getInteger(
+            "s3dav.upload.bucketThreads", Math.max(1, THREADS / 2))
+            .intValue());
+
+    private final static long SMALL_FILE = Integer.getInteger(
+            "s3dav.upload.smallFile", 1024).intValue() * 1024L;
+
+    private final S3UploadManagerImpl _manager;
+
+    private final S3Log _log;
+
+    /**
+     * client -> LinkedList of the waiting entries (in arrival order). The
+     * client served last is moved at the end of the map.
+     */
+    private final LinkedHashMap _queues = new LinkedHashMap();
+
+    /** bucket -> number of running uploads (int[1]) */
+    private final Map _running = new HashMap();
+
+    private int _queued = 0;
+
+    private int _runningCount = 0;
+
+    private int _threads = 0;
+
+    private int _idleThreads = 0;
+
+    private int _threadCount = 0;
+
+    private long _completed = 0;
+
+    /** the time spent in the queue by the uploads started, in ms */
+    private long _totalWait = 0;
+
+    S3UploadScheduler(S3UploadManagerImpl manager, S3Log log) {
+        _manager = manager;
+        _log = log;
+    }
+
+    /**
+     * Queues an upload
+     * @param task runs the upload
+     * @param client the address of the client sending the file, null for an
+     *  upload resumed after a restart or retried
+     */
+    synchronized void schedule(S3UploadImpl upload, Runnable task,
+            String client, boolean resumed) {
+        Entry entry = new Entry(upload, task, (client == null) ? "(retries)"
+                : client, resumed);
+        LinkedList queue = (LinkedList) _queues.get(entry._client);
+        if (queue == null) {
+            queue = new LinkedList();
+            _queues.put(entry._client, queue);
+        }
+        queue.addLast(entry);
+        _queued++;
+        if ((_idleThreads == 0) && (_threads < THREADS)) {
+            _threads++;
+            new Worker("s3-upload-" + (++_threadCount)).start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Runs an upload at once, in a thread of its own, outside of the limits
+     * of the scheduler: for the uploads which go at the pace of the client
+     */
+    void start(final S3UploadImpl upload, final Runnable task) {
+        Thread thread = new Thread("s3-upload-"
+                + upload.getName().getResourceKey()) {
+            public void run() {
+                runTask(upload, task);
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void runTask(S3UploadImpl upload, Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable ex) {
+            // the thread must survive a failing upload
+            _log.log("Upload failed:" + upload.getName().getUri(), ex);
+            if (upload.isJournaled()) {
+                _manager.uploadFailed(upload, String.valueOf(ex));
+            }
+            // otherwise, the upload is resumed from its journal at the next
+            // start, once its content is received
+        }
+    }
+
+    /**
+     * Removes an upload which has not started yet
+     * @return true if the upload was waiting in the queue
+     */
+    synchronized boolean cancel(S3UploadImpl upload) {
+        for (Iterator iter = _queues.values().iterator(); iter.hasNext();) {
+            LinkedList queue = (LinkedList) iter.next();
+            for (Iterator it = queue.iterator(); it.hasNext();) {
+                Entry entry = (Entry) it.next();
+                if (entry._upload == upload) {
+                    it.remove();
+                    _queued--;
+                    if (queue.isEmpty()) {
+                        iter.remove();
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the next upload to run: the entry with the best priority whose
+     *  bucket has a free thread, the clients being served in turn. null if
+     *  none can run.
+     */
+    private Entry next() {
+        Entry best = null;
+        int bestPriority = Integer.MAX_VALUE;
+        LinkedList bestQueue = null;
+        for (Iterator iter = _queues.values().iterator(); iter.hasNext()
+                && (bestPriority != PRIORITY_HIGH);) {
+            LinkedList queue = (LinkedList) iter.next();
+            for (Iterator it = queue.iterator(); it.hasNext();) {
+                Entry entry = (Entry) it.next();
+                if (getRunning(entry._bucket) >= BUCKET_THREADS) {
+                    continue;
+                }
+                int priority = entry.getPriority();
+                if (priority < bestPriority) {
+                    best = entry;
+                    bestPriority = priority;
+                    bestQueue = queue;
+                    if (priority == PRIORITY_HIGH) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (best != null) {
+            bestQueue.remove(best);
+            _queued--;
+            // the client goes after the others
+            _queues.remove(best._client);
+            if (!bestQueue.isEmpty()) {
+                _queues.put(best._client, bestQueue);
+            }
+        }
+        return best;
+    }
+
+    private int getRunning(String bucket) {
+        int[] count = (int[]) _running.get(bucket);
+        return (count == null) ? 0 : count[0];
+    }
+
+    private synchronized Entry nextEntry() {
+        long limit = System.currentTimeMillis() + IDLE_TIMEOUT;
+        Entry entry;
+        while ((entry = next()) == null) {
+            long wait = limit - System.currentTimeMillis();
+            if ((wait <= 0) && (_queued == 0)) {
+                _threads--;
+                return null;
+            }
+            _idleThreads++;
+            try {
+                wait(Math.max(wait, 1000));
+            } catch (InterruptedException ex) {
+                _threads--;
+                return null;
+            } finally {
+                _idleThreads--;
+            }
+        }
+        int[] count = (int[]) _running.get(entry._bucket);
+        if (count == null) {
+            count = new int[1];
+            _running.put(entry._bucket, count);
+        }
+        count[0]++;
+        _runningCount++;
+        _totalWait += System.currentTimeMillis() - entry._queuedAt;
+        return entry;
+    }
+
+    private synchronized void entryDone(Entry entry) {
+        int[] count = (int[]) _running.get(entry._bucket);
+        if (--count[0] == 0) {
+            _running.remove(entry._bucket);
+        }
+        _runningCount--;
+        _completed++;
+        // an upload of this bucket may now start
+        notifyAll();
+    }
+
+    public int getMaxThreads() {
+        return THREADS;
+    }
+
+    public int getMaxBucketThreads() {
+        return BUCKET_THREADS;
+    }
+
+    public synchronized int getThreads() {
+        return _threads;
+    }
+
+    public synchronized int getRunning() {
+        return _runningCount;
+    }
+
+    public synchronized int getQueued() {
+        return _queued;
+    }
+
+    public synchronized long getCompleted() {
+        return _completed;
+    }
+
+    /**
+     * @return the average time spent in the queue by the uploads, in ms
+     */
+    public synchronized long getAverageWait() {
+        long started = _completed + _runningCount;
+        return (started == 0) ? 0 : _totalWait / started;
+    }
+
+    /**
+     * @return the number of waiting uploads, by priority
+     */
+    public synchronized int[] getQueuedByPriority() {
+        int[] result = new int[3];
+        for (Iterator iter = _queues.values().iterator(); iter.hasNext();) {
+            LinkedList queue = (LinkedList) iter.next();
+            for (Iterator it = queue.iterator(); it.hasNext();) {
+                result[((Entry) it.next()).getPriority()]++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return bucket -> int[] { waiting uploads, running uploads }
+     */
+    public synchronized Map getBuckets() {
+        Map result = new TreeMap();
+        for (Iterator iter = _queues.values().iterator(); iter.hasNext();) {
+            LinkedList queue = (LinkedList) iter.next();
+            for (Iterator it = queue.iterator(); it.hasNext();) {
+                getCounts(result, ((Entry) it.next())._bucket)[0]++;
+            }
+        }
+        for (Iterator iter = _running.keySet().iterator(); iter.hasNext();) {
+            String bucket = (String) iter.next();
+            getCounts(result, bucket)[1] = getRunning(bucket);
+        }
+        return result;
+    }
+
+    private int[] getCounts(Map counts, String bucket) {
+        int[] result = (int[]) counts.get(bucket);
+        if (result == null) {
+            result = new int[2];
+            counts.put(bucket, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return client -> number of waiting uploads (Integer), in the order
+     *  the clients will be served
+     */
+    public synchronized Map getClients() {
+        Map result = new LinkedHashMap();
+        for (Iterator iter = _queues.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            result.put(entry.getKey(), Integer.valueOf(((LinkedList) entry
+                    .getValue()).size()));
+        }
+        return result;
+    }
+
+    private static class Entry {
+        private final S3UploadImpl _upload;
+
+        private final Runnable _task;
+
+        private final String _client;
+
+        private final String _bucket;
+
+        private final boolean _resumed;
+
+        private final long _queuedAt = System.currentTimeMillis();
+
+        Entry(S3UploadImpl upload, Runnable task, String client,
+                boolean resumed) {
+            _upload = upload;
+            _task = task;
+            _client = client;
+            _bucket = upload.getName().getBucket();
+            _resumed = resumed;
+        }
+
+        /**
+         * The priority changes once the whole content has been received
+         */
+        int getPriority() {
+            if (_resumed) {
+                return PRIORITY_LOW;
+            }
+            if (_upload.isSpooled() && (_upload.getSize() < SMALL_FILE)) {
+                return PRIORITY_HIGH;
+            }
+            return PRIORITY_NORMAL;
+        }
+    }
+
+    private class Worker extends Thread {
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        public void run() {
+            Entry entry;
+            while ((entry = nextEntry()) != null) {
+                try {
+                    runTask(entry._upload, entry._task);
+                } finally {
+                    entryDone(entry);
+                }
+            }
+        }
+    }
+}
@@ -220,7 +220,7 @@ public class S3UrlNameImpl implements S3UrlName {
         return sb.toString();
     }
 
-    String decode(String s) {
+    static String decode(String s) {
         if (s.length() == 0) {
             return "";
         }
@@ -6,50 +6,66 @@ import java.util.Date;
 
 import org.carion.s3.S3Resource;
 import org.carion.s3.S3UrlName;
-import org.carion.s3.util.MimeTypes;
 
+/**
+ * A file being uploaded: once the whole content has been received, the
+ * content is read from the local copy of the file.
+ */
 public class UploadResource implements S3Resource {
-    private final S3UrlName _href;
+    private final S3UploadImpl _upload;
 
-    public UploadResource(S3UrlName href) {
-        _href = href;
+    UploadResource(S3UploadImpl upload) {
+        _upload = upload;
     }
 
     public InputStream getContent() throws IOException {
-        throw new IOException("Invalid call");
+        return getContent(0, -1);
+    }
+
+    public InputStream getContent(long start, long end) throws IOException {
+        InputStream content = _upload.openContent(start, end);
+        if (content == null) {
+            throw new IOException("Content not available:"
+                    + _upload.getName().getUri());
+        }
+        return content;
+    }
+
+    public String getETag() {
+        return _upload.getETag();
     }
 
     public String getContentType() {
-        return MimeTypes.ext2mimeType(_href.getExt());
+        return _upload.getContentType();
     }
 
     public Date getCreationDate() throws IOException {
-        return new Date();
+        return _upload.getLastModified();
     }
 
     public Date getLastModified() throws IOException {
-        return new Date();
+        return _upload.getLastModified();
     }
 
     public long getLength() throws IOException {
-        return 1;
+        // the length may not be known until the whole content is received
+        return Math.max(_upload.getSize(), _upload.getSpooledLength());
     }
 
     public String getName() {
-        return _href.getName();
+        return _upload.getName().getName();
     }
 
     public S3UrlName getUrl() {
-        return _href;
+        return _upload.getName();
     }
 
     public void remove() throws IOException {
-        // TODO Auto-generated method stub
-
+        _upload.abort();
     }
 
     public void setResourceContent(InputStream content, String contentType,
-            long length) throws IOException {
+            long length, String client) throws IOException {
         throw new IOException("Invalid call");
     }
 }
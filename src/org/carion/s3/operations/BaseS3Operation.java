@@ -24,7 +24,10 @@ import java.util.Map;
 
 import org.carion.s3.Credential;
 import org.carion.s3.S3Log;
+import org.carion.s3.S3UnavailableException;
+import org.carion.s3.util.BaseXmlParser;
 import org.carion.s3.util.Util;
+import org.xml.sax.SAXException;
 
 abstract public class BaseS3Operation implements S3Processing {
     private final Credential _credential;
@@ -62,7 +65,12 @@ abstract public class BaseS3Operation implements S3Processing {
     }
 
     public void amzException(Exception ex) {
-        _log.log("ERROR: exception", ex);
+        if (ex instanceof S3UnavailableException) {
+            // not sent: no need for the stack trace
+            _log.log("ERROR: " + ex.getMessage());
+        } else {
+            _log.log("ERROR: exception", ex);
+        }
     }
 
     public void amzHeader(String name, String value) {
@@ -132,16 +140,20 @@ abstract public class BaseS3Operation implements S3Processing {
     }
 
     /**
-     * Get the body as a string
-     * We can then close the InputStream
-     * @return
+     * Parse the XML body as it is read from S3: the body is never fully
+     * loaded in memory. The InputStream is closed once parsed.
+     * @param handler the SAX handler processing the response
      * @throws IOException
      */
-    protected String getXmldata() throws IOException {
-        String xmlData = Util.readInputStreamAsString(_inputStream);
-        _log.log("xmlData is:(" + xmlData + ")");
-        _inputStream.close();
-        return xmlData;
+    protected void parseXmlResponse(BaseXmlParser handler) throws IOException {
+        try {
+            S3ResponseParser parser = new S3ResponseParser(_inputStream);
+            parser.parse(handler);
+        } catch (SAXException ex) {
+            throw new IOException("Can't parse response:" + ex);
+        } finally {
+            _inputStream.close();
+        }
     }
 
 }
@@ -22,6 +22,7 @@ import java.util.List;
 
 import org.carion.s3.Credential;
 import org.carion.s3.S3Log;
+import org.carion.s3.S3UnavailableException;
 import org.carion.s3.impl.Object;
 import org.carion.s3.util.BaseXmlParser;
 import org.carion.s3.util.Util;
@@ -34,6 +35,10 @@ import org.carion.s3.util.Util;
  * multiple requests. You can paginate through the list using the
  * marker parameter as described below.
  *
+ * When a delimiter is set, the keys containing the delimiter after the
+ * prefix are rolled up into 'common prefixes': this is how we list the
+ * direct children of a 'directory' without enumerating the whole subtree.
+ *
  * @author pcarion
  *
  */
@@ -42,48 +47,135 @@ public class BucketGET extends BaseS3Operation {
 
     private String _lastKey;
 
+    private String _nextMarker;
+
+    private String _delimiter = null;
+
+    private int _maxKeys = -1;
+
     private final List _objects = new ArrayList();
 
+    private final List _commonPrefixes = new ArrayList();
+
     public BucketGET(String bucket, Credential credential, S3Log log) {
         super(credential, log);
         _bucket = bucket;
     }
 
     /**
-     * Returns the list of buckets
-     * @return list of buckets (Bucket)
+     * Set the delimiter used to roll up the keys
+     * @param delimiter the delimiter (not url encoded), usually "/"
+     */
+    public void setDelimiter(String delimiter) {
+        _delimiter = delimiter;
+    }
+
+    /**
+     * Set the maximum number of keys returned per request (page)
+     * @param maxKeys
+     */
+    public void setMaxKeys(int maxKeys) {
+        _maxKeys = maxKeys;
+    }
+
+    /**
+     * Returns the objects found during the last execution
+     * @return list of objects (Object)
+     */
+    public List getObjects() {
+        return _objects;
+    }
+
+    /**
+     * Returns the common prefixes found during the last execution. This list
+     * is always empty if no delimiter has been set.
+     * @return list of prefixes (String)
+     */
+    public List getCommonPrefixes() {
+        return _commonPrefixes;
+    }
+
+    /**
+     * Returns the list of objects whose key starts with the prefix
+     * @param prefix the prefix, already url encoded
+     * @return list of objects (Object)
      * @throws IOException
      */
     public List execute(String prefix) throws IOException {
         for (String marker = null;;) {
-            S3Request X = S3Request.mkGetRequest("/" + _bucket, _log);
-            X.setQueryString("prefix="
-                    + prefix
-                    + ((marker == null) ? "" : "&marker="
-                            + Util.urlEncode(marker)));
-            if (!process(X, false)) {
-                throw new IOException("Can't get list fo files");
-            }
-            String xmlData = getXmldata();
-            S3ResponseParser parser = new S3ResponseParser(xmlData);
-            try {
-                Handler handler = new Handler();
-                parser.parse(handler);
-                if (handler.isTruncated()) {
-                    marker = _lastKey;
-                } else {
-                    break;
-                }
-            } catch (Exception ex) {
-                throw new IOException("Can't parse buckets:" + ex);
+            if (!executePage(prefix, marker)) {
+                break;
             }
+            marker = getNextMarker();
         }
         return _objects;
     }
 
-    void addContent(String key, Date lastModified, int size) {
+    /**
+     * Get one page of the listing. The objects (and common prefixes) of the
+     * page are added to the lists of this operation.
+     * The XML response is parsed as it is read from S3.
+     * @param prefix the prefix, already url encoded
+     * @param marker the marker where to start the listing (null for the
+     *  first page)
+     * @return true if there are more pages to read
+     * @throws IOException
+     */
+    public boolean executePage(String prefix, String marker)
+            throws IOException {
+        S3Request X = S3Request.mkGetRequest("/" + _bucket, _log);
+        X.setQueryString(mkQueryString(prefix, marker));
+        if (!process(X, false)) {
+            int code = getResponseCode();
+            if ((code < 0) || (code >= 500)) {
+                throw new S3UnavailableException(
+                        "Can't get list of files: S3 can't be reached",
+                        S3CircuitBreaker.getInstance().getRetryAfter());
+            }
+            throw new IOException("Can't get list fo files");
+        }
+        _nextMarker = null;
+        Handler handler = new Handler();
+        parseXmlResponse(handler);
+        return handler.isTruncated();
+    }
+
+    /**
+     * @return the marker to use to get the page following the last page read
+     */
+    public String getNextMarker() {
+        // with a delimiter, the last item of the page may
+        // be a common prefix: S3 gives us the marker to use
+        return (_nextMarker != null) ? _nextMarker : _lastKey;
+    }
+
+    private String mkQueryString(String prefix, String marker) {
+        StringBuffer sb = new StringBuffer();
+        sb.append("prefix=");
+        sb.append(prefix);
+        if (marker != null) {
+            sb.append("&marker=");
+            sb.append(Util.urlEncode(marker));
+        }
+        if (_delimiter != null) {
+            sb.append("&delimiter=");
+            sb.append(Util.urlEncode(_delimiter));
+        }
+        if (_maxKeys > 0) {
+            sb.append("&max-keys=");
+            sb.append(_maxKeys);
+        }
+        return sb.toString();
+    }
+
+    void addCommonPrefix(String prefix) {
+        _commonPrefixes.add(prefix);
+        _log.log("prefix=(" + prefix + ")");
+    }
+
+    void addContent(String key, Date lastModified, long size, String etag) {
         _lastKey = key;
-        _objects.add(new Object(key, lastModified, size));
+        _objects.add(new Object(key, lastModified, size, etag));
         _log.log("key=(" + key + ")");
     }
 
@@ -102,7 +194,9 @@ public class BucketGET extends BaseS3Operation {
 
         private Date _currentLastModified;
 
-        private int _currentSize;
+        private long _currentSize;
+
+        private String _currentETag;
 
         /**
          * Response Body
@@ -126,6 +220,10 @@ public class BucketGET extends BaseS3Operation {
          *  StorageClass: This value will always read STANDARD in this release.
          *  Owner: This indicates who put the object into Amazon S3.
          *   The owner is provided only if you are the owner, or if you own the bucket.
+         *
+         * When a delimiter is used:
+         *  NextMarker: the marker to use to get the next page
+         *  CommonPrefixes.Prefix: the keys rolled up by the delimiter
          */
         protected void processData(String elementName, String fullName,
                 String data) {
@@ -135,6 +233,10 @@ public class BucketGET extends BaseS3Operation {
                 _prefix = data;
             } else if (fullName.endsWith("ListBucketResult.Marker")) {
                 _marker = data;
+            } else if (fullName.endsWith("ListBucketResult.NextMarker")) {
+                _nextMarker = data;
+            } else if (fullName.endsWith("CommonPrefixes.Prefix")) {
+                addCommonPrefix(data);
             } else if (fullName.endsWith("ListBucketResult.MaxKeys")) {
                 _maxKeys = Integer.parseInt(data);
             } else if (fullName.endsWith("ListBucketResult.IsTruncated")) {
@@ -144,13 +246,16 @@ public class BucketGET extends BaseS3Operation {
             } else if (fullName.endsWith("Contents.LastModified")) {
                 _currentLastModified = Util.parseIsoDate(data);
             } else if (fullName.endsWith("Contents.Size")) {
-                _currentSize = Integer.parseInt(data);
+                _currentSize = Long.parseLong(data);
+            } else if (fullName.endsWith("Contents.ETag")) {
+                _currentETag = data;
             }
         }
 
         protected void processEndElement(String elementName, String fullName) {
             if (elementName.equals("Contents")) {
-                addContent(_currentKey, _currentLastModified, _currentSize);
+                addContent(_currentKey, _currentLastModified, _currentSize,
+                        _currentETag);
             }
         }
 
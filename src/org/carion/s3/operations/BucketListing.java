@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.carion.s3.Credential;
+import org.carion.s3.S3Log;
+import org.carion.s3.util.SingleFlight;
+import org.carion.s3.util.WorkerPool;
+
+/**
+ * Iterates over the objects of a bucket listing, one page at a time.
+ * Only two pages are kept in memory: the page being consumed and the next
+ * one, which is fetched in the background while the current page is
+ * processed.
+ * The pages are fetched in the background by a pool of threads shared by all
+ * the listings (s3dav.s3.listingThreads, 8): when all the threads are busy,
+ * a page is fetched by the listing itself when it is needed.
+ * The listings of the same folder running at the same time can share their
+ * pages (see SingleFlight).
+ *
+ * @author pcarion
+ */
+public class BucketListing {
+    private final static int THREADS = Math.max(1, Integer.getInteger(
+            "s3dav.s3.listingThreads", 8).intValue());
+
+    private final static WorkerPool _prefetches = new WorkerPool(
+            "s3-listing", THREADS, THREADS);
+
+    private final String _bucket;
+
+    private final String _prefix;
+
+    private final String _delimiter;
+
+    private final int _maxKeys;
+
+    private final Credential _credential;
+
+    private final S3Log _log;
+
+    private final SingleFlight _pages;
+
+    private List _page = null;
+
+    private int _index = 0;
+
+    private PageFetch _nextPage;
+
+    /**
+     * @param bucket
+     * @param prefix
+     *            the prefix, already url encoded
+     * @param delimiter
+     *            the delimiter (null for a full listing of the prefix)
+     * @param maxKeys
+     *            the number of keys per page
+     */
+    public BucketListing(String bucket, String prefix, String delimiter,
+            int maxKeys, Credential credential, S3Log log) {
+        this(bucket, prefix, delimiter, maxKeys, null, credential, log);
+    }
+
+    /**
+     * @param marker
+     *            the listing starts after this key (null to start at the
+     *            beginning)
+     */
+    public BucketListing(String bucket, String prefix, String delimiter,
+            int maxKeys, String marker, Credential credential, S3Log log) {
+        this(bucket, prefix, delimiter, maxKeys, marker, null, credential, log);
+    }
+
+    /**
+     * @param pages shares the pages with the identical listings running at
+     *            the same time (null if the pages are not shared)
+     */
+    public BucketListing(String bucket, String prefix, String delimiter,
+            int maxKeys, String marker, SingleFlight pages,
+            Credential credential, S3Log log) {
+        _bucket = bucket;
+        _prefix = prefix;
+        _delimiter = delimiter;
+        _maxKeys = maxKeys;
+        _credential = credential;
+        _log = log;
+        _pages = pages;
+        _nextPage = new PageFetch(marker);
+        _nextPage.start();
+    }
+
+    public boolean hasNext() throws IOException {
+        while ((_page == null) || (_index >= _page.size())) {
+            if (_nextPage == null) {
+                return false;
+            }
+            PageFetch fetch = _nextPage;
+            _page = fetch.getObjects();
+            _index = 0;
+            // we start the fetch of the next page before the current
+            // page is consumed
+            if (fetch.isTruncated()) {
+                _nextPage = new PageFetch(fetch.getNextMarker());
+                _nextPage.start();
+            } else {
+                _nextPage = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the next object of the listing (org.carion.s3.impl.Object)
+     */
+    public org.carion.s3.impl.Object next() throws IOException {
+        if (!hasNext()) {
+            throw new IOException("No more objects in listing");
+        }
+        return (org.carion.s3.impl.Object) _page.get(_index++);
+    }
+
+    /**
+     * A page of the listing
+     */
+    private static class Page {
+        private final List _objects;
+
+        private final boolean _truncated;
+
+        private final String _nextMarker;
+
+        Page(List objects, boolean truncated, String nextMarker) {
+            _objects = objects;
+            _truncated = truncated;
+            _nextMarker = nextMarker;
+        }
+    }
+
+    private class PageFetch implements Runnable {
+        private final String _marker;
+
+        /** true once a thread has started to fetch the page */
+        private boolean _started = false;
+
+        private boolean _done = false;
+
+        private Page _page = null;
+
+        private IOException _error = null;
+
+        PageFetch(String marker) {
+            _marker = marker;
+        }
+
+        /**
+         * Fetches the page in the background, if a thread is available
+         */
+        void start() {
+            _prefetches.execute(this, _log);
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (_started) {
+                    // fetched by the listing itself
+                    return;
+                }
+                _started = true;
+            }
+            Page page = null;
+            IOException error = null;
+            try {
+                if (_pages == null) {
+                    page = fetch();
+                } else {
+                    // the key starts with the folder of the listed objects
+                    page = (Page) _pages.execute("/" + _bucket + "/" + _prefix
+                            + "?" + _delimiter + "&" + _maxKeys + "&"
+                            + _marker, new SingleFlight.Call() {
+                        public Object call() throws IOException {
+                            return fetch();
+                        }
+                    });
+                }
+            } catch (IOException ex) {
+                error = ex;
+            } catch (RuntimeException ex) {
+                error = new IOException("Can't get list of files:" + ex);
+            }
+            synchronized (this) {
+                _page = page;
+                _error = error;
+                _done = true;
+                notifyAll();
+            }
+        }
+
+        private Page fetch() throws IOException {
+            BucketGET ope = new BucketGET(_bucket, _credential, _log);
+            if (_delimiter != null) {
+                ope.setDelimiter(_delimiter);
+            }
+            ope.setMaxKeys(_maxKeys);
+            boolean truncated = ope.executePage(_prefix, _marker);
+            return new Page(ope.getObjects(), truncated, ope.getNextMarker());
+        }
+
+        private void waitDone() throws IOException {
+            // the page is fetched by the listing if no thread has started
+            // to fetch it
+            run();
+            synchronized (this) {
+                while (!_done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        throw new IOException("Listing interrupted");
+                    }
+                }
+                if (_error != null) {
+                    throw _error;
+                }
+            }
+        }
+
+        List getObjects() throws IOException {
+            waitDone();
+            return _page._objects;
+        }
+
+        boolean isTruncated() throws IOException {
+            waitDone();
+            return _page._truncated;
+        }
+
+        String getNextMarker() throws IOException {
+            waitDone();
+            return _page._nextMarker;
+        }
+    }
+}
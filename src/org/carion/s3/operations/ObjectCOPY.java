@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import java.io.IOException;
+
+import org.carion.s3.Credential;
+import org.carion.s3.S3Log;
+import org.carion.s3.util.BaseXmlParser;
+
+/**
+ * A PUT request with a 'x-amz-copy-source' header copies an existing object:
+ * the content is copied by S3 itself, nothing is sent in the request.
+ * The metadata (content type, directory flag...) are copied with the object.
+ * Objects larger than 5GB can only be copied with a multipart upload
+ * (see ObjectPartCOPY).
+ * Processing the request may take a while: S3 may return a 200 response
+ * and then report an error in the body of the response.
+ *
+ * @author pcarion
+ */
+public class ObjectCOPY extends BaseS3Operation {
+    private final String _uri;
+
+    private String _etag;
+
+    private String _errorCode;
+
+    public ObjectCOPY(String uri, Credential credential, S3Log log) {
+        super(credential, log);
+        _uri = uri;
+    }
+
+    /**
+     * @param sourceUri the uri (/bucket/key) of the object to copy
+     * @return the ETag of the new object
+     * @throws IOException if the object has not been copied
+     */
+    public String execute(String sourceUri) throws IOException {
+        S3Request X = S3Request.mkPutRequest(_uri, _log);
+        X.addHeader("x-amz-copy-source", sourceUri);
+        if (!process(X, false)) {
+            throw new IOException("Can't copy:" + sourceUri + " to:" + _uri
+                    + " (" + getResponseCode() + ")");
+        }
+        _etag = null;
+        _errorCode = null;
+        parseXmlResponse(new Handler());
+        if ((_errorCode != null) || (_etag == null)) {
+            throw new IOException("Can't copy:" + sourceUri + " to:" + _uri
+                    + " (" + _errorCode + ")");
+        }
+        return _etag;
+    }
+
+    private class Handler extends BaseXmlParser {
+        protected void processData(String elementName, String fullName,
+                String data) {
+            if (fullName.equals("CopyObjectResult.ETag")) {
+                _etag = data;
+            } else if (fullName.equals("Error.Code")) {
+                _errorCode = data;
+            }
+        }
+    }
+}
@@ -46,4 +46,38 @@ public class ObjectGET extends BaseS3Operation {
         S3Request X = S3Request.mkGetRequest(_uri, _log);
         return process(X, false);
     }
+
+    /**
+     * Get the object, unless it is the version the caller already has
+     * @param etag the ETag of the version the caller has
+     * @return true if the object has been returned, false if it could not
+     *         be read, or if it has not changed (304 response code)
+     * @throws IOException
+     */
+    public boolean execute(String etag) throws IOException {
+        S3Request X = S3Request.mkGetRequest(_uri, _log);
+        X.setHeader("If-None-Match", etag);
+        return process(X, false);
+    }
+
+    /**
+     * Get a range of the object
+     * @param start the first byte of the range
+     * @param end the last byte of the range (included)
+     * @return true if the range has been returned (206 response)
+     * @throws IOException
+     */
+    public boolean execute(long start, long end) throws IOException {
+        S3Request X = S3Request.mkGetRequest(_uri, _log);
+        X.setHeader("Range", "bytes=" + start + "-" + end);
+        if (!process(X, false)) {
+            return false;
+        }
+        if (getResponseCode() != 206) {
+            // the whole object: not what we asked for
+            getInputStream().close();
+            return false;
+        }
+        return true;
+    }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import java.io.IOException;
+
+import org.carion.s3.Credential;
+import org.carion.s3.S3Log;
+import org.carion.s3.util.BaseXmlParser;
+import org.carion.s3.util.Util;
+
+/**
+ * A PUT request on an object URI with the 'partNumber' and 'uploadId'
+ * parameters and a 'x-amz-copy-source' header copies a range of an existing
+ * object as one part of a multipart upload: this is how objects larger than
+ * 5GB are copied by S3.
+ *
+ * @author pcarion
+ */
+public class ObjectPartCOPY extends BaseS3Operation {
+    private final String _uri;
+
+    private String _etag;
+
+    private String _errorCode;
+
+    public ObjectPartCOPY(String uri, Credential credential, S3Log log) {
+        super(credential, log);
+        _uri = uri;
+    }
+
+    /**
+     * @param sourceUri the uri (/bucket/key) of the object to copy
+     * @param start the first byte of the range to copy
+     * @param end the last byte of the range (included)
+     * @return the ETag of the part, needed to complete the upload
+     * @throws IOException if the part has not been copied
+     */
+    public String execute(String uploadId, int partNumber, String sourceUri,
+            long start, long end) throws IOException {
+        S3Request X = S3Request.mkPutRequest(_uri, _log);
+        X.setQueryString("partNumber=" + partNumber + "&uploadId="
+                + Util.urlEncode(uploadId));
+        X.addHeader("x-amz-copy-source", sourceUri);
+        X.addHeader("x-amz-copy-source-range", "bytes=" + start + "-" + end);
+        if (!process(X, false)) {
+            throw new IOException("Can't copy part " + partNumber + " of:"
+                    + _uri);
+        }
+        _etag = null;
+        _errorCode = null;
+        parseXmlResponse(new Handler());
+        if ((_errorCode != null) || (_etag == null)) {
+            throw new IOException("Can't copy part " + partNumber + " of:"
+                    + _uri + " (" + _errorCode + ")");
+        }
+        return _etag;
+    }
+
+    private class Handler extends BaseXmlParser {
+        protected void processData(String elementName, String fullName,
+                String data) {
+            if (fullName.equals("CopyPartResult.ETag")) {
+                _etag = data;
+            } else if (fullName.equals("Error.Code")) {
+                _errorCode = data;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.carion.s3.Credential;
+import org.carion.s3.S3Log;
+import org.carion.s3.util.Util;
+
+/**
+ * A PUT request on an object URI with the 'partNumber' and 'uploadId'
+ * parameters uploads one part of a multipart upload. The parts can be
+ * uploaded in any order, and in parallel: the object is only created when
+ * the upload is completed. Uploading a part with the same number again
+ * replaces the previous part.
+ * All the parts but the last one must be at least 5MB long.
+ *
+ * @author pcarion
+ */
+public class ObjectPartPUT extends BaseS3Operation {
+    private final String _uri;
+
+    public ObjectPartPUT(String uri, Credential credential, S3Log log) {
+        super(credential, log);
+        _uri = uri;
+    }
+
+    /**
+     * @return the ETag of the part (its MD5), needed to complete the upload
+     * @throws IOException if the part has not been uploaded
+     */
+    public String execute(String uploadId, int partNumber,
+            InputStream content, long contentLength, UploadNotification notify)
+            throws IOException {
+        S3Request X = S3Request.mkPutRequest(_uri, _log);
+        X.setQueryString("partNumber=" + partNumber + "&uploadId="
+                + Util.urlEncode(uploadId));
+        if (notify != null) {
+            X.setUploadNotification(notify);
+        }
+        X.setContent(content, null, null, contentLength);
+        if (!process(X)) {
+            throw new IOException("Can't upload part " + partNumber + " of:"
+                    + _uri);
+        }
+        String etag = getHeader("ETag");
+        if (etag == null) {
+            throw new IOException("No ETag for part " + partNumber + " of:"
+                    + _uri);
+        }
+        return etag;
+    }
+}
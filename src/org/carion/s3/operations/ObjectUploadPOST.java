@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.carion.s3.Credential;
+import org.carion.s3.S3Log;
+import org.carion.s3.util.BaseXmlParser;
+import org.carion.s3.util.Util;
+import org.carion.s3.util.XMLWriter;
+
+/**
+ * A POST request on an object URI with the 'uploadId' parameter completes a
+ * multipart upload: the object is created by concatenating the parts, in
+ * the order of their numbers.
+ * Processing the request may take a while: S3 may return a 200 response
+ * and then report an error in the body of the response.
+ *
+ * @author pcarion
+ */
+public class ObjectUploadPOST extends BaseS3Operation {
+    private final String _uri;
+
+    private String _errorCode;
+
+    public ObjectUploadPOST(String uri, Credential credential, S3Log log) {
+        super(credential, log);
+        _uri = uri;
+    }
+
+    /**
+     * @param uploadId the id of the upload
+     * @param etags the ETags of the parts, the first part being the part 1
+     * @throws IOException if the object has not been created
+     */
+    public void execute(String uploadId, String[] etags) throws IOException {
+        XMLWriter writer = new XMLWriter("CompleteMultipartUpload",
+                "http://s3.amazonaws.com/doc/2006-03-01/");
+        for (int i = 0; i < etags.length; i++) {
+            writer.opening("Part");
+            writer.property("PartNumber", String.valueOf(i + 1));
+            writer.property("ETag", etags[i]);
+            writer.closing("Part");
+        }
+        writer.finish();
+        byte[] body = writer.getData().getBytes("UTF-8");
+
+        S3Request X = S3Request.mkPostRequest(_uri, _log);
+        X.setQueryString("uploadId=" + Util.urlEncode(uploadId));
+        X.setContent(new ByteArrayInputStream(body), null, "application/xml",
+                body.length);
+        if (!process(X, false)) {
+            throw new IOException("Can't complete upload:" + _uri);
+        }
+        _errorCode = null;
+        parseXmlResponse(new Handler());
+        if (_errorCode != null) {
+            throw new IOException("Can't complete upload:" + _uri + " ("
+                    + _errorCode + ")");
+        }
+    }
+
+    private class Handler extends BaseXmlParser {
+        protected void processData(String elementName, String fullName,
+                String data) {
+            if (fullName.equals("Error.Code")) {
+                _errorCode = data;
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import java.io.IOException;
+
+import org.carion.s3.Credential;
+import org.carion.s3.S3Log;
+import org.carion.s3.util.BaseXmlParser;
+
+/**
+ * A POST request on an object URI with the 'uploads' sub-resource initiates
+ * a multipart upload: the content of the object is then sent in parts
+ * (see ObjectPartPUT) and the object is created when the upload is completed
+ * (see ObjectUploadPOST).
+ * The content type and the metadata of the object are given here.
+ *
+ * @author pcarion
+ */
+public class ObjectUploadsPOST extends BaseS3Operation {
+    private final String _uri;
+
+    private String _uploadId;
+
+    public ObjectUploadsPOST(String uri, Credential credential, S3Log log) {
+        super(credential, log);
+        _uri = uri;
+    }
+
+    /**
+     * @param contentType the content type of the object
+     * @return the id of the upload
+     * @throws IOException
+     */
+    public String execute(String contentType) throws IOException {
+        S3Request X = S3Request.mkPostRequest(_uri, _log);
+        X.setQueryString("uploads");
+        X.setContentType(contentType);
+        if (!process(X, false)) {
+            throw new IOException("Can't initiate upload:" + _uri);
+        }
+        _uploadId = null;
+        parseXmlResponse(new Handler());
+        if (_uploadId == null) {
+            throw new IOException("No upload id for:" + _uri);
+        }
+        return _uploadId;
+    }
+
+    private class Handler extends BaseXmlParser {
+        /**
+         * Response Body
+         *  Bucket: the bucket of the object
+         *  Key: the key of the object
+         *  UploadId: the id of the upload, to be used by the following requests
+         */
+        protected void processData(String elementName, String fullName,
+                String data) {
+            if (fullName.endsWith("InitiateMultipartUploadResult.UploadId")) {
+                _uploadId = data;
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.carion.s3.Credential;
+import org.carion.s3.S3Log;
+import org.carion.s3.util.Base64;
+import org.carion.s3.util.BaseXmlParser;
+import org.carion.s3.util.Util;
+import org.carion.s3.util.XMLWriter;
+import org.xml.sax.Attributes;
+
+/**
+ * A POST request on a bucket with the 'delete' parameter deletes up to
+ * 1000 objects of the bucket with a single request (multi-object delete).
+ * The request is sent in quiet mode: the response only lists the objects
+ * which could not be deleted. Deleting an object which does not exist is
+ * not an error.
+ *
+ * @author pcarion
+ */
+public class ObjectsDELETE extends BaseS3Operation {
+    /** the maximum number of keys of a request */
+    public final static int MAX_KEYS = 1000;
+
+    private final String _bucket;
+
+    private Map _errors;
+
+    private String _key;
+
+    private String _code;
+
+    private String _errorCode;
+
+    public ObjectsDELETE(String bucket, Credential credential, S3Log log) {
+        super(credential, log);
+        _bucket = bucket;
+    }
+
+    /**
+     * @param keys the keys (not url encoded) of the objects to delete
+     * @return the key of the objects which could not be deleted -&gt; the
+     *         error code returned by S3 (AccessDenied, InternalError...)
+     * @throws IOException if the request has failed
+     */
+    public Map execute(List keys) throws IOException {
+        if (keys.size() > MAX_KEYS) {
+            throw new IOException("Too many keys:" + keys.size());
+        }
+        XMLWriter writer = new XMLWriter("Delete",
+                "http://s3.amazonaws.com/doc/2006-03-01/");
+        writer.property("Quiet", "true");
+        for (Iterator iter = keys.iterator(); iter.hasNext();) {
+            writer.opening("Object");
+            writer.opening("Key");
+            writer.writeData((String) iter.next());
+            writer.closing("Key");
+            writer.closing("Object");
+        }
+        writer.finish();
+        byte[] body = writer.getData().getBytes("UTF-8");
+        // the Content-MD5 header is mandatory for this request
+        String md5 = Base64.encodeBytes(Util.mkMd5Digest().digest(body));
+
+        S3Request X = S3Request.mkPostRequest("/" + _bucket, _log);
+        X.setQueryString("delete");
+        X.setContent(new ByteArrayInputStream(body), md5, "application/xml",
+                body.length);
+        if (!process(X, false)) {
+            throw new IOException("Can't delete objects of:" + _bucket + " ("
+                    + getResponseCode() + ")");
+        }
+        _errors = new LinkedHashMap();
+        _errorCode = null;
+        parseXmlResponse(new Handler());
+        if (_errorCode != null) {
+            throw new IOException("Can't delete objects of:" + _bucket + " ("
+                    + _errorCode + ")");
+        }
+        return _errors;
+    }
+
+    private class Handler extends BaseXmlParser {
+        protected void processStartElement(String elementName,
+                String fullName, Attributes attributes) {
+            if (fullName.equals("DeleteResult.Error")) {
+                _key = null;
+                _code = null;
+            }
+        }
+
+        protected void processData(String elementName, String fullName,
+                String data) {
+            if (fullName.equals("DeleteResult.Error.Key")) {
+                _key = data;
+            } else if (fullName.equals("DeleteResult.Error.Code")) {
+                _code = data;
+            } else if (fullName.equals("Error.Code")) {
+                _errorCode = data;
+            }
+        }
+
+        protected void processEndElement(String elementName, String fullName) {
+            if (fullName.equals("DeleteResult.Error") && (_key != null)) {
+                _errors.put(_key, _code);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import org.carion.s3.S3UnavailableException;
+
+/**
+ * Stops sending requests to S3 when most of them fail: s3DAV then answers
+ * from what it has cached, instead of waiting for each request to time out.
+ *
+ * <ul>
+ * <li>the outcome of the last attempts (a request and each of its retries)
+ * of the last 5 minutes is kept: an attempt fails when it can't connect,
+ * times out or gets a 500 or 503 response.</li>
+ * <li>when s3dav.s3.breakerThreshold percent (50) of at least 5 attempts
+ * have failed, the circuit opens: the requests fail at once, without being
+ * sent.</li>
+ * <li>after s3dav.s3.breakerDelay seconds (30), one request is sent to
+ * probe S3: the circuit closes if it succeeds, and opens again otherwise.
+ * </li>
+ * </ul>
+ * Set s3dav.s3.breaker to false to disable it.
+ *
+ * @author pcarion
+ */
+public class S3CircuitBreaker {
+    public final static int CLOSED = 0;
+
+    public final static int OPEN = 1;
+
+    /** a request is probing S3 */
+    public final static int HALF_OPEN = 2;
+
+    /** the number of attempts kept */
+    private final static int WINDOW = 20;
+
+    /** the attempts older than that are forgotten (ms) */
+    private final static long WINDOW_TIME = 5 * 60 * 1000;
+
+    /** the circuit doesn't open with fewer attempts than that */
+    private final static int MIN_ATTEMPTS = 5;
+
+    private static S3CircuitBreaker _instance = null;
+
+    private final boolean _enabled;
+
+    private final int _threshold;
+
+    private final long _delay;
+
+    private final long[] _times = new long[WINDOW];
+
+    private final boolean[] _failed = new boolean[WINDOW];
+
+    private int _count = 0;
+
+    private int _state = CLOSED;
+
+    /** when the circuit has opened, or when the probe has been sent */
+    private long _since = 0;
+
+    private long _openings = 0;
+
+    private long _rejected = 0;
+
+    public static synchronized S3CircuitBreaker getInstance() {
+        if (_instance == null) {
+            _instance = new S3CircuitBreaker();
+        }
+        return _instance;
+    }
+
+    private S3CircuitBreaker() {
+        _enabled = !"false".equals(System.getProperty("s3dav.s3.breaker"));
+        _threshold = Math.min(100, Math.max(1, Integer.getInteger(
+                "s3dav.s3.breakerThreshold", 50).intValue()));
+        _delay = Integer.getInteger("s3dav.s3.breakerDelay", 30).intValue() * 1000;
+    }
+
+    /**
+     * Called before a request is sent
+     * @throws S3UnavailableException if the request must not be sent
+     */
+    synchronized void allowRequest() throws S3UnavailableException {
+        if (_state == CLOSED) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if ((now - _since) >= _delay) {
+            // the probe is sent (or sent again if the previous one never
+            // came back)
+            _state = HALF_OPEN;
+            _since = now;
+            return;
+        }
+        _rejected++;
+        throw new S3UnavailableException("S3 is unavailable",
+                getRetryAfter());
+    }
+
+    /**
+     * @return false if a failed request must not be sent again
+     */
+    synchronized boolean allowRetry() {
+        return _state == CLOSED;
+    }
+
+    /**
+     * Records the outcome of an attempt
+     */
+    synchronized void ntfAttempt(boolean failed) {
+        long now = System.currentTimeMillis();
+        if (_state == HALF_OPEN) {
+            if (failed) {
+                open(now);
+            } else {
+                _state = CLOSED;
+                _count = 0;
+            }
+            return;
+        }
+        _times[_count % WINDOW] = now;
+        _failed[_count % WINDOW] = failed;
+        _count++;
+        if (failed && _enabled && (_state == CLOSED)
+                && (getErrorRate(now, MIN_ATTEMPTS) >= _threshold)) {
+            open(now);
+        }
+    }
+
+    private void open(long now) {
+        _state = OPEN;
+        _since = now;
+        _openings++;
+    }
+
+    /**
+     * @return the percentage of failed attempts in the window, -1 if there
+     *         are fewer attempts than min
+     */
+    private int getErrorRate(long now, int min) {
+        int attempts = 0;
+        int failures = 0;
+        for (int i = 0; i < Math.min(_count, WINDOW); i++) {
+            if ((now - _times[i]) < WINDOW_TIME) {
+                attempts++;
+                if (_failed[i]) {
+                    failures++;
+                }
+            }
+        }
+        return ((attempts == 0) || (attempts < min)) ? -1
+                : (failures * 100) / attempts;
+    }
+
+    /**
+     * @return false if the requests to S3 are not sent
+     */
+    public synchronized boolean isAvailable() {
+        return _state == CLOSED;
+    }
+
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    public synchronized int getState() {
+        return _state;
+    }
+
+    /**
+     * @return when the circuit has opened (ms), 0 if it is closed
+     */
+    public synchronized long getSince() {
+        return (_state == CLOSED) ? 0 : _since;
+    }
+
+    /**
+     * @return when S3 will be probed, in seconds (0 if the circuit is
+     *         closed)
+     */
+    public synchronized long getRetryAfter() {
+        if (_state == CLOSED) {
+            return 0;
+        }
+        long left = _delay - (System.currentTimeMillis() - _since);
+        return Math.max(1, (left + 999) / 1000);
+    }
+
+    /**
+     * @return the percentage of the attempts of the last 5 minutes which have
+     *         failed, -1 if there has been none
+     */
+    public synchronized int getErrorRate() {
+        return getErrorRate(System.currentTimeMillis(), 1);
+    }
+
+    public int getThreshold() {
+        return _threshold;
+    }
+
+    public synchronized long getOpenings() {
+        return _openings;
+    }
+
+    /**
+     * @return the number of requests not sent because the circuit was open
+     */
+    public synchronized long getRejected() {
+        return _rejected;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.carion.s3.util.ChunkedInputStream;
+
+/**
+ * A persistent (HTTP/1.1 keep-alive) connection to S3.
+ * The connections are managed by the S3ConnectionPool: a connection is
+ * leased for one request and released once the response has been read.
+ *
+ * @author pcarion
+ */
+class S3Connection {
+    /**
+     * When the content of a response is closed before the end, we read what
+     * is left (up to that size) to be able to reuse the connection, otherwise
+     * we close the connection.
+     */
+    private final static int MAX_DRAIN = 64 * 1024;
+
+    private final S3ConnectionPool _pool;
+
+    private final String _host;
+
+    private final int _port;
+
+    /** the read timeout of the current request */
+    private int _soTimeout;
+
+    private final Socket _socket;
+
+    private final BufferedInputStream _in;
+
+    private final BufferedOutputStream _out;
+
+    private long _lastUsed;
+
+    private int _requests = 0;
+
+    S3Connection(S3ConnectionPool pool, String host, int port,
+            int connectTimeout, int soTimeout) throws IOException {
+        _pool = pool;
+        _host = host;
+        _port = port;
+        _soTimeout = soTimeout;
+        _socket = new Socket();
+        try {
+            _socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            _socket.setSoTimeout(soTimeout);
+            _socket.setTcpNoDelay(true);
+            _in = new BufferedInputStream(_socket.getInputStream(), 8 * 1024);
+            _out = new BufferedOutputStream(_socket.getOutputStream(),
+                    8 * 1024);
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+        _lastUsed = System.currentTimeMillis();
+    }
+
+    String getHostKey() {
+        return S3ConnectionPool.mkHostKey(_host, _port);
+    }
+
+    /**
+     * @return true if this connection has already been used for a request
+     */
+    boolean isReused() {
+        return _requests > 0;
+    }
+
+    void requestSent() {
+        _requests++;
+    }
+
+    /**
+     * Sets the read timeout of the request sent on this connection
+     */
+    void setTimeout(int timeout) throws IOException {
+        if (timeout != _soTimeout) {
+            _socket.setSoTimeout(timeout);
+            _soTimeout = timeout;
+        }
+    }
+
+    long getLastUsed() {
+        return _lastUsed;
+    }
+
+    void touch() {
+        _lastUsed = System.currentTimeMillis();
+    }
+
+    InputStream getInputStream() {
+        return _in;
+    }
+
+    OutputStream getOutputStream() {
+        return _out;
+    }
+
+    /**
+     * Check if the server has closed an idle connection.
+     * An idle connection must not have any data to read: if the read
+     * doesn't time out, either the connection has been closed or we are
+     * not in sync with the server anymore.
+     */
+    boolean isStale() {
+        if (_socket.isClosed() || _socket.isInputShutdown()
+                || _socket.isOutputShutdown()) {
+            return true;
+        }
+        try {
+            if (_in.available() > 0) {
+                return true;
+            }
+            _socket.setSoTimeout(1);
+            try {
+                _in.read();
+                return true;
+            } catch (SocketTimeoutException ex) {
+                return false;
+            } finally {
+                _socket.setSoTimeout(_soTimeout);
+            }
+        } catch (IOException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * Reads a line of the response header (ISO-8859-1)
+     * @return the line, without the CRLF, or null if the connection has
+     *   been closed by the server
+     */
+    String readLine() throws IOException {
+        StringBuffer sb = new StringBuffer();
+        int c;
+        while ((c = _in.read()) != '\n') {
+            if (c == -1) {
+                if (sb.length() == 0) {
+                    return null;
+                }
+                break;
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    void write(String line) throws IOException {
+        _out.write(line.getBytes("ISO-8859-1"));
+        _out.write('\r');
+        _out.write('\n');
+    }
+
+    /**
+     * Returns the content of the response. The connection goes back to
+     * the pool when this stream is closed.
+     * @param contentLength the length of the content or -1 if it is unknown
+     * @param chunked true if the content is chunked
+     * @param keepAlive false if the server will close the connection
+     */
+    InputStream getContent(long contentLength, boolean chunked,
+            boolean keepAlive) {
+        if (chunked) {
+            return new ContentInputStream(new ChunkedInputStream(_in), -1,
+                    keepAlive);
+        } else if (contentLength >= 0) {
+            return new ContentInputStream(_in, contentLength, keepAlive);
+        } else {
+            // the end of the content is the end of the connection
+            return new ContentInputStream(_in, -1, false);
+        }
+    }
+
+    void close() {
+        try {
+            _socket.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    /**
+     * The content of a response. Closing this stream releases the
+     * connection.
+     */
+    private class ContentInputStream extends InputStream {
+        private final InputStream _content;
+
+        private final boolean _keepAlive;
+
+        /** -1 when the length is given by the content (or the connection) */
+        private long _remaining;
+
+        private boolean _eof = false;
+
+        private boolean _closed = false;
+
+        ContentInputStream(InputStream content, long contentLength,
+                boolean keepAlive) {
+            _content = content;
+            _remaining = contentLength;
+            _keepAlive = keepAlive;
+            if (_remaining == 0) {
+                _eof = true;
+            }
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return (read == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (_closed) {
+                throw new IOException("Attempted read from closed stream.");
+            }
+            if (_eof) {
+                return -1;
+            }
+            if (_remaining > 0) {
+                len = (int) Math.min(len, _remaining);
+            }
+            int read = _content.read(b, off, len);
+            if (read == -1) {
+                if (_remaining > 0) {
+                    throw new IOException("Premature end of content");
+                }
+                _eof = true;
+                return -1;
+            }
+            if (_remaining > 0) {
+                _remaining -= read;
+                if (_remaining == 0) {
+                    _eof = true;
+                }
+            }
+            return read;
+        }
+
+        public int available() throws IOException {
+            if (_eof || _closed) {
+                return 0;
+            }
+            int available = _content.available();
+            return (_remaining > 0) ? (int) Math.min(available, _remaining)
+                    : available;
+        }
+
+        public void close() {
+            if (_closed) {
+                return;
+            }
+            boolean reusable = false;
+            try {
+                if (_keepAlive) {
+                    byte[] buffer = new byte[4096];
+                    int drained = 0;
+                    while (!_eof && (drained < MAX_DRAIN)) {
+                        int read = read(buffer, 0, buffer.length);
+                        if (read > 0) {
+                            drained += read;
+                        }
+                    }
+                    reusable = _eof;
+                }
+            } catch (IOException ex) {
+                reusable = false;
+            } finally {
+                _closed = true;
+                _pool.release(S3Connection.this, reusable);
+            }
+        }
+    }
+}
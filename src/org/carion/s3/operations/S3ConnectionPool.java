@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * The pool of the persistent connections to S3.
+ * Without this pool, each request (even a HEAD) had to open a new TCP
+ * connection, which is most of the latency of a small request on a
+ * high latency link.
+ *
+ * The pool is configured with the system properties:
+ * <ul>
+ * <li>s3dav.s3.maxConnections: maximum number of connections per host
+ * (default: 20)</li>
+ * <li>s3dav.s3.idleTimeout: an idle connection is closed after that
+ * number of seconds (default: 30)</li>
+ * <li>s3dav.s3.connectTimeout: timeout, in seconds, to open a connection or
+ * to wait for a free connection (default: 30)</li>
+ * <li>s3dav.s3.readTimeout: read timeout, in seconds (default: 120), see
+ * S3RequestPolicy for the timeout of each request</li>
+ * </ul>
+ *
+ * @author pcarion
+ */
+public class S3ConnectionPool {
+    /**
+     * A connection idle for less than that time (ms) is reused without
+     * checking if it has been closed by the server.
+     */
+    private final static long STALE_CHECK_DELAY = 1000;
+
+    private static S3ConnectionPool _instance = null;
+
+    private final int _maxPerHost;
+
+    private final long _idleTimeout;
+
+    private final int _connectTimeout;
+
+    private final int _readTimeout;
+
+    /** host:port -> HostPool */
+    private final Map _hosts = new HashMap();
+
+    private long _connects = 0;
+
+    private long _reuses = 0;
+
+    private long _staleConnections = 0;
+
+    private long _idleEvictions = 0;
+
+    private long _waits = 0;
+
+    public static synchronized S3ConnectionPool getInstance() {
+        if (_instance == null) {
+            _instance = new S3ConnectionPool(Integer.getInteger(
+                    "s3dav.s3.maxConnections", 20).intValue(), Integer
+                    .getInteger("s3dav.s3.idleTimeout", 30).intValue() * 1000L,
+                    Integer.getInteger("s3dav.s3.connectTimeout", 30)
+                            .intValue() * 1000, Integer.getInteger(
+                            "s3dav.s3.readTimeout", 120).intValue() * 1000);
+        }
+        return _instance;
+    }
+
+    private S3ConnectionPool(int maxPerHost, long idleTimeout,
+            int connectTimeout, int readTimeout) {
+        _maxPerHost = maxPerHost;
+        _idleTimeout = idleTimeout;
+        _connectTimeout = connectTimeout;
+        _readTimeout = readTimeout;
+        Thread evictor = new IdleConnectionEvictor();
+        evictor.start();
+    }
+
+    static String mkHostKey(String host, int port) {
+        return host + ":" + port;
+    }
+
+    /**
+     * Get a connection to the host: an idle connection if there is one,
+     * otherwise a new connection, unless the limit of connections to that
+     * host has been reached: in that case, we wait for a connection to be
+     * released.
+     */
+    S3Connection acquire(String host, int port) throws IOException {
+        String key = mkHostKey(host, port);
+        while (true) {
+            S3Connection conn = null;
+            synchronized (this) {
+                HostPool pool = getHostPool(key);
+                long deadline = System.currentTimeMillis() + _connectTimeout;
+                while (true) {
+                    conn = pool.getIdleConnection();
+                    if ((conn != null) || pool.canConnect()) {
+                        break;
+                    }
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new S3PoolTimeoutException(
+                                "No connection available to " + key);
+                    }
+                    _waits++;
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException ex) {
+                        throw new IOException("Interrupted while waiting for"
+                                + " a connection to " + key);
+                    }
+                }
+                pool._leased++;
+            }
+
+            if (conn == null) {
+                try {
+                    conn = new S3Connection(this, host, port, _connectTimeout,
+                            _readTimeout);
+                } catch (IOException ex) {
+                    release(key, null, false);
+                    throw ex;
+                }
+                synchronized (this) {
+                    _connects++;
+                }
+                return conn;
+            }
+
+            long idle = System.currentTimeMillis() - conn.getLastUsed();
+            if ((idle < STALE_CHECK_DELAY) || !conn.isStale()) {
+                synchronized (this) {
+                    _reuses++;
+                }
+                return conn;
+            }
+            // the server has closed the connection: let's try again
+            synchronized (this) {
+                _staleConnections++;
+            }
+            release(key, conn, false);
+        }
+    }
+
+    /**
+     * Gives back a connection to the pool
+     * @param reusable false if the connection must be closed
+     */
+    void release(S3Connection conn, boolean reusable) {
+        release(conn.getHostKey(), conn, reusable);
+    }
+
+    private synchronized void release(String key, S3Connection conn,
+            boolean reusable) {
+        HostPool pool = getHostPool(key);
+        pool._leased--;
+        if (conn != null) {
+            if (reusable) {
+                conn.touch();
+                // the most recently used connection is reused first
+                pool._idle.addFirst(conn);
+            } else {
+                conn.close();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Closes the connections idle for more than the idle timeout.
+     */
+    synchronized void closeIdleConnections() {
+        long limit = System.currentTimeMillis() - _idleTimeout;
+        for (Iterator iter = _hosts.values().iterator(); iter.hasNext();) {
+            HostPool pool = (HostPool) iter.next();
+            _idleEvictions += pool.closeIdleConnections(limit);
+        }
+    }
+
+    private HostPool getHostPool(String key) {
+        HostPool pool = (HostPool) _hosts.get(key);
+        if (pool == null) {
+            pool = new HostPool();
+            _hosts.put(key, pool);
+        }
+        return pool;
+    }
+
+    public synchronized long getConnects() {
+        return _connects;
+    }
+
+    public synchronized long getReuses() {
+        return _reuses;
+    }
+
+    public synchronized long getStaleConnections() {
+        return _staleConnections;
+    }
+
+    public synchronized long getIdleEvictions() {
+        return _idleEvictions;
+    }
+
+    public synchronized long getWaits() {
+        return _waits;
+    }
+
+    public synchronized int getLeasedConnections() {
+        int count = 0;
+        for (Iterator iter = _hosts.values().iterator(); iter.hasNext();) {
+            count += ((HostPool) iter.next())._leased;
+        }
+        return count;
+    }
+
+    public synchronized int getIdleConnections() {
+        int count = 0;
+        for (Iterator iter = _hosts.values().iterator(); iter.hasNext();) {
+            count += ((HostPool) iter.next())._idle.size();
+        }
+        return count;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return _maxPerHost;
+    }
+
+    public long getIdleTimeout() {
+        return _idleTimeout;
+    }
+
+    private class HostPool {
+        /** idle connections, the most recently used first */
+        private final LinkedList _idle = new LinkedList();
+
+        private int _leased = 0;
+
+        boolean canConnect() {
+            return (_leased + _idle.size()) < _maxPerHost;
+        }
+
+        S3Connection getIdleConnection() {
+            long limit = System.currentTimeMillis() - _idleTimeout;
+            while (!_idle.isEmpty()) {
+                S3Connection conn = (S3Connection) _idle.removeFirst();
+                if (conn.getLastUsed() >= limit) {
+                    return conn;
+                }
+                conn.close();
+                _idleEvictions++;
+            }
+            return null;
+        }
+
+        int closeIdleConnections(long limit) {
+            int count = 0;
+            while (!_idle.isEmpty()
+                    && (((S3Connection) _idle.getLast()).getLastUsed() < limit)) {
+                ((S3Connection) _idle.removeLast()).close();
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private class IdleConnectionEvictor extends Thread {
+        IdleConnectionEvictor() {
+            super("S3 idle connection evictor");
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(Math.max(_idleTimeout / 2, 1000));
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                closeIdleConnections();
+            }
+        }
+    }
+}
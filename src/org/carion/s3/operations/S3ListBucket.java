@@ -32,7 +32,7 @@ public class S3ListBucket {
 
     private final List _contents = new ArrayList();
 
-    void addContent(String key, Date lastModified, int size) {
+    void addContent(String key, Date lastModified, long size) {
         _contents.add(new Content(key, lastModified, size));
     }
 
@@ -49,9 +49,9 @@ public class S3ListBucket {
 
         private final Date _lastModified;
 
-        private final int _size;
+        private final long _size;
 
-        Content(String key, Date lastModified, int size) {
+        Content(String key, Date lastModified, long size) {
             _key = key;
             _lastModified = lastModified;
             _size = size;
@@ -65,7 +65,7 @@ public class S3ListBucket {
             return _lastModified;
         }
 
-        public int getSize() {
+        public long getSize() {
             return _size;
         }
     }
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import java.io.IOException;
+
+/**
+ * No connection of the pool has been released in time: all the connections
+ * to the host are busy. The request has not been sent, so this is not a
+ * failure of S3: it is neither retried nor counted by S3CircuitBreaker.
+ *
+ * @author pcarion
+ */
+class S3PoolTimeoutException extends IOException {
+    S3PoolTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -15,23 +15,28 @@
  */
 package org.carion.s3.operations;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.TimerTask;
 import java.util.TreeMap;
 
 import javax.crypto.Mac;
@@ -40,7 +45,6 @@ import javax.crypto.spec.SecretKeySpec;
 import org.carion.s3.Credential;
 import org.carion.s3.S3Log;
 import org.carion.s3.util.Base64;
-import org.carion.s3.util.InputStreamObserver;
 import org.carion.s3.util.Util;
 import org.carion.s3dav.Version;
 
@@ -49,6 +53,16 @@ public class S3Request {
 
     private static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The query parameters which are part of the signed resource
+     */
+    private static final Set SUB_RESOURCES = new HashSet(Arrays
+            .asList(new String[] { "acl", "delete", "location", "logging",
+                    "partNumber", "torrent", "uploadId", "uploads",
+                    "versionId", "versioning", "versions" }));
+
     public static S3Request mkGetRequest(String path, S3Log log) {
         return new S3Request("GET", path, log);
     }
@@ -65,6 +79,10 @@ public class S3Request {
         return new S3Request("HEAD", path, log);
     }
 
+    public static S3Request mkPostRequest(String path, S3Log log) {
+        return new S3Request("POST", path, log);
+    }
+
     private final String _method;
 
     private final String _path;
@@ -87,6 +105,9 @@ public class S3Request {
 
     private UploadNotification _notify = null;
 
+    /** the headers which are not part of the signature */
+    private final Map _headers = new HashMap();
+
     private final static SimpleDateFormat _httpDateFormat;
 
     static {
@@ -121,16 +142,35 @@ public class S3Request {
         _contentLength = contentLength;
     }
 
+    /**
+     * Set a header which is not part of the signature (Range...)
+     */
+    void setHeader(String key, String value) {
+        _headers.put(key, value);
+    }
+
+    /**
+     * Set the content type of a request without content (the content type
+     * of a multipart upload is given when the upload is initiated)
+     */
+    void setContentType(String contentType) {
+        _contentType = contentType;
+    }
+
     void addMetaInformation(String key, String value) {
         addHeader(METADATA_PREFIX + key, value);
     }
 
     public boolean process(Credential credential, S3Processing processing,
             boolean doCloseConnection) {
-        HttpURLConnection conn = null;
+        S3RequestPolicy policy = S3RequestPolicy.getInstance();
+        S3CircuitBreaker breaker = S3CircuitBreaker.getInstance();
+        Response response = null;
+        InputStream content = null;
         try {
-            // on these methods, the java.net classes will add this content type
-            // automatically so we need to use to have a goog hmac sha1 key
+            // HttpURLConnection used to add this content type
+            // automatically: we keep on sending it, as it is part of the
+            // signature
             if (_contentType == null) {
                 // CARION - 2006/04/03
                 // It seems that with JDK 1.5, the content-type is
@@ -144,118 +184,133 @@ public class S3Request {
             String canon = makeCanonicalString();
             String hmacSha1 = hmacSha1(credential.getAwsSecretAccessKey(),
                     canon);
-
-            URL url = new URL("http://" + credential.getHost() + _path
-                    + ((_queryString != null) ? "?" + _queryString : ""));
-
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod(_method);
-
-            conn.setRequestProperty("Authorization", "AWS "
-                    + credential.getAwsAccessKeyId() + ":" + hmacSha1);
-
-            conn.setRequestProperty("Date", _httpDate);
-
-            conn.setRequestProperty("User-Agent", Version.USER_AGENT);
-
-            if (_contentMd5 != null) {
-                conn.setRequestProperty("Content-MD5", _contentMd5);
-            }
-
-            if (_contentType != null) {
-                conn.setRequestProperty("Content-Type", _contentType);
-            }
-
-            if (_content != null) {
-                conn.setRequestProperty("Content-Length", String
-                        .valueOf(_contentLength));
-            } else {
-                conn.setRequestProperty("Content-Length", "0");
-            }
-
-            for (Iterator i = _metaInfos.keySet().iterator(); i.hasNext();) {
-                String key = (String) i.next();
-                List s = (List) _metaInfos.get(key);
-                conn.setRequestProperty(key, concatenateList(s));
+            String authorization = "AWS " + credential.getAwsAccessKeyId()
+                    + ":" + hmacSha1;
+
+            String host = credential.getHost();
+            int port = 80;
+            int index = host.indexOf(':');
+            if (index > 0) {
+                port = Integer.parseInt(host.substring(index + 1));
+                host = host.substring(0, index);
             }
 
-            if (_content != null) {
-                conn.setDoOutput(true);
-            }
-
-            conn.connect();
-
-            if (_content != null) {
-                OutputStream dataout = conn.getOutputStream();
-                int len = 0;
-                byte[] data = new byte[1024];
-                _log.log("Starting copy of content");
-                while ((len = _content.read(data)) >= 0) {
-                    dataout.write(data, 0, len);
-                    dataout.flush();
-                    if (_notify != null) {
-                        if (!_notify.ntfUploaded(len)) {
-                            try {
-                                dataout.close();
-                            } catch (Exception ex) {
-                            }
-                            try {
-                                _content.close();
-                            } catch (Exception ex) {
-                            }
-                            throw new IOException("upload aborted");
+            int kind = getKind();
+            breaker.allowRequest();
+            policy.ntfRequest();
+            for (int attempt = 1;; attempt++) {
+                boolean last = (attempt > policy.getMaxRetries())
+                        || !canSendAgain();
+                String failure;
+                try {
+                    long hedgeDelay = policy.getHedgeDelay(kind);
+                    if (hedgeDelay < 0) {
+                        long start = System.currentTimeMillis();
+                        response = execute(credential.getHost(), host, port,
+                                authorization, kind, null);
+                        policy.latency(kind, System.currentTimeMillis()
+                                - start);
+                    } else {
+                        response = executeHedged(credential.getHost(), host,
+                                port, authorization, kind, hedgeDelay);
+                    }
+                    boolean failed = isTransientError(response._code);
+                    breaker.ntfAttempt(failed);
+                    if (!failed) {
+                        break;
+                    }
+                    if (last || !breaker.allowRetry()) {
+                        if (attempt > 1) {
+                            policy.ntfFailure();
                         }
+                        break;
                     }
-                }
-                _log.log("@@ content copied over. Closing connection");
-                try {
-                    _content.close();
+                    failure = response._statusLine;
+                    response.close();
+                    response = null;
+                    policy.ntfRetry(false);
+                } catch (S3PoolTimeoutException ex) {
+                    // the request has not been sent: S3 is not at fault
+                    throw ex;
                 } catch (IOException ex) {
-                    _log.log("Error closing inputstream", ex);
+                    boolean timeout = ex instanceof SocketTimeoutException;
+                    breaker.ntfAttempt(true);
+                    if (last || !breaker.allowRetry()) {
+                        if (timeout) {
+                            policy.ntfTimeout();
+                        }
+                        if (attempt > 1) {
+                            policy.ntfFailure();
+                        }
+                        throw ex;
+                    }
+                    failure = ex.toString();
+                    policy.ntfRetry(timeout);
+                }
+                long delay = policy.getRetryDelay(attempt);
+                _log.log("Retrying request in " + delay + "ms (" + failure
+                        + "):" + _method + " " + _path);
+                Thread.sleep(delay);
+                if (_content != null) {
+                    _content.reset();
                 }
-                dataout.close();
             }
 
-            int responseCode = conn.getResponseCode();
-            String amzRequestId = conn.getHeaderField("x-amz-request-id");
-            String amzId2 = conn.getHeaderField("x-amz-id-2");
-            String contentType = conn.getContentType();
+            int responseCode = response._code;
+            boolean keepAlive = response._statusLine.startsWith("HTTP/1.1");
+
+            String amzRequestId = null;
+            String amzId2 = null;
+            String contentType = null;
+            long contentLength = -1;
+            boolean chunked = false;
 
             // get the meta information from header
-            for (int i = 0;; i++) {
-                String key = conn.getHeaderFieldKey(i);
-                if (key == null) {
-                    // Warning: javadoc for getHeaderFieldKey:
-                    // Returns the key for the nth header field.
-                    // Some implementations may treat the 0th header field as
-                    // special,
-                    // i.e. as the status line returned by the HTTP server. In
-                    // this
-                    // case, getHeaderField(0) returns the status line, but
-                    // getHeaderFieldKey(0) returns null.
-                    if (i > 0) {
-                        break;
-                    } else {
-                        continue;
-                    }
+            for (Iterator iter = response._headers.iterator(); iter.hasNext();) {
+                String line = (String) iter.next();
+                index = line.indexOf(':');
+                if (index <= 0) {
+                    continue;
                 }
-                String value = conn.getHeaderField(i);
+                String key = line.substring(0, index).trim();
+                String value = line.substring(index + 1).trim();
                 if (key.startsWith(METADATA_PREFIX)) {
                     processing.amzMeta(key.substring(METADATA_PREFIX.length()),
                             value);
                 } else {
                     processing.amzHeader(key, value);
                 }
+
+                if (key.equalsIgnoreCase("x-amz-request-id")) {
+                    amzRequestId = value;
+                } else if (key.equalsIgnoreCase("x-amz-id-2")) {
+                    amzId2 = value;
+                } else if (key.equalsIgnoreCase("Content-Type")) {
+                    contentType = value;
+                } else if (key.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (key.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (key.equalsIgnoreCase("Connection")) {
+                    keepAlive = value.equalsIgnoreCase("keep-alive");
+                }
+            }
+
+            S3Connection conn = response._conn;
+            if (_method.equals("HEAD") || (responseCode == 204)
+                    || (responseCode == 304)) {
+                content = conn.getContent(0, false, keepAlive);
+            } else {
+                content = conn.getContent(contentLength, chunked, keepAlive);
             }
+            // from now on, the connection is released when the content
+            // is closed
+            response = null;
 
             // 2xx response codes are ok, everything else is an error
             if (responseCode / 100 != 2) {
-                String error = "";
-                if (conn.getErrorStream() != null) {
-                    InputStream in = Util.wrap(conn.getErrorStream(), false,
-                            conn.getContentLength());
-                    error = Util.readInputStreamAsString(in);
-                }
+                String error = Util.readInputStreamAsString(content);
+                content.close();
                 S3Error errorResponse;
                 if ("application/xml".equals(contentType)
                         && (error.length() > 2)) {
@@ -272,34 +327,374 @@ public class S3Request {
             }
 
             if (!_method.equals("HEAD")) {
-                InputStreamObserver observer = null;
-                if (!doCloseConnection) {
-                    observer = new ConnectionCloser(conn);
-                }
-                InputStream in = Util.wrap(conn.getInputStream(), false, conn
-                        .getContentLength(), observer);
-                processing.amzInputStream(in);
+                processing.amzInputStream(content);
             }
             return true;
         } catch (Exception ex) {
+            if (response != null) {
+                response.close();
+            }
+            if (content != null) {
+                doCloseConnection = true;
+            }
             processing.amzException(ex);
             return false;
         } finally {
-            // in case or the connection can be left opened,
-            // we check if the processing want's to keep
-            // connection opened or not !
             // When we do a Object GET, we want to keep the
             // InputStream opened as the content of this stream
             // will be pushed to the webDAV assiciated GET
-            // request
-            if (doCloseConnection) {
-                if (conn != null) {
-                    try {
-                        conn.disconnect();
-                    } catch (Exception ex) {
+            // request: the connection will be released when the
+            // stream is closed.
+            // Otherwise, the connection goes back to the pool now
+            if ((content != null)
+                    && (doCloseConnection || _method.equals("HEAD"))) {
+                try {
+                    content.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the kind of request, which sets its timeout and whether it can
+     *  be hedged
+     */
+    private int getKind() {
+        if (_method.equals("HEAD")) {
+            return S3RequestPolicy.KIND_HEAD;
+        }
+        if (_method.equals("DELETE")) {
+            return S3RequestPolicy.KIND_DELETE;
+        }
+        if (_method.equals("GET")) {
+            // the listings are sent to the bucket: /bucket?prefix=...
+            return (_path.indexOf('/', 1) < 0) ? S3RequestPolicy.KIND_LIST
+                    : S3RequestPolicy.KIND_GET;
+        }
+        return S3RequestPolicy.KIND_OTHER;
+    }
+
+    /**
+     * @return true if the request can be sent again: it has no content, or
+     *  its content is in memory
+     */
+    private boolean canSendAgain() {
+        return (_content == null) || (_content instanceof ByteArrayInputStream);
+    }
+
+    private boolean isTransientError(int responseCode) {
+        return (responseCode == 500) || (responseCode == 503);
+    }
+
+    /**
+     * Sends the request and reads the header of the response
+     * @param hedge set when the request is hedged: the connection is
+     *  closed if the other request answers first
+     */
+    private Response execute(String hostHeader, String host, int port,
+            String authorization, int kind, Hedge hedge) throws IOException {
+        S3ConnectionPool pool = S3ConnectionPool.getInstance();
+        S3Connection conn = null;
+        try {
+            String statusLine;
+            while (true) {
+                conn = pool.acquire(host, port);
+                if ((hedge != null) && !hedge.started(conn)) {
+                    pool.release(conn, false);
+                    conn = null;
+                    throw new IOException("Hedged request cancelled");
+                }
+                boolean reused = conn.isReused();
+                try {
+                    conn.setTimeout(S3RequestPolicy.getInstance().getTimeout(
+                            kind));
+                    sendRequest(conn, hostHeader, authorization);
+                    statusLine = conn.readLine();
+                    if (statusLine == null) {
+                        throw new IOException("Connection closed by server");
                     }
+                    break;
+                } catch (IOException ex) {
+                    pool.release(conn, false);
+                    conn = null;
+                    // a persistent connection may have been closed by S3
+                    // just before we sent the request: the request is sent
+                    // again, unless its content has already been sent
+                    if (!reused || (_content != null)
+                            || (ex instanceof SocketTimeoutException)
+                            || ((hedge != null) && hedge.isDone())) {
+                        throw ex;
+                    }
+                    _log.log("Retrying request on a new connection:" + ex);
                 }
             }
+
+            // 1xx responses are followed by the actual response
+            int responseCode = getResponseCode(statusLine);
+            while ((responseCode / 100) == 1) {
+                while (conn.readLine().length() > 0) {
+                }
+                statusLine = conn.readLine();
+                if (statusLine == null) {
+                    throw new IOException("Connection closed by server");
+                }
+                responseCode = getResponseCode(statusLine);
+            }
+
+            Response response = new Response(conn, statusLine, responseCode);
+            for (String line = conn.readLine(); (line != null)
+                    && (line.length() > 0); line = conn.readLine()) {
+                response._headers.add(line);
+            }
+            conn = null;
+            return response;
+        } finally {
+            if (conn != null) {
+                pool.release(conn, false);
+            }
+        }
+    }
+
+    /**
+     * Sends the request, and sends it again on another connection if there
+     * is no response after the given delay: the first response is used and
+     * the other request is cancelled (its connection is closed).
+     * The request is sent by the calling thread, the second one by a thread
+     * of the hedge pool.
+     */
+    private Response executeHedged(final String hostHeader, final String host,
+            final int port, final String authorization, final int kind,
+            long delay) throws IOException {
+        final S3RequestPolicy policy = S3RequestPolicy.getInstance();
+        final Hedge hedge = new Hedge();
+        final Runnable second = new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    Response response = execute(hostHeader, host, port,
+                            authorization, kind, hedge);
+                    policy.latency(kind, System.currentTimeMillis() - start);
+                    hedge.done(response, false);
+                } catch (IOException ex) {
+                    hedge.failed(ex, false);
+                }
+            }
+        };
+        TimerTask trigger = new TimerTask() {
+            public void run() {
+                if (hedge.hedge() && !policy.getHedgePool().execute(second, _log)) {
+                    hedge.failed(new IOException("No thread"), false);
+                }
+            }
+        };
+        policy.getTimer().schedule(trigger, delay);
+
+        long start = System.currentTimeMillis();
+        try {
+            Response response = execute(hostHeader, host, port, authorization,
+                    kind, hedge);
+            policy.latency(kind, System.currentTimeMillis() - start);
+            hedge.done(response, true);
+        } catch (IOException ex) {
+            hedge.failed(ex, true);
+        } finally {
+            trigger.cancel();
+        }
+        return hedge.getResponse();
+    }
+
+    /**
+     * The state of a request sent twice
+     */
+    private class Hedge {
+        /** the connections used by the requests */
+        private final List _conns = new ArrayList();
+
+        private final IOException[] _errors = new IOException[2];
+
+        private boolean _hedged = false;
+
+        private Response _response = null;
+
+        /**
+         * @return false if the request must not be sent
+         */
+        synchronized boolean started(S3Connection conn) {
+            if (_response != null) {
+                return false;
+            }
+            _conns.add(conn);
+            return true;
+        }
+
+        /**
+         * Called when the first request is late
+         * @return true if the second request must be sent
+         */
+        synchronized boolean hedge() {
+            if ((_response != null) || (_errors[0] != null)) {
+                return false;
+            }
+            _hedged = true;
+            S3RequestPolicy.getInstance().ntfHedge();
+            return true;
+        }
+
+        synchronized boolean isDone() {
+            return _response != null;
+        }
+
+        synchronized void done(Response response, boolean first) {
+            if (_response != null) {
+                // the other request was faster
+                response.close();
+                return;
+            }
+            _response = response;
+            if (!first) {
+                S3RequestPolicy.getInstance().ntfHedgeWin();
+            }
+            // the other request is cancelled
+            for (Iterator iter = _conns.iterator(); iter.hasNext();) {
+                S3Connection conn = (S3Connection) iter.next();
+                if (conn != response._conn) {
+                    conn.close();
+                }
+            }
+            notifyAll();
+        }
+
+        synchronized void failed(IOException ex, boolean first) {
+            _errors[first ? 0 : 1] = ex;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the response of one of the requests
+         * @throws IOException the error of the first request if both have
+         *  failed
+         */
+        synchronized Response getResponse() throws IOException {
+            while ((_response == null)
+                    && (_hedged ? (_errors[0] == null) || (_errors[1] == null)
+                            : (_errors[0] == null))) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (_response != null) {
+                return _response;
+            }
+            throw _errors[0];
+        }
+    }
+
+    /**
+     * The status line and the header of a response: its content is still
+     * to be read from the connection
+     */
+    private static class Response {
+        private final S3Connection _conn;
+
+        private final String _statusLine;
+
+        private final int _code;
+
+        private final List _headers = new ArrayList();
+
+        Response(S3Connection conn, String statusLine, int code) {
+            _conn = conn;
+            _statusLine = statusLine;
+            _code = code;
+        }
+
+        /**
+         * Gives back the connection of a response which is not used: the
+         * connection is closed
+         */
+        void close() {
+            S3ConnectionPool.getInstance().release(_conn, false);
+        }
+    }
+
+    private void sendRequest(S3Connection conn, String host,
+            String authorization) throws IOException {
+        conn.requestSent();
+        conn.write(_method + " " + _path
+                + ((_queryString != null) ? "?" + _queryString : "")
+                + " HTTP/1.1");
+        conn.write("Host: " + host);
+        conn.write("Authorization: " + authorization);
+        conn.write("Date: " + _httpDate);
+        conn.write("User-Agent: " + Version.USER_AGENT);
+        if (_contentMd5 != null) {
+            conn.write("Content-MD5: " + _contentMd5);
+        }
+        if (_contentType != null) {
+            conn.write("Content-Type: " + _contentType);
+        }
+        if (_content != null) {
+            conn.write("Content-Length: " + _contentLength);
+        } else {
+            conn.write("Content-Length: 0");
+        }
+        for (Iterator i = _metaInfos.keySet().iterator(); i.hasNext();) {
+            String key = (String) i.next();
+            List s = (List) _metaInfos.get(key);
+            conn.write(key + ": " + concatenateList(s));
+        }
+        for (Iterator i = _headers.keySet().iterator(); i.hasNext();) {
+            String key = (String) i.next();
+            conn.write(key + ": " + _headers.get(key));
+        }
+        conn.write("");
+
+        OutputStream dataout = conn.getOutputStream();
+        if (_content != null) {
+            long remaining = _contentLength;
+            int len = 0;
+            byte[] data = new byte[BUFFER_SIZE];
+            _log.log("Starting copy of content");
+            try {
+                while ((remaining > 0)
+                        && ((len = _content.read(data, 0, (int) Math.min(
+                                data.length, remaining))) >= 0)) {
+                    dataout.write(data, 0, len);
+                    remaining -= len;
+                    if (_notify != null) {
+                        if (!_notify.ntfUploaded(len)) {
+                            throw new IOException("upload aborted");
+                        }
+                    }
+                }
+            } finally {
+                try {
+                    _content.close();
+                } catch (IOException ex) {
+                    _log.log("Error closing inputstream", ex);
+                }
+            }
+            if (remaining > 0) {
+                throw new IOException("Content shorter than its length:"
+                        + _contentLength);
+            }
+            _log.log("@@ content copied over.");
+        }
+        dataout.flush();
+    }
+
+    private int getResponseCode(String statusLine) throws IOException {
+        // HTTP/1.1 200 OK
+        int start = statusLine.indexOf(' ');
+        int end = statusLine.indexOf(' ', start + 1);
+        try {
+            return Integer.parseInt((end > 0) ? statusLine.substring(
+                    start + 1, end) : statusLine.substring(start + 1));
+        } catch (RuntimeException ex) {
+            throw new IOException("Invalid status line:" + statusLine);
         }
     }
 
@@ -359,11 +754,28 @@ public class S3Request {
             buf.append(_path.substring(0, queryIndex));
         }
 
-        // ...unless there is an acl or torrent parameter
-        if (_path.matches(".*[&?]acl($|=|&).*")) {
-            buf.append("?acl");
-        } else if (_path.matches(".*[&?]torrent($|=|&).*")) {
-            buf.append("?torrent");
+        // ...unless they are sub-resources (acl, torrent, multipart
+        // uploads...): they are signed, sorted by name
+        String query = (queryIndex == -1) ? _queryString : _path
+                .substring(queryIndex + 1);
+        if (query != null) {
+            SortedMap subResources = new TreeMap();
+            StringTokenizer st = new StringTokenizer(query, "&");
+            while (st.hasMoreTokens()) {
+                String parameter = st.nextToken();
+                int index = parameter.indexOf('=');
+                String name = (index < 0) ? parameter : parameter.substring(
+                        0, index);
+                if (SUB_RESOURCES.contains(name)) {
+                    subResources.put(name, parameter);
+                }
+            }
+            char separator = '?';
+            for (Iterator i = subResources.values().iterator(); i.hasNext();) {
+                buf.append(separator);
+                buf.append((String) i.next());
+                separator = '&';
+            }
         }
 
         return buf.toString();
@@ -462,21 +874,4 @@ public class S3Request {
             }
         };
     }
-
-    private class ConnectionCloser implements InputStreamObserver {
-        private final HttpURLConnection _conn;
-
-        ConnectionCloser(HttpURLConnection conn) {
-            _conn = conn;
-        }
-
-        public void closeConnection() {
-            if (_conn != null) {
-                try {
-                    _conn.disconnect();
-                } catch (Exception ex) {
-                }
-            }
-        }
-    }
 }
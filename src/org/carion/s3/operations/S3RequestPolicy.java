@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Timer;
+
+import org.carion.s3.util.WorkerPool;
+
+/**
+ * How the requests to S3 are timed out, retried and hedged, and the
+ * counters of what has been done.
+ *
+ * <ul>
+ * <li>a request is timed out when S3 doesn't send anything for
+ * s3dav.s3.requestTimeout seconds (20) for a HEAD, a DELETE or a listing,
+ * and s3dav.s3.readTimeout seconds (120) for the other requests.</li>
+ * <li>a request which times out, fails to connect or gets a 500 or 503
+ * response is sent again (if its content can be sent again), up to
+ * s3dav.s3.retries times (3). The delay before a retry is random, up to
+ * s3dav.s3.retryDelay ms (100) doubled at each attempt, and at most
+ * s3dav.s3.maxRetryDelay ms (5000).</li>
+ * <li>when the response to a HEAD, a GET or a listing takes longer than most
+ * of the previous ones (the s3dav.s3.hedgePercentile percentile, 95), the
+ * same request is sent on another connection, and the first response is
+ * used. At most 10% of the requests are hedged. Set s3dav.s3.hedge to false
+ * to disable it.</li>
+ * </ul>
+ *
+ * @author pcarion
+ */
+public class S3RequestPolicy {
+    final static int KIND_HEAD = 0;
+
+    final static int KIND_GET = 1;
+
+    final static int KIND_LIST = 2;
+
+    final static int KIND_DELETE = 3;
+
+    final static int KIND_OTHER = 4;
+
+    /** the number of latencies kept for each kind of request */
+    private final static int WINDOW = 256;
+
+    /** no hedge until we have that many latencies */
+    private final static int MIN_SAMPLES = 20;
+
+    private final static long MIN_HEDGE_DELAY = 20;
+
+    private final static int MAX_HEDGE_PERCENT = 10;
+
+    private static S3RequestPolicy _instance = null;
+
+    private final int _retries;
+
+    private final long _retryDelay;
+
+    private final long _maxRetryDelay;
+
+    private final int _requestTimeout;
+
+    private final int _transferTimeout;
+
+    private final boolean _hedge;
+
+    private final int _hedgePercentile;
+
+    private final Latencies[] _latencies = new Latencies[] { new Latencies(),
+            new Latencies(), new Latencies() };
+
+    private final Random _random = new Random();
+
+    private final Timer _timer = new Timer(true);
+
+    private final WorkerPool _hedges = new WorkerPool("s3-hedge", 16, 0);
+
+    private long _requestCount = 0;
+
+    private long _retryCount = 0;
+
+    private long _timeoutCount = 0;
+
+    private long _failureCount = 0;
+
+    private long _hedgeCount = 0;
+
+    private long _hedgeWinCount = 0;
+
+    public static synchronized S3RequestPolicy getInstance() {
+        if (_instance == null) {
+            _instance = new S3RequestPolicy();
+        }
+        return _instance;
+    }
+
+    private S3RequestPolicy() {
+        _retries = Integer.getInteger("s3dav.s3.retries", 3).intValue();
+        _retryDelay = Integer.getInteger("s3dav.s3.retryDelay", 100)
+                .intValue();
+        _maxRetryDelay = Integer.getInteger("s3dav.s3.maxRetryDelay", 5000)
+                .intValue();
+        _requestTimeout = Integer.getInteger("s3dav.s3.requestTimeout", 20)
+                .intValue() * 1000;
+        _transferTimeout = Integer.getInteger("s3dav.s3.readTimeout", 120)
+                .intValue() * 1000;
+        _hedge = !"false".equals(System.getProperty("s3dav.s3.hedge"));
+        _hedgePercentile = Math.min(99, Math.max(50, Integer.getInteger(
+                "s3dav.s3.hedgePercentile", 95).intValue()));
+    }
+
+    /**
+     * @return the read timeout of a request, in ms
+     */
+    int getTimeout(int kind) {
+        return (kind == KIND_GET) || (kind == KIND_OTHER) ? _transferTimeout
+                : _requestTimeout;
+    }
+
+    int getMaxRetries() {
+        return _retries;
+    }
+
+    /**
+     * @param attempt the number of attempts already done (1 for the first
+     *  retry)
+     * @return how long to wait before the retry: a random delay ("full
+     *  jitter"), so that the requests failing together are not retried
+     *  together
+     */
+    long getRetryDelay(int attempt) {
+        long max = Math.min(_retryDelay << Math.min(attempt - 1, 20),
+                _maxRetryDelay);
+        synchronized (_random) {
+            return (long) (_random.nextDouble() * max);
+        }
+    }
+
+    /**
+     * @return the time after which the request is hedged, -1 if it must
+     *  not be hedged
+     */
+    long getHedgeDelay(int kind) {
+        if (!_hedge || (kind >= _latencies.length)) {
+            return -1;
+        }
+        synchronized (this) {
+            if ((_hedgeCount * 100) >= (_requestCount * MAX_HEDGE_PERCENT)) {
+                return -1;
+            }
+        }
+        long percentile = _latencies[kind].getPercentile(_hedgePercentile);
+        return (percentile < 0) ? -1 : Math.max(percentile, MIN_HEDGE_DELAY);
+    }
+
+    /**
+     * Records the time taken by S3 to answer a request
+     */
+    void latency(int kind, long ms) {
+        if (kind < _latencies.length) {
+            _latencies[kind].add(ms);
+        }
+    }
+
+    Timer getTimer() {
+        return _timer;
+    }
+
+    WorkerPool getHedgePool() {
+        return _hedges;
+    }
+
+    synchronized void ntfRequest() {
+        _requestCount++;
+    }
+
+    synchronized void ntfRetry(boolean timeout) {
+        _retryCount++;
+        if (timeout) {
+            _timeoutCount++;
+        }
+    }
+
+    synchronized void ntfTimeout() {
+        _timeoutCount++;
+    }
+
+    synchronized void ntfFailure() {
+        _failureCount++;
+    }
+
+    synchronized void ntfHedge() {
+        _hedgeCount++;
+    }
+
+    synchronized void ntfHedgeWin() {
+        _hedgeWinCount++;
+    }
+
+    public synchronized long getRequests() {
+        return _requestCount;
+    }
+
+    public synchronized long getRetries() {
+        return _retryCount;
+    }
+
+    public synchronized long getTimeouts() {
+        return _timeoutCount;
+    }
+
+    public synchronized long getFailures() {
+        return _failureCount;
+    }
+
+    public synchronized long getHedges() {
+        return _hedgeCount;
+    }
+
+    public synchronized long getHedgeWins() {
+        return _hedgeWinCount;
+    }
+
+    public boolean isHedgeEnabled() {
+        return _hedge;
+    }
+
+    public int getHedgePercentile() {
+        return _hedgePercentile;
+    }
+
+    /**
+     * @return the current percentile of the latencies of the HEAD requests
+     *  (ms), -1 if unknown
+     */
+    public long getHeadLatency() {
+        return _latencies[KIND_HEAD].getPercentile(_hedgePercentile);
+    }
+
+    public long getGetLatency() {
+        return _latencies[KIND_GET].getPercentile(_hedgePercentile);
+    }
+
+    public long getListLatency() {
+        return _latencies[KIND_LIST].getPercentile(_hedgePercentile);
+    }
+
+    /**
+     * The last latencies of a kind of request. The percentile is computed
+     * again every 16 latencies.
+     */
+    private static class Latencies {
+        private final long[] _values = new long[WINDOW];
+
+        private int _count = 0;
+
+        private long _percentile = -1;
+
+        private int _percentileOf = -1;
+
+        synchronized void add(long ms) {
+            _values[_count % WINDOW] = ms;
+            _count++;
+        }
+
+        synchronized long getPercentile(int percentile) {
+            if (_count < MIN_SAMPLES) {
+                return -1;
+            }
+            if ((_percentileOf < 0) || ((_count - _percentileOf) >= 16)) {
+                int size = Math.min(_count, WINDOW);
+                long[] sorted = new long[size];
+                System.arraycopy(_values, 0, sorted, 0, size);
+                Arrays.sort(sorted);
+                _percentile = sorted[Math.min(size - 1, (size * percentile) / 100)];
+                _percentileOf = _count;
+            }
+            return _percentile;
+        }
+    }
+
+}
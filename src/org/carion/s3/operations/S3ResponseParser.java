@@ -16,6 +16,7 @@
 package org.carion.s3.operations;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 
 import org.carion.s3.util.BaseXmlParser;
@@ -31,6 +32,10 @@ public class S3ResponseParser {
         _inputSource = new InputSource(new StringReader(xml));
     }
 
+    S3ResponseParser(InputStream in) {
+        _inputSource = new InputSource(in);
+    }
+
     S3Error parseError() throws IOException, SAXException {
         S3ErrorImpl error = new S3ErrorImpl();
         XMLReader xr = Util.createXMLReader();
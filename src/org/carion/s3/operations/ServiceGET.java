@@ -50,14 +50,8 @@ public class ServiceGET extends BaseS3Operation {
         if (!process(X, false)) {
             throw new IOException("Can't get buckets");
         }
-        String xmlData = getXmldata();
-        S3ResponseParser parser = new S3ResponseParser(xmlData);
-        try {
-            parser.parse(new Handler());
-            return _buckets;
-        } catch (Exception ex) {
-            throw new IOException("Can't parse buckets:" + ex);
-        }
+        parseXmlResponse(new Handler());
+        return _buckets;
     }
 
     void addBucket(String name, Date creationdate) {
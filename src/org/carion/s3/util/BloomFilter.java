@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.util;
+
+/**
+ * A Bloom filter of strings: mightContain() never returns false for a string
+ * which has been added, and returns true for a string which has not been
+ * added with the given probability (the false positive rate).
+ * The filter uses about 10 bits per string for a 1% false positive rate.
+ *
+ * The positions of a string are computed from two hashes of the string
+ * (h1 + i * h2), see "Less Hashing, Same Performance: Building a Better
+ * Bloom Filter" (Kirsch, Mitzenmacher).
+ */
+public class BloomFilter {
+    private final long[] _bits;
+
+    private final int _size;
+
+    private final int _hashes;
+
+    /**
+     * @param count the number of strings which will be added
+     * @param falsePositiveRate the expected false positive rate, once the
+     *  strings have been added
+     */
+    public BloomFilter(int count, double falsePositiveRate) {
+        count = Math.max(count, 1);
+        double ln2 = Math.log(2);
+        int size = (int) Math.ceil(-count * Math.log(falsePositiveRate)
+                / (ln2 * ln2));
+        _size = Math.max(64, size);
+        _bits = new long[(_size + 63) / 64];
+        _hashes = Math.max(1, (int) Math.round(((double) _size / count)
+                * ln2));
+    }
+
+    public void add(String value) {
+        int h1 = value.hashCode();
+        int h2 = hash2(value);
+        for (int i = 0; i < _hashes; i++) {
+            int bit = position(h1 + i * h2);
+            _bits[bit >>> 6] |= (1L << (bit & 63));
+        }
+    }
+
+    public boolean mightContain(String value) {
+        int h1 = value.hashCode();
+        int h2 = hash2(value);
+        for (int i = 0; i < _hashes; i++) {
+            int bit = position(h1 + i * h2);
+            if ((_bits[bit >>> 6] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the size of the filter, in bytes
+     */
+    public int getBytes() {
+        return _bits.length * 8;
+    }
+
+    private int position(int hash) {
+        return (hash & Integer.MAX_VALUE) % _size;
+    }
+
+    /**
+     * The FNV-1a hash of the string, independent from String.hashCode()
+     */
+    private static int hash2(String value) {
+        int hash = 0x811c9dc5;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x01000193;
+        }
+        // a null step would give a single position
+        return hash | 1;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a content sent with the HTTP/1.1 chunked transfer encoding.
+ * The end of the content is reached after the last chunk (and the trailer)
+ * has been read: the wrapped stream is then positioned at the beginning of
+ * the next response, and is never closed by this stream.
+ */
+public class ChunkedInputStream extends InputStream {
+    private final InputStream _in;
+
+    /** bytes remaining in the current chunk */
+    private long _remaining = 0;
+
+    private boolean _eof = false;
+
+    private boolean _closed = false;
+
+    public ChunkedInputStream(InputStream in) {
+        _in = in;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return (read == -1) ? -1 : (b[0] & 0xff);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (_closed) {
+            throw new IOException("Attempted read from closed stream.");
+        }
+        if (_eof) {
+            return -1;
+        }
+        if (_remaining == 0) {
+            nextChunk();
+            if (_eof) {
+                return -1;
+            }
+        }
+        int read = _in.read(b, off, (int) Math.min(len, _remaining));
+        if (read == -1) {
+            throw new IOException("Unexpected end of chunked content");
+        }
+        _remaining -= read;
+        if (_remaining == 0) {
+            // CRLF at the end of the chunk
+            readLine();
+        }
+        return read;
+    }
+
+    public int available() throws IOException {
+        if (_eof || _closed) {
+            return 0;
+        }
+        return (int) Math.min(_in.available(), _remaining);
+    }
+
+    /**
+     * @return true when the whole content has been read
+     */
+    public boolean isEof() {
+        return _eof;
+    }
+
+    public void close() {
+        _closed = true;
+    }
+
+    private void nextChunk() throws IOException {
+        String line = readLine();
+        int index = line.indexOf(';');
+        if (index >= 0) {
+            // chunk extension
+            line = line.substring(0, index);
+        }
+        try {
+            _remaining = Long.parseLong(line.trim(), 16);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid chunk size:" + line);
+        }
+        if (_remaining == 0) {
+            // last chunk: skip the trailer
+            while (readLine().length() > 0) {
+            }
+            _eof = true;
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuffer sb = new StringBuffer();
+        int c;
+        while ((c = _in.read()) != '\n') {
+            if (c == -1) {
+                throw new IOException("Unexpected end of chunked content");
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+}
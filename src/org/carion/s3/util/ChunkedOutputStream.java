@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the data using the HTTP/1.1 chunked transfer encoding, used when
+ * the length of a response is not known when the response starts.
+ * Each call to write() produces one chunk, so this stream should be wrapped
+ * in a BufferedOutputStream.
+ * Closing this stream writes the last chunk but doesn't close the wrapped
+ * stream: the connection may be kept alive.
+ */
+public class ChunkedOutputStream extends OutputStream {
+    private final static byte[] CRLF = { '\r', '\n' };
+
+    private final OutputStream _out;
+
+    private boolean _closed = false;
+
+    public ChunkedOutputStream(OutputStream out) {
+        _out = out;
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (_closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (len == 0) {
+            // an empty chunk would mark the end of the content
+            return;
+        }
+        _out.write(Integer.toHexString(len).getBytes());
+        _out.write(CRLF);
+        _out.write(b, off, len);
+        _out.write(CRLF);
+    }
+
+    public void flush() throws IOException {
+        _out.flush();
+    }
+
+    public void close() throws IOException {
+        if (!_closed) {
+            _closed = true;
+            _out.write('0');
+            _out.write(CRLF);
+            _out.write(CRLF);
+            _out.flush();
+        }
+    }
+}
@@ -137,7 +137,9 @@ public class ContentLengthInputStream extends InputStream {
             len = (int) (_contentLength - _pos);
         }
         int count = _in.read(b, off, len);
-        _pos += count;
+        if (count > 0) {
+            _pos += count;
+        }
         return count;
     }
 
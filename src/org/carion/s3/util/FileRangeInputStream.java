@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads a range of bytes of a file.
+ * The range can also be sent to a channel (a socket) with transferTo: the
+ * bytes are then copied by the operating system, without going through
+ * the java heap (zero copy).
+ *
+ * @author pcarion
+ */
+public class FileRangeInputStream extends InputStream {
+    private final FileInputStream _in;
+
+    private final FileChannel _channel;
+
+    private long _position;
+
+    private final long _end;
+
+    /**
+     * @param start the first byte of the range
+     * @param end the last byte of the range (included)
+     */
+    public FileRangeInputStream(File file, long start, long end)
+            throws IOException {
+        _in = new FileInputStream(file);
+        _channel = _in.getChannel();
+        _position = start;
+        _end = end + 1;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int len = read(b, 0, 1);
+        return (len <= 0) ? -1 : (b[0] & 0xff);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (_position >= _end) {
+            return -1;
+        }
+        len = (int) Math.min(len, _end - _position);
+        int count = _channel.read(ByteBuffer.wrap(b, off, len), _position);
+        if (count < 0) {
+            throw new IOException("Unexpected end of file");
+        }
+        _position += count;
+        return count;
+    }
+
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, _end - _position);
+    }
+
+    /**
+     * Sends the remaining bytes of the range to a (blocking) channel
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+        while (_position < _end) {
+            long count = _channel.transferTo(_position, _end - _position,
+                    target);
+            if (count <= 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            _position += count;
+        }
+    }
+
+    public void close() throws IOException {
+        _in.close();
+    }
+}
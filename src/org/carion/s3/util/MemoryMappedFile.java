@@ -36,16 +36,17 @@ public class MemoryMappedFile {
         _file = file;
     }
 
-    public void copy(InputStream in, int length) throws IOException{
+    public void copy(InputStream in, long length) throws IOException{
         FileOutputStream fos = null;
         try {
             fos = new FileOutputStream(_file);
             byte[] data = new byte[1024];
             if (length > 0) {
-                int tobeRead = length;
+                long tobeRead = length;
 
                 while (tobeRead > 0) {
-                    int len = in.read(data, 0, Math.min(tobeRead, data.length));
+                    int len = in.read(data, 0, (int) Math.min(tobeRead,
+                            data.length));
                     fos.write(data, 0, len);
                     tobeRead -= len;
                 }
@@ -71,7 +72,7 @@ public class MemoryMappedFile {
     public ByteBuffer getByteBuffer() throws IOException {
         FileChannel roChannel = new RandomAccessFile(_file, "r").getChannel();
         ByteBuffer roBuf = roChannel.map(FileChannel.MapMode.READ_ONLY, 0,
-                (int) roChannel.size());
+                roChannel.size());
         return roBuf;
     }
 
@@ -47,4 +47,20 @@ public class MimeTypes {
         }
         return mt;
     }
+
+    /**
+     * @param contentType the content type stored with the object, if known
+     * @return the mime type of the extension, or the stored content type
+     *         when the extension is unknown
+     */
+    public static String ext2mimeType(String ext, String contentType) {
+        String mt = ext2mimeType(ext);
+        if (DEFAULT_MIME_TYPE.equals(mt) && (contentType != null)
+                && !contentType.startsWith("application/x-www-form-urlencoded")) {
+            // x-www-form-urlencoded is what was stored when the
+            // client didn't send any content type
+            mt = contentType;
+        }
+        return mt;
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Shares the outcome of a call between the threads which ask for the same
+ * key at the same time: the first thread makes the call, the other ones wait
+ * for its result (or its exception).
+ * Only idempotent calls (HEAD, listing, GET) can be shared.
+ */
+public class SingleFlight {
+    public interface Call {
+        Object call() throws IOException;
+    }
+
+    /** key -> Flight */
+    private final Map _flights = new HashMap();
+
+    private final boolean _enabled;
+
+    private long _calls = 0;
+
+    private long _collapsed = 0;
+
+    public SingleFlight(boolean enabled) {
+        _enabled = enabled;
+    }
+
+    /**
+     * @return the result of the call, made by this thread or by a
+     *         concurrent one
+     */
+    public Object execute(String key, Call call) throws IOException {
+        if (!_enabled) {
+            return call.call();
+        }
+        Flight flight;
+        boolean leader = false;
+        synchronized (this) {
+            flight = (Flight) _flights.get(key);
+            if (flight == null) {
+                flight = new Flight();
+                _flights.put(key, flight);
+                leader = true;
+                _calls++;
+            } else {
+                _collapsed++;
+            }
+        }
+        if (leader) {
+            Object result = null;
+            IOException error = null;
+            boolean done = false;
+            try {
+                result = call.call();
+                done = true;
+            } catch (IOException ex) {
+                error = ex;
+            } finally {
+                synchronized (this) {
+                    if (_flights.get(key) == flight) {
+                        _flights.remove(key);
+                    }
+                }
+                if (done) {
+                    flight.done(result, null);
+                } else {
+                    flight.done(null, (error != null) ? error
+                            : new IOException("Shared call failed:" + key));
+                }
+            }
+        }
+        return flight.get();
+    }
+
+    /**
+     * The calls in progress for the keys starting with the prefix are not
+     * shared anymore with the new callers (the object has changed)
+     */
+    public synchronized void forget(String prefix) {
+        for (Iterator iter = _flights.keySet().iterator(); iter.hasNext();) {
+            if (((String) iter.next()).startsWith(prefix)) {
+                iter.remove();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    /**
+     * @return the number of calls made
+     */
+    public synchronized long getCalls() {
+        return _calls;
+    }
+
+    /**
+     * @return the number of calls saved by sharing the result of another
+     *         one
+     */
+    public synchronized long getCollapsed() {
+        return _collapsed;
+    }
+
+    private static class Flight {
+        private boolean _done = false;
+
+        private Object _result;
+
+        private IOException _error;
+
+        synchronized void done(Object result, IOException error) {
+            _result = result;
+            _error = error;
+            _done = true;
+            notifyAll();
+        }
+
+        synchronized Object get() throws IOException {
+            while (!_done) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (_error != null) {
+                throw _error;
+            }
+            return _result;
+        }
+    }
+}
@@ -16,12 +16,17 @@
 package org.carion.s3.util;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -29,12 +34,15 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.NoSuchElementException;
+import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
 
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.XMLReaderFactory;
 
 public class Util {
     private static final int DEFAULT_BUFFER_SIZE = 1024 * 4;
@@ -67,10 +75,10 @@ public class Util {
         return new String(bos.toByteArray());
     }
 
-    public static int copyStream(InputStream input, OutputStream output)
+    public static long copyStream(InputStream input, OutputStream output)
             throws IOException {
         byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-        int count = 0;
+        long count = 0;
         int n = 0;
         while (-1 != (n = input.read(buffer))) {
             output.write(buffer, 0, n);
@@ -90,7 +98,7 @@ public class Util {
             return null;
         } else {
             MemoryMappedFile mf = MemoryMappedFile.mk();
-            mf.copy(in, (int) contentLength);
+            mf.copy(in, contentLength);
             return mf;
         }
     }
@@ -100,29 +108,42 @@ public class Util {
     }
 
     public static String getHttpDate(Date date) {
-        return httpDateFormat.format(date);
+        // a SimpleDateFormat can't be used by several threads
+        synchronized (httpDateFormat) {
+            return httpDateFormat.format(date);
+        }
     }
 
     public static Date parseHttpdate(String str) {
-        try {
-            return httpDateFormat.parse(str);
-        } catch (ParseException ex) {
-            ex.printStackTrace();
+        Date date = parseHttpdateOrNull(str);
+        if (date == null) {
             return new Date();
         }
+        return date;
     }
 
-    public static XMLReader createXMLReader() {
+    /**
+     * @return the date, or null if str is not a valid HTTP date
+     */
+    public static Date parseHttpdateOrNull(String str) {
         try {
-            return XMLReaderFactory.createXMLReader();
-        } catch (SAXException e) {
-            // oops, lets try doing this (needed in 1.4)
-            System.setProperty("org.xml.sax.driver",
-                    "org.apache.crimson.parser.XMLReaderImpl");
+            synchronized (httpDateFormat) {
+                return httpDateFormat.parse(str.trim());
+            }
+        } catch (ParseException ex) {
+            return null;
         }
+    }
+
+    public static XMLReader createXMLReader() {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        // the handlers use the local names of the elements
+        factory.setNamespaceAware(true);
         try {
-            // try once more
-            return XMLReaderFactory.createXMLReader();
+            return factory.newSAXParser().getXMLReader();
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(
+                    "Couldn't initialize a sax driver for the XMLReader");
         } catch (SAXException e) {
             throw new RuntimeException(
                     "Couldn't initialize a sax driver for the XMLReader");
@@ -309,6 +330,78 @@ public class Util {
         }
     }
 
+    /**
+     * @return a MessageDigest computing a MD5
+     */
+    public static MessageDigest mkMd5Digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            // should not happen
+            throw new RuntimeException("Could not find MD5 algorithm", ex);
+        }
+    }
+
+    public static String toHex(byte[] data) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < data.length; i++) {
+            int b = data[i] & 0xff;
+            if (b < 0x10) {
+                sb.append('0');
+            }
+            sb.append(Integer.toHexString(b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads a properties file
+     */
+    public static Properties loadProperties(File file) throws IOException {
+        Properties properties = new Properties();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    /**
+     * Writes a properties file: the properties are written in a temporary
+     * file which is then renamed, so that a crash never leaves a
+     * truncated file
+     */
+    public static void storeProperties(Properties properties, File file,
+            String comment) throws IOException {
+        storeProperties(properties, file, comment, false);
+    }
+
+    /**
+     * @param sync true to force the file on the disk before renaming it
+     */
+    public static void storeProperties(Properties properties, File file,
+            String comment, boolean sync) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            properties.store(out, comment);
+            if (sync) {
+                out.getFD().sync();
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // can't rename over an existing file under windows
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't rename:" + tmp);
+            }
+        }
+    }
+
     public static String urlEncode(String str) {
         try {
             return URLEncoder.encode(str, "UTF-8");
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.util;
+
+import java.util.LinkedList;
+
+import org.carion.s3.S3Log;
+
+/**
+ * A bounded pool of worker threads.
+ * At most maxThreads tasks run at the same time, and at most maxQueue tasks
+ * wait for a thread: when the queue is full, a task is either rejected
+ * (execute) or the caller waits for some room in the queue
+ * (executeAndWait).
+ * The threads are created on demand and stop after being idle for a minute.
+ * The exceptions thrown by a task are logged in the log given with the
+ * task: the worker goes on with the next task, unless it is an Error.
+ *
+ * @author pcarion
+ */
+public class WorkerPool {
+    private final static long IDLE_TIMEOUT = 60 * 1000;
+
+    private final String _name;
+
+    private final int _maxThreads;
+
+    private final int _maxQueue;
+
+    private final LinkedList _queue = new LinkedList();
+
+    private int _threads = 0;
+
+    private int _idleThreads = 0;
+
+    private long _rejected = 0;
+
+    private int _threadCount = 0;
+
+    public WorkerPool(String name, int maxThreads, int maxQueue) {
+        _name = name;
+        _maxThreads = maxThreads;
+        _maxQueue = maxQueue;
+    }
+
+    /**
+     * @param log where the failure of the task is logged
+     * @return false if the task has been rejected because the queue is full
+     */
+    public synchronized boolean execute(Runnable task, S3Log log) {
+        if (!canQueue()) {
+            _rejected++;
+            return false;
+        }
+        queue(new Job(task, log));
+        return true;
+    }
+
+    /**
+     * Queues the task, waiting for some room in the queue if needed.
+     * @param log where the failure of the task is logged
+     */
+    public synchronized void executeAndWait(Runnable task, S3Log log)
+            throws InterruptedException {
+        while (!canQueue()) {
+            wait();
+        }
+        queue(new Job(task, log));
+    }
+
+    private boolean canQueue() {
+        return (_idleThreads > _queue.size()) || (_threads < _maxThreads)
+                || (_queue.size() < _maxQueue);
+    }
+
+    private void queue(Job job) {
+        _queue.addLast(job);
+        startWorker();
+        notifyAll();
+    }
+
+    /**
+     * Starts a thread if there are more queued tasks than idle threads
+     */
+    private void startWorker() {
+        if ((_idleThreads < _queue.size()) && (_threads < _maxThreads)) {
+            _threads++;
+            Worker worker = new Worker(_name + "-" + (++_threadCount));
+            worker.start();
+        }
+    }
+
+    /**
+     * Called when a worker is stopped by an error
+     */
+    private synchronized void workerStopped() {
+        _threads--;
+        startWorker();
+        notifyAll();
+    }
+
+    private synchronized Job nextJob() {
+        long limit = System.currentTimeMillis() + IDLE_TIMEOUT;
+        while (_queue.isEmpty()) {
+            long wait = limit - System.currentTimeMillis();
+            if (wait <= 0) {
+                _threads--;
+                return null;
+            }
+            _idleThreads++;
+            try {
+                wait(wait);
+            } catch (InterruptedException ex) {
+                _threads--;
+                return null;
+            } finally {
+                _idleThreads--;
+            }
+        }
+        Job job = (Job) _queue.removeFirst();
+        // some room in the queue
+        notifyAll();
+        return job;
+    }
+
+    public synchronized int getThreads() {
+        return _threads;
+    }
+
+    public synchronized int getActiveThreads() {
+        return _threads - _idleThreads;
+    }
+
+    public synchronized int getQueueSize() {
+        return _queue.size();
+    }
+
+    public synchronized long getRejected() {
+        return _rejected;
+    }
+
+    public int getMaxThreads() {
+        return _maxThreads;
+    }
+
+    public int getMaxQueue() {
+        return _maxQueue;
+    }
+
+    /**
+     * A queued task, and the log where its failure is logged
+     */
+    private static class Job {
+        private final Runnable _task;
+
+        private final S3Log _log;
+
+        Job(Runnable task, S3Log log) {
+            _task = task;
+            _log = log;
+        }
+    }
+
+    private class Worker extends Thread {
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        public void run() {
+            Job job = null;
+            try {
+                while ((job = nextJob()) != null) {
+                    try {
+                        job._task.run();
+                    } catch (RuntimeException ex) {
+                        // the worker survives a failing task
+                        job._log.log("Task failed in " + getName(), ex);
+                    } catch (Error ex) {
+                        // out of memory...: the worker is not reliable
+                        // anymore
+                        job._log.log("Task failed in " + getName(), ex);
+                        throw ex;
+                    }
+                }
+            } finally {
+                if (job != null) {
+                    workerStopped();
+                }
+            }
+        }
+    }
+}
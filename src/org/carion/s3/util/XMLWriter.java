@@ -15,13 +15,35 @@
  */
 package org.carion.s3.util;
 
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Builds a XML document.
+ * The document is either kept in memory (see getData) or, when a Writer is
+ * given, written to that Writer as soon as the buffered data goes
+ * over FLUSH_SIZE: this is how a large PROPFIND response is sent
+ * while the folder is still being listed.
+ * A write error on the Writer is kept and reported by flush().
+ */
 public class XMLWriter {
+    private final static int FLUSH_SIZE = 8 * 1024;
+
     protected StringBuffer buffer = new StringBuffer();
 
     private final String _root;
 
+    private final Writer _out;
+
+    private IOException _error = null;
+
     public XMLWriter(String root, String xmlns) {
+        this(root, xmlns, null);
+    }
+
+    public XMLWriter(String root, String xmlns, Writer out) {
         _root = root;
+        _out = out;
         buffer.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n");
         buffer.append("<");
         buffer.append(root);
@@ -39,6 +61,38 @@ public class XMLWriter {
         return buffer.toString();
     }
 
+    /**
+     * Writes the buffered data to the Writer
+     * @throws IOException if this write, or a previous one, failed
+     */
+    public void flush() throws IOException {
+        write();
+        if (_error != null) {
+            throw _error;
+        }
+        _out.flush();
+    }
+
+    /**
+     * @throws IOException if a previous write to the Writer failed
+     */
+    public void checkError() throws IOException {
+        if (_error != null) {
+            throw _error;
+        }
+    }
+
+    private void write() {
+        if (_error == null) {
+            try {
+                _out.write(buffer.toString());
+            } catch (IOException ex) {
+                _error = ex;
+            }
+        }
+        buffer.setLength(0);
+    }
+
     public void property(String name, String value) {
         opening(name);
         buffer.append(value);
@@ -59,6 +113,9 @@ public class XMLWriter {
         buffer.append("</");
         buffer.append(name);
         buffer.append(">");
+        if ((_out != null) && (buffer.length() > FLUSH_SIZE)) {
+            write();
+        }
     }
 
     public void empty(String name) {
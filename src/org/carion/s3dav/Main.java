@@ -67,6 +67,8 @@ public class Main {
 
             S3RepositoryImpl repository = new S3RepositoryImpl(credential,
                     s3DavDir, uploadDir, log.getLogger(">s3>"));
+            repository.getUploadManager().recover();
+            repository.getTreeOperations().recover();
 
             // 3) Initialize admin server
             if (adminServerPort > 0) {
@@ -44,7 +44,9 @@ public class HandlerCopy extends HandlerBase {
             return;
         }
 
-        if (destination.equals(request.getResourceName())) {
+        if (destination.equals(request.getResourceName())
+                || destination.getUri().startsWith(
+                        request.getResourceName().getUri() + "/")) {
             response.setResponseStatus(HttpResponse.SC_FORBIDDEN);
             return;
         }
@@ -16,14 +16,19 @@
 package org.carion.s3dav.webdav;
 
 import java.io.IOException;
+import java.util.List;
 
+import org.carion.s3.S3DeleteException;
 import org.carion.s3.S3Repository;
 import org.carion.s3.S3UrlName;
 import org.carion.s3.http.HttpRequest;
 import org.carion.s3.http.HttpResponse;
+import org.carion.s3.util.XMLWriter;
 
 /**
  * Handles 'DELETE' request
+ * When some objects of a folder can't be deleted, the response is a
+ * multistatus listing those objects (the others have been deleted).
  * 
  * @author pcarion
  */
@@ -37,11 +42,35 @@ public class HandlerDelete extends HandlerBase {
         S3UrlName url = request.getUrl();
 
         if (_repository.objectExists(url)) {
-            _repository.deleteObject(url);
-            response.setResponseStatus(HttpResponse.SC_OK);
+            try {
+                _repository.deleteObject(url);
+                response.setResponseStatus(HttpResponse.SC_OK);
+            } catch (S3DeleteException ex) {
+                _log.log("Can't delete:" + url.getUri(), ex);
+                writeFailures(response, ex);
+                response.setResponseStatus(HttpResponse.SC_MULTI_STATUS);
+            }
         } else {
             response.setResponseStatus(HttpResponse.SC_NOT_FOUND);
         }
 
     }
+
+    private void writeFailures(HttpResponse response, S3DeleteException ex) {
+        XMLWriter writer = response.getXMLWriter("multistatus");
+        List names = ex.getNames();
+        for (int i = 0; i < names.size(); i++) {
+            S3UrlName name = (S3UrlName) names.get(i);
+            String status;
+            if ("AccessDenied".equals(ex.getCode(i))) {
+                status = "HTTP/1.1 403 Forbidden";
+            } else {
+                status = "HTTP/1.1 500 Internal Server Error";
+            }
+            writer.opening("response");
+            writer.property("href", name.getUrlEncodedUri());
+            writer.property("status", status);
+            writer.closing("response");
+        }
+    }
 }
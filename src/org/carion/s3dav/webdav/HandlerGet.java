@@ -16,7 +16,10 @@
 package org.carion.s3dav.webdav;
 
 import java.io.IOException;
+import java.util.Date;
+import java.util.StringTokenizer;
 
+import org.carion.s3.S3Object;
 import org.carion.s3.S3Repository;
 import org.carion.s3.S3Resource;
 import org.carion.s3.S3UrlName;
@@ -47,6 +50,20 @@ public class HandlerGet extends HandlerBase {
         S3UrlName href = request.getUrl();
 
         if (_repository.isAvailable()) {
+            if (!isConditional(request)) {
+                // a single GET to S3, which gives the metadata too
+                S3Object object = _repository.openObject(href);
+                if (object == null) {
+                    response.setResponseStatus(HttpResponse.SC_NOT_FOUND);
+                } else if (object instanceof S3Resource) {
+                    S3Resource resource = (S3Resource) object;
+                    setHeaders(resource, response);
+                    response.setContentStream(resource.getContent());
+                } else {
+                    response.setResponseStatus(HttpResponse.SC_FORBIDDEN);
+                }
+                return;
+            }
             boolean exists = _repository.objectExists(href);
             if (exists) {
                 boolean isDirectory = _repository.isFolder(href);
@@ -55,8 +72,34 @@ public class HandlerGet extends HandlerBase {
                     response.setResponseStatus(HttpResponse.SC_FORBIDDEN);
                 } else {
                     S3Resource resource = _repository.getResource(href);
+                    if (isNotModified(request, resource)) {
+                        setValidators(resource, response);
+                        response
+                                .setResponseStatus(HttpResponse.SC_NOT_MODIFIED);
+                        return;
+                    }
                     setHeaders(resource, response);
-                    response.setContentStream(resource.getContent());
+                    long length = resource.getLength();
+                    long[] range = getRange(request, resource, length);
+                    if (range == null) {
+                        response.setContentStream(resource.getContent());
+                    } else if (range[0] >= length) {
+                        response.setResponseHeader("Content-Range", "bytes */"
+                                + length);
+                        response.setResponseHeader("Content-Length", "0");
+                        response
+                                .setResponseStatus(HttpResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    } else {
+                        // only the range is read from S3
+                        response.setResponseHeader("Content-Range", "bytes "
+                                + range[0] + "-" + range[1] + "/" + length);
+                        response.setResponseHeader("Content-Length", String
+                                .valueOf(range[1] - range[0] + 1));
+                        response.setContentStream(resource.getContent(
+                                range[0], range[1]));
+                        response
+                                .setResponseStatus(HttpResponse.SC_PARTIAL_CONTENT);
+                    }
                 }
             } else {
                 response.setResponseStatus(HttpResponse.SC_NOT_FOUND);
@@ -66,6 +109,17 @@ public class HandlerGet extends HandlerBase {
         }
     }
 
+    /**
+     * @return true if the response depends on the metadata of the resource
+     *         (range or conditional request): they are checked, usually
+     *         against the metadata cache, before reading the content
+     */
+    private boolean isConditional(HttpRequest request) {
+        return (request.getHttpHeader("Range") != null)
+                || (request.getHttpHeader("If-None-Match") != null)
+                || (request.getHttpHeader("If-Modified-Since") != null);
+    }
+
     /**
      * Set the headers associated to the GET on the resource FYI: this method
      * will be reused in the HEAD request, that's why we have a separate method
@@ -80,12 +134,181 @@ public class HandlerGet extends HandlerBase {
     protected void setHeaders(S3Resource resource, HttpResponse response)
             throws IOException {
         // set HTTP headers
-        response.setResponseHeader("last-modified", Util.getHttpDate(resource
-                .getLastModified()));
+        setValidators(resource, response);
 
         response.setResponseHeader("Content-Length", String.valueOf(resource
                 .getLength()));
+        response.setResponseHeader("Accept-Ranges", "bytes");
 
         response.setContentType(resource.getContentType());
     }
+
+    /**
+     * Set the headers used by the clients to validate what they have in
+     * their cache
+     */
+    protected void setValidators(S3Resource resource, HttpResponse response)
+            throws IOException {
+        response.setResponseHeader("last-modified", Util.getHttpDate(resource
+                .getLastModified()));
+        String etag = resource.getETag();
+        if (etag != null) {
+            response.setResponseHeader("ETag", etag);
+        }
+    }
+
+    /**
+     * Checks the If-None-Match and If-Modified-Since headers against the
+     * metadata of the resource (which are usually in the metadata cache: no
+     * need to go to S3)
+     * 
+     * @return true if the client already has this version of the resource
+     */
+    protected boolean isNotModified(HttpRequest request, S3Resource resource)
+            throws IOException {
+        String ifNoneMatch = request.getHttpHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored when there is an If-None-Match
+            return matches(ifNoneMatch, resource.getETag());
+        }
+
+        String ifModifiedSince = request.getHttpHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            return isNotModifiedSince(ifModifiedSince, resource
+                    .getLastModified());
+        }
+        return false;
+    }
+
+    /**
+     * @param ifNoneMatch the value of an If-None-Match header
+     * @return true if one of the entity tags of the header matches the
+     *         entity tag of the resource (weak comparison)
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (etag == null) {
+            return false;
+        }
+        etag = weak(etag);
+        StringTokenizer st = new StringTokenizer(ifNoneMatch, ",");
+        while (st.hasMoreTokens()) {
+            String tag = st.nextToken().trim();
+            if (tag.equals("*") || weak(tag).equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param ifModifiedSince the value of an If-Modified-Since header
+     * @return true if the resource has not been modified since the date of
+     *         the header
+     */
+    static boolean isNotModifiedSince(String ifModifiedSince,
+            Date lastModified) {
+        Date since = Util.parseHttpdateOrNull(ifModifiedSince);
+        if ((since != null) && (lastModified != null)) {
+            // HTTP dates have a one second precision
+            return (lastModified.getTime() / 1000) <= (since.getTime() / 1000);
+        }
+        return false;
+    }
+
+    /**
+     * Parses the Range header. Only a single range of bytes is supported:
+     * the whole content is returned for the other requests.
+     * 
+     * @return the first and last bytes of the range, null if the whole
+     *         content must be returned. The first byte is beyond the length
+     *         of the resource if the range can't be satisfied.
+     */
+    protected long[] getRange(HttpRequest request, S3Resource resource,
+            long length) throws IOException {
+        String range = request.getHttpHeader("Range");
+        if (range == null) {
+            return null;
+        }
+
+        String ifRange = request.getHttpHeader("If-Range");
+        if (ifRange != null) {
+            // the range is only valid for the version of the
+            // resource the client has
+            ifRange = ifRange.trim();
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                if (!ifRange.equals(resource.getETag())) {
+                    return null;
+                }
+            } else if (!isModifiedAt(ifRange, resource.getLastModified())) {
+                return null;
+            }
+        }
+        return parseRange(range, length);
+    }
+
+    /**
+     * @param ifRange the date of an If-Range header
+     * @return true if the resource has been last modified at the date of
+     *         the header, false if the date of the resource is unknown
+     */
+    static boolean isModifiedAt(String ifRange, Date lastModified) {
+        Date date = Util.parseHttpdateOrNull(ifRange);
+        if ((date == null) || (lastModified == null)) {
+            return false;
+        }
+        // HTTP dates have a one second precision
+        return (date.getTime() / 1000) == (lastModified.getTime() / 1000);
+    }
+
+    /**
+     * @param range the value of a Range header
+     * @param length the length of the resource
+     * @return the first and last bytes of the range (see getRange)
+     */
+    static long[] parseRange(String range, long length) {
+        if (length <= 0) {
+            return null;
+        }
+        range = range.trim();
+        if (!range.startsWith("bytes=") || (range.indexOf(',') >= 0)) {
+            return null;
+        }
+
+        String spec = range.substring("bytes=".length()).trim();
+        int index = spec.indexOf('-');
+        if (index < 0) {
+            return null;
+        }
+        long start;
+        long end;
+        try {
+            if (index == 0) {
+                // the last bytes
+                long count = Long.parseLong(spec.substring(1).trim());
+                if (count == 0) {
+                    return new long[] { length, length };
+                }
+                start = Math.max(0, length - count);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, index).trim());
+                if (start >= length) {
+                    return new long[] { start, start };
+                }
+                String last = spec.substring(index + 1).trim();
+                end = (last.length() == 0) ? length - 1 : Math.min(Long
+                        .parseLong(last), length - 1);
+                if (end < start) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return new long[] { start, end };
+    }
+
+    private static String weak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
 }
@@ -40,7 +40,12 @@ public class HandlerHead extends HandlerGet {
                 response.setResponseStatus(HttpResponse.SC_FORBIDDEN);
             } else {
                 S3Resource resource = _repository.getResource(href);
-                setHeaders(resource, response);
+                if (isNotModified(request, resource)) {
+                    setValidators(resource, response);
+                    response.setResponseStatus(HttpResponse.SC_NOT_MODIFIED);
+                } else {
+                    setHeaders(resource, response);
+                }
             }
         } else {
             response.setResponseStatus(HttpResponse.SC_NOT_FOUND);
@@ -43,6 +43,13 @@ public class HandlerMove extends HandlerBase {
             return;
         }
 
+        if (destination.isSameUri(request.getUrl())
+                || destination.getUri().startsWith(
+                        request.getUrl().getUri() + "/")) {
+            response.setResponseStatus(HttpResponse.SC_FORBIDDEN);
+            return;
+        }
+
         // rfc 2518 - 8.9.3
         // MOVE and the Overwrite Header
         // If a resource exists at the destination and
@@ -69,8 +76,7 @@ public class HandlerMove extends HandlerBase {
                 }
             }
         }
-        _repository.copy(request.getUrl(), destination);
-        _repository.deleteObject(request.getUrl());
+        _repository.move(request.getUrl(), destination);
 
         response.setResponseStatus(noContent ? HttpResponse.SC_NO_CONTENT
                 : HttpResponse.SC_CREATED);
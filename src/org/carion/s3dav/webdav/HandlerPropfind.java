@@ -17,6 +17,8 @@ package org.carion.s3dav.webdav;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Date;
@@ -30,7 +32,6 @@ import org.carion.s3.S3Resource;
 import org.carion.s3.S3UrlName;
 import org.carion.s3.http.HttpRequest;
 import org.carion.s3.http.HttpResponse;
-import org.carion.s3.impl.UploadResource;
 import org.carion.s3.util.BaseXmlParser;
 import org.carion.s3.util.MimeTypes;
 import org.carion.s3.util.Util;
@@ -47,10 +48,6 @@ public class HandlerPropfind extends HandlerBase {
 
     private final int MODE_ALL_PROPERTY_NAMES = 3;
 
-    private int _mode;
-
-    private List _properties = null;
-
     private final static String STATUS_OK = "HTTP/1.1 200 OK";
 
     private final static String STATUS_NOT_OK = "HTTP/1.1 404 Not Found";
@@ -69,76 +66,81 @@ public class HandlerPropfind extends HandlerBase {
     public void process(HttpRequest request, HttpResponse response)
             throws IOException {
         String body = request.getBodyAsString();
+        // the handler is shared by all the connections: the
+        // state of the request must not be kept in the handler itself
+        final Propfind propfind = new Propfind();
 
         if ((body != null) && (body.length() > 0)) {
             try {
-                parsePropfind(body);
+                parsePropfind(body, propfind);
             } catch (SAXException ex) {
                 _log.log("Error parsing content", ex);
                 response.setResponseStatus(HttpResponse.SC_BAD_REQUEST);
                 return;
             }
         } else {
-            _mode = MODE_ALL_PROPERTIES;
+            propfind._mode = MODE_ALL_PROPERTIES;
         }
         S3UrlName url = request.getUrl();
         if (!_repository.objectExists(url)) {
             response.setResponseStatus(HttpResponse.SC_NOT_FOUND);
         } else {
-            XMLWriter writer = response.getXMLWriter("multistatus");
-            process(writer, request.getDepth(), url, false);
+            final S3Object object;
+            if (_repository.isFolder(url)) {
+                object = _repository.getFolder(url);
+            } else {
+                object = _repository.getResource(url);
+            }
+            final int depth = request.getDepth();
+            // the response is written while the folder is listed
+            response.setContentProducer(new HttpResponse.ContentProducer() {
+                public void produce(OutputStream out) throws IOException {
+                    XMLWriter writer = new XMLWriter("multistatus", "DAV:",
+                            new OutputStreamWriter(out, "UTF-8"));
+                    process(writer, propfind, depth, object);
+                    writer.finish();
+                    writer.flush();
+                }
+            }, "text/xml;charset=utf-8");
             response.setResponseStatus(HttpResponse.SC_MULTI_STATUS);
         }
     }
 
-    private void process(XMLWriter writer, int depth, S3UrlName href,
-            boolean isUpload) throws IOException {
-        boolean isFolder = isUpload ? false : _repository.isFolder(href);
-        S3Folder folder = null;
-
+    private void process(final XMLWriter writer, final Propfind propfind,
+            final int depth, S3Object object) throws IOException {
         writer.opening("response");
-        writer.property("href", href.getUrlEncodedUri());
-
-        if (isFolder) {
-            folder = _repository.getFolder(href);
-            writeResourceProperties(writer, folder);
-        } else {
-            S3Resource resource;
-            if (isUpload) {
-                resource = new UploadResource(href);
-            } else {
-                resource = _repository.getResource(href);
-            }
-            writeResourceProperties(writer, resource);
-        }
+        writer.property("href", object.getUrl().getUrlEncodedUri());
+        writeResourceProperties(writer, propfind, object);
         writer.closing("response");
 
-        if (isFolder && (depth > 0)) {
-            List uploads = _repository.getUploadManager()
+        if ((object instanceof S3Folder) && (depth > 0)) {
+            S3Folder folder = (S3Folder) object;
+            final List uploads = _repository.getUploadManager()
                     .getUploadsInDirectory(folder.getUrl());
             for (Iterator iter = uploads.iterator(); iter.hasNext();) {
-                S3UrlName uri = (S3UrlName) iter.next();
-                process(writer, depth - 1, uri, true);
+                process(writer, propfind, depth - 1, (S3Resource) iter.next());
             }
-            S3UrlName[] uris = folder.getChildrenUris();
-            for (int i = 0; i < uris.length; i++) {
-                S3UrlName uri = uris[i];
-                boolean found = false;
-                for (Iterator iter = uploads.iterator(); iter.hasNext();) {
-                    if (uri.isSameUri((S3UrlName) iter.next())) {
-                        found = true;
-                        break;
+            // the properties of the children come from the listing
+            // of the folder: no need to send a request per child
+            folder.processChildren(new S3Folder.ChildProcessing() {
+                public void process(S3Object child) throws IOException {
+                    for (Iterator iter = uploads.iterator(); iter.hasNext();) {
+                        if (child.getUrl().isSameUri(((S3Resource) iter
+                                .next()).getUrl())) {
+                            return;
+                        }
                     }
+                    HandlerPropfind.this.process(writer, propfind, depth - 1,
+                            child);
+                    // no need to keep on listing if the client is gone
+                    writer.checkError();
                 }
-                if (!found) {
-                    process(writer, depth - 1, uri, false);
-                }
-            }
+            });
         }
     }
 
-    private void writeResourceProperties(XMLWriter writer, S3Object object)
-            throws IOException {
+    private void writeResourceProperties(XMLWriter writer, Propfind propfind,
+            S3Object object) throws IOException {
         S3Resource resource = null;
         S3Folder folder = null;
         String[] objectProperties;
@@ -153,12 +155,13 @@ public class HandlerPropfind extends HandlerBase {
             throw new IOException("internal error");
         }
 
-        switch (_mode) {
+        switch (propfind._mode) {
         case MODE_NAMED_PROPERTIES:
             writer.opening("propstat");
             writer.opening("prop");
             List properties404 = new ArrayList();
-            for (Iterator iter = _properties.iterator(); iter.hasNext();) {
+            for (Iterator iter = propfind._properties.iterator(); iter
+                    .hasNext();) {
                 String property = (String) iter.next();
                 if (resource != null) {
                     if (!writeResourceProperty(writer, property, resource)) {
@@ -281,29 +284,42 @@ public class HandlerPropfind extends HandlerBase {
         }
     }
 
-    private void parsePropfind(String body) throws SAXException, IOException {
+    private void parsePropfind(String body, Propfind propfind)
+            throws SAXException, IOException {
         XMLReader xr = Util.createXMLReader();
-        PropfindHandler handler = new PropfindHandler();
+        PropfindHandler handler = new PropfindHandler(propfind);
         xr.setContentHandler(handler);
         xr.setErrorHandler(handler);
         xr.parse(new InputSource(new StringReader(body)));
     }
 
+    /**
+     * What the client asked for in the PROPFIND request
+     */
+    private static class Propfind {
+        private int _mode;
+
+        private List _properties = null;
+    }
+
     private class PropfindHandler extends BaseXmlParser {
-        PropfindHandler() {
+        private final Propfind _propfind;
+
+        PropfindHandler(Propfind propfind) {
+            _propfind = propfind;
         }
 
         protected void processStartElement(String elementName, String fullName,
                 Attributes attributes) {
             if (fullName.equals("propfind.prop")) {
-                _properties = new ArrayList();
-                _mode = MODE_NAMED_PROPERTIES;
+                _propfind._properties = new ArrayList();
+                _propfind._mode = MODE_NAMED_PROPERTIES;
             } else if (fullName.equals("propfind.allprop")) {
-                _mode = MODE_ALL_PROPERTIES;
+                _propfind._mode = MODE_ALL_PROPERTIES;
             } else if (fullName.equals("propfind.propname")) {
-                _mode = MODE_ALL_PROPERTY_NAMES;
+                _propfind._mode = MODE_ALL_PROPERTY_NAMES;
             } else if (fullName.startsWith("propfind.prop.")) {
-                _properties.add(elementName);
+                _propfind._properties.add(elementName);
             }
         }
     }
@@ -37,27 +37,27 @@ public class HandlerPut extends HandlerBase {
             throws IOException {
         S3UrlName url = request.getUrl();
 
+        // the checks go through the metadata cache: a single HEAD request
+        // for the file, and the parent is usually already known
+        if (_repository.isFolder(url)) {
+            response.setResponseStatus(HttpResponse.SC_FORBIDDEN);
+            return;
+        }
+        S3Resource res;
         if (_repository.objectExists(url)) {
-            if (_repository.isFolder(url)) {
-                response.setResponseStatus(HttpResponse.SC_FORBIDDEN);
-            } else {
-                S3Resource res = _repository.getResource(url);
-                res.setResourceContent(request.getInputStream(), request
-                        .getContentType(), request.getContentLength());
-                response.setResponseStatus(HttpResponse.SC_CREATED);
-            }
+            res = _repository.getResource(url);
         } else {
             S3UrlName parent = url.getParent();
-            if (parent != null) {
-                if (!_repository.isFolder(parent)) {
-                    response.setResponseStatus(HttpResponse.SC_CONFLICT);
-                    return;
-                }
+            if ((parent != null) && !_repository.isFolder(parent)) {
+                response.setResponseStatus(HttpResponse.SC_CONFLICT);
+                return;
             }
-            S3Resource res = _repository.createResource(url);
-            res.setResourceContent(request.getInputStream(), request
-                    .getContentType(), request.getContentLength());
-            response.setResponseStatus(HttpResponse.SC_CREATED);
+            res = _repository.createResource(url);
         }
+        // the object is written once, with its content
+        res.setResourceContent(request.getInputStream(), request
+                .getContentType(), request.getContentLength(), request
+                .getClient().getHostAddress());
+        response.setResponseStatus(HttpResponse.SC_CREATED);
     }
 }
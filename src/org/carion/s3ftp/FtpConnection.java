@@ -23,13 +23,14 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.net.Socket;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.List;
 import java.util.StringTokenizer;
 
+import org.carion.s3.S3DeleteException;
 import org.carion.s3.S3Log;
+import org.carion.s3.S3UrlName;
 import org.carion.s3dav.Version;
 
 /**
@@ -70,7 +71,7 @@ public class FtpConnection implements Runnable {
 
     private int clientPort;
 
-    private int resumePosition;
+    private long resumePosition;
 
     // this date is used to decide which date format to use for file date
     // in list files command
@@ -192,10 +193,12 @@ public class FtpConnection implements Runnable {
                         noop();
                     } else if (ftpCommand.equalsIgnoreCase("REST")) {
                         rest(allRemainingTokens(st).trim());
+                    } else if (ftpCommand.equalsIgnoreCase("SIZE")) {
+                        size(allRemainingTokens(st).trim());
                     } else if (ftpCommand.equalsIgnoreCase("RNFR")) {
                         rnfr(allRemainingTokens(st).trim());
-                        // } else if (ftpCommand.equalsIgnoreCase("RNTO")) {
-                        // rnto(allRemainingTokens(st).trim());
+                    } else if (ftpCommand.equalsIgnoreCase("RNTO")) {
+                        rnto(allRemainingTokens(st).trim());
                     } else if (ftpCommand.equalsIgnoreCase("MKD")) {
                         mkd(allRemainingTokens(st).trim());
                     } else if (ftpCommand.equalsIgnoreCase("RMD")
@@ -281,19 +284,19 @@ public class FtpConnection implements Runnable {
         Socket dataSocket = getDataConnection();
         output("150 Opening ASCII mode data connection for LIST command");
 
-        List children = _directory.getChildren();
-
         try {
             OutputStream out = null;
 
             out = dataSocket.getOutputStream();
-            PrintWriter writer = new PrintWriter(new OutputStreamWriter(out));
-
-            if (children.size() > 0) {
-                for (Iterator iter = children.iterator(); iter.hasNext();) {
-                    FtpDirectory.Child child = (FtpDirectory.Child) iter.next();
-
-                    if (shortForm) {
+            final PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                    out));
+            final boolean shortFormat = shortForm;
+
+            // the lines are sent as the directory is listed
+            _directory.processChildren(new FtpDirectory.ChildProcessing() {
+                public void process(FtpDirectory.Child child)
+                        throws IOException {
+                    if (shortFormat) {
                         writer.println(child.getName());
                     } else {
                         if (child.isDirectory()) {
@@ -307,15 +310,22 @@ public class FtpConnection implements Runnable {
                                     + child.getName());
                         }
                     }
+                    if (writer.checkError()) {
+                        throw new IOException("Data connection closed");
+                    }
                 }
-            }
+            });
             writer.close();
             out.close();
             dataSocket.close();
             output("226 ASCII transfer complete");
         } catch (IOException ex) {
             _log.log("Can't list content of:" + _directory.getName(), ex);
-            output("550 CDUP command failed");
+            try {
+                dataSocket.close();
+            } catch (IOException e) {
+            }
+            output("550 LIST command failed");
         }
     }
 
@@ -353,7 +363,7 @@ public class FtpConnection implements Runnable {
 
         try {
             if (resumePosition > 0) {
-                dataStream.skip(resumePosition);
+                skip(dataStream, resumePosition);
             }
             writer = new PrintWriter(dataSocket.getOutputStream());
 
@@ -379,7 +389,9 @@ public class FtpConnection implements Runnable {
 
     private void retrI(String fileName) throws IOException {
         BufferedOutputStream writer = null;
-        BufferedInputStream dataStream = _directory.getInputStream(fileName);
+        // the transfer starts at the REST position
+        BufferedInputStream dataStream = _directory.getInputStream(fileName,
+                resumePosition);
         int byt = -1;
 
         if (dataStream == null) {
@@ -392,9 +404,6 @@ public class FtpConnection implements Runnable {
         output("150 Opening BINARY mode data connection for " + fileName);
 
         try {
-            if (resumePosition > 0) {
-                dataStream.skip(resumePosition);
-            }
             writer = new BufferedOutputStream(listSocket.getOutputStream(), 1);
 
             byt = dataStream.read();
@@ -418,6 +427,20 @@ public class FtpConnection implements Runnable {
         output("226 BINARY transfer complete");
     }
 
+    /**
+     * skip() may skip less than asked for (a stream from S3 is read as it
+     * is received)
+     */
+    private static void skip(Reader in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Can't skip to resume position");
+            }
+            count -= skipped;
+        }
+    }
+
     public void stru(String commandArgs) {
         if (commandArgs.equalsIgnoreCase("F")) {
             output("200 Structure set to F");
@@ -455,7 +478,8 @@ public class FtpConnection implements Runnable {
         output("150 Opening BINARY mode data connection to receive " + fileName);
         BufferedInputStream incomingData = new BufferedInputStream(dataSocket
                 .getInputStream());
-        _directory.upload(fileName, incomingData);
+        _directory.upload(fileName, incomingData, _socket.getInetAddress()
+                .getHostAddress());
         incomingData.close();
 
         if (_inBinaryMode) {
@@ -493,15 +517,27 @@ public class FtpConnection implements Runnable {
         output("250 DELE command succeded, " + fileName + "deleted.");
     }
 
+    /**
+     * Sends the size of a file (rfc3659)
+     */
+    public void size(String fileName) throws IOException {
+        long size = _directory.getSize(fileName);
+        if (size < 0) {
+            output("550 " + fileName + ": not a plain file");
+        } else {
+            output("213 " + size);
+        }
+    }
+
     /**
      * This sets the offset from the beginning of the file at which transfers
      * will begin.
      */
     public void rest(String commandArgs) {
-        int position;
+        long position;
 
         try {
-            position = Integer.parseInt(commandArgs);
+            position = Long.parseLong(commandArgs.trim());
         } catch (Exception e) {
 
             output("504 Resume position cannot be set to " + commandArgs);
@@ -536,9 +572,17 @@ public class FtpConnection implements Runnable {
      * it. This is the second half of the rename command.
      */
     public void rnto(String fileName) throws IOException {
-        _directory.renameChild(renameFrom, fileName);
+        if ((renameFrom == null) || (renameFrom.length() == 0)) {
+            output("503 RNFR command must be sent first");
+            return;
+        }
+        String from = renameFrom;
         renameFrom = "";
-        output("250 RNTO command succeded");
+        if (_directory.renameChild(from, fileName)) {
+            output("250 RNTO command succeded");
+        } else {
+            output("550 Can't rename " + from + " to " + fileName);
+        }
     }
 
     /**
@@ -563,8 +607,19 @@ public class FtpConnection implements Runnable {
             fixedName = fileName.substring(fileName.lastIndexOf('/') + 1);
         }
 
-        _directory.deleteDirectory(fixedName);
-        output("250 Directory '" + fixedName + "' removed");
+        try {
+            _directory.deleteDirectory(fixedName);
+            output("250 Directory '" + fixedName + "' removed");
+        } catch (S3DeleteException ex) {
+            _log.log("Can't remove directory:" + fixedName, ex);
+            String first = "";
+            if (ex.getNames().size() > 0) {
+                first = ", " + ((S3UrlName) ex.getNames().get(0)).getUri()
+                        + ": " + ex.getCode(0);
+            }
+            output("550 Directory '" + fixedName + "' not removed: "
+                    + ex.getCount() + " objects could not be deleted" + first);
+        }
     }
 
     private void output(String out) {
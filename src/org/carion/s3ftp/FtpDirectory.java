@@ -17,21 +17,21 @@ package org.carion.s3ftp;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 
 import org.carion.s3.S3Folder;
+import org.carion.s3.S3Object;
 import org.carion.s3.S3Repository;
 import org.carion.s3.S3Resource;
 import org.carion.s3.S3UrlName;
 import org.carion.s3.impl.S3UrlNameImpl;
-import org.carion.s3.impl.UploadResource;
 import org.carion.s3.util.MimeTypes;
 
 public class FtpDirectory {
@@ -75,51 +75,45 @@ public class FtpDirectory {
         }
     }
 
-    List getChildren() throws IOException {
+    /**
+     * Calls the processing for each child of the current directory, as the
+     * directory is being listed
+     */
+    void processChildren(final ChildProcessing processing) throws IOException {
         S3UrlName name = new S3UrlNameImpl(_name, false);
         S3Folder folder = _repository.getFolder(name);
-        S3UrlName[] files = folder.getChildrenUris();
 
-        List result = new ArrayList();
-
-        List uploads = _repository.getUploadManager().getUploadsInDirectory(
-                folder.getUrl());
+        final List uploads = _repository.getUploadManager()
+                .getUploadsInDirectory(folder.getUrl());
         for (Iterator iter = uploads.iterator(); iter.hasNext();) {
-            S3UrlName uri = (S3UrlName) iter.next();
-            S3Resource res = new UploadResource(uri);
-            result.add(new Child(res.getName(), res.getLastModified(), res
-                    .getLength(), false));
+            S3Resource res = (S3Resource) iter.next();
+            processing.process(new Child(res.getName(), res.getLastModified(),
+                    res.getLength(), false));
         }
 
-        for (int i = 0; i < files.length; i++) {
-            S3UrlName uri = files[i];
-            Child child;
-            if (_repository.isFolder(uri)) {
-                S3Folder f = _repository.getFolder(uri);
-                child = new Child(f.getName(), f.getLastModified(), 0, true);
-            } else {
-                S3Resource r = _repository.getResource(uri);
-                boolean found = false;
-                for (Iterator iter = uploads.iterator(); iter.hasNext();) {
-                    if (uri.isSameUri((S3UrlName) iter.next())) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found) {
-                    child = new Child(r.getName(), r.getLastModified(), r
-                            .getLength(), false);
-
+        folder.processChildren(new S3Folder.ChildProcessing() {
+            public void process(S3Object file) throws IOException {
+                if (file instanceof S3Folder) {
+                    S3Folder f = (S3Folder) file;
+                    processing.process(new Child(f.getName(), f
+                            .getLastModified(), 0, true));
                 } else {
-                    child = null;
+                    S3Resource r = (S3Resource) file;
+                    for (Iterator iter = uploads.iterator(); iter.hasNext();) {
+                        if (r.getUrl().isSameUri(((S3Resource) iter.next())
+                                .getUrl())) {
+                            return;
+                        }
+                    }
+                    processing.process(new Child(r.getName(), r
+                            .getLastModified(), r.getLength(), false));
                 }
-
             }
-            if (child != null) {
-                result.add(child);
-            }
-        }
-        return result;
+        });
+    }
+
+    interface ChildProcessing {
+        void process(Child child) throws IOException;
     }
 
     BufferedReader getReader(String name) throws IOException {
@@ -132,21 +126,48 @@ public class FtpDirectory {
         return new BufferedReader(new InputStreamReader(in));
     }
 
-    BufferedInputStream getInputStream(String name) throws IOException {
+    /**
+     * @param position the first byte to read (REST command): only the
+     *  content after this position is read from S3
+     */
+    BufferedInputStream getInputStream(String name, long position)
+            throws IOException {
         S3UrlName s3Name = mkResourceName(name);
         if (!_repository.isResource(s3Name)) {
             throw new IOException("Invalid file name:" + s3Name.getUri());
         }
         S3Resource res = _repository.getResource(s3Name);
-        InputStream in = res.getContent();
+        InputStream in;
+        if (position > 0) {
+            long length = res.getLength();
+            if (position >= length) {
+                in = new ByteArrayInputStream(new byte[0]);
+            } else {
+                in = res.getContent(position, length - 1);
+            }
+        } else {
+            in = res.getContent();
+        }
         return new BufferedInputStream(in);
     }
 
-    void upload(String fileName, InputStream in) throws IOException {
+    /**
+     * @return the size of the file, -1 if it is not a file
+     */
+    long getSize(String name) throws IOException {
+        S3UrlName s3Name = mkResourceName(name);
+        if (!_repository.isResource(s3Name)) {
+            return -1;
+        }
+        return _repository.getResource(s3Name).getLength();
+    }
+
+    void upload(String fileName, InputStream in, String client)
+            throws IOException {
         S3UrlName s3Name = mkResourceName(fileName);
         String contentType = MimeTypes.ext2mimeType(s3Name.getExt());
         S3Resource resource = _repository.getResource(s3Name);
-        resource.setResourceContent(in, contentType, -1);
+        resource.setResourceContent(in, contentType, -1, client);
     }
 
     boolean delete(String name) throws IOException {
@@ -160,11 +181,29 @@ public class FtpDirectory {
 
     boolean childExists(String name) throws IOException {
         S3UrlName s3Name = mkResourceName(name);
-        return _repository.isResource(s3Name);
+        return _repository.objectExists(s3Name);
     }
 
+    /**
+     * Renames a file or a directory: the objects are copied by S3 and the
+     * previous ones are deleted
+     */
     boolean renameChild(String from, String to) throws IOException {
-        throw new IOException("rename child is not implemented");
+        S3UrlName source = mkResourceName(from);
+        S3UrlName destination = mkResourceName(to);
+        if (!_repository.objectExists(source)
+                || source.isSameUri(destination)) {
+            return false;
+        }
+        S3UrlName parent = destination.getParent();
+        if ((parent == null) || !_repository.isFolder(parent)) {
+            return false;
+        }
+        if (_repository.objectExists(destination)) {
+            _repository.deleteObject(destination);
+        }
+        _repository.move(source, destination);
+        return true;
     }
 
     void makeDirectory(String fileName) throws IOException {
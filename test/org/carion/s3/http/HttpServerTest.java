@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.http;
+
+import java.io.IOException;
+
+import org.carion.s3.S3Repository;
+import org.carion.s3.S3UnavailableException;
+import org.carion.s3.test.StandInS3;
+import org.carion.s3.test.TestCase;
+import org.carion.s3.test.TestHttpClient;
+import org.carion.s3.test.TestLog;
+
+/**
+ * @author pcarion
+ */
+public class HttpServerTest extends TestCase {
+    /** more than the threads of the server */
+    private final static int CONNECTIONS = 60;
+
+    private StandInS3 _s3;
+
+    private S3Repository _repository;
+
+    protected void setUp() throws Exception {
+        _s3 = new StandInS3();
+        _repository = _s3.mkRepository(mkTempDirectory(), new TestLog());
+    }
+
+    protected void tearDown() throws Exception {
+        _s3.shutdown();
+    }
+
+    public void testUnavailable() throws Exception {
+        int port = getFreePort();
+        new UnavailableServer(port, _repository).start();
+        TestHttpClient client = new TestHttpClient(port);
+        try {
+            // the content of the request is not read by the handler
+            TestHttpClient.Response response = client.send(
+                    "PUT /bucket/file HTTP/1.1", new byte[256 * 1024], false);
+            assertEquals("status", 503, response.getStatus());
+            assertEquals("retry after", "7", response
+                    .getHeader("Retry-After"));
+            assertEquals("connection", "close", response
+                    .getHeader("Connection"));
+            assertTrue("closed", client.isClosed());
+        } finally {
+            client.close();
+        }
+    }
+
+    public void testIdleConnectionsDontHoldThreads() throws Exception {
+        int port = getFreePort();
+        new OkServer(port, _repository).start();
+        TestHttpClient[] clients = new TestHttpClient[CONNECTIONS];
+        try {
+            // each connection stays open after its first request
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = new TestHttpClient(port);
+                assertEquals("status:" + i, 200, clients[i].send(
+                        "GET /bucket/file HTTP/1.1").getStatus());
+            }
+            assertEquals("kept alive", 200, clients[0].send(
+                    "GET /bucket/file HTTP/1.1").getStatus());
+        } finally {
+            for (int i = 0; i < clients.length; i++) {
+                if (clients[i] != null) {
+                    clients[i].close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A server whose handler can't reach S3
+     */
+    private static class UnavailableServer extends HttpServer {
+        UnavailableServer(int port, S3Repository repository) {
+            super(port, repository, new TestLog());
+            setDaemon(true);
+        }
+
+        protected void init(S3Repository repository) {
+        }
+
+        protected HttpProcessing getProcessing(HttpRequest request) {
+            return new HttpProcessing() {
+                public void process(HttpRequest request, HttpResponse response)
+                        throws IOException {
+                    throw new S3UnavailableException("S3 is unavailable", 7);
+                }
+            };
+        }
+    }
+
+    /**
+     * A server which answers every request with an empty page
+     */
+    private static class OkServer extends HttpServer {
+        OkServer(int port, S3Repository repository) {
+            super(port, repository, new TestLog());
+            setDaemon(true);
+        }
+
+        protected void init(S3Repository repository) {
+        }
+
+        protected HttpProcessing getProcessing(HttpRequest request) {
+            return new HttpProcessing() {
+                public void process(HttpRequest request, HttpResponse response)
+                        throws IOException {
+                    response.setResponseStatus(HttpResponse.SC_OK);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.util.Date;
+
+import org.carion.s3.test.TestCase;
+
+/**
+ * @author pcarion
+ */
+public class CacheTest extends TestCase {
+    private final static long TTL = 60 * 1000;
+
+    /** 68 bytes with its key */
+    private final static ObjectMetadata SMALL = new ObjectMetadata(true,
+            false, 1, new Date(), null, null);
+
+    public void testEntryLimit() {
+        Cache cache = new Cache(3, 10000, TTL, TTL, 0, 0);
+        cache.put("k1", SMALL);
+        cache.put("k2", SMALL);
+        cache.put("k3", SMALL);
+        cache.put("k4", SMALL);
+        assertEquals("size", 3, cache.getSize());
+        assertNull("evicted", cache.peek("k1"));
+        assertNotNull("inserted", cache.peek("k4"));
+        assertEquals("evictions", 1, cache.getEvictions());
+    }
+
+    public void testByteLimit() {
+        Cache cache = new Cache(100, 200, TTL, TTL, 0, 0);
+        cache.put("k1", SMALL);
+        cache.put("k2", SMALL);
+        cache.put("k3", SMALL);
+        assertEquals("size", 2, cache.getSize());
+        assertEquals("bytes", 136, cache.getBytes());
+        assertNull("evicted", cache.peek("k1"));
+        assertNotNull("inserted", cache.peek("k3"));
+    }
+
+    public void testOversizedEntry() {
+        Cache cache = new Cache(100, 200, TTL, TTL, 0, 0);
+        cache.put("k1", SMALL);
+        cache.put("k2", SMALL);
+        StringBuffer etag = new StringBuffer();
+        for (int i = 0; i < 100; i++) {
+            etag.append('e');
+        }
+        cache.put("big", new ObjectMetadata(true, false, 1, new Date(),
+                null, etag.toString()));
+        // not cached, and the other entries are kept
+        assertNull("oversized", cache.peek("big"));
+        assertNotNull("kept", cache.peek("k1"));
+        assertNotNull("kept", cache.peek("k2"));
+        assertEquals("evictions", 0, cache.getEvictions());
+        assertEquals("bytes", 136, cache.getBytes());
+    }
+
+    public void testReplace() {
+        Cache cache = new Cache(2, 10000, TTL, TTL, 0, 0);
+        cache.put("k1", SMALL);
+        cache.put("k2", SMALL);
+        cache.put("k2", ObjectMetadata.NOT_FOUND);
+        assertEquals("size", 2, cache.getSize());
+        assertEquals("evictions", 0, cache.getEvictions());
+        assertFalse("replaced", cache.peek("k2").exists());
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.carion.s3.test.TestCase;
+import org.carion.s3.test.TestLog;
+
+/**
+ * The namespace index saved on disk
+ *
+ * @author pcarion
+ */
+public class NamespaceStoreTest extends TestCase {
+    private final static long MAX_AGE = 3600 * 1000;
+
+    private File _directory;
+
+    private long _now;
+
+    protected void setUp() throws Exception {
+        _directory = mkTempDirectory();
+        _now = System.currentTimeMillis();
+    }
+
+    public void testRestoreAfterRestart() throws Exception {
+        NamespaceStore store = open();
+        Map records = new HashMap();
+        records.put("/bucket/dir", mkRecord("/bucket/dir", _now, new String[] {
+                "small.txt", "huge.bin" }, new long[] { 12, 5000000000L }));
+        records.put("/bucket/dir/sub", mkRecord("/bucket/dir/sub", _now,
+                new String[] { "a" }, new long[] { 1 }));
+        store.append(records);
+
+        store = open();
+        assertEquals("restorable", 2, store.getRestorable());
+        NamespaceStore.Listing listing = store.restore("/bucket/dir");
+        assertNotNull("listing", listing);
+        assertEquals("listed", _now, listing._listed);
+        assertEquals("count", 2, listing._count);
+        assertEquals("name", "small.txt", listing._names[0]);
+        assertEquals("size", 12, listing._sizes[0]);
+        assertEquals("etag", "\"etag-small.txt\"", listing._etags[0]);
+        assertEquals("name", "huge.bin", listing._names[1]);
+        assertEquals("size beyond 2GB", 5000000000L, listing._sizes[1]);
+        assertEquals("type", 1, listing._types[1]);
+        // a listing is only restored once
+        assertNull("restored twice", store.restore("/bucket/dir"));
+        assertEquals("restorable", 1, store.getRestorable());
+    }
+
+    public void testLastRecordWins() throws Exception {
+        NamespaceStore store = open();
+        append(store, "/bucket/dir", mkRecord("/bucket/dir",
+                _now - 1000, new String[] { "old" }, new long[] { 1 }));
+        append(store, "/bucket/dir", mkRecord("/bucket/dir",
+                _now, new String[] { "new1", "new2" }, new long[] { 1, 2 }));
+
+        NamespaceStore.Listing listing = open().restore("/bucket/dir");
+        assertEquals("count", 2, listing._count);
+        assertEquals("name", "new1", listing._names[0]);
+    }
+
+    public void testDeletedFolder() throws Exception {
+        NamespaceStore store = open();
+        append(store, "/bucket/dir", mkRecord("/bucket/dir",
+                _now, new String[] { "a" }, new long[] { 1 }));
+        // no listing date: the folder has been deleted
+        append(store, "/bucket/dir", mkRecord("/bucket/dir",
+                0, new String[0], new long[0]));
+
+        store = open();
+        assertEquals("restorable", 0, store.getRestorable());
+        assertNull("deleted", store.restore("/bucket/dir"));
+    }
+
+    public void testExpiredListing() throws Exception {
+        NamespaceStore store = open();
+        append(store, "/bucket/old", mkRecord("/bucket/old",
+                _now - 2 * MAX_AGE, new String[] { "a" }, new long[] { 1 }));
+        append(store, "/bucket/new", mkRecord("/bucket/new",
+                _now, new String[] { "a" }, new long[] { 1 }));
+
+        store = open();
+        assertNull("too old", store.restore("/bucket/old"));
+        assertNotNull("recent", store.restore("/bucket/new"));
+    }
+
+    public void testDamagedFile() throws Exception {
+        NamespaceStore store = open();
+        append(store, "/bucket/dir", mkRecord("/bucket/dir",
+                _now, new String[] { "a" }, new long[] { 1 }));
+        File file = store.getFile();
+        long length = file.length();
+        // a record which was being written when s3DAV stopped
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] { 0, 0, 1, 0, 0, 3, 'a' });
+        out.close();
+
+        store = open();
+        assertNotNull("complete record", store.restore("/bucket/dir"));
+        // the live records are copied to a new file
+        assertFalse("new generation", file.equals(store.getFile()));
+        assertEquals("damaged end removed", length, store.getFile()
+                .length());
+    }
+
+    public void testUnknownFormat() throws Exception {
+        _directory.mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(_directory,
+                "namespace-0.idx"));
+        out.write("not an index".getBytes());
+        out.close();
+
+        NamespaceStore store = open();
+        assertEquals("restorable", 0, store.getRestorable());
+        append(store, "/bucket/dir", mkRecord("/bucket/dir",
+                _now, new String[] { "a" }, new long[] { 1 }));
+        assertNotNull("usable", open().restore("/bucket/dir"));
+    }
+
+    public void testDiscardTree() throws Exception {
+        NamespaceStore store = open();
+        Map records = new HashMap();
+        String[] folders = { "/bucket/dir", "/bucket/dir/sub",
+                "/bucket/dir/sub/deeper", "/bucket/dir2", "/bucket/dir.txt" };
+        for (int i = 0; i < folders.length; i++) {
+            records.put(folders[i], mkRecord(folders[i], _now,
+                    new String[] { "a" }, new long[] { 1 }));
+        }
+        store.append(records);
+
+        store = open();
+        List discarded = store.discardTree("/bucket/dir");
+        assertEquals("discarded", 3, discarded.size());
+        assertNull("discarded", store.restore("/bucket/dir/sub/deeper"));
+        assertNotNull("sibling", store.restore("/bucket/dir2"));
+        assertNotNull("sibling", store.restore("/bucket/dir.txt"));
+    }
+
+    private NamespaceStore open() {
+        NamespaceStore store = new NamespaceStore(_directory, MAX_AGE,
+                new TestLog());
+        store.open();
+        assertNotNull("file", store.getFile());
+        return store;
+    }
+
+    private static void append(NamespaceStore store, String folder,
+            byte[] record) {
+        Map records = new HashMap();
+        records.put(folder, record);
+        store.append(records);
+    }
+
+    private static byte[] mkRecord(String folder, long listed, String[] names,
+            long[] sizes) throws IOException {
+        int count = names.length;
+        long[] dates = new long[count];
+        String[] etags = new String[count];
+        byte[] types = new byte[count];
+        for (int i = 0; i < count; i++) {
+            dates[i] = listed;
+            etags[i] = "\"etag-" + names[i] + "\"";
+            types[i] = 1;
+        }
+        return NamespaceStore.mkRecord(folder, listed, count, names, sizes,
+                dates, etags, types);
+    }
+}
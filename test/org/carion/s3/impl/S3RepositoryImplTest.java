@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.carion.s3.S3UrlName;
+import org.carion.s3.test.StandInS3;
+import org.carion.s3.test.TestCase;
+import org.carion.s3.test.TestLog;
+
+/**
+ * The copies and moves of files whose upload is not finished, and the
+ * lookups of objects which are changing
+ *
+ * @author pcarion
+ */
+public class S3RepositoryImplTest extends TestCase {
+    private final static byte[] CONTENT = "new content".getBytes();
+
+    private StandInS3 _s3;
+
+    private S3RepositoryImpl _repository;
+
+    protected void setUp() throws Exception {
+        _s3 = new StandInS3();
+        _s3.createBucket("bucket");
+        _repository = _s3.mkRepository(mkTempDirectory(), new TestLog());
+        _repository.createFolder(name("dir"));
+        _s3.putObject("bucket", key("dir/source"), "old".getBytes(), null);
+        // the new content is not in S3 until the uploads are released
+        _s3.holdUploads(true);
+        _repository.createResource(name("dir/source")).setResourceContent(
+                new ByteArrayInputStream(CONTENT), "text/plain", -1, "test");
+        assertNotNull("pending", _repository.getPendingUpload(name(
+                "dir/source").getResourceKey()));
+    }
+
+    protected void tearDown() throws Exception {
+        _s3.holdUploads(false);
+        _s3.shutdown();
+    }
+
+    public void testCopyPendingUpload() throws Exception {
+        Transfer transfer = new Transfer(false);
+        transfer.start();
+        waitForPut(key("dir/target"));
+        _s3.holdUploads(false);
+        transfer.join(10000);
+        assertNull("error", transfer._error);
+        assertEquals("copied", new String(CONTENT), new String(_s3.getObject(
+                "bucket", key("dir/target"))));
+    }
+
+    public void testMovePendingUpload() throws Exception {
+        Transfer transfer = new Transfer(true);
+        transfer.start();
+        waitForPut(key("dir/target"));
+        _s3.holdUploads(false);
+        transfer.join(10000);
+        assertNull("error", transfer._error);
+        assertEquals("moved", new String(CONTENT), new String(_s3.getObject(
+                "bucket", key("dir/target"))));
+        assertNull("upload aborted", _repository.getPendingUpload(name(
+                "dir/source").getResourceKey()));
+    }
+
+    public void testLookupDuringPut() throws Exception {
+        final String key = name("dir/other").getResourceKey();
+        Thread put = new Thread() {
+            public void run() {
+                try {
+                    _repository.mkObjectPUT(key).execute(
+                            new ByteArrayInputStream(CONTENT), "text/plain",
+                            null, CONTENT.length, null);
+                } catch (IOException ex) {
+                    // checked below
+                }
+            }
+        };
+        put.start();
+        waitForPut(key("dir/other"));
+        // S3 has not created the object yet
+        assertFalse("before", _repository.getMetadata(key).exists());
+        _s3.holdUploads(false);
+        put.join(5000);
+        assertTrue("after", _repository.getMetadata(key).exists());
+    }
+
+    /**
+     * Waits for the PUT of the object to be received (and held) by S3
+     */
+    private void waitForPut(String key) throws InterruptedException {
+        String request = "PUT /bucket/" + key;
+        long end = System.currentTimeMillis() + 5000;
+        while (!_s3.getRequests().contains(request)
+                && (System.currentTimeMillis() < end)) {
+            Thread.sleep(10);
+        }
+        assertTrue("PUT received", _s3.getRequests().contains(request));
+    }
+
+    /**
+     * @return the key of the object in the bucket
+     */
+    private static String key(String path) {
+        return name(path).getResourceKey().substring("/bucket/".length());
+    }
+
+    private static S3UrlName name(String path) {
+        return new S3UrlNameImpl("/bucket/" + path, false);
+    }
+
+    private class Transfer extends Thread {
+        private final boolean _move;
+
+        private IOException _error;
+
+        Transfer(boolean move) {
+            _move = move;
+        }
+
+        public void run() {
+            try {
+                if (_move) {
+                    _repository.move(name("dir/source"), name("dir/target"));
+                } else {
+                    _repository.copy(name("dir/source"), name("dir/target"));
+                }
+            } catch (IOException ex) {
+                _error = ex;
+            }
+        }
+    }
+}
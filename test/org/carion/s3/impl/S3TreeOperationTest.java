@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.carion.s3.S3UrlName;
+import org.carion.s3.test.StandInS3;
+import org.carion.s3.test.TestCase;
+import org.carion.s3.test.TestLog;
+import org.carion.s3.util.Util;
+import org.carion.s3.util.WorkerPool;
+
+/**
+ * The copies of folders, and their resumption from the journal
+ *
+ * @author pcarion
+ */
+public class S3TreeOperationTest extends TestCase {
+    private final static String[] FILES = { "src/f1", "src/f2", "src/f3",
+            "src/f4", "src/f5", "src/sub/g1" };
+
+    private StandInS3 _s3;
+
+    private File _directory;
+
+    private TestLog _log;
+
+    private S3RepositoryImpl _repository;
+
+    protected void setUp() throws Exception {
+        _s3 = new StandInS3();
+        _s3.createBucket("bucket");
+        _directory = mkTempDirectory();
+        _log = new TestLog();
+        _repository = _s3.mkRepository(_directory, _log);
+        _repository.createFolder(name("src"));
+        _repository.createFolder(name("src/sub"));
+        for (int i = 0; i < FILES.length; i++) {
+            byte[] content = FILES[i].getBytes();
+            _repository.createResource(name(FILES[i])).setResourceContent(
+                    new ByteArrayInputStream(content), "text/plain",
+                    content.length, "test");
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        _s3.shutdown();
+    }
+
+    public void testCopy() throws Exception {
+        _repository.copy(name("src"), name("dst"));
+        assertTrue("folder", exists("dst"));
+        assertTrue("sub folder", exists("dst/sub"));
+        for (int i = 0; i < FILES.length; i++) {
+            String copy = "dst" + FILES[i].substring("src".length());
+            assertTrue("copied:" + copy, exists(copy));
+            assertTrue("source kept:" + FILES[i], exists(FILES[i]));
+        }
+        assertEquals("journals", 0, getJournals().length);
+    }
+
+    public void testResumeFromJournal() throws Exception {
+        // an operation which was interrupted once f3 was copied
+        _repository.createFolder(name("dst"));
+        Properties state = new Properties();
+        state.setProperty("type", String.valueOf(S3TreeOperation.TYPE_COPY));
+        state.setProperty("source", "/bucket/src");
+        state.setProperty("destination", "/bucket/dst");
+        state.setProperty("marker", key("src/f3"));
+        state.setProperty("processed", "3");
+        state.setProperty("bytes", "18");
+        File journalDirectory = new File(_directory, "journal");
+        journalDirectory.mkdirs();
+        File journal = new File(journalDirectory, "1.tree");
+        Util.storeProperties(state, journal, "test");
+
+        S3TreeOperation operation = new S3TreeOperation(_repository,
+                new WorkerPool("test-tree", 4, 4), journal, _log);
+        operation.execute();
+
+        // only the objects after the marker have been copied
+        assertFalse("before the marker", exists("dst/f1"));
+        assertFalse("marker", exists("dst/f3"));
+        assertTrue("after the marker", exists("dst/f4"));
+        assertTrue("after the marker", exists("dst/f5"));
+        assertTrue("after the marker", exists("dst/sub"));
+        assertTrue("after the marker", exists("dst/sub/g1"));
+        // f4, f5, sub and g1
+        assertEquals("processed", 7, operation.getProcessed());
+        assertEquals("state", S3TreeOperation.STATE_FINISHED, operation
+                .getState());
+        assertFalse("journal deleted", journal.exists());
+    }
+
+    public void testResumeAfterFailure() throws Exception {
+        _s3.failCopies("f3");
+        try {
+            _repository.copy(name("src"), name("dst"));
+            fail("the copy of f3 has failed");
+        } catch (IOException ex) {
+            // expected
+        }
+        File[] journals = getJournals();
+        assertEquals("journals", 1, journals.length);
+        String marker = Util.loadProperties(journals[0]).getProperty("marker");
+        assertNotNull("marker", marker);
+        assertTrue("marker before f3:" + marker, marker
+                .compareTo(key("src/f3")) < 0);
+
+        // s3DAV is restarted
+        _s3.failCopies(null);
+        S3RepositoryImpl repository = _s3.mkRepository(_directory, _log);
+        repository.getTreeOperations().recover();
+        long end = System.currentTimeMillis() + 20000;
+        while ((getJournals().length > 0)
+                && (System.currentTimeMillis() < end)) {
+            Thread.sleep(100);
+        }
+        assertEquals("journals", 0, getJournals().length);
+        for (int i = 0; i < FILES.length; i++) {
+            String copy = "dst" + FILES[i].substring("src".length());
+            assertTrue("copied:" + copy, exists(copy));
+        }
+    }
+
+    private File[] getJournals() {
+        File[] files = new File(_directory, "journal").listFiles();
+        return (files == null) ? new File[0] : files;
+    }
+
+    private boolean exists(String path) {
+        return _s3.hasObject("bucket", key(path));
+    }
+
+    /**
+     * @return the key of the object in the bucket
+     */
+    private static String key(String path) {
+        return name(path).getResourceKey().substring("/bucket/".length());
+    }
+
+    private static S3UrlName name(String path) {
+        return new S3UrlNameImpl("/bucket/" + path, false);
+    }
+}
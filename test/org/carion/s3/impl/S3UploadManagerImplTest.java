@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import org.carion.s3.S3UrlName;
+import org.carion.s3.test.StandInS3;
+import org.carion.s3.test.TestCase;
+import org.carion.s3.test.TestLog;
+
+/**
+ * @author pcarion
+ */
+public class S3UploadManagerImplTest extends TestCase {
+    private StandInS3 _s3;
+
+    private S3RepositoryImpl _repository;
+
+    protected void setUp() throws Exception {
+        _s3 = new StandInS3();
+        _s3.createBucket("bucket");
+        _repository = _s3.mkRepository(mkTempDirectory(), new TestLog());
+        _repository.createFolder(name("dir"));
+    }
+
+    protected void tearDown() throws Exception {
+        _s3.shutdown();
+    }
+
+    public void testSlowClientDoesntHoldScheduler() throws Exception {
+        final S3UploadManagerImpl manager = (S3UploadManagerImpl) _repository
+                .getUploadManager();
+        PipedOutputStream client = new PipedOutputStream();
+        final PipedInputStream content = new PipedInputStream(client);
+        Thread request = new Thread() {
+            public void run() {
+                try {
+                    manager.upload(name("dir/file"), content, "text/plain",
+                            -1, "client");
+                } catch (IOException ex) {
+                    // checked below
+                }
+            }
+        };
+        request.start();
+        client.write("first".getBytes());
+        client.flush();
+        Thread.sleep(200);
+        // the file is still being received
+        assertTrue("receiving", request.isAlive());
+        assertEquals("running", 0, manager.getScheduler().getRunning());
+        assertEquals("queued", 0, manager.getScheduler().getQueued());
+
+        client.write(" last".getBytes());
+        client.close();
+        request.join(5000);
+        waitForObject("dir//file");
+        assertEquals("uploaded", "first last", new String(_s3.getObject(
+                "bucket", "dir//file")));
+    }
+
+    public void testETagOfPendingMultipartUpload() throws Exception {
+        // three parts
+        byte[] content = new byte[(int) S3MultipartUpload.THRESHOLD + 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        String key = name("dir/large").getResourceKey();
+        _s3.holdUploads(true);
+        try {
+            _repository.getUploadManager().upload(name("dir/large"),
+                    new ByteArrayInputStream(content), "text/plain", -1,
+                    "client");
+            String pending = _repository.getMetadata(key).getETag();
+            assertTrue("multipart ETag:" + pending, pending.endsWith("-3\""));
+            _s3.holdUploads(false);
+            waitForObject("dir//large");
+            assertEquals("ETag", _s3.getETag("bucket", "dir//large"), pending);
+        } finally {
+            _s3.holdUploads(false);
+        }
+    }
+
+    private void waitForObject(String key) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (!_s3.hasObject("bucket", key)
+                && (System.currentTimeMillis() < end)) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static S3UrlName name(String path) {
+        return new S3UrlNameImpl("/bucket/" + path, false);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.impl;
+
+import java.io.ByteArrayInputStream;
+
+import org.carion.s3.test.StandInS3;
+import org.carion.s3.test.TestCase;
+import org.carion.s3.test.TestLog;
+
+/**
+ * @author pcarion
+ */
+public class S3UploadSchedulerTest extends TestCase {
+    private StandInS3 _s3;
+
+    private TestLog _log;
+
+    private S3RepositoryImpl _repository;
+
+    protected void setUp() throws Exception {
+        _s3 = new StandInS3();
+        _s3.createBucket("bucket");
+        _log = new TestLog();
+        _repository = _s3.mkRepository(mkTempDirectory(), _log);
+    }
+
+    protected void tearDown() throws Exception {
+        _s3.shutdown();
+    }
+
+    public void testUnexpectedError() throws Exception {
+        S3UploadManagerImpl manager = (S3UploadManagerImpl) _repository
+                .getUploadManager();
+        S3UploadImpl upload = new S3UploadImpl(new S3UrlNameImpl(
+                "/bucket/file", false), _repository.getS3Cache(), manager);
+        upload.loadContent(new ByteArrayInputStream("content".getBytes()),
+                -1, mkTempDirectory());
+        S3UploadScheduler scheduler = new S3UploadScheduler(manager, _log);
+        scheduler.schedule(upload, new Runnable() {
+            public void run() {
+                throw new IllegalStateException("broken upload");
+            }
+        }, "client", false);
+
+        long end = System.currentTimeMillis() + 5000;
+        while ((scheduler.getCompleted() == 0)
+                && (System.currentTimeMillis() < end)) {
+            Thread.sleep(10);
+        }
+        // the failure is logged, and the upload is retried
+        assertTrue("logged", _log.contains("broken upload"));
+        assertNotNull("failed", upload.getError());
+        assertTrue("kept", upload.isReadable());
+        // the worker has survived
+        assertEquals("running", 0, scheduler.getRunning());
+        assertEquals("completed", 1, scheduler.getCompleted());
+    }
+}
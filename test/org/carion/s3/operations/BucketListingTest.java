@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.operations;
+
+import org.carion.s3.test.StandInS3;
+import org.carion.s3.test.TestCase;
+import org.carion.s3.test.TestLog;
+
+/**
+ * @author pcarion
+ */
+public class BucketListingTest extends TestCase {
+    private final static int OBJECTS = 10;
+
+    private final static int LISTINGS = 30;
+
+    private StandInS3 _s3;
+
+    protected void setUp() throws Exception {
+        _s3 = new StandInS3();
+        _s3.createBucket("bucket");
+        for (int i = 0; i < OBJECTS; i++) {
+            _s3.putObject("bucket", "dir//f" + i, "x".getBytes(), null);
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        _s3.shutdown();
+    }
+
+    public void testListing() throws Exception {
+        BucketListing listing = mkListing();
+        for (int i = 0; i < OBJECTS; i++) {
+            assertTrue("has next:" + i, listing.hasNext());
+            assertEquals("name", "f" + i, listing.next().getName());
+        }
+        assertFalse("end", listing.hasNext());
+    }
+
+    public void testBoundedPrefetches() throws Exception {
+        // each listing prefetches its first page
+        BucketListing[] listings = new BucketListing[LISTINGS];
+        for (int i = 0; i < listings.length; i++) {
+            listings[i] = mkListing();
+        }
+        assertTrue("threads:" + countThreads(), countThreads() <= 8);
+        for (int i = 0; i < listings.length; i++) {
+            int count = 0;
+            while (listings[i].hasNext()) {
+                listings[i].next();
+                count++;
+            }
+            assertEquals("objects of " + i, OBJECTS, count);
+        }
+    }
+
+    private BucketListing mkListing() {
+        return new BucketListing("bucket", "dir//", "/", 3,
+                _s3.getCredential(), new TestLog());
+    }
+
+    private static int countThreads() {
+        Thread[] threads = new Thread[Thread.activeCount() * 2];
+        int count = Thread.enumerate(threads);
+        int result = 0;
+        for (int i = 0; i < count; i++) {
+            if (threads[i].getName().startsWith("s3-listing")) {
+                result++;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,975 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SimpleTimeZone;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.carion.s3.Credential;
+import org.carion.s3.S3Log;
+import org.carion.s3.impl.S3RepositoryImpl;
+
+/**
+ * A stand-in for S3, listening on a local port: the objects are kept in
+ * memory. It knows the requests sent by s3DAV (listings, HEAD, GET with
+ * ranges, PUT, copies, deletes, multi-object deletes and multipart uploads)
+ * and doesn't check the signatures.
+ *
+ * The 'virtual' objects are made of zeros and are not stored, so that
+ * objects bigger than 2GB can be served.
+ *
+ * @author pcarion
+ */
+public class StandInS3 extends Thread {
+    private final static Pattern KEY = Pattern.compile("<Key>(.*?)</Key>");
+
+    private final ServerSocket _server;
+
+    /** bucket -&gt; key -&gt; Entry, sorted as S3 does */
+    private final Map _buckets = new TreeMap();
+
+    /** upload id -&gt; Upload */
+    private final Map _uploads = new HashMap();
+
+    /** method -&gt; Integer */
+    private final Map _counts = new HashMap();
+
+    /** the request lines received */
+    private final List _requests = new ArrayList();
+
+    private int _lastId = 0;
+
+    /** the copies of the keys containing this text fail */
+    private String _failedCopies = null;
+
+    /** true while the uploads (PUT and multipart completion) are held */
+    private boolean _uploadsHeld = false;
+
+    private volatile boolean _running = true;
+
+    public StandInS3() throws IOException {
+        super("stand-in-s3");
+        _server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        setDaemon(true);
+        start();
+    }
+
+    public int getPort() {
+        return _server.getLocalPort();
+    }
+
+    public Credential getCredential() {
+        final String host = "127.0.0.1:" + getPort();
+        return new Credential() {
+            public String getHost() {
+                return host;
+            }
+
+            public String getAwsAccessKeyId() {
+                return "id";
+            }
+
+            public String getAwsSecretAccessKey() {
+                return "secret";
+            }
+
+            public boolean isAccessAllowed() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return a repository using this stand-in, whose files are in the
+     *         directory
+     */
+    public S3RepositoryImpl mkRepository(File directory, S3Log log) {
+        File uploadDirectory = new File(directory, "upload");
+        uploadDirectory.mkdirs();
+        S3RepositoryImpl repository = new S3RepositoryImpl(getCredential(),
+                directory, uploadDirectory, log);
+        repository.getUploadManager().recover();
+        return repository;
+    }
+
+    public void shutdown() {
+        _running = false;
+        try {
+            _server.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    public synchronized void createBucket(String bucket) {
+        getBucket(bucket);
+    }
+
+    public synchronized void putObject(String bucket, String key,
+            byte[] data, Map metadata) {
+        Entry entry = new Entry(data, data.length, "\"" + toHex(md5(data))
+                + "\"");
+        if (metadata != null) {
+            entry._metadata.putAll(metadata);
+        }
+        getBucket(bucket).put(key, entry);
+    }
+
+    /**
+     * Creates an object of zeros which is not stored
+     */
+    public synchronized void putVirtualObject(String bucket, String key,
+            long size) {
+        getBucket(bucket).put(key,
+                new Entry(null, size, "\"virtual" + size + "\""));
+    }
+
+    /**
+     * @return the content of the object, null if it doesn't exist or is
+     *         virtual
+     */
+    public synchronized byte[] getObject(String bucket, String key) {
+        Entry entry = (Entry) getBucket(bucket).get(key);
+        return (entry == null) ? null : entry._data;
+    }
+
+    public synchronized String getETag(String bucket, String key) {
+        Entry entry = (Entry) getBucket(bucket).get(key);
+        return (entry == null) ? null : entry._etag;
+    }
+
+    public synchronized boolean hasObject(String bucket, String key) {
+        return getBucket(bucket).containsKey(key);
+    }
+
+    /**
+     * @return the keys of the bucket, sorted
+     */
+    public synchronized List getKeys(String bucket) {
+        return new ArrayList(getBucket(bucket).keySet());
+    }
+
+    /**
+     * @return the number of requests received with this method
+     */
+    public synchronized int getCount(String method) {
+        Integer count = (Integer) _counts.get(method);
+        return (count == null) ? 0 : count.intValue();
+    }
+
+    /**
+     * @return the request lines received ("PUT /bucket/key")
+     */
+    public synchronized List getRequests() {
+        return new ArrayList(_requests);
+    }
+
+    /**
+     * The copies (PUT with x-amz-copy-source) of the keys containing the
+     * text fail with an InternalError, null to stop the failures
+     */
+    public synchronized void failCopies(String text) {
+        _failedCopies = text;
+    }
+
+    /**
+     * While held, the PUT and the completions of multipart uploads are not
+     * answered
+     */
+    public synchronized void holdUploads(boolean held) {
+        _uploadsHeld = held;
+        notifyAll();
+    }
+
+    public void run() {
+        while (_running) {
+            try {
+                final Socket socket = _server.accept();
+                Thread t = new Thread("stand-in-s3-connection") {
+                    public void run() {
+                        serve(socket);
+                    }
+                };
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException ex) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket
+                    .getOutputStream());
+            String line;
+            while ((line = readLine(in)) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                Map headers = new HashMap();
+                String header;
+                while (((header = readLine(in)) != null)
+                        && (header.length() > 0)) {
+                    int index = header.indexOf(':');
+                    headers.put(header.substring(0, index).trim()
+                            .toLowerCase(), header.substring(index + 1)
+                            .trim());
+                }
+                byte[] body = readBody(in, headers);
+                StringTokenizer st = new StringTokenizer(line);
+                String method = st.nextToken();
+                String path = st.nextToken();
+                synchronized (this) {
+                    Integer count = (Integer) _counts.get(method);
+                    _counts.put(method, Integer.valueOf((count == null) ? 1
+                            : count.intValue() + 1));
+                    int index = path.indexOf('?');
+                    _requests.add(method + " "
+                            + decode((index < 0) ? path : path.substring(0,
+                                    index)));
+                }
+                new Response(method, path, headers, body).send(out);
+                out.flush();
+                if ("close".equalsIgnoreCase((String) headers
+                        .get("connection"))) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            // the client has closed the connection
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    private synchronized Map getBucket(String bucket) {
+        Map result = (Map) _buckets.get(bucket);
+        if (result == null) {
+            result = new TreeMap();
+            _buckets.put(bucket, result);
+        }
+        return result;
+    }
+
+    private synchronized void waitForUploads() {
+        while (_uploadsHeld) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private synchronized String nextUploadId() {
+        return "upload" + (++_lastId);
+    }
+
+    /**
+     * A request, and the response to send
+     */
+    private class Response {
+        private final String _method;
+
+        private final String _bucket;
+
+        private final String _key;
+
+        private final Map _query = new HashMap();
+
+        private final Map _headers;
+
+        private final byte[] _body;
+
+        private String _status = "200 OK";
+
+        private final StringBuffer _responseHeaders = new StringBuffer();
+
+        private byte[] _content = new byte[0];
+
+        /** the content of a virtual object: zeros */
+        private long _zeros = -1;
+
+        /** true for a HEAD: only the length of the content is sent */
+        private long _headLength = -1;
+
+        Response(String method, String path, Map headers, byte[] body) {
+            _method = method;
+            _headers = headers;
+            _body = body;
+            int index = path.indexOf('?');
+            if (index >= 0) {
+                StringTokenizer st = new StringTokenizer(path
+                        .substring(index + 1), "&");
+                while (st.hasMoreTokens()) {
+                    String parameter = st.nextToken();
+                    int equal = parameter.indexOf('=');
+                    if (equal < 0) {
+                        _query.put(parameter, "");
+                    } else {
+                        _query.put(parameter.substring(0, equal),
+                                decode(parameter.substring(equal + 1)));
+                    }
+                }
+                path = path.substring(0, index);
+            }
+            // /bucket/key
+            path = path.substring(1);
+            index = path.indexOf('/');
+            if (index < 0) {
+                _bucket = decode(path);
+                _key = null;
+            } else {
+                _bucket = decode(path.substring(0, index));
+                _key = decode(path.substring(index + 1));
+            }
+        }
+
+        void send(OutputStream out) throws IOException {
+            process();
+            StringBuffer sb = new StringBuffer();
+            sb.append("HTTP/1.1 ").append(_status).append("\r\n");
+            sb.append(_responseHeaders);
+            long length = (_headLength >= 0) ? _headLength
+                    : ((_zeros >= 0) ? _zeros : _content.length);
+            sb.append("Content-Length: ").append(length).append("\r\n");
+            sb.append("\r\n");
+            out.write(sb.toString().getBytes("ISO-8859-1"));
+            if (_headLength >= 0) {
+                return;
+            }
+            if (_zeros >= 0) {
+                byte[] zeros = new byte[64 * 1024];
+                for (long left = _zeros; left > 0;) {
+                    int count = (int) Math.min(left, zeros.length);
+                    out.write(zeros, 0, count);
+                    left -= count;
+                }
+            } else {
+                out.write(_content);
+            }
+        }
+
+        private void process() throws IOException {
+            if (_bucket.length() == 0) {
+                listBuckets();
+            } else if (_key == null) {
+                if (_method.equals("PUT")) {
+                    createBucket(_bucket);
+                } else if (_method.equals("GET")) {
+                    listObjects();
+                } else if (_method.equals("POST")
+                        && _query.containsKey("delete")) {
+                    deleteObjects();
+                } else {
+                    error("405 Method Not Allowed", "MethodNotAllowed");
+                }
+            } else if (_method.equals("POST") && _query.containsKey("uploads")) {
+                initiateUpload();
+            } else if (_method.equals("PUT")
+                    && _query.containsKey("partNumber")) {
+                uploadPart();
+            } else if (_method.equals("POST")
+                    && _query.containsKey("uploadId")) {
+                completeUpload();
+            } else if (_method.equals("DELETE")
+                    && _query.containsKey("uploadId")) {
+                synchronized (StandInS3.this) {
+                    _uploads.remove(_query.get("uploadId"));
+                }
+                _status = "204 No Content";
+            } else if (_method.equals("PUT")
+                    && _headers.containsKey("x-amz-copy-source")) {
+                copyObject();
+            } else if (_method.equals("PUT")) {
+                waitForUploads();
+                Entry entry = new Entry(_body, _body.length, "\""
+                        + toHex(md5(_body)) + "\"");
+                entry.setHeaders(_headers);
+                synchronized (StandInS3.this) {
+                    getBucket(_bucket).put(_key, entry);
+                }
+                header("ETag", entry._etag);
+            } else if (_method.equals("DELETE")) {
+                synchronized (StandInS3.this) {
+                    getBucket(_bucket).remove(_key);
+                }
+                _status = "204 No Content";
+            } else if (_method.equals("GET") || _method.equals("HEAD")) {
+                getObject();
+            } else {
+                error("405 Method Not Allowed", "MethodNotAllowed");
+            }
+        }
+
+        private void listBuckets() throws IOException {
+            StringBuffer sb = new StringBuffer();
+            sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            sb.append("<ListAllMyBucketsResult><Owner><ID>owner</ID>"
+                    + "<DisplayName>owner</DisplayName></Owner><Buckets>");
+            synchronized (StandInS3.this) {
+                for (Iterator iter = _buckets.keySet().iterator(); iter
+                        .hasNext();) {
+                    sb.append("<Bucket><Name>").append(escape((String) iter
+                            .next()));
+                    sb.append("</Name><CreationDate>2006-01-01T00:00:00.000Z"
+                            + "</CreationDate></Bucket>");
+                }
+            }
+            sb.append("</Buckets></ListAllMyBucketsResult>");
+            xml(sb);
+        }
+
+        private void listObjects() throws IOException {
+            String prefix = getParameter("prefix", "");
+            String marker = getParameter("marker", "");
+            String delimiter = (String) _query.get("delimiter");
+            int maxKeys = Integer.parseInt(getParameter("max-keys", "1000"));
+            StringBuffer contents = new StringBuffer();
+            List prefixes = new ArrayList();
+            int count = 0;
+            boolean truncated = false;
+            String last = null;
+            synchronized (StandInS3.this) {
+                Map bucket = getBucket(_bucket);
+                for (Iterator iter = bucket.entrySet().iterator(); iter
+                        .hasNext();) {
+                    Map.Entry e = (Map.Entry) iter.next();
+                    String key = (String) e.getKey();
+                    if (!key.startsWith(prefix) || (key.compareTo(marker) <= 0)) {
+                        continue;
+                    }
+                    int index = (delimiter == null) ? -1 : key.indexOf(
+                            delimiter, prefix.length());
+                    if (index >= 0) {
+                        String common = key.substring(0, index
+                                + delimiter.length());
+                        if (prefixes.contains(common)
+                                || (common.compareTo(marker) <= 0)) {
+                            continue;
+                        }
+                        if (count == maxKeys) {
+                            truncated = true;
+                            break;
+                        }
+                        prefixes.add(common);
+                        count++;
+                        last = common;
+                        continue;
+                    }
+                    if (count == maxKeys) {
+                        truncated = true;
+                        break;
+                    }
+                    Entry entry = (Entry) e.getValue();
+                    count++;
+                    last = key;
+                    contents.append("<Contents><Key>").append(escape(key));
+                    contents.append("</Key><LastModified>").append(
+                            isoDate(entry._lastModified));
+                    contents.append("</LastModified><ETag>").append(
+                            escape(entry._etag));
+                    contents.append("</ETag><Size>").append(entry._size);
+                    contents.append("</Size><StorageClass>STANDARD"
+                            + "</StorageClass></Contents>");
+                }
+            }
+            StringBuffer sb = new StringBuffer();
+            sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            sb.append("<ListBucketResult><Name>").append(escape(_bucket));
+            sb.append("</Name><Prefix>").append(escape(prefix));
+            sb.append("</Prefix><Marker>").append(escape(marker));
+            sb.append("</Marker><MaxKeys>").append(maxKeys);
+            sb.append("</MaxKeys><IsTruncated>").append(truncated);
+            sb.append("</IsTruncated>");
+            if (truncated && (delimiter != null)) {
+                sb.append("<NextMarker>").append(escape(last)).append(
+                        "</NextMarker>");
+            }
+            sb.append(contents);
+            for (Iterator iter = prefixes.iterator(); iter.hasNext();) {
+                sb.append("<CommonPrefixes><Prefix>").append(
+                        escape((String) iter.next())).append(
+                        "</Prefix></CommonPrefixes>");
+            }
+            sb.append("</ListBucketResult>");
+            xml(sb);
+        }
+
+        private void deleteObjects() throws IOException {
+            Matcher matcher = KEY.matcher(new String(_body, "UTF-8"));
+            StringBuffer sb = new StringBuffer();
+            sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            sb.append("<DeleteResult>");
+            synchronized (StandInS3.this) {
+                Map bucket = getBucket(_bucket);
+                while (matcher.find()) {
+                    String key = unescape(matcher.group(1));
+                    bucket.remove(key);
+                    sb.append("<Deleted><Key>").append(escape(key)).append(
+                            "</Key></Deleted>");
+                }
+            }
+            sb.append("</DeleteResult>");
+            xml(sb);
+        }
+
+        private void initiateUpload() throws IOException {
+            String id = nextUploadId();
+            Upload upload = new Upload();
+            upload._headers.putAll(_headers);
+            synchronized (StandInS3.this) {
+                _uploads.put(id, upload);
+            }
+            xml(new StringBuffer("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<InitiateMultipartUploadResult><Bucket>" + _bucket
+                    + "</Bucket><Key>" + escape(_key) + "</Key><UploadId>"
+                    + id + "</UploadId></InitiateMultipartUploadResult>"));
+        }
+
+        private void uploadPart() throws IOException {
+            Upload upload;
+            synchronized (StandInS3.this) {
+                upload = (Upload) _uploads.get(_query.get("uploadId"));
+            }
+            if (upload == null) {
+                error("404 Not Found", "NoSuchUpload");
+                return;
+            }
+            Integer partNumber = Integer.valueOf((String) _query
+                    .get("partNumber"));
+            String source = (String) _headers.get("x-amz-copy-source");
+            Entry part;
+            if (source == null) {
+                part = new Entry(_body, _body.length, "\"" + toHex(md5(_body))
+                        + "\"");
+                header("ETag", part._etag);
+            } else {
+                Entry entry = getSource(source);
+                if (entry == null) {
+                    error("404 Not Found", "NoSuchKey");
+                    return;
+                }
+                String range = (String) _headers
+                        .get("x-amz-copy-source-range");
+                int index = range.indexOf('-');
+                long start = Long.parseLong(range.substring("bytes="
+                        .length(), index));
+                long end = Long.parseLong(range.substring(index + 1));
+                if (entry._data == null) {
+                    part = new Entry(null, end - start + 1, "\"part"
+                            + partNumber + "\"");
+                } else {
+                    byte[] data = new byte[(int) (end - start + 1)];
+                    System.arraycopy(entry._data, (int) start, data, 0,
+                            data.length);
+                    part = new Entry(data, data.length, "\""
+                            + toHex(md5(data)) + "\"");
+                }
+                xml(new StringBuffer("<CopyPartResult><ETag>"
+                        + escape(part._etag) + "</ETag></CopyPartResult>"));
+            }
+            synchronized (StandInS3.this) {
+                upload._parts.put(partNumber, part);
+            }
+        }
+
+        private void completeUpload() throws IOException {
+            waitForUploads();
+            Upload upload;
+            synchronized (StandInS3.this) {
+                upload = (Upload) _uploads.remove(_query.get("uploadId"));
+            }
+            if (upload == null) {
+                error("404 Not Found", "NoSuchUpload");
+                return;
+            }
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            ByteArrayOutputStream md5s = new ByteArrayOutputStream();
+            long size = 0;
+            boolean virtual = false;
+            for (Iterator iter = upload._parts.values().iterator(); iter
+                    .hasNext();) {
+                Entry part = (Entry) iter.next();
+                size += part._size;
+                if (part._data == null) {
+                    virtual = true;
+                } else {
+                    data.write(part._data);
+                }
+                md5s.write(fromHex(part._etag.replaceAll("\"", "")));
+            }
+            // the ETag of a multipart object is the MD5 of the MD5s of the
+            // parts, followed by the number of parts
+            String etag = "\"" + toHex(md5(md5s.toByteArray())) + "-"
+                    + upload._parts.size() + "\"";
+            Entry entry = new Entry(virtual ? null : data.toByteArray(), size,
+                    etag);
+            entry.setHeaders(upload._headers);
+            synchronized (StandInS3.this) {
+                getBucket(_bucket).put(_key, entry);
+            }
+            xml(new StringBuffer("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<CompleteMultipartUploadResult><Key>" + escape(_key)
+                    + "</Key><ETag>" + escape(etag)
+                    + "</ETag></CompleteMultipartUploadResult>"));
+        }
+
+        private void copyObject() throws IOException {
+            String source = (String) _headers.get("x-amz-copy-source");
+            synchronized (StandInS3.this) {
+                if ((_failedCopies != null) && (_key.indexOf(_failedCopies) >= 0)) {
+                    error("500 Internal Server Error", "InternalError");
+                    return;
+                }
+            }
+            Entry entry = getSource(source);
+            if (entry == null) {
+                error("404 Not Found", "NoSuchKey");
+                return;
+            }
+            Entry copy = new Entry(entry._data, entry._size, entry._etag);
+            if ("REPLACE".equals(_headers.get("x-amz-metadata-directive"))) {
+                copy.setHeaders(_headers);
+            } else {
+                copy._contentType = entry._contentType;
+                copy._metadata.putAll(entry._metadata);
+            }
+            synchronized (StandInS3.this) {
+                getBucket(_bucket).put(_key, copy);
+            }
+            xml(new StringBuffer("<CopyObjectResult><LastModified>"
+                    + isoDate(copy._lastModified) + "</LastModified><ETag>"
+                    + escape(copy._etag) + "</ETag></CopyObjectResult>"));
+        }
+
+        private void getObject() throws IOException {
+            Entry entry;
+            synchronized (StandInS3.this) {
+                entry = (Entry) getBucket(_bucket).get(_key);
+            }
+            if (entry == null) {
+                if (_method.equals("HEAD")) {
+                    _status = "404 Not Found";
+                } else {
+                    error("404 Not Found", "NoSuchKey");
+                }
+                return;
+            }
+            header("ETag", entry._etag);
+            header("Last-Modified", httpDate(entry._lastModified));
+            if (entry._etag.equals(_headers.get("if-none-match"))) {
+                _status = "304 Not Modified";
+                return;
+            }
+            header("Content-Type", entry._contentType);
+            for (Iterator iter = entry._metadata.entrySet().iterator(); iter
+                    .hasNext();) {
+                Map.Entry e = (Map.Entry) iter.next();
+                header("x-amz-meta-" + e.getKey(), (String) e.getValue());
+            }
+            if (_method.equals("HEAD")) {
+                _headLength = entry._size;
+                return;
+            }
+            long start = 0;
+            long end = entry._size - 1;
+            String range = (String) _headers.get("range");
+            if (range != null) {
+                String spec = range.substring("bytes=".length());
+                int index = spec.indexOf('-');
+                if (index == 0) {
+                    start = Math.max(0, entry._size
+                            - Long.parseLong(spec.substring(1)));
+                } else {
+                    start = Long.parseLong(spec.substring(0, index));
+                    if (index + 1 < spec.length()) {
+                        end = Math.min(end, Long.parseLong(spec
+                                .substring(index + 1)));
+                    }
+                }
+                _status = "206 Partial Content";
+                header("Content-Range", "bytes " + start + "-" + end + "/"
+                        + entry._size);
+            }
+            if (entry._data == null) {
+                _zeros = end - start + 1;
+            } else {
+                _content = new byte[(int) (end - start + 1)];
+                System.arraycopy(entry._data, (int) start, _content, 0,
+                        _content.length);
+            }
+        }
+
+        private Entry getSource(String source) {
+            // /bucket/key
+            source = decode(source);
+            if (source.startsWith("/")) {
+                source = source.substring(1);
+            }
+            int index = source.indexOf('/');
+            synchronized (StandInS3.this) {
+                return (Entry) getBucket(source.substring(0, index)).get(
+                        source.substring(index + 1));
+            }
+        }
+
+        private String getParameter(String name, String defaultValue) {
+            String value = (String) _query.get(name);
+            return (value == null) ? defaultValue : value;
+        }
+
+        private void header(String name, String value) {
+            _responseHeaders.append(name).append(": ").append(value).append(
+                    "\r\n");
+        }
+
+        private void xml(StringBuffer sb) throws IOException {
+            header("Content-Type", "application/xml");
+            _content = sb.toString().getBytes("UTF-8");
+        }
+
+        private void error(String status, String code) throws IOException {
+            _status = status;
+            xml(new StringBuffer("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<Error><Code>" + code + "</Code><Message>" + code
+                    + "</Message></Error>"));
+        }
+    }
+
+    /**
+     * An object, or a part of a multipart upload
+     */
+    private static class Entry {
+        /** null for a virtual object */
+        final byte[] _data;
+
+        final long _size;
+
+        final String _etag;
+
+        final long _lastModified = System.currentTimeMillis();
+
+        String _contentType = "application/octet-stream";
+
+        /** name (without x-amz-meta-) -&gt; value */
+        final Map _metadata = new TreeMap();
+
+        Entry(byte[] data, long size, String etag) {
+            _data = data;
+            _size = size;
+            _etag = etag;
+        }
+
+        void setHeaders(Map headers) {
+            for (Iterator iter = headers.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry e = (Map.Entry) iter.next();
+                String name = (String) e.getKey();
+                if (name.startsWith("x-amz-meta-")) {
+                    _metadata.put(name.substring("x-amz-meta-".length()), e
+                            .getValue());
+                } else if (name.equals("content-type")) {
+                    _contentType = (String) e.getValue();
+                }
+            }
+        }
+    }
+
+    private static class Upload {
+        final Map _headers = new HashMap();
+
+        /** part number -&gt; Entry, sorted */
+        final Map _parts = new TreeMap();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuffer sb = new StringBuffer();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = sb.length();
+                if ((length > 0) && (sb.charAt(length - 1) == '\r')) {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return (sb.length() == 0) ? null : sb.toString();
+    }
+
+    private static byte[] readBody(InputStream in, Map headers)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equalsIgnoreCase((String) headers
+                .get("transfer-encoding"))) {
+            while (true) {
+                String line = readLine(in);
+                int index = line.indexOf(';');
+                int size = Integer.parseInt((index < 0) ? line.trim() : line
+                        .substring(0, index).trim(), 16);
+                if (size == 0) {
+                    readLine(in);
+                    break;
+                }
+                copy(in, body, size);
+                readLine(in);
+            }
+        } else {
+            String length = (String) headers.get("content-length");
+            if (length != null) {
+                copy(in, body, Long.parseLong(length));
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private static void copy(InputStream in, OutputStream out, long count)
+            throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        while (count > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(count, buffer.length));
+            if (read < 0) {
+                throw new IOException("Unexpected end of request");
+            }
+            out.write(buffer, 0, read);
+            count -= read;
+        }
+    }
+
+    /**
+     * Decodes the %xx sequences (a '+' is not a space in a path)
+     */
+    private static String decode(String s) {
+        if (s.indexOf('%') < 0) {
+            return s;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '%') && (i + 2 < s.length())) {
+                bytes.write(Integer.parseInt(s.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                bytes.write(c);
+            }
+        }
+        try {
+            return new String(bytes.toByteArray(), "UTF-8");
+        } catch (IOException ex) {
+            throw new RuntimeException(ex.toString());
+        }
+    }
+
+    private static String escape(String s) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '&') {
+                sb.append("&amp;");
+            } else if (c == '<') {
+                sb.append("&lt;");
+            } else if (c == '>') {
+                sb.append("&gt;");
+            } else if (c == '"') {
+                sb.append("&quot;");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String unescape(String s) {
+        if (s.startsWith("<![CDATA[") && s.endsWith("]]>")) {
+            return s.substring("<![CDATA[".length(), s.length() - 3);
+        }
+        return s.replaceAll("&lt;", "<").replaceAll("&gt;", ">").replaceAll(
+                "&quot;", "\"").replaceAll("&apos;", "'").replaceAll("&amp;",
+                "&");
+    }
+
+    private static String isoDate(long date) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(new SimpleTimeZone(0, "GMT"));
+        return format.format(new Date(date));
+    }
+
+    private static String httpDate(long date) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(new SimpleTimeZone(0, "GMT"));
+        return format.format(new Date(date));
+    }
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex.toString());
+        }
+    }
+
+    private static String toHex(byte[] data) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < data.length; i++) {
+            sb.append(Character.forDigit((data[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(data[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        if ((hex.length() != 32) || !hex.matches("[0-9a-fA-F]+")) {
+            // the ETag of a part copied from a virtual object
+            return md5(hex.getBytes());
+        }
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(hex.substring(2 * i,
+                    2 * i + 2), 16);
+        }
+        return result;
+    }
+}
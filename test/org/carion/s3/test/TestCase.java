@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The base class of the tests: each public method whose name starts with
+ * 'test' is run by the TestRunner, between a call to setUp and a call to
+ * tearDown.
+ *
+ * @author pcarion
+ */
+public abstract class TestCase {
+    /** the temporary directories to delete after the test */
+    private final List _directories = new ArrayList();
+
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+    /**
+     * Called by the TestRunner after tearDown
+     */
+    void cleanUp() {
+        for (Iterator iter = _directories.iterator(); iter.hasNext();) {
+            delete((File) iter.next());
+        }
+        _directories.clear();
+    }
+
+    /**
+     * @return an empty directory, deleted after the test
+     */
+    protected File mkTempDirectory() throws IOException {
+        File directory = File.createTempFile("s3dav-test", "");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Can't create directory:" + directory);
+        }
+        _directories.add(directory);
+        return directory;
+    }
+
+    /**
+     * @return a port on which no server is listening
+     */
+    protected static int getFreePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                delete(files[i]);
+            }
+        }
+        file.delete();
+    }
+
+    protected static void fail(String message) {
+        throw new AssertionFailedError(message);
+    }
+
+    protected static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            fail(message);
+        }
+    }
+
+    protected static void assertFalse(String message, boolean condition) {
+        assertTrue(message, !condition);
+    }
+
+    protected static void assertNull(String message, Object value) {
+        if (value != null) {
+            fail(message + ", expected null but was:" + value);
+        }
+    }
+
+    protected static void assertNotNull(String message, Object value) {
+        if (value == null) {
+            fail(message + ", expected a value");
+        }
+    }
+
+    protected static void assertEquals(String message, long expected,
+            long actual) {
+        if (expected != actual) {
+            fail(message + ", expected:" + expected + " but was:" + actual);
+        }
+    }
+
+    protected static void assertEquals(String message, Object expected,
+            Object actual) {
+        if ((expected == null) ? (actual != null) : !expected.equals(actual)) {
+            fail(message + ", expected:" + expected + " but was:" + actual);
+        }
+    }
+
+    /**
+     * A check of the test has failed
+     */
+    public static class AssertionFailedError extends RuntimeException {
+        AssertionFailedError(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A persistent HTTP connection to the webDAV server, to send raw requests
+ *
+ * @author pcarion
+ */
+public class TestHttpClient {
+    private final Socket _socket;
+
+    private final InputStream _in;
+
+    private final OutputStream _out;
+
+    /**
+     * Connects to the server, waiting for it to listen
+     */
+    public TestHttpClient(int port) throws IOException {
+        Socket socket = null;
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket("127.0.0.1", port);
+            } catch (ConnectException ex) {
+                if (attempt == 50) {
+                    throw ex;
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw ex;
+                }
+            }
+        }
+        _socket = socket;
+        _socket.setSoTimeout(10000);
+        _in = new BufferedInputStream(_socket.getInputStream());
+        _out = _socket.getOutputStream();
+    }
+
+    /**
+     * Sends a request and reads its response
+     * @param headers the request line and the headers, separated by CRLF
+     * @param body the body of the request, null if none
+     * @param head true for a HEAD request: the response has no body
+     */
+    public Response send(String headers, byte[] body, boolean head)
+            throws IOException {
+        StringBuffer sb = new StringBuffer(headers);
+        sb.append("\r\nHost: 127.0.0.1");
+        if (body != null) {
+            sb.append("\r\nContent-Length: ").append(body.length);
+        }
+        sb.append("\r\n\r\n");
+        _out.write(sb.toString().getBytes("ISO-8859-1"));
+        if (body != null) {
+            _out.write(body);
+        }
+        _out.flush();
+        return read(head);
+    }
+
+    public Response send(String headers) throws IOException {
+        return send(headers, null, headers.startsWith("HEAD "));
+    }
+
+    /**
+     * @return true if the server has closed the connection
+     */
+    public boolean isClosed() throws IOException {
+        try {
+            return _in.read() < 0;
+        } catch (SocketTimeoutException ex) {
+            return false;
+        }
+    }
+
+    public void close() throws IOException {
+        _socket.close();
+    }
+
+    private Response read(boolean head) throws IOException {
+        Response response = new Response();
+        response._status = readLine();
+        if (response._status == null) {
+            throw new IOException("Connection closed");
+        }
+        String line;
+        while (((line = readLine()) != null) && (line.length() > 0)) {
+            int index = line.indexOf(':');
+            response._headers.put(line.substring(0, index).trim()
+                    .toLowerCase(), line.substring(index + 1).trim());
+        }
+        String length = response.getHeader("Content-Length");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (head) {
+            // the headers describe the content of a GET
+        } else if ("chunked".equalsIgnoreCase(response
+                .getHeader("Transfer-Encoding"))) {
+            while (true) {
+                line = readLine();
+                int index = line.indexOf(';');
+                int size = Integer.parseInt((index < 0) ? line.trim() : line
+                        .substring(0, index).trim(), 16);
+                if (size == 0) {
+                    readLine();
+                    break;
+                }
+                read(body, size);
+                readLine();
+            }
+        } else if (length != null) {
+            read(body, Long.parseLong(length));
+        }
+        response._body = body.toByteArray();
+        return response;
+    }
+
+    private void read(OutputStream out, long count) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        while (count > 0) {
+            int read = _in.read(buffer, 0, (int) Math.min(count,
+                    buffer.length));
+            if (read < 0) {
+                throw new IOException("Connection closed");
+            }
+            out.write(buffer, 0, read);
+            count -= read;
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuffer sb = new StringBuffer();
+        int c;
+        while ((c = _in.read()) >= 0) {
+            if (c == '\n') {
+                int length = sb.length();
+                if ((length > 0) && (sb.charAt(length - 1) == '\r')) {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return (sb.length() == 0) ? null : sb.toString();
+    }
+
+    public static class Response {
+        private String _status;
+
+        /** lower case name -&gt; value */
+        private final Map _headers = new HashMap();
+
+        private byte[] _body;
+
+        /**
+         * @return the status code
+         */
+        public int getStatus() {
+            return Integer.parseInt(_status.substring(9, 12));
+        }
+
+        public String getHeader(String name) {
+            return (String) _headers.get(name.toLowerCase());
+        }
+
+        public byte[] getBody() {
+            return _body;
+        }
+
+        public String getBodyAsString() throws IOException {
+            return new String(_body, "UTF-8");
+        }
+    }
+}
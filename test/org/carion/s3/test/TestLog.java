@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.carion.s3.S3Log;
+
+/**
+ * Keeps the messages logged during a test. They are printed too when the
+ * system property s3dav.test.verbose is set.
+ *
+ * @author pcarion
+ */
+public class TestLog implements S3Log {
+    private final static boolean VERBOSE = System
+            .getProperty("s3dav.test.verbose") != null;
+
+    private final List _messages = new ArrayList();
+
+    public synchronized void log(String message) {
+        _messages.add(message);
+        if (VERBOSE) {
+            System.out.println(message);
+        }
+    }
+
+    public synchronized void log(String message, Throwable ex) {
+        log(message + " " + ex);
+    }
+
+    public S3Log getLogger(String prefix) {
+        return this;
+    }
+
+    public String ts() {
+        return "";
+    }
+
+    public void eol() {
+    }
+
+    /**
+     * @return true if a message containing the text has been logged
+     */
+    public synchronized boolean contains(String text) {
+        for (Iterator iter = _messages.iterator(); iter.hasNext();) {
+            if (((String) iter.next()).indexOf(text) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
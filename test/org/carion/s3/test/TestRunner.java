@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.test;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs the tests (the classes whose name ends with 'Test') found in a
+ * directory of compiled classes.
+ * usage: TestRunner &lt;classes directory&gt; [class name filter]
+ * The exit status is 1 if a test has failed.
+ *
+ * @author pcarion
+ */
+public class TestRunner {
+    private int _run = 0;
+
+    private final List _failures = new ArrayList();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: TestRunner <classes directory> [filter]");
+            System.exit(2);
+        }
+        File root = new File(args[0]);
+        List classes = new ArrayList();
+        findTests(root, "", classes);
+        Collections.sort(classes);
+
+        TestRunner runner = new TestRunner();
+        for (Iterator iter = classes.iterator(); iter.hasNext();) {
+            String className = (String) iter.next();
+            if ((args.length < 2) || (className.indexOf(args[1]) >= 0)) {
+                runner.run(Class.forName(className));
+            }
+        }
+
+        System.out.println();
+        System.out.println("Tests run: " + runner._run + ", failures: "
+                + runner._failures.size());
+        for (Iterator iter = runner._failures.iterator(); iter.hasNext();) {
+            System.out.println("  " + iter.next());
+        }
+        // some of the tests leave non daemon threads (servers, pools)
+        System.exit(runner._failures.isEmpty() ? 0 : 1);
+    }
+
+    private static void findTests(File directory, String packageName,
+            List result) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            if (files[i].isDirectory()) {
+                findTests(files[i], packageName + name + ".", result);
+            } else if (name.endsWith("Test.class") && (name.indexOf('$') < 0)) {
+                result.add(packageName
+                        + name.substring(0, name.length() - ".class".length()));
+            }
+        }
+    }
+
+    private void run(Class testClass) throws Exception {
+        if (Modifier.isAbstract(testClass.getModifiers())
+                || !TestCase.class.isAssignableFrom(testClass)) {
+            return;
+        }
+        Method[] methods = testClass.getMethods();
+        List names = new ArrayList();
+        for (int i = 0; i < methods.length; i++) {
+            if (methods[i].getName().startsWith("test")
+                    && (methods[i].getParameterTypes().length == 0)) {
+                names.add(methods[i].getName());
+            }
+        }
+        Collections.sort(names);
+        for (Iterator iter = names.iterator(); iter.hasNext();) {
+            String name = (String) iter.next();
+            TestCase test = (TestCase) testClass.getConstructor(new Class[0])
+                    .newInstance(new Object[0]);
+            String label = testClass.getName() + "." + name;
+            long start = System.currentTimeMillis();
+            Throwable error = null;
+            _run++;
+            try {
+                test.setUp();
+                try {
+                    testClass.getMethod(name, new Class[0]).invoke(test,
+                            new Object[0]);
+                } finally {
+                    test.tearDown();
+                }
+            } catch (InvocationTargetException ex) {
+                error = ex.getTargetException();
+            } catch (Throwable ex) {
+                error = ex;
+            } finally {
+                test.cleanUp();
+            }
+            long time = System.currentTimeMillis() - start;
+            if (error == null) {
+                System.out.println(label + " (" + time + "ms)");
+            } else {
+                System.out.println(label + " FAILED");
+                error.printStackTrace(System.out);
+                _failures.add(label + ": " + error);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.util;
+
+import org.carion.s3.test.TestCase;
+
+/**
+ * @author pcarion
+ */
+public class BloomFilterTest extends TestCase {
+    public void testNoFalseNegative() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("dir//file" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue("added:" + i, filter.mightContain("dir//file" + i));
+        }
+    }
+
+    public void testFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("dir//file" + i);
+        }
+        int positives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("dir//other" + i)) {
+                positives++;
+            }
+        }
+        // 1% expected, some margin for the hash functions
+        assertTrue("false positives:" + positives, positives < 2000);
+    }
+
+    public void testSize() {
+        // about 10 bits per string for 1%
+        BloomFilter filter = new BloomFilter(8000, 0.01);
+        assertTrue("bytes:" + filter.getBytes(), (filter.getBytes() >= 9000)
+                && (filter.getBytes() <= 11000));
+        // at least 64 bits
+        assertEquals("empty", 8, new BloomFilter(0, 0.01).getBytes());
+    }
+
+    public void testEmpty() {
+        BloomFilter filter = new BloomFilter(100, 0.01);
+        assertFalse("empty filter", filter.mightContain("a"));
+        assertFalse("empty string", filter.mightContain(""));
+        filter.add("");
+        assertTrue("empty string added", filter.mightContain(""));
+    }
+}
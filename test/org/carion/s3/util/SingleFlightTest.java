@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.util;
+
+import java.io.IOException;
+
+import org.carion.s3.test.TestCase;
+
+/**
+ * @author pcarion
+ */
+public class SingleFlightTest extends TestCase {
+    private final static int THREADS = 5;
+
+    public void testSharedCall() throws Exception {
+        SingleFlight flight = new SingleFlight(true);
+        Gate gate = new Gate();
+        Caller[] callers = start(flight, "key", gate);
+        gate.waitForCall();
+        // let the other threads join the call in progress
+        waitForCollapsed(flight, THREADS - 1);
+        gate.open("result");
+        for (int i = 0; i < callers.length; i++) {
+            callers[i].join(5000);
+            assertEquals("result of " + i, "result", callers[i]._result);
+        }
+        assertEquals("calls", 1, gate._calls);
+        assertEquals("counted calls", 1, flight.getCalls());
+        assertEquals("collapsed", THREADS - 1, flight.getCollapsed());
+    }
+
+    public void testSharedError() throws Exception {
+        SingleFlight flight = new SingleFlight(true);
+        Gate gate = new Gate();
+        Caller[] callers = start(flight, "key", gate);
+        gate.waitForCall();
+        waitForCollapsed(flight, THREADS - 1);
+        gate.fail(new IOException("S3 error"));
+        for (int i = 0; i < callers.length; i++) {
+            callers[i].join(5000);
+            assertNotNull("error of " + i, callers[i]._error);
+            assertEquals("error of " + i, "S3 error", callers[i]._error
+                    .getMessage());
+        }
+        assertEquals("calls", 1, gate._calls);
+    }
+
+    public void testSequentialCalls() throws Exception {
+        SingleFlight flight = new SingleFlight(true);
+        Gate gate = new Gate();
+        gate.open("result");
+        flight.execute("key", gate);
+        flight.execute("key", gate);
+        // the results are not kept once the call is over
+        assertEquals("calls", 2, gate._calls);
+    }
+
+    public void testForget() throws Exception {
+        SingleFlight flight = new SingleFlight(true);
+        Gate first = new Gate();
+        Caller caller = new Caller(flight, "dir//a", first);
+        caller.start();
+        first.waitForCall();
+        // the object has changed: the new callers don't get the old result
+        flight.forget("dir//");
+        Gate second = new Gate();
+        second.open("new");
+        assertEquals("new call", "new", flight.execute("dir//a", second));
+        first.open("old");
+        caller.join(5000);
+        assertEquals("old call", "old", caller._result);
+        assertEquals("second calls", 1, second._calls);
+    }
+
+    public void testDisabled() throws Exception {
+        SingleFlight flight = new SingleFlight(false);
+        Gate gate = new Gate();
+        gate.open("result");
+        assertEquals("result", "result", flight.execute("key", gate));
+        assertEquals("calls", 1, gate._calls);
+        assertEquals("not counted", 0, flight.getCalls());
+    }
+
+    private Caller[] start(SingleFlight flight, String key, Gate gate) {
+        Caller[] callers = new Caller[THREADS];
+        for (int i = 0; i < callers.length; i++) {
+            callers[i] = new Caller(flight, key, gate);
+            callers[i].start();
+        }
+        return callers;
+    }
+
+    private void waitForCollapsed(SingleFlight flight, int count)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while ((flight.getCollapsed() < count)
+                && (System.currentTimeMillis() < end)) {
+            Thread.sleep(10);
+        }
+        assertEquals("collapsed", count, flight.getCollapsed());
+    }
+
+    /**
+     * A call which waits until the test gives its result
+     */
+    private static class Gate implements SingleFlight.Call {
+        private int _calls = 0;
+
+        private boolean _open = false;
+
+        private Object _result;
+
+        private IOException _error;
+
+        public synchronized Object call() throws IOException {
+            _calls++;
+            notifyAll();
+            while (!_open) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (_error != null) {
+                throw _error;
+            }
+            return _result;
+        }
+
+        synchronized void waitForCall() throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while ((_calls == 0) && (System.currentTimeMillis() < end)) {
+                wait(100);
+            }
+        }
+
+        synchronized void open(Object result) {
+            _result = result;
+            _open = true;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException error) {
+            _error = error;
+            _open = true;
+            notifyAll();
+        }
+    }
+
+    private static class Caller extends Thread {
+        private final SingleFlight _flight;
+
+        private final String _key;
+
+        private final Gate _gate;
+
+        private Object _result;
+
+        private IOException _error;
+
+        Caller(SingleFlight flight, String key, Gate gate) {
+            _flight = flight;
+            _key = key;
+            _gate = gate;
+        }
+
+        public void run() {
+            try {
+                _result = _flight.execute(_key, _gate);
+            } catch (IOException ex) {
+                _error = ex;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3.util;
+
+import org.carion.s3.test.TestCase;
+import org.carion.s3.test.TestLog;
+
+/**
+ * @author pcarion
+ */
+public class WorkerPoolTest extends TestCase {
+    public void testFailingTask() throws Exception {
+        WorkerPool pool = new WorkerPool("test-pool", 1, 10);
+        TestLog log = new TestLog();
+        pool.execute(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("broken task");
+            }
+        }, log);
+        // the worker goes on with the next task
+        assertTrue("ran", runTask(pool, log));
+        assertTrue("logged", log.contains("broken task"));
+    }
+
+    public void testError() throws Exception {
+        WorkerPool pool = new WorkerPool("test-pool", 1, 10);
+        TestLog log = new TestLog();
+        pool.execute(new Runnable() {
+            public void run() {
+                throw new StackOverflowError("broken worker");
+            }
+        }, log);
+        // the worker is stopped, another one runs the next task
+        assertTrue("ran", runTask(pool, log));
+        assertTrue("logged", log.contains("broken worker"));
+        assertEquals("threads", 1, pool.getThreads());
+    }
+
+    /**
+     * @return true if a task queued in the pool has been run
+     */
+    private static boolean runTask(WorkerPool pool, TestLog log)
+            throws InterruptedException {
+        final boolean[] ran = new boolean[1];
+        pool.executeAndWait(new Runnable() {
+            public void run() {
+                synchronized (ran) {
+                    ran[0] = true;
+                    ran.notifyAll();
+                }
+            }
+        }, log);
+        synchronized (ran) {
+            long end = System.currentTimeMillis() + 5000;
+            while (!ran[0] && (System.currentTimeMillis() < end)) {
+                ran.wait(100);
+            }
+            return ran[0];
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3dav.webdav;
+
+import java.util.Date;
+
+import org.carion.s3.test.TestCase;
+import org.carion.s3.util.Util;
+
+/**
+ * The parsing of the Range and of the conditional headers
+ *
+ * @author pcarion
+ */
+public class HandlerGetTest extends TestCase {
+    private final static long BIG = 5000000000L;
+
+    public void testRange() {
+        assertRange("bytes=0-99", 1000, 0, 99);
+        assertRange(" bytes=10-", 1000, 10, 999);
+        assertRange("bytes=990-2000", 1000, 990, 999);
+        assertRange("bytes=0-0", 1000, 0, 0);
+    }
+
+    public void testSuffixRange() {
+        assertRange("bytes=-100", 1000, 900, 999);
+        assertRange("bytes=-5000", 1000, 0, 999);
+        // nothing to send
+        assertRange("bytes=-0", 1000, 1000, 1000);
+    }
+
+    public void testUnsatisfiableRange() {
+        long[] range = HandlerGet.parseRange("bytes=1000-", 1000);
+        assertTrue("unsatisfiable", range[0] >= 1000);
+        range = HandlerGet.parseRange("bytes=3000000000-", 1000);
+        assertEquals("first byte", 3000000000L, range[0]);
+    }
+
+    public void testIgnoredRange() {
+        // the whole content is sent
+        assertNull("multiple ranges", HandlerGet.parseRange(
+                "bytes=0-1,5-6", 1000));
+        assertNull("unit", HandlerGet.parseRange("items=0-1", 1000));
+        assertNull("no dash", HandlerGet.parseRange("bytes=10", 1000));
+        assertNull("not a number", HandlerGet.parseRange("bytes=a-b", 1000));
+        assertNull("reversed", HandlerGet.parseRange("bytes=20-10", 1000));
+        assertNull("empty resource", HandlerGet.parseRange("bytes=0-1", 0));
+    }
+
+    public void testRangeBeyond2GB() {
+        assertRange("bytes=4294967296-4294967300", BIG, 4294967296L,
+                4294967300L);
+        assertRange("bytes=2147483648-", BIG, 2147483648L, BIG - 1);
+        assertRange("bytes=-3000000000", BIG, BIG - 3000000000L, BIG - 1);
+    }
+
+    public void testIfNoneMatch() {
+        String etag = "\"abc\"";
+        assertTrue("same tag", HandlerGet.matches("\"abc\"", etag));
+        assertTrue("list", HandlerGet.matches("\"x\", \"abc\"", etag));
+        assertTrue("weak tag", HandlerGet.matches("W/\"abc\"", etag));
+        assertTrue("star", HandlerGet.matches("*", etag));
+        assertFalse("other tag", HandlerGet.matches("\"abd\"", etag));
+        assertFalse("unknown tag", HandlerGet.matches("*", null));
+    }
+
+    public void testIfModifiedSince() {
+        Date lastModified = new Date(1160000000000L);
+        String same = Util.getHttpDate(lastModified);
+        assertTrue("same date", HandlerGet.isNotModifiedSince(same,
+                lastModified));
+        // the dates are compared to the second
+        assertTrue("same second", HandlerGet.isNotModifiedSince(same,
+                new Date(lastModified.getTime() + 999)));
+        assertFalse("modified", HandlerGet.isNotModifiedSince(same,
+                new Date(lastModified.getTime() + 1000)));
+        assertFalse("bad date", HandlerGet.isNotModifiedSince("yesterday",
+                lastModified));
+        assertFalse("unknown date", HandlerGet
+                .isNotModifiedSince(same, null));
+    }
+
+    public void testIfRangeDate() {
+        Date lastModified = new Date(1160000000000L);
+        String same = Util.getHttpDate(lastModified);
+        assertTrue("same date", HandlerGet.isModifiedAt(same, lastModified));
+        assertFalse("modified", HandlerGet.isModifiedAt(same, new Date(
+                lastModified.getTime() + 1000)));
+        assertFalse("bad date", HandlerGet.isModifiedAt("yesterday",
+                lastModified));
+        // the whole content is sent
+        assertFalse("unknown date", HandlerGet.isModifiedAt(same, null));
+    }
+
+    private static void assertRange(String header, long length, long start,
+            long end) {
+        long[] range = HandlerGet.parseRange(header, length);
+        assertNotNull(header, range);
+        assertEquals(header + " start", start, range[0]);
+        assertEquals(header + " end", end, range[1]);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3dav.webdav;
+
+import org.carion.s3.S3Object;
+import org.carion.s3.S3Resource;
+import org.carion.s3.impl.S3RepositoryImpl;
+import org.carion.s3.impl.S3UrlNameImpl;
+import org.carion.s3.test.StandInS3;
+import org.carion.s3.test.TestCase;
+import org.carion.s3.test.TestHttpClient;
+import org.carion.s3.test.TestLog;
+
+/**
+ * The objects bigger than 2GB, served by the stand-in S3 (they are made of
+ * zeros and not stored)
+ *
+ * @author pcarion
+ */
+public class LargeObjectTest extends TestCase {
+    private final static long SIZE = 5000000000L;
+
+    private StandInS3 _s3;
+
+    private S3RepositoryImpl _repository;
+
+    private TestHttpClient _client;
+
+    protected void setUp() throws Exception {
+        _s3 = new StandInS3();
+        _s3.createBucket("bucket");
+        _repository = _s3.mkRepository(mkTempDirectory(), new TestLog());
+        _repository.createFolder(new S3UrlNameImpl("/bucket/dir", false));
+        _s3.putVirtualObject("bucket", "dir//huge.bin", SIZE);
+        int port = getFreePort();
+        new WebdavServer(port, _repository, new TestLog()).start();
+        _client = new TestHttpClient(port);
+    }
+
+    protected void tearDown() throws Exception {
+        _client.close();
+        _s3.shutdown();
+    }
+
+    public void testListingSize() throws Exception {
+        S3Object[] children = _repository.getFolder(
+                new S3UrlNameImpl("/bucket/dir", false)).getChildren();
+        assertEquals("children", 1, children.length);
+        assertEquals("size", SIZE, ((S3Resource) children[0]).getLength());
+    }
+
+    public void testPropfind() throws Exception {
+        TestHttpClient.Response response = _client.send(
+                "PROPFIND /bucket/dir HTTP/1.1\r\nDepth: 1", new byte[0],
+                false);
+        assertEquals("status", 207, response.getStatus());
+        String body = response.getBodyAsString();
+        assertTrue(body, body.indexOf(">" + SIZE + "<") >= 0);
+    }
+
+    public void testHead() throws Exception {
+        TestHttpClient.Response response = _client
+                .send("HEAD /bucket/dir/huge.bin HTTP/1.1");
+        assertEquals("status", 200, response.getStatus());
+        assertEquals("length", String.valueOf(SIZE), response
+                .getHeader("Content-Length"));
+    }
+
+    public void testRangeBeyond4GB() throws Exception {
+        long start = SIZE - 10;
+        TestHttpClient.Response response = _client
+                .send("GET /bucket/dir/huge.bin HTTP/1.1\r\nRange: bytes="
+                        + start + "-");
+        assertEquals("status", 206, response.getStatus());
+        assertEquals("range", "bytes " + start + "-" + (SIZE - 1) + "/"
+                + SIZE, response.getHeader("Content-Range"));
+        assertEquals("length", "10", response.getHeader("Content-Length"));
+        assertEquals("content", 10, response.getBody().length);
+    }
+
+    public void testUnsatisfiableRange() throws Exception {
+        TestHttpClient.Response response = _client
+                .send("GET /bucket/dir/huge.bin HTTP/1.1\r\nRange: bytes="
+                        + SIZE + "-");
+        assertEquals("status", 416, response.getStatus());
+        assertEquals("range", "bytes */" + SIZE, response
+                .getHeader("Content-Range"));
+    }
+}
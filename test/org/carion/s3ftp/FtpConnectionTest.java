@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3ftp;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.carion.s3.impl.S3RepositoryImpl;
+import org.carion.s3.impl.S3UrlNameImpl;
+import org.carion.s3.test.StandInS3;
+import org.carion.s3.test.TestCase;
+import org.carion.s3.test.TestLog;
+
+/**
+ * The ftp commands on objects bigger than 2GB
+ *
+ * @author pcarion
+ */
+public class FtpConnectionTest extends TestCase {
+    private final static long SIZE = 5000000000L;
+
+    private StandInS3 _s3;
+
+    private S3RepositoryImpl _repository;
+
+    private Socket _socket;
+
+    private BufferedReader _in;
+
+    private PrintWriter _out;
+
+    protected void setUp() throws Exception {
+        _s3 = new StandInS3();
+        _s3.createBucket("bucket");
+        _repository = _s3.mkRepository(mkTempDirectory(), new TestLog());
+        _repository.createFolder(new S3UrlNameImpl("/bucket/dir", false));
+        _s3.putVirtualObject("bucket", "dir//huge.bin", SIZE);
+        int port = getFreePort();
+        new FtpServer("user", "password", port, _repository, new TestLog())
+                .start();
+        _socket = new Socket("127.0.0.1", port);
+        _socket.setSoTimeout(10000);
+        _in = new BufferedReader(new InputStreamReader(_socket
+                .getInputStream()));
+        _out = new PrintWriter(_socket.getOutputStream(), true);
+        assertReply("greeting", "220");
+        send("USER user", "331");
+        send("PASS password", "230");
+        send("CWD /bucket/dir", "250");
+    }
+
+    protected void tearDown() throws Exception {
+        _socket.close();
+        _s3.shutdown();
+    }
+
+    public void testList() throws Exception {
+        String listing = new String(transfer("LIST"));
+        assertTrue(listing, listing.indexOf("\t" + SIZE + "\t") > 0);
+    }
+
+    public void testSize() throws Exception {
+        assertEquals("size", "213 " + SIZE, send("SIZE huge.bin", "213"));
+        send("SIZE missing.bin", "550");
+    }
+
+    public void testRestBeyond4GB() throws Exception {
+        send("TYPE I", "200");
+        send("REST " + (SIZE - 10), "350");
+        // only the end of the object is read from S3
+        assertEquals("content", 10, transfer("RETR huge.bin").length);
+    }
+
+    /**
+     * Sends a command with a data connection
+     * @return what has been received on the data connection
+     */
+    private byte[] transfer(String command) throws IOException {
+        ServerSocket data = new ServerSocket(0, 1, InetAddress
+                .getByName("127.0.0.1"));
+        try {
+            data.setSoTimeout(10000);
+            int port = data.getLocalPort();
+            send("PORT 127,0,0,1," + (port >> 8) + "," + (port & 0xff), "200");
+            _out.println(command);
+            Socket socket = data.accept();
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            try {
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[8 * 1024];
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    result.write(buffer, 0, count);
+                }
+            } finally {
+                socket.close();
+            }
+            assertReply(command, "150");
+            assertReply(command, "226");
+            return result.toByteArray();
+        } finally {
+            data.close();
+        }
+    }
+
+    private String send(String command, String code) throws IOException {
+        _out.println(command);
+        return assertReply(command, code);
+    }
+
+    private String assertReply(String command, String code)
+            throws IOException {
+        String reply = _in.readLine();
+        assertNotNull(command, reply);
+        assertTrue(command + ":" + reply, reply.startsWith(code));
+        return reply;
+    }
+}
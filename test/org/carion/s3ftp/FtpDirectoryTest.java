@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2006, Pierre Carion.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.carion.s3ftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.carion.s3.impl.S3RepositoryImpl;
+import org.carion.s3.impl.S3UrlNameImpl;
+import org.carion.s3.test.StandInS3;
+import org.carion.s3.test.TestCase;
+import org.carion.s3.test.TestLog;
+
+/**
+ * @author pcarion
+ */
+public class FtpDirectoryTest extends TestCase {
+    private StandInS3 _s3;
+
+    private S3RepositoryImpl _repository;
+
+    private FtpDirectory _directory;
+
+    protected void setUp() throws Exception {
+        _s3 = new StandInS3();
+        _s3.createBucket("bucket");
+        _repository = _s3.mkRepository(mkTempDirectory(), new TestLog());
+        _repository.createFolder(new S3UrlNameImpl("/bucket/dir", false));
+        _s3.putObject("bucket", "dir//a.txt", "old".getBytes(), null);
+        _s3.putObject("bucket", "dir//b.txt", "b".getBytes(), null);
+        _directory = new FtpDirectory(_repository);
+        assertTrue("cwd", _directory.setDirectory("/bucket/dir"));
+    }
+
+    protected void tearDown() throws Exception {
+        _s3.holdUploads(false);
+        _s3.shutdown();
+    }
+
+    public void testListWithPendingUpload() throws Exception {
+        // the new version of a.txt is not yet in S3
+        _s3.holdUploads(true);
+        _directory.upload("a.txt", new ByteArrayInputStream("new content"
+                .getBytes()), "test");
+        _directory.upload("c.txt", new ByteArrayInputStream("c".getBytes()),
+                "test");
+
+        final List names = new ArrayList();
+        final List sizes = new ArrayList();
+        _directory.processChildren(new FtpDirectory.ChildProcessing() {
+            public void process(FtpDirectory.Child child) throws IOException {
+                names.add(child.getName());
+                sizes.add(Long.valueOf(child.getSize()));
+            }
+        });
+        // the pending uploads first, then the other files of the listing
+        assertEquals("children", 3, names.size());
+        assertEquals("pending", "a.txt", names.get(0));
+        assertEquals("pending size", Long.valueOf(11), sizes.get(0));
+        assertEquals("pending", "c.txt", names.get(1));
+        assertEquals("listed", "b.txt", names.get(2));
+    }
+}